@@ -0,0 +1,192 @@
+package si.rubin;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stisnjen zapis bloka tock po stolpcih (verzija 2, @see si.rubin.PointFile). Koordinate in z so v
+ * vhodnih podatkih na 2 decimalki, zato se hranijo kot cela stevila q = round(v * 100):
+ * X kot razlike zaporednih vrednosti (zigzag, ker pri Hilbertovi razporeditvi niso vedno pozitivne),
+ * Y, Z in I pa kot odmik od najmanjse vrednosti bloka. Vsak stolpec je zapakiran z najmanjsim
+ * potrebnim stevilom bitov.
+ * <pre>
+ * int n | byte PACKED | int x0 | byte bx | (n-1) razlik X | int minY | byte by | n odmikov Y
+ *       | int minZ | byte bz | n odmikov Z | int minI | byte bi | n odmikov I | 7 bytov
+ * int n | byte RAW | n x (float) | n y (float) | n z (float) | n i (short)
+ * </pre>
+ * Blok, katerega vrednosti se iz q ne dobijo natancno nazaj (ali bi bil zapakiran vecji), se zapise
+ * nestisnjen, zato so prebrane tocke vedno enake zapisanim. Zadnjih 7 bytov je, da lahko dekodiranje
+ * vsako vrednost prebere z enim getLong.
+ */
+class BlockCodec {
+    static final double SCALE = 100;            // Coordinates are given in cm
+    private static final byte RAW = 0;
+    private static final byte PACKED = 1;
+    private static final int HEADER = 5;        // n and the kind of the block
+    private static final int PADDING = 7;
+
+    /**
+     * @return najvecja velikost zapisanega bloka z n tockami (v bytih)
+     */
+    static int maxSize(int n) {
+        return HEADER + n * PointFile.RECORD_SIZE;
+    }
+
+    /**
+     * Zapise blok n tock v buffer (ki ima prostora za vsaj maxSize(n) bytov)
+     */
+    static void encode(float[] xs, float[] ys, float[] zs, short[] is, int n, ByteBuffer out) {
+        int[] qx = quantize(xs, n), qy = quantize(ys, n), qz = quantize(zs, n);
+        int[] qi = new int[n];
+        for (int k = 0; k < n; k++) qi[k] = is[k];
+        if (qx != null && qy != null && qz != null && n > 0) {
+            // X as zigzag deltas (int arithmetic wraps the same way when decoding)
+            int[] dx = new int[n - 1];
+            for (int k = 1; k < n; k++) {
+                int d = qx[k] - qx[k - 1];
+                dx[k - 1] = (d << 1) ^ (d >> 31);
+            }
+            int bx = width(dx, 0), by = width(qy, min(qy)), bz = width(qz, min(qz)), bi = width(qi, min(qi));
+            long size = HEADER + 4 * 5L + bytes(n - 1, bx) + bytes(n, by) + bytes(n, bz) + bytes(n, bi) + PADDING;
+            if (size <= maxSize(n)) {
+                out.putInt(n).put(PACKED);
+                out.putInt(qx[0]).put((byte) bx);
+                pack(out, dx, n - 1, 0, bx);
+                putColumn(out, qy, n, by);
+                putColumn(out, qz, n, bz);
+                putColumn(out, qi, n, bi);
+                for (int k = 0; k < PADDING; k++) out.put((byte) 0);
+                return;
+            }
+        }
+        out.putInt(n).put(RAW);
+        for (int k = 0; k < n; k++) out.putFloat(xs[k]);
+        for (int k = 0; k < n; k++) out.putFloat(ys[k]);
+        for (int k = 0; k < n; k++) out.putFloat(zs[k]);
+        for (int k = 0; k < n; k++) out.putShort(is[k]);
+    }
+
+    /**
+     * Prebere en blok iz bufferja (od njegove pozicije naprej) v tabele od mesta offset naprej
+     * @return stevilo tock bloka
+     */
+    static int decode(ByteBuffer in, float[] xs, float[] ys, float[] zs, short[] is, int offset) {
+        int p = in.position();
+        int n = in.getInt(p);
+        byte kind = in.get(p + 4);
+        p += HEADER;
+        if (kind == RAW) {
+            for (int k = 0; k < n; k++, p += 4) xs[offset + k] = in.getFloat(p);
+            for (int k = 0; k < n; k++, p += 4) ys[offset + k] = in.getFloat(p);
+            for (int k = 0; k < n; k++, p += 4) zs[offset + k] = in.getFloat(p);
+            for (int k = 0; k < n; k++, p += 2) is[offset + k] = in.getShort(p);
+            in.position(p);
+            return n;
+        }
+
+        int q = in.getInt(p);
+        int bx = in.get(p + 4);
+        p += 5;
+        xs[offset] = (float) (q / SCALE);
+        if (bx == 0) {
+            for (int k = 1; k < n; k++) xs[offset + k] = xs[offset];
+        } else {
+            for (int k = 1; k < n; k++) {
+                long bit = (long) (k - 1) * bx;
+                int zz = (int) ((in.getLong(p + (int) (bit >>> 3)) << (bit & 7)) >>> (64 - bx));
+                q += (zz >>> 1) ^ -(zz & 1);
+                xs[offset + k] = (float) (q / SCALE);
+            }
+        }
+        p += bytes(n - 1, bx);
+
+        int min = in.getInt(p), b = in.get(p + 4);
+        p += 5;
+        for (int k = 0; k < n; k++) ys[offset + k] = (float) ((min + value(in, p, k, b)) / SCALE);
+        p += bytes(n, b);
+
+        min = in.getInt(p);
+        b = in.get(p + 4);
+        p += 5;
+        for (int k = 0; k < n; k++) zs[offset + k] = (float) ((min + value(in, p, k, b)) / SCALE);
+        p += bytes(n, b);
+
+        min = in.getInt(p);
+        b = in.get(p + 4);
+        p += 5;
+        for (int k = 0; k < n; k++) is[offset + k] = (short) (min + value(in, p, k, b));
+        p += bytes(n, b);
+
+        in.position(p + PADDING);
+        return n;
+    }
+
+    /**
+     * @return k-ta vrednost sirine b bitov v stolpcu, ki se zacne na p
+     */
+    private static int value(ByteBuffer in, int p, int k, int b) {
+        if (b == 0) return 0;
+        long bit = (long) k * b;
+        return (int) ((in.getLong(p + (int) (bit >>> 3)) << (bit & 7)) >>> (64 - b));
+    }
+
+    /**
+     * @return vrednosti kot cela stevila v kvantu 1/SCALE ali null, ce se katera ne dobi natancno nazaj
+     */
+    private static int[] quantize(float[] values, int n) {
+        int[] q = new int[n];
+        for (int k = 0; k < n; k++) {
+            long cell = Math.round(values[k] * SCALE);
+            // Compared as bits, so that -0.0 is not written as 0.0
+            if (cell < Integer.MIN_VALUE || cell > Integer.MAX_VALUE
+                    || Float.floatToRawIntBits((float) (cell / SCALE)) != Float.floatToRawIntBits(values[k])) {
+                return null;
+            }
+            q[k] = (int) cell;
+        }
+        return q;
+    }
+
+    private static int min(int[] values) {
+        int min = Integer.MAX_VALUE;
+        for (int v : values) min = Math.min(min, v);
+        return min;
+    }
+
+    /**
+     * @return stevilo bitov za najvecji odmik (nepredznaceno) od base
+     */
+    private static int width(int[] values, int base) {
+        long max = 0;
+        for (int v : values) max = Math.max(max, (v - base) & 0xFFFFFFFFL);
+        return 64 - Long.numberOfLeadingZeros(max);
+    }
+
+    private static long bytes(int count, int width) {
+        return ((long) count * width + 7) / 8;
+    }
+
+    private static void putColumn(ByteBuffer out, int[] values, int n, int width) {
+        int base = min(values);
+        out.putInt(base).put((byte) width);
+        pack(out, values, n, base, width);
+    }
+
+    /**
+     * Zapakira odmike (v - base) po width bitov, od najvisjega bita naprej
+     */
+    private static void pack(ByteBuffer out, int[] values, int count, int base, int width) {
+        if (width == 0) return;
+        long mask = (1L << width) - 1;
+        long acc = 0;
+        int bits = 0;
+        for (int k = 0; k < count; k++) {
+            acc = (acc << width) | ((values[k] - base) & mask);
+            bits += width;
+            while (bits >= 8) {
+                bits -= 8;
+                out.put((byte) (acc >>> bits));
+            }
+        }
+        if (bits > 0) out.put((byte) (acc << (8 - bits)));
+    }
+}
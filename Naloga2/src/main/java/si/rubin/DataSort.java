@@ -1,14 +1,10 @@
 package si.rubin;
 
-import com.google.code.externalsorting.ExternalSort;
-
 import java.io.*;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.file.Files;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.Map;
 
 /**
  * DataSort je razred namenjen preobdelavi testnih podatkov, tako da jih uredi
@@ -18,112 +14,263 @@ import java.util.regex.Pattern;
  * @author David Rubin
  */
 public class DataSort {
-    private static List<ReflectionPoint> points;
-    private static Pattern spacePattern = Pattern.compile(" ");
-    private static final String DATA_SET = "Korte_Vegetation_10k.txt";
+    private static final long SORT_MEMORY = 256L << 20;    // Memory for points sorted at once (256MB)
 
     public static void main(String[] args) {
+        if (args.length >= 2 && args[0].equals("-c")) {
+            compact(args);
+            return;
+        }
+        if (args.length >= 3 && args[0].equals("-e")) {
+            export(args);
+            return;
+        }
         // Check if the user has given 2 program arguments
         if (args.length < 2) {
-            System.out.println("Please rerun the program with a given input and output file.\n");
-            System.out.println("Sample usage:\n  java DataSort <input_file> <output_file>\n");
-            System.out.println("  <input_file> ... must respect the format as in Korte_Vegetation_10k.txt");
-            System.out.println("  <output_file> ... will contain sorted data");
+            printHelp();
+            System.exit(1);
+        }
+        int threads = 1;
+        long sortMemory = SORT_MEMORY;
+        int blockPoints = PointFile.DEFAULT_BLOCK_POINTS;
+        int layout = PointFile.LAYOUT_XYZ;
+        double gridCell = 0;
+        boolean append = false;
+        boolean compressed = false;
+        boolean json = false;
+        for (int a = 2; a < args.length; a++) {
+            if (args[a].equals("-t") && a + 1 < args.length) {
+                threads = Integer.parseInt(args[++a]);
+            } else if (args[a].equals("-m") && a + 1 < args.length) {
+                sortMemory = Long.parseLong(args[++a]) << 20;
+            } else if (args[a].equals("-b") && a + 1 < args.length) {
+                blockPoints = Integer.parseInt(args[++a]);
+            } else if (args[a].equals("-l") && a + 1 < args.length && args[a + 1].matches("xyz|hilbert")) {
+                layout = args[++a].equals("hilbert") ? PointFile.LAYOUT_HILBERT : PointFile.LAYOUT_XYZ;
+            } else if (args[a].equals("-g") && a + 1 < args.length) {
+                gridCell = Double.parseDouble(args[++a]);
+            } else if (args[a].equals("-a")) {
+                append = true;
+            } else if (args[a].equals("-z")) {
+                compressed = true;
+            } else if (args[a].equals("-j")) {
+                json = true;
+            } else {
+                System.out.println("Unknown option: " + args[a] + "\n");
+                printHelp();
+                System.exit(1);
+            }
+        }
+        if (layout == PointFile.LAYOUT_HILBERT && blockPoints <= 0) {
+            System.out.println("The hilbert layout can not be used with the old format (-b 0)");
+            System.exit(1);
+        }
+        if (compressed && blockPoints <= 0) {
+            System.out.println("The compressed format needs blocks (-b 0 can not be used with -z)");
+            System.exit(1);
+        }
+        if (append && gridCell > 0) {
+            System.out.println("The moment grid can only be written for the whole data (without -a)");
             System.exit(1);
         }
         try {
             // Read the file names for input and output
             File inputFile = new File(args[0]);
             File outputFile = new File(args[1]);
-            PointComparator pc = new PointComparator();
-            File sortedInput = new File(args[0] + ".out");
-
-            System.out.print("Sorting the data ... ");
-            long startTime = System.currentTimeMillis();
-            // Fastest method I've tested. Probably in-memory.
-            ExternalSort.sort(inputFile, sortedInput, pc);
-
-            // True merge sort with temporary files
-            //int linesSorted = (int) ExternalSort.mergeSortedFiles(ExternalSort.sortInBatch(inputFile, pc), sortedInput);
-
-            // Using Java Collections
-            //List<String> lines = Files.readAllLines(inputFile.toPath());
-            //Collections.sort(lines, lc);
-            float sortTime = (float) (System.currentTimeMillis() - startTime) / 1000;
-            System.out.println(String.format("took %.2fs", sortTime));
-
-            // Preberi sortirano datoteko vrstico za vrstico in jo prepisi v binarno
-            System.out.print("Rewriting the file to binary ... ");
-            startTime = System.currentTimeMillis();
-
-            // Read file into memory and convert to binary (uses more memory)
-            List<String> lines = Files.readAllLines(sortedInput.toPath());
-            int linesSorted = lines.size();
-            // linesSorted vrstic po 14B + zacetek, kjer je podana dolzina datoteke
-            ByteBuffer bb = ByteBuffer.allocate(linesSorted * 14 + 4);
-            bb.putInt(linesSorted);
-            for (String line : lines) {
-                // Read a sorted line and convert it into custom bytes
-                // Each line will now have float|float|float|short or exactly 14 bytes (4+4+4+2)
-                String[] numbers = spacePattern.split(line);
-                bb.putFloat(Float.parseFloat(numbers[0]));
-                bb.putFloat(Float.parseFloat(numbers[1]));
-                bb.putFloat(Float.parseFloat(numbers[2]));
-                bb.putShort(Short.parseShort(numbers[3]));
+            Metrics metrics = new Metrics();
+            Metrics.register(metrics, "DataSort");
+            File written = outputFile;
+            if (append) {
+                written = appendRun(inputFile, outputFile, sortMemory, threads, blockPoints, layout, compressed,
+                        metrics);
+            } else {
+                // A full sort replaces the runs that were appended to the old data
+                RunSet.clear(outputFile);
+
+                System.out.print("Sorting and converting the data ... ");
+                long startTime = System.nanoTime();
+                // Every line is parsed once, sorted as packed binary records and merged from temporary runs
+                PointSorter sorter = new PointSorter(sortMemory, outputFile.getAbsoluteFile().getParentFile(), threads,
+                        blockPoints, layout, compressed);
+                sorter.sort(inputFile, outputFile);
+                long start = System.nanoTime();
+                metrics.time(Metrics.Phase.SORT, start - startTime);
+                if (layout == PointFile.LAYOUT_XYZ) {
+                    // The sparse index next to the data lets Statistics find the X bounds in memory
+                    try (PointFile pointFile = PointFile.open(outputFile)) {
+                        FenceIndex.build(pointFile, PointFile.DEFAULT_BLOCK_POINTS).write(outputFile);
+                    }
+                    metrics.time(Metrics.Phase.INDEX, System.nanoTime() - start);
+                }
+                if (gridCell > 0) {
+                    // Summaries of the values per grid cell, so Statistics only has to read the points of the border cells
+                    start = System.nanoTime();
+                    try (PointFile pointFile = PointFile.open(outputFile)) {
+                        MomentGrid.build(pointFile, gridCell).write(outputFile);
+                    }
+                    metrics.time(Metrics.Phase.GRID, System.nanoTime() - start);
+                }
+                float sortTime = (float) (System.nanoTime() - startTime) / 1e9f;
+                System.out.println(String.format("took %.2fs", sortTime));
             }
-            FileOutputStream fos = new FileOutputStream(outputFile);
-            fos.write(bb.array());
-            fos.close();
-            // Read file from disk and rewrite as binary (should use less memory)
-            /*BufferedReader reader = new BufferedReader(new FileReader(sortedInput));
-            FileOutputStream fos = new FileOutputStream(outputFile);
-            ByteBuffer bb = ByteBuffer.allocate(linesSorted * 14);
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Read a sorted line and convert it into custom bytes
-                // Each line will now have float|float|float|short or exactly 14 bytes (4+4+4+2)
-                String[] numbers = line.split(" ");
-                bb.putFloat(Float.parseFloat(numbers[0]));
-                bb.putFloat(Float.parseFloat(numbers[1]));
-                bb.putFloat(Float.parseFloat(numbers[2]));
-                bb.putShort(Short.parseShort(numbers[3]));
+            if (json) {
+                Map<String, Object> fields = new LinkedHashMap<>();
+                fields.put("input", inputFile.getPath());
+                fields.put("output", written.getPath());
+                try (PointFile pointFile = PointFile.open(written, false)) {
+                    fields.put("points", pointFile.points);
+                }
+                fields.put("inputBytes", inputFile.length());
+                fields.put("outputBytes", written.length());
+                System.out.println(metrics.toJson(fields));
             }
-            fos.write(bb.array());
-            fos.close();
-            reader.close();*/
-            sortTime = (float) (System.currentTimeMillis() - startTime) / 1000;
-            System.out.println(String.format("took %.2fs", sortTime));
-            binToTxt(outputFile, new File("Korte_Vege_10k_binToTxt.txt"), linesSorted);
 
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private static void binToTxt(File binaryFile, File txtFile, int lines) {
+    /**
+     * Uredi le nove tocke v dodatno zaporedje ob obstojecih podatkih (@see si.rubin.RunSet). Ce je zivih
+     * zaporedij prevec, se v ozadju zacne zdruzevanje, nove tocke pa so za poizvedbe vidne ze prej.
+     */
+    private static File appendRun(File inputFile, File outputFile, long sortMemory, int threads, int blockPoints,
+                                  int layout, boolean compressed, Metrics metrics) throws IOException {
+        List<File> live = RunSet.live(outputFile);
+        File newest = live.get(live.size() - 1);
+        if (newest.isFile()) {
+            // The runs are merged later, so they have to share the format and the order of the points
+            try (PointFile pointFile = PointFile.open(newest, false)) {
+                blockPoints = pointFile.blockPoints;
+                layout = pointFile.layout;
+                compressed = pointFile.version == PointFile.COMPRESSED_VERSION;
+            }
+        }
+        System.out.print("Sorting and appending the new data ... ");
+        long startTime = System.nanoTime();
+        PointSorter sorter = new PointSorter(sortMemory, outputFile.getAbsoluteFile().getParentFile(), threads,
+                blockPoints, layout, compressed);
+        File run = RunSet.append(outputFile, inputFile, sorter);
+        long sortTime = System.nanoTime() - startTime;
+        metrics.time(Metrics.Phase.SORT, sortTime);
+        System.out.println(String.format("took %.2fs", sortTime / 1e9f));
+        int runs = RunSet.live(outputFile).size();
+        System.out.println("Added " + run.getName() + " (" + runs + " live runs)");
+
+        if (runs > RunSet.MAX_RUNS) {
+            System.out.println("Compacting the runs in the background");
+            Thread compaction = new Thread(() -> {
+                try {
+                    int merged = RunSet.compact(outputFile, sortMemory);
+                    System.out.println("Compaction merged " + merged + " runs");
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "compaction");
+            compaction.setPriority(Thread.MIN_PRIORITY);
+            compaction.start();
+        }
+        return run;
+    }
+
+    /**
+     * Zdruzi zaporedja podatkov: DataSort -c &lt;output_file&gt; [-m memory] [-j]
+     */
+    private static void compact(String[] args) {
+        long memory = SORT_MEMORY;
+        boolean json = false;
+        for (int a = 2; a < args.length; a++) {
+            if (args[a].equals("-m") && a + 1 < args.length) {
+                memory = Long.parseLong(args[++a]) << 20;
+            } else if (args[a].equals("-j")) {
+                json = true;
+            } else {
+                System.out.println("Unknown option: " + args[a] + "\n");
+                printHelp();
+                System.exit(1);
+            }
+        }
         try {
-            BufferedWriter bw = new BufferedWriter(new FileWriter(txtFile));
-
-            ByteBuffer bb = ByteBuffer.allocate(lines * 14 + 4);
-            FileInputStream fis = new FileInputStream(binaryFile);
-            FileChannel fChan = fis.getChannel();
-            fChan.read(bb);
-            bb.position(0);
-            int nLines = bb.getInt();
-            while (bb.hasRemaining()) {
-                float x = bb.getFloat();
-                float y = bb.getFloat();
-                float z = bb.getFloat();
-                short i = bb.getShort();
-                bw.write(String.format("%.2f %.2f %.2f %d\n", x, y, z, i));
+            File outputFile = new File(args[1]);
+            Metrics metrics = new Metrics();
+            long startTime = System.nanoTime();
+            int merged = RunSet.compact(outputFile, memory);
+            metrics.time(Metrics.Phase.SORT, System.nanoTime() - startTime);
+            float time = (float) (System.nanoTime() - startTime) / 1e9f;
+            System.out.println(String.format("Merged %d runs, took %.2fs", merged, time));
+            if (json) {
+                Map<String, Object> fields = new LinkedHashMap<>();
+                fields.put("output", outputFile.getPath());
+                fields.put("merged", merged);
+                fields.put("runs", RunSet.live(outputFile).size());
+                System.out.println(metrics.toJson(fields));
             }
-            bw.close();
-            fChan.close();
-        } catch (Exception e) {
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Izvozi datoteko s tockami v tekstovno: DataSort -e &lt;binary_file&gt; &lt;text_file&gt; [-t threads] [-f format]
+     * [-r minX maxX minY maxY]
+     */
+    private static void export(String[] args) {
+        int threads = 1;
+        boolean csv = false;
+        double[] area = {Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                Double.POSITIVE_INFINITY};
+        for (int a = 3; a < args.length; a++) {
+            if (args[a].equals("-t") && a + 1 < args.length) {
+                threads = Integer.parseInt(args[++a]);
+            } else if (args[a].equals("-f") && a + 1 < args.length && args[a + 1].matches("txt|csv")) {
+                csv = args[++a].equals("csv");
+            } else if (args[a].equals("-r") && a + 4 < args.length) {
+                for (int k = 0; k < area.length; k++) area[k] = Double.parseDouble(args[++a]);
+            } else {
+                System.out.println("Unknown option: " + args[a] + "\n");
+                printHelp();
+                System.exit(1);
+            }
+        }
+        try {
+            long startTime = System.nanoTime();
+            long exported = new TextExport(threads, csv, area[0], area[1], area[2], area[3])
+                    .export(new File(args[1]), new File(args[2]));
+            float time = (float) (System.nanoTime() - startTime) / 1e9f;
+            System.out.println(String.format("Exported %d points, took %.2fs", exported, time));
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Izpise kratko pomoc
+     */
+    private static void printHelp() {
+        System.out.println("Please rerun the program with a given input and output file.\n");
+        System.out.println("Sample usage:\n  java DataSort <input_file> <output_file> [-t threads] [-m memory] [-b points] [-l layout] [-g cell] [-a] [-z] [-j]\n");
+        System.out.println("  <input_file> ... must respect the format as in Korte_Vegetation_10k.txt");
+        System.out.println("  <output_file> ... will contain sorted data");
+        System.out.println("  -t threads ... number of threads for sorting and merging (default 1)");
+        System.out.println("  -m memory ... memory for sorting in MB, shared by all threads (default 256)");
+        System.out.println("  -b points ... points in a block of the output file (default " + PointFile.DEFAULT_BLOCK_POINTS
+                + ", 0 writes the old format without blocks)");
+        System.out.println("  -l layout ... xyz sorts the points by X, Y and Z (default), hilbert by their position on a");
+        System.out.println("                Hilbert curve over (x, y), which suits queries with a narrow X or Y range");
+        System.out.println("  -g cell ... also write a pyramid of value summaries over (x, y) with cells of the given size in meters");
+        System.out.println("            and a copy of the points in cell order (the grid file is about as large as the data)");
+        System.out.println("  -a ... sort only the new points into another run next to <output_file>, queries read all the");
+        System.out.println("         live runs and more than " + RunSet.MAX_RUNS + " runs are merged in the background");
+        System.out.println("  -z ... pack every block by columns (2 decimals, deltas of X, bits per column), the file is");
+        System.out.println("         several times smaller and Statistics decodes the blocks while reading them");
+        System.out.println("  -j ... print the times of the phases (sort, index, grid), sizes and memory as a line of JSON");
+        System.out.println("\n  java DataSort -c <output_file> [-m memory] [-j] ... merge the newest runs of <output_file>");
+        System.out.println("\n  java DataSort -e <binary_file> <text_file> [-t threads] [-f format] [-r minX maxX minY maxY]");
+        System.out.println("  ... export the points of <binary_file> as text with 2 decimals, format txt writes \"x y z i\"");
+        System.out.println("      lines (default), csv writes \"x,y,z,i\" with a header, -r only exports the points with");
+        System.out.println("      minX <= x < maxX and minY <= y < maxY");
+    }
+
     /**
      *  Custom Comparator za primerjanje nasih tock
      */
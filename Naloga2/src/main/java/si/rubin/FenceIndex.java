@@ -0,0 +1,127 @@
+package si.rubin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Redek indeks (fence pointers) za datoteko, urejeno po X: za vsako fencePoints-to vrstico hrani njen X.
+ * Shrani se v loceno datoteko ob podatkih (ime datoteke + ".idx"), da ga Statistics prebere z enim branjem
+ * in meje obmocja poisce v pomnilniku namesto z binarnim iskanjem po datoteki.
+ * <pre>
+ * int MAGIC | int stevilo_tock | int fencePoints | int stevilo_mej | long velikost_podatkov | float X (za vsako mejo)
+ * </pre>
+ */
+class FenceIndex {
+    static final int MAGIC = 0xC1414D49;        // "AAMI" with the sign bit set
+    static final int HEADER_SIZE = 24;
+    static final String SUFFIX = ".idx";
+
+    final int points;
+    final int fencePoints;                      // Lines between two fences (the block size of version 1 files)
+    final float[] fences;                       // X of lines 0, fencePoints, 2*fencePoints, ...
+
+    private FenceIndex(int points, int fencePoints, float[] fences) {
+        this.points = points;
+        this.fencePoints = fencePoints;
+        this.fences = fences;
+    }
+
+    /**
+     * @return datoteka z indeksom za podano datoteko s tockami
+     */
+    static File indexFile(File dataFile) {
+        return new File(dataFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * Zgradi indeks za datoteko, urejeno po X. Pri verziji 1 so meje kar minX blokov,
+     * pri verziji 0 pa se prebere X vsake fencePoints-te vrstice.
+     * @param pointFile datoteka z razporeditvijo PointFile.LAYOUT_XYZ
+     * @param fencePoints razdalja med mejami pri verziji 0
+     */
+    static FenceIndex build(PointFile pointFile, int fencePoints) throws IOException {
+        if (pointFile.version > 0) {
+            float[] fences = new float[pointFile.blockCount];
+            System.arraycopy(pointFile.zones.minX, 0, fences, 0, fences.length);
+            return new FenceIndex(pointFile.points, pointFile.blockPoints, fences);
+        }
+        int count = (int) ((pointFile.points + (long) fencePoints - 1) / fencePoints);
+        float[] fences = new float[count];
+        for (int k = 0; k < count; k++) {
+            fences[k] = PointFile.readFully(pointFile.fChan, pointFile.lineOffset((long) k * fencePoints), 4).getFloat();
+        }
+        return new FenceIndex(pointFile.points, fencePoints, fences);
+    }
+
+    /**
+     * Zapise indeks ob datoteko s tockami
+     */
+    void write(File dataFile) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE + fences.length * 4);
+        bb.putInt(MAGIC).putInt(points).putInt(fencePoints).putInt(fences.length).putLong(dataFile.length());
+        for (float x : fences) bb.putFloat(x);
+        bb.flip();
+        try (FileChannel fChan = FileChannel.open(indexFile(dataFile).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            PointFile.writeFully(fChan, bb, 0);
+        }
+    }
+
+    /**
+     * Prebere indeks za podano datoteko
+     * @return indeks ali null, ce ga ni oz. ne pripada (vec) tej datoteki
+     */
+    static FenceIndex read(File dataFile, PointFile pointFile) throws IOException {
+        File file = indexFile(dataFile);
+        if (!file.isFile() || pointFile.layout != PointFile.LAYOUT_XYZ) return null;
+        try (FileChannel fChan = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (fChan.size() < HEADER_SIZE) return null;
+            ByteBuffer header = PointFile.readFully(fChan, 0, HEADER_SIZE);
+            int magic = header.getInt();
+            int points = header.getInt();
+            int fencePoints = header.getInt();
+            int count = header.getInt();
+            long dataLength = header.getLong();
+            // A stale index (the data file was rewritten) is ignored
+            if (magic != MAGIC || points != pointFile.points || dataLength != dataFile.length() || fencePoints <= 0
+                    || count != (int) ((points + (long) fencePoints - 1) / fencePoints)) {
+                return null;
+            }
+            ByteBuffer bb = PointFile.readFully(fChan, HEADER_SIZE, count * 4);
+            float[] fences = new float[count];
+            for (int k = 0; k < count; k++) fences[k] = bb.getFloat();
+            return new FenceIndex(points, fencePoints, fences);
+        }
+    }
+
+    /**
+     * Zadnja meja, katere X je manjsi od x (-1, ce take ni). Vse vrstice pred njo imajo X < x,
+     * vrstica na naslednji meji pa X >= x, zato je prva vrstica z X >= x v tem intervalu.
+     */
+    int lastFenceBelow(double x) {
+        int lo = 0, hi = fences.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (fences[mid] < x) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo - 1;
+    }
+
+    /**
+     * @return prva vrstica meje k
+     */
+    long fenceLine(int k) {
+        return (long) k * fencePoints;
+    }
+
+    /**
+     * @return stevilo vrstic od meje k do naslednje meje
+     */
+    int fenceSize(int k) {
+        return (int) Math.min(fencePoints, points - fenceLine(k));
+    }
+}
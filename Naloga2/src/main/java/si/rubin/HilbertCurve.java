@@ -0,0 +1,117 @@
+package si.rubin;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Hilbertova krivulja nad (x, y). Koordinate se preslikajo v celice velikosti 1cm na fiksni mrezi
+ * 2^32 x 2^32 celic (izhodisce je na -2^31 cm), zato za izracun ni potrebno poznati meja podatkov.
+ * Indeks na krivulji je 64 bitno nepredznaceno stevilo, tocke z bliznjimi indeksi pa so tudi v
+ * prostoru blizu skupaj.
+ */
+public class HilbertCurve {
+    static final int ORDER = 32;                // Bits per axis
+    private static final long CELLS = 1L << ORDER;
+    private static final long ORIGIN = 1L << (ORDER - 1);
+    static final int MAX_INTERVALS = 256;       // How many curve intervals a rectangle is split into at most
+
+    /**
+     * @return celica (stolpec oz. vrstica) na mrezi za podano koordinato
+     */
+    static long cell(double coordinate) {
+        long c = Math.round(coordinate * 100) + ORIGIN;
+        return Math.max(0, Math.min(CELLS - 1, c));
+    }
+
+    /**
+     * @return indeks tocke na krivulji
+     */
+    static long index(float x, float y) {
+        return index(cell(x), cell(y));
+    }
+
+    /**
+     * Indeks celice (cx, cy) na krivulji
+     */
+    static long index(long cx, long cy) {
+        long d = 0;
+        for (long s = CELLS >>> 1; s > 0; s >>>= 1) {
+            int rx = (cx & s) != 0 ? 1 : 0;
+            int ry = (cy & s) != 0 ? 1 : 0;
+            d += s * s * ((3 * rx) ^ ry);
+            // Rotate the quadrant so the sub-curve has the same orientation as its parent
+            if (ry == 0) {
+                if (rx == 1) {
+                    cx = CELLS - 1 - cx;
+                    cy = CELLS - 1 - cy;
+                }
+                long t = cx;
+                cx = cy;
+                cy = t;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Razdeli pravokotnik minX <= x < maxX, minY <= y < maxY na intervale krivulje.
+     * Kvadrati, ki so v celoti v pravokotniku, postanejo en interval, delno pokriti pa se
+     * razdelijo na 4 dele, dokler stevilo intervalov ne preseze maxIntervals
+     * (takrat se preostali kvadrati vzamejo v celoti).
+     * @return urejeni in zdruzeni intervali [zacetek, konec] (oba vkljucena) kot pari v tabeli
+     */
+    static long[] decompose(double minX, double maxX, double minY, double maxY, int maxIntervals) {
+        long x0 = cell(minX), x1 = cell(maxX), y0 = cell(minY), y1 = cell(maxY);
+        // Start with the smallest aligned square that holds the whole rectangle
+        int level = 0;
+        while (level < ORDER && ((x0 >>> level) != (x1 >>> level) || (y0 >>> level) != (y1 >>> level))) level++;
+        List<long[]> ranges = new ArrayList<>();
+        ArrayDeque<long[]> squares = new ArrayDeque<>();
+        squares.add(new long[]{(x0 >>> level) << level, (y0 >>> level) << level, level});
+        while (!squares.isEmpty()) {
+            long[] sq = squares.poll();
+            long sx = sq[0], sy = sq[1];
+            int l = (int) sq[2];
+            long side = 1L << l;
+            boolean inside = sx >= x0 && sx + side - 1 <= x1 && sy >= y0 && sy + side - 1 <= y1;
+            if (inside || l == 0 || ranges.size() + squares.size() + 4 > maxIntervals) {
+                ranges.add(range(sx, sy, l));
+                continue;
+            }
+            long half = side >>> 1;
+            for (int q = 0; q < 4; q++) {
+                long cx = sx + ((q & 1) != 0 ? half : 0);
+                long cy = sy + ((q & 2) != 0 ? half : 0);
+                if (cx <= x1 && cx + half - 1 >= x0 && cy <= y1 && cy + half - 1 >= y0) {
+                    squares.add(new long[]{cx, cy, l - 1});
+                }
+            }
+        }
+        // Sort (unsigned) and merge touching intervals
+        ranges.sort((r1, r2) -> Long.compareUnsigned(r1[0], r2[0]));
+        long[] merged = new long[ranges.size() * 2];
+        int n = 0;
+        for (long[] r : ranges) {
+            if (n > 0 && Long.compareUnsigned(r[0], merged[n - 1] + 1) <= 0 && merged[n - 1] != -1L) {
+                if (Long.compareUnsigned(r[1], merged[n - 1]) > 0) merged[n - 1] = r[1];
+            } else {
+                merged[n++] = r[0];
+                merged[n++] = r[1];
+            }
+        }
+        return Arrays.copyOf(merged, n);
+    }
+
+    /**
+     * Interval krivulje, ki ga pokriva poravnan kvadrat s stranico 2^level
+     */
+    private static long[] range(long sx, long sy, int level) {
+        long start = index(sx, sy);
+        if (level >= ORDER) return new long[]{0, -1L};
+        long length = 1L << (2 * level);
+        start &= ~(length - 1);
+        return new long[]{start, start + length - 1};
+    }
+}
@@ -0,0 +1,337 @@
+package si.rubin;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Histogram, ki se gradi sproti (v enem prehodu) in porabi pomnilnik le za kose, ne za vrednosti.
+ * Kosi velikosti binSize so pritrjeni na veckratnike binSize (kos vrednosti v je floor(v / binSize)),
+ * zato se histograma z deljivima velikostma kosov lahko zdruzita brez izgube. Tabela stevcev kosov ima odmik
+ * in raste v obe smeri.
+ * Poleg kosov se hranijo stevilo vrednosti, najmanjsa in najvecja vrednost ter vsote potenc odmikov od prve
+ * vrednosti (d, d^2, d^3, d^4), iz katerih se izracunajo momenti (@see #moments).
+ * Po zelji se vrednosti dodajajo se v povzetek za kvantile (@see si.rubin.QuantileSketch).
+ * Histogram (brez povzetka za kvantile) se lahko zapise v buffer in prebere nazaj (@see si.rubin.MomentGrid).
+ */
+class Histogram {
+    private static final int MAX_BINS = 1 << 24;
+
+    private final int binSize;
+    private final double inverse;               // 1 / binSize
+    private int[] counts;                       // Values counted in bins of size binSize
+    private long base;                          // Bin of counts[0]
+    private long outside;                       // Values whose bin would make the table larger than MAX_BINS
+    private int size;                           // How many values were added
+    private float min, max;
+    private double shift;                       // The first value, the sums are of the values minus it
+    private double s1, s2, s3, s4;              // Sums of the powers of (value - shift)
+    private QuantileSketch quantiles;           // Also feeds the values into a quantile sketch (null if not)
+
+    /**
+     * @param binSize velikost kosa (vsaj 1)
+     */
+    Histogram(int binSize) {
+        if (binSize < 1) throw new IllegalArgumentException("The bin size has to be positive");
+        this.binSize = binSize;
+        inverse = 1. / binSize;
+        counts = new int[0];
+        size = 0;
+        min = Float.POSITIVE_INFINITY;
+        max = Float.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Doda vrednost v histogram
+     */
+    void add(float value) {
+        if (quantiles != null) quantiles.add(value);
+        if (size == 0) shift = value;
+        if (value < min) min = value;
+        if (value > max) max = value;
+        size++;
+        double d = value - shift, d2 = d * d;
+        s1 += d;
+        s2 += d2;
+        s3 += d2 * d;
+        s4 += d2 * d2;
+        countValue(bin(value));
+    }
+
+    /**
+     * Doda prvih n vrednosti iz tabele. Tabela kosov se razsiri le enkrat (na najmanjso in najvecjo vrednost),
+     * vsote pa se sestejejo v lokalnih spremenljivkah.
+     */
+    void addAll(float[] values, int n) {
+        if (n == 0) return;
+        if (quantiles != null) {
+            for (int k = 0; k < n; k++) quantiles.add(values[k]);
+        }
+        if (size == 0) shift = values[0];
+        float low = values[0], high = values[0];
+        double shift = this.shift, t1 = 0, t2 = 0, t3 = 0, t4 = 0;
+        for (int k = 0; k < n; k++) {
+            float value = values[k];
+            low = value < low ? value : low;
+            high = value > high ? value : high;
+            double d = value - shift, d2 = d * d;
+            t1 += d;
+            t2 += d2;
+            t3 += d2 * d;
+            t4 += d2 * d2;
+        }
+        add(n, low, high, t1, t2, t3, t4);
+        // Only grow the table once, for the lowest and highest bin
+        fit(bin(low));
+        fit(bin(high));
+        int[] counts = this.counts;
+        long base = this.base;
+        for (int k = 0; k < n; k++) {
+            long bin = bin(values[k]);
+            long c = bin - base;
+            if (c >= 0 && c < counts.length) counts[(int) c]++;
+            else countValue(bin);
+        }
+    }
+
+    /**
+     * Doda prvih n celih vrednosti iz tabele (npr. intenzitete)
+     */
+    void addAll(short[] values, int n) {
+        if (n == 0) return;
+        if (quantiles != null) {
+            for (int k = 0; k < n; k++) quantiles.add(values[k]);
+        }
+        if (size == 0) shift = values[0];
+        short low = values[0], high = values[0];
+        double shift = this.shift, t1 = 0, t2 = 0, t3 = 0, t4 = 0;
+        for (int k = 0; k < n; k++) {
+            short value = values[k];
+            low = value < low ? value : low;
+            high = value > high ? value : high;
+            double d = value - shift, d2 = d * d;
+            t1 += d;
+            t2 += d2;
+            t3 += d2 * d;
+            t4 += d2 * d2;
+        }
+        add(n, low, high, t1, t2, t3, t4);
+        if (!fit(Math.floorDiv(low, binSize)) || !fit(Math.floorDiv(high, binSize))) {
+            for (int k = 0; k < n; k++) countValue(Math.floorDiv(values[k], binSize));
+            return;
+        }
+        int[] counts = this.counts;
+        long base = this.base;
+        for (int k = 0; k < n; k++) counts[(int) (Math.floorDiv(values[k], binSize) - base)]++;
+    }
+
+    /**
+     * Doda n vrednosti med low in high z vsotami potenc t1 do t4 (odmikov od shift)
+     */
+    private void add(int n, float low, float high, double t1, double t2, double t3, double t4) {
+        if (low < min) min = low;
+        if (high > max) max = high;
+        size += n;
+        s1 += t1;
+        s2 += t2;
+        s3 += t3;
+        s4 += t4;
+    }
+
+    /**
+     * Doda vse vrednosti drugega histograma. Velikost kosa mora biti veckratnik velikosti kosa drugega
+     * histograma, kvantile pa morata bodisi hraniti oba bodisi nobeden (razen ce je eden prazen),
+     * sicer bi se vrednosti izgubile iz povzetka.
+     */
+    void merge(Histogram other) {
+        if (binSize % other.binSize != 0) {
+            throw new IllegalArgumentException("Bins of size " + other.binSize + " can not be merged into bins of size "
+                    + binSize);
+        }
+        if (quantiles != null && other.quantiles == null && other.size > 0) {
+            throw new IllegalArgumentException("The merged histogram does not track quantiles");
+        }
+        if (quantiles == null && other.quantiles != null) {
+            if (size > 0) throw new IllegalArgumentException("The merged histogram tracks quantiles, this one does not");
+            quantiles = new QuantileSketch();
+        }
+        if (other.quantiles != null) quantiles.merge(other.quantiles);
+        if (other.size == 0) return;
+        if (size == 0) shift = other.shift;
+        // The sums of the other histogram moved from its shift to this one
+        double e = other.shift - shift, e2 = e * e, n = other.size;
+        double o1 = other.s1, o2 = other.s2, o3 = other.s3;
+        add(other.size, other.min, other.max, o1 + n * e, o2 + 2 * e * o1 + n * e2,
+                o3 + 3 * e * o2 + 3 * e2 * o1 + n * e2 * e,
+                other.s4 + 4 * e * o3 + 6 * e2 * o2 + 4 * e2 * e * o1 + n * e2 * e2);
+        outside += other.outside;
+        int ratio = binSize / other.binSize;
+        for (int c = 0; c < other.counts.length; c++) {
+            if (other.counts[c] == 0) continue;
+            long bin = Math.floorDiv(other.base + c, ratio);
+            if (fit(bin)) counts[(int) (bin - base)] += other.counts[c];
+            else outside += other.counts[c];
+        }
+    }
+
+    /**
+     * @return stevilo bytov, ki jih zapise write
+     */
+    int bytes() {
+        return 76 + used() * 8;
+    }
+
+    /**
+     * Zapise histogram: int stevilo | float min | float max | int velikost kosa | long izven tabele | double shift
+     * | double s1 do s4 | long base | int kosi | (int kos - base, int stevilo) za neprazne kose
+     */
+    void write(ByteBuffer bb) {
+        bb.putInt(size).putFloat(min).putFloat(max).putInt(binSize).putLong(outside).putDouble(shift);
+        bb.putDouble(s1).putDouble(s2).putDouble(s3).putDouble(s4).putLong(base).putInt(used());
+        for (int c = 0; c < counts.length; c++) {
+            if (counts[c] != 0) bb.putInt(c).putInt(counts[c]);
+        }
+    }
+
+    /**
+     * Prebere histogram, ki ga je zapisal write
+     */
+    static Histogram read(ByteBuffer bb) {
+        int size = bb.getInt();
+        float min = bb.getFloat(), max = bb.getFloat();
+        Histogram histogram = new Histogram(bb.getInt());
+        histogram.size = size;
+        histogram.min = min;
+        histogram.max = max;
+        histogram.outside = bb.getLong();
+        histogram.shift = bb.getDouble();
+        histogram.s1 = bb.getDouble();
+        histogram.s2 = bb.getDouble();
+        histogram.s3 = bb.getDouble();
+        histogram.s4 = bb.getDouble();
+        long base = bb.getLong();
+        int used = bb.getInt();
+        for (int k = 0; k < used; k++) {
+            long bin = base + bb.getInt();
+            int count = bb.getInt();
+            // The bins were in one table when they were written, so they fit again
+            histogram.fit(bin);
+            histogram.counts[(int) (bin - histogram.base)] = count;
+        }
+        return histogram;
+    }
+
+    /**
+     * @return kos vrednosti, floor(value / binSize)
+     */
+    private long bin(float value) {
+        long bin = (long) Math.floor(value * inverse);
+        // The product can be rounded over the border of a bin, the comparisons with the borders are exact
+        if (bin * (double) binSize > value) bin--;
+        else if ((bin + 1) * (double) binSize <= value) bin++;
+        return bin;
+    }
+
+    private int used() {
+        int used = 0;
+        for (int count : counts) {
+            if (count != 0) used++;
+        }
+        return used;
+    }
+
+    private void countValue(long bin) {
+        long c = bin - base;
+        if (c >= 0 && c < counts.length) counts[(int) c]++;
+        else if (fit(bin)) counts[(int) (bin - base)]++;
+        else outside++;
+    }
+
+    /**
+     * Poskrbi, da je kos v tabeli (tabela se razsiri na strani kosa)
+     * @return false, ce bi bila tabela vecja od MAX_BINS
+     */
+    private boolean fit(long bin) {
+        if (counts.length == 0) {
+            counts = new int[16];
+            base = bin - 8;
+            return true;
+        }
+        if (bin >= base && bin < base + counts.length) return true;
+        long from = Math.min(base, bin), to = Math.max(base + counts.length, bin + 1);
+        if (to - from > MAX_BINS) return false;
+        // Grow to at least double, towards the side of the new bin
+        int length = (int) Math.min(MAX_BINS, Math.max(to - from, 2L * counts.length));
+        long newBase = bin < base ? to - length : from;
+        int[] grown = new int[length];
+        System.arraycopy(counts, 0, grown, (int) (base - newBase), counts.length);
+        counts = grown;
+        base = newBase;
+        return true;
+    }
+
+    /**
+     * @return stevilo vrednosti v kosu [bin * binSize, (bin + 1) * binSize)
+     */
+    int count(long bin) {
+        long c = bin - base;
+        return c >= 0 && c < counts.length ? counts[(int) c] : 0;
+    }
+
+    /**
+     * Izracuna povprecje, standardni odklon, asimetrijo in sploscenost iz vsot potenc (glej enacbe.pdf).
+     * Centralni momenti so vsote potenc, premaknjene na povprecje.
+     * @return {povprecje, standardni odklon, asimetrija, sploscenost}
+     */
+    double[] moments() {
+        double n = size, mean = s1 / n, mean2 = mean * mean;
+        double m2 = Math.max(0, s2 - s1 * mean);
+        double m3 = s3 - 3 * mean * s2 + 2 * n * mean2 * mean;
+        double m4 = s4 - 4 * mean * s3 + 6 * mean2 * s2 - 3 * n * mean2 * mean2;
+        double deviation = Math.sqrt(m2 / n);
+        double skewness = (m3 / n) / Math.pow(m2 / (n - 1), 1.5);
+        double kurtosis = n * (m4 / (m2 * m2)) - 3;
+        return new double[]{shift + mean, deviation, skewness, kurtosis};
+    }
+
+    /**
+     * Vrednosti, dodane od zdaj naprej, se dodajajo tudi v povzetek za kvantile
+     */
+    void trackQuantiles() {
+        if (quantiles == null) quantiles = new QuantileSketch();
+    }
+
+    /**
+     * @return povzetek za kvantile (null, ce se ne gradi)
+     */
+    QuantileSketch quantiles() {
+        return quantiles;
+    }
+
+    /**
+     * @return stevilo vrednosti v histogramu
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return velikost kosa
+     */
+    int binSize() {
+        return binSize;
+    }
+
+    /**
+     * @return stevilo kosov, kot ga izpise Statistics: ceil((max - min) / binSize), vsaj 1 (0 brez vrednosti)
+     */
+    int bins() {
+        if (size == 0) return 0;
+        return Math.max(1, (int) Math.ceil((max - min) / binSize));
+    }
+
+    /**
+     * @return priblizna poraba pomnilnika (v bytih)
+     */
+    long memory() {
+        return counts.length * 4L + (quantiles == null ? 0 : quantiles.memory());
+    }
+}
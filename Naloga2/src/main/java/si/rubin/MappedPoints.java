@@ -0,0 +1,60 @@
+package si.rubin;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Tocke datoteke, preslikane v pomnilnik (MappedByteBuffer). En buffer lahko preslika najvec 2GB,
+ * zato je datoteka razdeljena na segmente s celim stevilom vrstic. Vrednosti se berejo neposredno
+ * iz preslikanega pomnilnika, brez kopiranja v vmesne tabele in brez sistemskih klicev,
+ * ce so strani ze v predpomnilniku.
+ */
+class MappedPoints {
+    static final int PAGE_SIZE = 4096;
+    static final long SEGMENT_LINES = (1L << 30) / PointFile.RECORD_SIZE;   // ~1GB per segment
+
+    final PointFile pointFile;
+    final MappedByteBuffer[] segments;
+    final long lines;
+
+    MappedPoints(PointFile pointFile) throws IOException {
+        this.pointFile = pointFile;
+        this.lines = pointFile.points;
+        int count = (int) ((lines + SEGMENT_LINES - 1) / SEGMENT_LINES);
+        segments = new MappedByteBuffer[count];
+        for (int s = 0; s < count; s++) {
+            long first = s * SEGMENT_LINES;
+            long size = Math.min(SEGMENT_LINES, lines - first) * PointFile.RECORD_SIZE;
+            segments[s] = pointFile.fChan.map(FileChannel.MapMode.READ_ONLY, pointFile.lineOffset(first), size);
+        }
+    }
+
+    /**
+     * @return segment, v katerem je vrstica
+     */
+    MappedByteBuffer segment(long line) {
+        return segments[(int) (line / SEGMENT_LINES)];
+    }
+
+    /**
+     * @return odmik vrstice znotraj njenega segmenta (v bytih)
+     */
+    static int offset(long line) {
+        return (int) (line % SEGMENT_LINES) * PointFile.RECORD_SIZE;
+    }
+
+    /**
+     * @return vrednost X v podani vrstici
+     */
+    float x(long line) {
+        return segment(line).getFloat(offset(line));
+    }
+
+    /**
+     * @return stran datoteke, na kateri se zacne vrstica
+     */
+    long page(long line) {
+        return pointFile.lineOffset(line) / PAGE_SIZE;
+    }
+}
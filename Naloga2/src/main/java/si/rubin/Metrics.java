@@ -0,0 +1,301 @@
+package si.rubin;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Meritve branja in casa po fazah (iskanje meja, branje in filtriranje, histogram, momenti, urejanje).
+ * Stevci so varni za vec niti in se lahko zdruzujejo (npr. meritve posamezne poizvedbe v skupne).
+ * Skupne meritve programa so vidne kot JMX MBean si.rubin:type=Metrics,name=&lt;program&gt; in se lahko
+ * izpisejo kot ena vrstica JSON (@see #toJson).
+ * <pre>
+ * readCalls    - stevilo branj datoteke s tockami (pri --mmap stevilo dostopanih strani, pri --grid branja
+ *                glave, tabel, povzetkov in tock piramide)
+ * bytesRead    - prebrani byti
+ * seekDistance - vsota razdalj (v bytih) med koncem branja in zacetkom naslednjega
+ * blocksScanned, blocksPruned - prebrani bloki in bloki, ki jih je izlocil indeks
+ * </pre>
+ * Poraba pomnilnika se ne steje, ampak prebere iz JVM ob klicu.
+ */
+public class Metrics implements MetricsMBean {
+
+    /**
+     * Faze, katerih cas se meri
+     */
+    enum Phase { BOUND, SCAN, HISTOGRAM, MOMENTS, SORT, INDEX, GRID }
+
+    private final LongAdder readCalls = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder seekDistance = new LongAdder();
+    private final LongAdder blocksScanned = new LongAdder();
+    private final LongAdder blocksPruned = new LongAdder();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder[] nanos = new LongAdder[Phase.values().length];
+    private final LongAdder[] timed = new LongAdder[Phase.values().length];
+    private final AtomicLong lastEnd = new AtomicLong(-1);     // Where the last read ended (-1 before the first)
+
+    Metrics() {
+        for (int p = 0; p < nanos.length; p++) {
+            nanos[p] = new LongAdder();
+            timed[p] = new LongAdder();
+        }
+    }
+
+    /**
+     * Zabelezi branje bytes bytov od odmika offset naprej
+     */
+    void read(long offset, long bytes) {
+        readCalls.increment();
+        bytesRead.add(bytes);
+        long last = lastEnd.getAndSet(offset + bytes);
+        if (last >= 0) seekDistance.add(Math.abs(offset - last));
+    }
+
+    /**
+     * Zabelezi dostop do strani preslikane datoteke (vsaka stran je eno branje)
+     */
+    void pages(long count, long pageSize) {
+        readCalls.add(count);
+        bytesRead.add(count * pageSize);
+    }
+
+    void blocks(long scanned, long pruned) {
+        blocksScanned.add(scanned);
+        blocksPruned.add(pruned);
+    }
+
+    void query() {
+        queries.increment();
+    }
+
+    /**
+     * Pristeje cas faze (v nanosekundah)
+     */
+    void time(Phase phase, long duration) {
+        nanos[phase.ordinal()].add(duration);
+        timed[phase.ordinal()].increment();
+    }
+
+    /**
+     * @return skupen cas faze v nanosekundah
+     */
+    long nanos(Phase phase) {
+        return nanos[phase.ordinal()].sum();
+    }
+
+    /**
+     * Pristeje stevce drugih meritev (razdalje med branji se ne povezejo, vsaka ostane svoja)
+     */
+    void merge(Metrics other) {
+        readCalls.add(other.readCalls.sum());
+        bytesRead.add(other.bytesRead.sum());
+        seekDistance.add(other.seekDistance.sum());
+        blocksScanned.add(other.blocksScanned.sum());
+        blocksPruned.add(other.blocksPruned.sum());
+        queries.add(other.queries.sum());
+        for (int p = 0; p < nanos.length; p++) {
+            nanos[p].add(other.nanos[p].sum());
+            timed[p].add(other.timed[p].sum());
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder counter : new LongAdder[]{readCalls, bytesRead, seekDistance, blocksScanned, blocksPruned,
+                queries}) {
+            counter.reset();
+        }
+        for (int p = 0; p < nanos.length; p++) {
+            nanos[p].reset();
+            timed[p].reset();
+        }
+        lastEnd.set(-1);
+    }
+
+    @Override
+    public long getReadCalls() {
+        return readCalls.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getSeekDistance() {
+        return seekDistance.sum();
+    }
+
+    @Override
+    public long getBlocksScanned() {
+        return blocksScanned.sum();
+    }
+
+    @Override
+    public long getBlocksPruned() {
+        return blocksPruned.sum();
+    }
+
+    @Override
+    public long getQueries() {
+        return queries.sum();
+    }
+
+    @Override
+    public double getBoundMillis() {
+        return nanos(Phase.BOUND) / 1e6;
+    }
+
+    @Override
+    public double getScanMillis() {
+        return nanos(Phase.SCAN) / 1e6;
+    }
+
+    @Override
+    public double getHistogramMillis() {
+        return nanos(Phase.HISTOGRAM) / 1e6;
+    }
+
+    @Override
+    public double getMomentsMillis() {
+        return nanos(Phase.MOMENTS) / 1e6;
+    }
+
+    @Override
+    public double getSortMillis() {
+        return nanos(Phase.SORT) / 1e6;
+    }
+
+    @Override
+    public long getHeapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @return vsota najvecje porabe posameznih delov kopice (zgornja meja za najvecjo porabo kopice)
+     */
+    @Override
+    public long getHeapPeak() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    @Override
+    public long getDirectBufferUsed() {
+        return bufferPool("direct");
+    }
+
+    @Override
+    public long getMappedBufferUsed() {
+        return bufferPool("mapped");
+    }
+
+    @Override
+    public String getSummary() {
+        return toJson(new LinkedHashMap<>());
+    }
+
+    private static long bufferPool(String name) {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals(name)) return pool.getMemoryUsed();
+        }
+        return 0;
+    }
+
+    /**
+     * @param fields polja, ki se izpisejo pred meritvami (npr. datoteka in poizvedba); vrednost je lahko tudi
+     *               seznam ali Map (npr. rezultati vec poizvedb), stevilo, ki ni koncno, pa se izpise kot null
+     * @return meritve kot ena vrstica JSON, casi v milisekundah (le faze, ki so bile merjene)
+     */
+    String toJson(Map<String, Object> fields) {
+        Map<String, Object> all = new LinkedHashMap<>(fields);
+        all.put("readCalls", getReadCalls());
+        all.put("bytesRead", getBytesRead());
+        all.put("seekDistance", getSeekDistance());
+        all.put("blocksScanned", getBlocksScanned());
+        all.put("blocksPruned", getBlocksPruned());
+        if (getQueries() > 0) all.put("queries", getQueries());
+        for (Phase phase : Phase.values()) {
+            if (timed[phase.ordinal()].sum() > 0) {
+                all.put(phase.name().toLowerCase() + "Millis", Math.round(nanos(phase) / 1e3) / 1e3);
+            }
+        }
+        all.put("heapUsed", getHeapUsed());
+        all.put("heapPeak", getHeapPeak());
+        all.put("directBufferUsed", getDirectBufferUsed());
+        all.put("mappedBufferUsed", getMappedBufferUsed());
+
+        StringBuilder json = new StringBuilder();
+        append(json, all);
+        return json.toString();
+    }
+
+    private static void append(StringBuilder json, Object value) {
+        if (value instanceof Map) {
+            json.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> field : ((Map<?, ?>) value).entrySet()) {
+                if (!first) json.append(',');
+                first = false;
+                quote(json, String.valueOf(field.getKey()));
+                json.append(':');
+                append(json, field.getValue());
+            }
+            json.append('}');
+        } else if (value instanceof Collection) {
+            json.append('[');
+            boolean first = true;
+            for (Object element : (Collection<?>) value) {
+                if (!first) json.append(',');
+                first = false;
+                append(json, element);
+            }
+            json.append(']');
+        } else if (value instanceof Number) {
+            // JSON has no NaN (e.g. the median of an empty area) or infinity
+            double number = ((Number) value).doubleValue();
+            json.append(Double.isNaN(number) || Double.isInfinite(number) ? "null" : value.toString());
+        } else {
+            quote(json, String.valueOf(value));
+        }
+    }
+
+    private static void quote(StringBuilder json, String value) {
+        json.append('"');
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') json.append('\\').append(c);
+            else if (c < 0x20) json.append(String.format("\\u%04x", (int) c));
+            else json.append(c);
+        }
+        json.append('"');
+    }
+
+    /**
+     * Registrira meritve kot MBean si.rubin:type=Metrics,name=name (prejsnje z istim imenom zamenja)
+     */
+    static void register(MetricsMBean metrics, String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("si.rubin:type=Metrics,name=" + name);
+            if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+            server.registerMBean(metrics, objectName);
+        } catch (JMException e) {
+            // The metrics still work without JMX
+            System.err.println("Can not register the metrics MBean: " + e.getMessage());
+        }
+    }
+}
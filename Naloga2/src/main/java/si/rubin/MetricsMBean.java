@@ -0,0 +1,40 @@
+package si.rubin;
+
+/**
+ * Stevci poizvedb in urejanja, kot jih vidi JMX (@see si.rubin.Metrics)
+ */
+public interface MetricsMBean {
+    long getReadCalls();
+
+    long getBytesRead();
+
+    long getSeekDistance();
+
+    long getBlocksScanned();
+
+    long getBlocksPruned();
+
+    long getQueries();
+
+    double getBoundMillis();
+
+    double getScanMillis();
+
+    double getHistogramMillis();
+
+    double getMomentsMillis();
+
+    double getSortMillis();
+
+    long getHeapUsed();
+
+    long getHeapPeak();
+
+    long getDirectBufferUsed();
+
+    long getMappedBufferUsed();
+
+    String getSummary();
+
+    void reset();
+}
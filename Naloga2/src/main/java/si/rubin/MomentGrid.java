@@ -0,0 +1,468 @@
+package si.rubin;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Piramida mrez nad (x, y): vsaka celica hrani povzetek vrednosti z in i svojih tock (@see si.rubin.Histogram),
+ * torej stevilo, najmanjso in najvecjo vrednost, vsote potenc in stevce v kosih velikosti 1.
+ * Na nivoju 0 so celice velikosti cellSize, na vsakem naslednjem pa se 2x2 celice zdruzijo v eno.
+ * Povzetke se da zdruzevati brez izgube (kosi velikosti 1 gredo v kose poljubne velikosti), zato se histogram
+ * obmocja sestavi iz celic, ki so v celoti znotraj obmocja. Tocke celic nivoja 0 so v piramidi se enkrat,
+ * urejene po celicah, zato se za robne celice preberejo le njihove tocke (datoteka s tockami se ne bere).
+ * <pre>
+ * int MAGIC | int nivoji | int stevilo_tock | long velikost_podatkov | double cellSize | double originX
+ * | double originY | int nx | int ny | long zacetek tabele povzetkov
+ * | povzetki celic nivojev (po vrsticah) | long zacetki povzetkov (in konec zadnjega)
+ * | long prva tocka vsake celice nivoja 0 (in stevilo tock) | tocke celic nivoja 0 (zapisi kot v PointFile)
+ * povzetek: int velikost_z | histogram z | histogram i
+ * </pre>
+ * Prebrana piramida ima datoteko odprto, tabele in celice pa bere sele ob poizvedbi (le tiste, ki jih potrebuje).
+ */
+class MomentGrid implements Closeable {
+    static final int MAGIC = 0xC1414D4A;        // "AAMJ" with the sign bit set
+    static final int HEADER_SIZE = 60;
+    static final String SUFFIX = ".grid";
+    private static final int BAND_BYTES = 64 << 20;     // Points put into cell order in one pass over the data
+    private static final int GAP_BYTES = MappedPoints.PAGE_SIZE;    // Bytes between two parts that are read with them
+
+    final int points;
+    final double cellSize;
+    final double originX, originY;
+    final int[] nx, ny;                         // Cells per level
+    private final int[] firstCell;              // Index of the first cell of every level (in the summary table)
+    private Histogram[][] z, i;                 // Per level, row-major cells (only in a grid that was built)
+    private PointFile source;                   // Points of a grid that was built (copied in cell order by write)
+    private FileChannel fChan;                  // The grid file (only in a grid that was read)
+    private long summaryTable;                  // Where the table of summary starts is in the grid file
+
+    private MomentGrid(int points, double cellSize, double originX, double originY, int nx0, int ny0) {
+        this.points = points;
+        this.cellSize = cellSize;
+        this.originX = originX;
+        this.originY = originY;
+        int levels = 1;
+        while ((nx0 - 1 >> (levels - 1)) > 0 || (ny0 - 1 >> (levels - 1)) > 0) levels++;
+        nx = new int[levels];
+        ny = new int[levels];
+        firstCell = new int[levels + 1];
+        for (int l = 0; l < levels; l++) {
+            nx[l] = ((nx0 - 1) >> l) + 1;
+            ny[l] = ((ny0 - 1) >> l) + 1;
+            firstCell[l + 1] = firstCell[l] + nx[l] * ny[l];
+        }
+    }
+
+    /**
+     * @return datoteka s piramido za podano datoteko s tockami
+     */
+    static File gridFile(File dataFile) {
+        return new File(dataFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * Stolpec celice nivoja 0 za koordinato x (enako pri gradnji in pri poizvedbah)
+     */
+    int cellX(double x) {
+        return (int) Math.floor((x - originX) / cellSize);
+    }
+
+    int cellY(double y) {
+        return (int) Math.floor((y - originY) / cellSize);
+    }
+
+    /**
+     * Zgradi piramido z dvema zaporednima prehodoma cez datoteko (meje, nato celice). Tocke se v piramido
+     * prepisejo sele pri write, zato mora biti datoteka takrat se odprta.
+     * @param cellSize velikost celice na nivoju 0 (v metrih)
+     */
+    static MomentGrid build(PointFile pointFile, double cellSize) throws IOException {
+        // Whole blocks at a time, so that compressed blocks can be decoded
+        int lines = readLines(pointFile);
+        ByteBuffer buffer = ByteBuffer.allocate(pointFile.bufferSize(lines));
+        float[] xs = new float[lines], ys = new float[lines], zs = new float[lines];
+        short[] is = new short[lines];
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (long line = 0; line < pointFile.points; ) {
+            int n = read(pointFile, line, lines, buffer, xs, ys, zs, is);
+            for (int k = 0; k < n; k++) {
+                minX = Math.min(minX, xs[k]);
+                maxX = Math.max(maxX, xs[k]);
+                minY = Math.min(minY, ys[k]);
+                maxY = Math.max(maxY, ys[k]);
+            }
+            line += n;
+        }
+        int points = pointFile.points;
+        double originX = points == 0 ? 0 : Math.floor(minX / cellSize) * cellSize;
+        double originY = points == 0 ? 0 : Math.floor(minY / cellSize) * cellSize;
+        MomentGrid grid = new MomentGrid(points, cellSize, originX, originY,
+                points == 0 ? 1 : (int) Math.floor((maxX - originX) / cellSize) + 1,
+                points == 0 ? 1 : (int) Math.floor((maxY - originY) / cellSize) + 1);
+        grid.source = pointFile;
+        int levels = grid.nx.length;
+        grid.z = new Histogram[levels][];
+        grid.i = new Histogram[levels][];
+        for (int l = 0; l < levels; l++) {
+            int cells = grid.nx[l] * grid.ny[l];
+            grid.z[l] = new Histogram[cells];
+            grid.i[l] = new Histogram[cells];
+            for (int c = 0; c < cells; c++) {
+                grid.z[l][c] = new Histogram(1);
+                grid.i[l][c] = new Histogram(1);
+            }
+        }
+
+        for (long line = 0; line < pointFile.points; ) {
+            int n = read(pointFile, line, lines, buffer, xs, ys, zs, is);
+            for (int k = 0; k < n; k++) {
+                int c = grid.cell(xs[k], ys[k]);
+                grid.z[0][c].add(zs[k]);
+                grid.i[0][c].add(is[k]);
+            }
+            line += n;
+        }
+        // Every cell of a level is the union of (up to) 2x2 cells of the level below
+        for (int l = 1; l < levels; l++) {
+            for (int cy = 0; cy < grid.ny[l - 1]; cy++) {
+                for (int cx = 0; cx < grid.nx[l - 1]; cx++) {
+                    int from = cy * grid.nx[l - 1] + cx;
+                    int to = (cy >> 1) * grid.nx[l] + (cx >> 1);
+                    grid.z[l][to].merge(grid.z[l - 1][from]);
+                    grid.i[l][to].merge(grid.i[l - 1][from]);
+                }
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * @return celica nivoja 0 (po vrsticah) za tocko zgrajene piramide
+     */
+    private int cell(float x, float y) {
+        return cellY(y) * nx[0] + cellX(x);
+    }
+
+    /**
+     * @return koliko vrstic se prebere naenkrat (cele bloke, da se stisnjeni bloki lahko razpakirajo)
+     */
+    private static int readLines(PointFile pointFile) {
+        int lines = PointWriter.BUFFER_SIZE / PointFile.RECORD_SIZE;
+        if (pointFile.blockPoints > 0) lines = Math.max(1, lines / pointFile.blockPoints) * pointFile.blockPoints;
+        return lines;
+    }
+
+    /**
+     * Prebere najvec lines vrstic od vrstice line naprej v tabele
+     * @return stevilo prebranih vrstic
+     */
+    private static int read(PointFile pointFile, long line, int lines, ByteBuffer buffer, float[] xs, float[] ys,
+                            float[] zs, short[] is) throws IOException {
+        long offset = pointFile.lineOffset(line);
+        buffer.clear();
+        buffer.limit((int) (pointFile.lineOffset(Math.min(pointFile.points, line + lines)) - offset));
+        while (buffer.hasRemaining()) {
+            if (pointFile.fChan.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+        return pointFile.decode(buffer, xs, ys, zs, is);
+    }
+
+    /**
+     * Zapise zgrajeno piramido ob datoteko s tockami
+     */
+    void write(File dataFile) throws IOException {
+        if (z == null) throw new IllegalStateException("Only a grid that was built can be written");
+        try (FileChannel fChan = FileChannel.open(gridFile(dataFile).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long[] starts = new long[firstCell[nx.length] + 1];
+            starts[0] = HEADER_SIZE;
+            int cell = 0;
+            for (int l = 0; l < nx.length; l++) {
+                for (int c = 0; c < z[l].length; c++, cell++) {
+                    starts[cell + 1] = starts[cell] + 4 + z[l][c].bytes() + i[l][c].bytes();
+                }
+            }
+            ByteBuffer bb = ByteBuffer.allocate(PointWriter.BUFFER_SIZE);
+            bb.putInt(MAGIC).putInt(nx.length).putInt(points).putLong(dataFile.length()).putDouble(cellSize)
+                    .putDouble(originX).putDouble(originY).putInt(nx[0]).putInt(ny[0]).putLong(starts[cell]);
+            long offset = 0;                    // Where the buffer starts in the file
+            for (int l = 0; l < nx.length; l++) {
+                for (int c = 0; c < z[l].length; c++) {
+                    int zBytes = z[l][c].bytes();
+                    int length = 4 + zBytes + i[l][c].bytes();
+                    if (bb.remaining() < length) {
+                        bb.flip();
+                        PointFile.writeFully(fChan, bb, offset);
+                        offset += bb.limit();
+                        bb.clear();
+                        // A cell with many different values can be larger than the buffer
+                        if (bb.capacity() < length) bb = ByteBuffer.allocate(length);
+                    }
+                    bb.putInt(zBytes);
+                    z[l][c].write(bb);
+                    i[l][c].write(bb);
+                }
+            }
+            bb.flip();
+            PointFile.writeFully(fChan, bb, offset);
+            // The first point of every level 0 cell, its points follow the ones of the cell before
+            long[] firsts = new long[z[0].length + 1];
+            for (int c = 0; c < z[0].length; c++) firsts[c + 1] = firsts[c] + z[0][c].size();
+            writeLongs(fChan, starts, starts[cell]);
+            long pointTable = starts[cell] + starts.length * 8L;
+            writeLongs(fChan, firsts, pointTable);
+            writePoints(fChan, firsts, pointTable + firsts.length * 8L);
+        }
+    }
+
+    private static void writeLongs(FileChannel fChan, long[] values, long offset) throws IOException {
+        ByteBuffer table = ByteBuffer.allocate(values.length * 8);
+        for (long value : values) table.putLong(value);
+        table.flip();
+        PointFile.writeFully(fChan, table, offset);
+    }
+
+    /**
+     * Prepise tocke v vrstnem redu celic (znotraj celice v vrstnem redu datoteke). Zaporedne celice, katerih
+     * tocke gredo v BAND_BYTES, se zlozijo v pomnilniku v enem prehodu cez datoteko s tockami.
+     * @param firsts prva tocka vsake celice nivoja 0
+     * @param offset kje se zacnejo tocke v datoteki piramide
+     */
+    private void writePoints(FileChannel fChan, long[] firsts, long offset) throws IOException {
+        int lines = readLines(source);
+        ByteBuffer buffer = ByteBuffer.allocate(source.bufferSize(lines));
+        float[] xs = new float[lines], ys = new float[lines], zs = new float[lines];
+        short[] is = new short[lines];
+        int cells = firsts.length - 1;
+        for (int from = 0; from < cells; ) {
+            // At least one cell, however many points it has
+            int to = from + 1;
+            while (to < cells && (firsts[to + 1] - firsts[from]) * PointFile.RECORD_SIZE <= BAND_BYTES) to++;
+            ByteBuffer band = ByteBuffer.allocate((int) ((firsts[to] - firsts[from]) * PointFile.RECORD_SIZE));
+            long[] next = new long[to - from];  // Where the next point of each cell goes in the band
+            for (int c = from; c < to; c++) next[c - from] = (firsts[c] - firsts[from]) * PointFile.RECORD_SIZE;
+            for (long line = 0; line < source.points; ) {
+                int n = read(source, line, lines, buffer, xs, ys, zs, is);
+                for (int k = 0; k < n; k++) {
+                    int c = cell(xs[k], ys[k]);
+                    if (c < from || c >= to) continue;
+                    int p = (int) next[c - from];
+                    next[c - from] += PointFile.RECORD_SIZE;
+                    band.putFloat(p, xs[k]).putFloat(p + 4, ys[k]).putFloat(p + 8, zs[k]).putShort(p + 12, is[k]);
+                }
+                line += n;
+            }
+            PointFile.writeFully(fChan, band, offset + firsts[from] * PointFile.RECORD_SIZE);
+            from = to;
+        }
+    }
+
+    /**
+     * Odpre piramido za podano datoteko (prebere le glavo, tabele in celice pa sele ob poizvedbi)
+     * @return piramida ali null, ce je ni oz. ne pripada (vec) tej datoteki
+     */
+    static MomentGrid read(File dataFile, PointFile pointFile) throws IOException {
+        return read(dataFile, pointFile, new Metrics());
+    }
+
+    /**
+     * @param metrics kamor se steje branje glave
+     */
+    static MomentGrid read(File dataFile, PointFile pointFile, Metrics metrics) throws IOException {
+        File file = gridFile(dataFile);
+        if (!file.isFile()) return null;
+        FileChannel fChan = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        MomentGrid result = null;
+        try {
+            long size = fChan.size();
+            if (size < HEADER_SIZE) return null;
+            ByteBuffer header = PointFile.readFully(fChan, 0, HEADER_SIZE);
+            metrics.read(0, HEADER_SIZE);
+            int magic = header.getInt();
+            header.getInt();
+            int points = header.getInt();
+            long dataLength = header.getLong();
+            if (magic != MAGIC || points != pointFile.points || dataLength != dataFile.length()) return null;
+            MomentGrid grid = new MomentGrid(points, header.getDouble(), header.getDouble(), header.getDouble(),
+                    header.getInt(), header.getInt());
+            grid.summaryTable = header.getLong();
+            if (grid.summaryTable < HEADER_SIZE || size != grid.pointsStart() + (long) points * PointFile.RECORD_SIZE) {
+                return null;
+            }
+            grid.fChan = fChan;
+            result = grid;
+            return grid;
+        } finally {
+            // The grid keeps the file open until it is closed
+            if (result == null) fChan.close();
+        }
+    }
+
+    private long pointTable() {
+        return summaryTable + (firstCell[nx.length] + 1L) * 8;
+    }
+
+    private long pointsStart() {
+        return pointTable() + ((long) nx[0] * ny[0] + 1) * 8;
+    }
+
+    /**
+     * Doda v histogram poizvedbe vrednosti vseh tock obmocja: celice nivoja 0, ki so v celoti znotraj obmocja,
+     * iz cim vecjih celic piramide, tocke ostalih (robnih) celic pa iz piramide. Bliznji deli datoteke
+     * (tabele, povzetki, tocke) se preberejo skupaj, z branji po najvec bufferPoints zapisov.
+     * Vsa branja se stejejo v meritve poizvedbe.
+     */
+    void query(Query query, int bufferPoints) throws IOException {
+        if (fChan == null) throw new IllegalStateException("Only a grid that was read can be queried");
+        // Level 0 cells that can hold points of the area
+        int bx0 = Math.max(0, cellX(query.minX)), bx1 = Math.min(nx[0] - 1, cellX(query.maxX));
+        int by0 = Math.max(0, cellY(query.minY)), by1 = Math.min(ny[0] - 1, cellY(query.maxY));
+        if (points == 0 || bx0 > bx1 || by0 > by1) return;
+        int limit = bufferPoints * PointFile.RECORD_SIZE;
+        // Only cells strictly between the cells of the bounds lie completely inside
+        int cx0 = Math.max(0, cellX(query.minX) + 1), cx1 = Math.max(cx0, Math.min(nx[0], cellX(query.maxX)));
+        int cy0 = Math.max(0, cellY(query.minY) + 1), cy1 = Math.max(cy0, Math.min(ny[0], cellY(query.maxY)));
+        if (cx0 < cx1 && cy0 < cy1) {
+            List<Integer> cells = new ArrayList<>();
+            cover(nx.length - 1, 0, 0, cx0, cx1, cy0, cy1, cells);
+            addSummaries(query, cells, limit);
+        }
+        // Where the points of the border cells of every row are
+        int rows = by1 - by0 + 1, width = bx1 - bx0 + 2;
+        long[] starts = new long[rows], ends = new long[rows];
+        for (int r = 0; r < rows; r++) {
+            starts[r] = pointTable() + ((by0 + r) * (long) nx[0] + bx0) * 8;
+            ends[r] = starts[r] + width * 8L;
+        }
+        long[][] firsts = new long[rows][width];
+        readParts(starts, ends, rows, limit, query.metrics, (bb, offset, r) -> {
+            for (int k = 0; k < width; k++) firsts[r][k] = bb.getLong(offset + k * 8);
+        });
+        List<Long> from = new ArrayList<>(), to = new ArrayList<>();
+        for (int r = 0; r < rows; r++) {
+            int cy = by0 + r;
+            // The covered cells of a middle row split its border cells into two parts
+            int[] parts = cy >= cy0 && cy < cy1 && cx0 < cx1 ? new int[]{bx0, cx0, cx1, bx1 + 1} : new int[]{bx0, bx1 + 1};
+            for (int p = 0; p < parts.length; p += 2) {
+                long last = firsts[r][parts[p + 1] - bx0];
+                for (long point = firsts[r][parts[p] - bx0]; point < last; point += bufferPoints) {
+                    from.add(pointsStart() + point * PointFile.RECORD_SIZE);
+                    to.add(pointsStart() + Math.min(last, point + bufferPoints) * PointFile.RECORD_SIZE);
+                }
+            }
+        }
+        float[] selectedZ = query.target == 'i' ? null : new float[bufferPoints];
+        short[] selectedI = query.target == 'i' ? new short[bufferPoints] : null;
+        readParts(toArray(from), toArray(to), from.size(), limit, query.metrics, (bb, offset, p) -> {
+            int n = (int) ((to.get(p) - from.get(p)) / PointFile.RECORD_SIZE);
+            if (selectedI != null) query.histogram.addAll(selectedI, query.filter.select(bb, offset, n, selectedI));
+            else query.histogram.addAll(selectedZ, query.filter.select(bb, offset, n, selectedZ));
+        });
+    }
+
+    /**
+     * Zbere celice piramide, ki skupaj pokrijejo celice nivoja 0 [cx0, cx1) x [cy0, cy1)
+     * @param cells indeksi celic v tabeli povzetkov
+     */
+    private void cover(int level, int cx, int cy, int cx0, int cx1, int cy0, int cy1, List<Integer> cells) {
+        // Level 0 cells [x0, x1) x [y0, y1) of this cell (the cells of the upper levels can reach past the grid)
+        long x0 = (long) cx << level, x1 = Math.min(nx[0], (long) (cx + 1) << level);
+        long y0 = (long) cy << level, y1 = Math.min(ny[0], (long) (cy + 1) << level);
+        if (x1 <= cx0 || x0 >= cx1 || y1 <= cy0 || y0 >= cy1) return;
+        if (x0 >= cx0 && x1 <= cx1 && y0 >= cy0 && y1 <= cy1) {
+            cells.add(firstCell[level] + cy * nx[level] + cx);
+            return;
+        }
+        for (int q = 0; q < 4; q++) {
+            int childX = 2 * cx + (q & 1), childY = 2 * cy + (q >> 1);
+            if (childX < nx[level - 1] && childY < ny[level - 1]) {
+                cover(level - 1, childX, childY, cx0, cx1, cy0, cy1, cells);
+            }
+        }
+    }
+
+    /**
+     * Zdruzi povzetke celic v histogram poizvedbe: najprej prebere njihove zacetke v tabeli, nato povzetke
+     */
+    private void addSummaries(Query query, List<Integer> cells, int limit) throws IOException {
+        Collections.sort(cells);
+        int n = cells.size();
+        long[] starts = new long[n], ends = new long[n];
+        for (int k = 0; k < n; k++) {
+            starts[k] = summaryTable + cells.get(k) * 8L;
+            ends[k] = starts[k] + 16;
+        }
+        long[] cellStarts = new long[n], cellEnds = new long[n];
+        readParts(starts, ends, n, limit, query.metrics, (bb, offset, k) -> {
+            cellStarts[k] = bb.getLong(offset);
+            cellEnds[k] = bb.getLong(offset + 8);
+        });
+        readParts(cellStarts, cellEnds, n, limit, query.metrics, (bb, offset, k) -> {
+            int zBytes = bb.getInt(offset);
+            bb.position(query.target == 'i' ? offset + 4 + zBytes : offset + 4);
+            query.histogram.merge(Histogram.read(bb));
+        });
+    }
+
+    /**
+     * Bere del datoteke piramide iz bufferja zdruzenega branja
+     */
+    private interface PartReader {
+        /**
+         * @param offset kje v bufferju se del zacne
+         * @param part indeks dela
+         */
+        void read(ByteBuffer bb, int offset, int part) throws IOException;
+    }
+
+    /**
+     * Prebere dele [starts[k], ends[k]) datoteke piramide (urejene po zacetku) in vsakega poda reader-ju.
+     * Zaporedni deli, med katerimi je najvec GAP_BYTES bytov, se preberejo z enim branjem, dokler skupaj
+     * z vmesnimi byti ne presezejo limit bytov (vecji del se prebere sam).
+     */
+    private void readParts(long[] starts, long[] ends, int n, int limit, Metrics metrics, PartReader reader)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(limit);
+        for (int k = 0; k < n; ) {
+            long start = starts[k], end = ends[k];
+            int last = k;
+            while (last + 1 < n && starts[last + 1] - end <= GAP_BYTES && Math.max(end, ends[last + 1]) - start <= limit) {
+                end = Math.max(end, ends[++last]);
+            }
+            int length = (int) (end - start);
+            if (length > buffer.capacity()) buffer = ByteBuffer.allocate(length);
+            buffer.clear();
+            buffer.limit(length);
+            while (buffer.hasRemaining()) {
+                if (fChan.read(buffer, start + buffer.position()) < 0) throw new IOException("Unexpected end of file");
+            }
+            metrics.read(start, length);
+            for (; k <= last; k++) reader.read(buffer, (int) (starts[k] - start), k);
+        }
+    }
+
+    private static long[] toArray(List<Long> values) {
+        long[] array = new long[values.size()];
+        for (int k = 0; k < array.length; k++) array[k] = values.get(k);
+        return array;
+    }
+
+    /**
+     * Zapre datoteko prebrane piramide
+     */
+    @Override
+    public void close() throws IOException {
+        if (fChan != null) fChan.close();
+    }
+}
@@ -0,0 +1,376 @@
+package si.rubin;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Opis binarne datoteke s tockami (@see si.rubin.DataSort).
+ * <pre>
+ * verzija 0: int stevilo_tock | tocke (14B)
+ * verzija 1: glava (32B) | tocke (14B) v blokih po blockPoints tock | indeks (28B na blok)
+ *   glava:  int MAGIC | int verzija | int stevilo_tock | int blockPoints | int stevilo_blokov
+ *           | int razporeditev | long odmik_indeksa
+ *   indeks: za vsak blok minX maxX minY maxY minZ maxZ (float) minI maxI (short),
+ *           pri razporeditvi po Hilbertovi krivulji pa se za vsak blok najmanjsi indeks na krivulji (long)
+ * verzija 2: kot verzija 1, le da so bloki stisnjeni po stolpcih (@see si.rubin.BlockCodec), za indeksom
+ *           pa je se zacetek vsakega bloka in konec zadnjega (long, stevilo_blokov + 1)
+ * </pre>
+ * Verzija 0 nima MAGIC, prvo stevilo v datoteki je tam stevilo tock (ki ni nikoli negativno).
+ */
+public class PointFile implements Closeable {
+    static final int MAGIC = 0xC1414D50;        // "AAMP" with the sign bit set, never a valid point count
+    static final int VERSION = 1;
+    static final int COMPRESSED_VERSION = 2;
+    static final int HEADER_SIZE = 32;
+    static final int LEGACY_HEADER_SIZE = 4;
+    static final int RECORD_SIZE = 14;
+    static final int LAYOUT_XYZ = 0;            // Points sorted by X, then Y, then Z
+    static final int LAYOUT_HILBERT = 1;        // Points sorted by their Hilbert index over (x, y), then Z
+    static final int DEFAULT_BLOCK_POINTS = 4096;
+
+    final FileChannel fChan;
+    final int version;
+    final int points;
+    final int blockPoints;                      // Points in a block (0 for version 0)
+    final int blockCount;
+    final int layout;
+    final long dataOffset;                      // Where the first point starts
+    final long indexOffset;                     // Where the index of blocks starts (0 for version 0)
+    final ZoneMap zones;                        // Min/max values of every block (null for version 0 or if not read)
+    final long[] blockOffsets;                  // Start of every block and the end of the last (version 2 only)
+
+    private PointFile(FileChannel fChan, int version, int points, int blockPoints, int blockCount, int layout,
+                      long dataOffset, long indexOffset, ZoneMap zones, long[] blockOffsets) {
+        this.fChan = fChan;
+        this.version = version;
+        this.points = points;
+        this.blockPoints = blockPoints;
+        this.blockCount = blockCount;
+        this.layout = layout;
+        this.dataOffset = dataOffset;
+        this.indexOffset = indexOffset;
+        this.zones = zones;
+        this.blockOffsets = blockOffsets;
+    }
+
+    /**
+     * Odpre datoteko in glede na verzijo prebere glavo ter indeks blokov
+     * @param file binarna datoteka s tockami
+     */
+    public static PointFile open(File file) throws IOException {
+        return open(file, true);
+    }
+
+    /**
+     * Odpre datoteko in prebere glavo
+     * @param file binarna datoteka s tockami
+     * @param readZones ali se prebere tudi celoten indeks blokov (sicer @see #readZones)
+     */
+    static PointFile open(File file, boolean readZones) throws IOException {
+        FileChannel fChan = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = readFully(fChan, 0, (int) Math.min(HEADER_SIZE, fChan.size()));
+            int first = header.getInt();
+            if (first != MAGIC) {
+                // Version 0: the number of points followed by bare records
+                return new PointFile(fChan, 0, first, 0, 0, LAYOUT_XYZ, LEGACY_HEADER_SIZE, 0, null, null);
+            }
+            int version = header.getInt();
+            if (version != VERSION && version != COMPRESSED_VERSION) {
+                throw new IOException("Unsupported point file version " + version);
+            }
+            int points = header.getInt();
+            int blockPoints = header.getInt();
+            int blockCount = header.getInt();
+            int layout = header.getInt();
+            long indexOffset = header.getLong();
+            ZoneMap zones = readZones ? ZoneMap.read(fChan, indexOffset, blockPoints, blockCount, layout, 0, blockCount)
+                    : null;
+            long[] blockOffsets = null;
+            if (version == COMPRESSED_VERSION) {
+                ByteBuffer bb = readFully(fChan, indexOffset + ZoneMap.size(blockCount, layout),
+                        (blockCount + 1) * Long.BYTES);
+                blockOffsets = new long[blockCount + 1];
+                for (int b = 0; b <= blockCount; b++) blockOffsets[b] = bb.getLong();
+            }
+            return new PointFile(fChan, version, points, blockPoints, blockCount, layout, HEADER_SIZE, indexOffset,
+                    zones, blockOffsets);
+        } catch (IOException | RuntimeException e) {
+            fChan.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Prebere le del indeksa blokov (verzija 1)
+     * @param firstBlock prvi blok, ki ga preberemo
+     * @param count stevilo blokov
+     */
+    ZoneMap readZones(int firstBlock, int count) throws IOException {
+        return ZoneMap.read(fChan, indexOffset, blockPoints, blockCount, layout, firstBlock, count);
+    }
+
+    /**
+     * @return odmik vrstice v datoteki (v bytih), pri verziji 2 le za zacetke blokov in konec datoteke
+     */
+    long lineOffset(long line) {
+        if (blockOffsets != null) return blockOffsets[(int) ((line + blockPoints - 1) / blockPoints)];
+        return dataOffset + line * RECORD_SIZE;
+    }
+
+    /**
+     * @return koliko bytov je lahko najvec zapisanih za lines zaporednih vrstic (pri verziji 2 celih blokov)
+     */
+    int bufferSize(int lines) {
+        if (blockOffsets == null) return lines * RECORD_SIZE;
+        return (lines + blockPoints - 1) / blockPoints * BlockCodec.maxSize(blockPoints);
+    }
+
+    /**
+     * Razpakira prebrane vrstice iz bufferja (od pozicije do limita) v tabele
+     * @return stevilo vrstic
+     */
+    int decode(ByteBuffer buffer, float[] xs, float[] ys, float[] zs, short[] is) {
+        int n = 0;
+        if (blockOffsets != null) {
+            while (buffer.hasRemaining()) n += BlockCodec.decode(buffer, xs, ys, zs, is, n);
+            return n;
+        }
+        for (; buffer.remaining() >= RECORD_SIZE; n++) {
+            xs[n] = buffer.getFloat();
+            ys[n] = buffer.getFloat();
+            zs[n] = buffer.getFloat();
+            is[n] = buffer.getShort();
+        }
+        return n;
+    }
+
+    /**
+     * @return stevilo tock v bloku (zadnji blok je lahko krajsi)
+     */
+    int blockSize(int block) {
+        return (int) Math.min(blockPoints, points - (long) block * blockPoints);
+    }
+
+    /**
+     * Zapise glavo verzije 1 oz. 2 na zacetek datoteke
+     */
+    static void writeHeader(FileChannel fChan, int version, int points, int blockPoints, int blockCount, int layout,
+                            long indexOffset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(version).putInt(points).putInt(blockPoints).putInt(blockCount)
+                .putInt(layout).putLong(indexOffset);
+        header.flip();
+        writeFully(fChan, header, 0);
+    }
+
+    static ByteBuffer readFully(FileChannel fChan, long offset, int length) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(length);
+        while (bb.hasRemaining()) {
+            if (fChan.read(bb, offset + bb.position()) < 0) throw new IOException("Unexpected end of file");
+        }
+        bb.flip();
+        return bb;
+    }
+
+    static void writeFully(FileChannel fChan, ByteBuffer bb, long offset) throws IOException {
+        long start = offset - bb.position();
+        while (bb.hasRemaining()) {
+            fChan.write(bb, start + bb.position());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        fChan.close();
+    }
+
+    /**
+     * Najmanjse in najvecje vrednosti x, y, z in i za zaporedne bloke (od bloka firstBlock naprej).
+     * Bloki brez tock imajo min > max in zato ne ustrezajo nobenemu obmocju.
+     * Pri razporeditvi po Hilbertovi krivulji se hrani se najmanjsi indeks na krivulji v bloku.
+     */
+    static class ZoneMap {
+        static final int ENTRY_SIZE = 28;
+
+        final int blockPoints;
+        final int firstBlock;
+        final int layout;
+        int blocks;
+        float[] minX, maxX, minY, maxY, minZ, maxZ;
+        short[] minI, maxI;
+        long[] minCode;                         // Smallest (unsigned) Hilbert index, null for LAYOUT_XYZ
+
+        ZoneMap(int blockPoints, int firstBlock, int layout) {
+            this(blockPoints, firstBlock, layout, 16);
+        }
+
+        private ZoneMap(int blockPoints, int firstBlock, int layout, int capacity) {
+            this.blockPoints = blockPoints;
+            this.firstBlock = firstBlock;
+            this.layout = layout;
+            this.blocks = 0;
+            ensureCapacity(capacity);
+        }
+
+        /**
+         * Doda tocko v vrstici line v zemljevid bloka, kateremu pripada
+         */
+        void add(long line, float x, float y, float z, short i) {
+            int b = (int) (line / blockPoints) - firstBlock;
+            if (b >= blocks) {
+                ensureCapacity(b + 1);
+                blocks = b + 1;
+            }
+            if (minCode != null) {
+                long code = HilbertCurve.index(x, y);
+                if (Long.compareUnsigned(code, minCode[b]) < 0) minCode[b] = code;
+            }
+            if (x < minX[b]) minX[b] = x;
+            if (x > maxX[b]) maxX[b] = x;
+            if (y < minY[b]) minY[b] = y;
+            if (y > maxY[b]) maxY[b] = y;
+            if (z < minZ[b]) minZ[b] = z;
+            if (z > maxZ[b]) maxZ[b] = z;
+            if (i < minI[b]) minI[b] = i;
+            if (i > maxI[b]) maxI[b] = i;
+        }
+
+        /**
+         * Zdruzi drug (delni) zemljevid v tega
+         */
+        void merge(ZoneMap other) {
+            for (int ob = 0; ob < other.blocks; ob++) {
+                int b = other.firstBlock + ob - firstBlock;
+                if (b >= blocks) {
+                    ensureCapacity(b + 1);
+                    blocks = b + 1;
+                }
+                if (other.minX[ob] < minX[b]) minX[b] = other.minX[ob];
+                if (other.maxX[ob] > maxX[b]) maxX[b] = other.maxX[ob];
+                if (other.minY[ob] < minY[b]) minY[b] = other.minY[ob];
+                if (other.maxY[ob] > maxY[b]) maxY[b] = other.maxY[ob];
+                if (other.minZ[ob] < minZ[b]) minZ[b] = other.minZ[ob];
+                if (other.maxZ[ob] > maxZ[b]) maxZ[b] = other.maxZ[ob];
+                if (other.minI[ob] < minI[b]) minI[b] = other.minI[ob];
+                if (other.maxI[ob] > maxI[b]) maxI[b] = other.maxI[ob];
+                if (minCode != null && Long.compareUnsigned(other.minCode[ob], minCode[b]) < 0) {
+                    minCode[b] = other.minCode[ob];
+                }
+            }
+        }
+
+        /**
+         * Ali ima blok lahko tocke z minX <= x < maxX in minY <= y < maxY
+         */
+        boolean mayContain(int block, double minXq, double maxXq, double minYq, double maxYq) {
+            int b = block - firstBlock;
+            return maxX[b] >= minXq && minX[b] < maxXq && maxY[b] >= minYq && minY[b] < maxYq;
+        }
+
+        private void ensureCapacity(int capacity) {
+            int old = minX == null ? 0 : minX.length;
+            if (capacity <= old) return;
+            int size = Math.max(capacity, old * 2);
+            minX = grow(minX, size, Float.POSITIVE_INFINITY);
+            maxX = grow(maxX, size, Float.NEGATIVE_INFINITY);
+            minY = grow(minY, size, Float.POSITIVE_INFINITY);
+            maxY = grow(maxY, size, Float.NEGATIVE_INFINITY);
+            minZ = grow(minZ, size, Float.POSITIVE_INFINITY);
+            maxZ = grow(maxZ, size, Float.NEGATIVE_INFINITY);
+            minI = grow(minI, size, Short.MAX_VALUE);
+            maxI = grow(maxI, size, Short.MIN_VALUE);
+            if (layout == LAYOUT_HILBERT) {
+                old = minCode == null ? 0 : minCode.length;
+                minCode = minCode == null ? new long[size] : Arrays.copyOf(minCode, size);
+                Arrays.fill(minCode, old, size, -1L);
+            }
+        }
+
+        private static float[] grow(float[] values, int size, float fill) {
+            int old = values == null ? 0 : values.length;
+            float[] result = values == null ? new float[size] : Arrays.copyOf(values, size);
+            Arrays.fill(result, old, size, fill);
+            return result;
+        }
+
+        private static short[] grow(short[] values, int size, short fill) {
+            int old = values == null ? 0 : values.length;
+            short[] result = values == null ? new short[size] : Arrays.copyOf(values, size);
+            Arrays.fill(result, old, size, fill);
+            return result;
+        }
+
+        /**
+         * @return velikost zapisanega zemljevida za blockCount blokov (v bytih)
+         */
+        static long size(int blockCount, int layout) {
+            return (long) blockCount * (ENTRY_SIZE + (layout == LAYOUT_HILBERT ? Long.BYTES : 0));
+        }
+
+        /**
+         * Zapise zemljevid (za bloke 0 .. blockCount-1) na podan odmik v datoteki
+         */
+        void write(FileChannel fChan, long offset, int blockCount) throws IOException {
+            ensureCapacity(blockCount);
+            ByteBuffer bb = ByteBuffer.allocate(PointWriter.BUFFER_SIZE / ENTRY_SIZE * ENTRY_SIZE);
+            for (int b = 0; b < blockCount; b++) {
+                if (bb.remaining() < ENTRY_SIZE) {
+                    bb.flip();
+                    writeFully(fChan, bb, offset);
+                    offset += bb.limit();
+                    bb.clear();
+                }
+                bb.putFloat(minX[b]).putFloat(maxX[b]).putFloat(minY[b]).putFloat(maxY[b])
+                        .putFloat(minZ[b]).putFloat(maxZ[b]).putShort(minI[b]).putShort(maxI[b]);
+            }
+            if (minCode != null) {
+                for (int b = 0; b < blockCount; b++) {
+                    if (bb.remaining() < Long.BYTES) {
+                        bb.flip();
+                        writeFully(fChan, bb, offset);
+                        offset += bb.limit();
+                        bb.clear();
+                    }
+                    bb.putLong(minCode[b]);
+                }
+            }
+            bb.flip();
+            writeFully(fChan, bb, offset);
+        }
+
+        /**
+         * Prebere zemljevid blokov firstBlock .. firstBlock+count-1 iz datoteke
+         * @param offset zacetek indeksa v datoteki
+         * @param blockCount stevilo vseh blokov v datoteki
+         */
+        static ZoneMap read(FileChannel fChan, long offset, int blockPoints, int blockCount, int layout,
+                            int firstBlock, int count) throws IOException {
+            ZoneMap zones = new ZoneMap(blockPoints, firstBlock, layout, Math.max(1, count));
+            ByteBuffer bb = readFully(fChan, offset + (long) firstBlock * ENTRY_SIZE, count * ENTRY_SIZE);
+            for (int b = 0; b < count; b++) {
+                zones.minX[b] = bb.getFloat();
+                zones.maxX[b] = bb.getFloat();
+                zones.minY[b] = bb.getFloat();
+                zones.maxY[b] = bb.getFloat();
+                zones.minZ[b] = bb.getFloat();
+                zones.maxZ[b] = bb.getFloat();
+                zones.minI[b] = bb.getShort();
+                zones.maxI[b] = bb.getShort();
+            }
+            if (zones.minCode != null) {
+                // The codes follow the entries of all blocks
+                bb = readFully(fChan, offset + (long) blockCount * ENTRY_SIZE + (long) firstBlock * Long.BYTES,
+                        count * Long.BYTES);
+                for (int b = 0; b < count; b++) zones.minCode[b] = bb.getLong();
+            }
+            zones.blocks = count;
+            return zones;
+        }
+    }
+}
@@ -0,0 +1,656 @@
+package si.rubin;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Zunanje urejanje tock (x, y, z, i). Vsaka vrstica se prebere in pretvori samo enkrat, neposredno iz
+ * preslikane datoteke (@see si.rubin.TextPoints), tocke pa se v pomnilniku hranijo kot pakirani zapisi
+ * dveh long vrednosti:
+ * <pre>
+ *   a = key(x) | key(y)      b = key(z) | i
+ * </pre>
+ * kjer je key(f) 32 bitni kljuc, ki ohranja vrstni red floatov (kot nepredznacena cela stevila).
+ * Vrstni red je enak kot pri Float.compare in ne kot pri primerjavi z operatorji (stari PointComparator):
+ * -0.0 je pred 0.0 in NaN je za +Infinity.
+ * Zaporedje tock, ki ne presega pomnilnika, se uredi z radix sort (LSD, 16 bitov naenkrat),
+ * zapise v zacasno binarno datoteko, nato pa se vse datoteke zdruzijo s turnirskim drevesom.
+ * Urejanje je stabilno - enake tocke ostanejo v vhodnem vrstnem redu.
+ * Pri razporeditvi po Hilbertovi krivulji je namesto a kljuc indeks tocke na krivulji (h),
+ * a pa se hrani poleg, da ostaneta x in y nespremenjena.
+ *
+ * Z vec nitmi se vhodna datoteka razdeli na kose, ki se zacnejo in koncajo s celo vrstico.
+ * Kosi se hkrati preberejo in uredijo v ForkJoinPool, zdruzevanje pa se razdeli po obmocjih
+ * kljucev, tako da vsaka nit zapise svoj del izhodne datoteke. Izhod je enak kot pri eni niti.
+ */
+public class PointSorter {
+    static final int RECORD_BYTES = 32;         // a + b and their copies for radix sort
+    static final int HILBERT_RECORD_BYTES = 48; // h + a + b and their copies
+    private static final int RADIX_BITS = 16;
+    private static final int RADIX = 1 << RADIX_BITS;
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+    private static final int MIN_MERGE_BUFFER = 64 << 10;   // Smallest read buffer of a run while merging
+    private static final int SAMPLES_PER_RUN = 64;          // Keys sampled from each run to split the merge
+
+    private final long memory;                  // Memory budget in bytes
+    private final int threads;                  // Number of worker threads (1 = sequential)
+    private final int runSize;                  // How many points are sorted in memory at once (sequential)
+    private final File tmpDir;                  // Where the sorted runs are written (null for default)
+    private final int blockPoints;              // Points in a block of the output file (0 = version 0)
+    private final int layout;                   // Order of the output points (@see si.rubin.PointFile)
+    private final boolean compressed;           // Blocks of the output are packed by columns (version 2)
+
+    /**
+     * @param memory koliko bytov lahko porabimo za tocke v pomnilniku
+     * @param tmpDir mapa za zacasne datoteke (null za privzeto)
+     */
+    public PointSorter(long memory, File tmpDir) {
+        this(memory, tmpDir, 1, PointFile.DEFAULT_BLOCK_POINTS, PointFile.LAYOUT_XYZ);
+    }
+
+    /**
+     * @param memory koliko bytov lahko porabimo za tocke v pomnilniku (skupaj za vse niti)
+     * @param tmpDir mapa za zacasne datoteke (null za privzeto)
+     * @param threads stevilo niti za urejanje in zdruzevanje
+     * @param blockPoints stevilo tock v bloku izhodne datoteke (0 za verzijo 0 brez blokov)
+     * @param layout vrstni red tock (PointFile.LAYOUT_XYZ ali PointFile.LAYOUT_HILBERT)
+     */
+    public PointSorter(long memory, File tmpDir, int threads, int blockPoints, int layout) {
+        this(memory, tmpDir, threads, blockPoints, layout, false);
+    }
+
+    /**
+     * @param memory koliko bytov lahko porabimo za tocke v pomnilniku (skupaj za vse niti)
+     * @param tmpDir mapa za zacasne datoteke (null za privzeto)
+     * @param threads stevilo niti za urejanje in zdruzevanje
+     * @param blockPoints stevilo tock v bloku izhodne datoteke (0 za verzijo 0 brez blokov)
+     * @param layout vrstni red tock (PointFile.LAYOUT_XYZ ali PointFile.LAYOUT_HILBERT)
+     * @param compressed ali se bloki izhodne datoteke stisnejo (verzija 2, @see si.rubin.BlockCodec)
+     */
+    public PointSorter(long memory, File tmpDir, int threads, int blockPoints, int layout, boolean compressed) {
+        if (layout == PointFile.LAYOUT_HILBERT && blockPoints <= 0) {
+            throw new IllegalArgumentException("The Hilbert layout needs a file with blocks");
+        }
+        if (compressed && blockPoints <= 0) {
+            throw new IllegalArgumentException("A compressed file needs blocks");
+        }
+        int recordBytes = layout == PointFile.LAYOUT_HILBERT ? HILBERT_RECORD_BYTES : RECORD_BYTES;
+        this.memory = memory;
+        this.threads = Math.max(1, threads);
+        this.runSize = (int) Math.max(1024, Math.min(Integer.MAX_VALUE - 8, memory / recordBytes));
+        this.tmpDir = tmpDir;
+        this.blockPoints = blockPoints;
+        this.layout = layout;
+        this.compressed = compressed;
+    }
+
+    /**
+     * Uredi tocke iz tekstovne datoteke in jih zapise v binarno datoteko (@see si.rubin.PointWriter)
+     * @param input tekstovna datoteka z vrsticami "x y z i"
+     * @param output izhodna binarna datoteka
+     * @return stevilo urejenih tock
+     */
+    public int sort(File input, File output) throws IOException {
+        if (threads > 1) return parallelSort(input, output);
+
+        List<File> runs = new ArrayList<>();
+        try (TextPoints text = new TextPoints(input)) {
+            Run run = new Run(runSize, layout);
+            while (run.read(text) > 0) {
+                run.sort();
+                if (runs.isEmpty() && run.size < runSize) {
+                    // Everything fit into memory, no need for temporary files
+                    return run.write(output, blockPoints, layout, compressed);
+                }
+                File runFile = File.createTempFile("pointsort", ".run", tmpDir);
+                runFile.deleteOnExit();
+                run.write(runFile, 0, layout, false);
+                runs.add(runFile);
+            }
+        }
+        try {
+            return merge(runs, output);
+        } finally {
+            for (File run : runs) run.delete();
+        }
+    }
+
+    /**
+     * Vzporedno urejanje: kosi vhodne datoteke se uredijo hkrati, nato pa se vzporedno zdruzijo
+     */
+    private int parallelSort(File input, File output) throws IOException {
+        // Each chunk is mapped (page cache) and holds 32B of packed records per ~30B line
+        long chunkBytes = Math.max(READ_BUFFER_SIZE, Math.min(memory / threads / 3,
+                (input.length() + threads - 1) / threads));
+        long[] bounds = chunkBounds(input, chunkBytes);
+        int chunks = bounds.length - 1;
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<File> runs = new ArrayList<>();
+        try {
+            List<Future<File>> sorted = new ArrayList<>();
+            for (int c = 0; c < chunks; c++) {
+                final long from = bounds[c], to = bounds[c + 1];
+                sorted.add(pool.submit(() -> {
+                    Run run = new Run(0, layout);
+                    run.read(input, from, to);
+                    run.sort();
+                    File runFile = File.createTempFile("pointsort", ".run", tmpDir);
+                    runFile.deleteOnExit();
+                    run.write(runFile, 0, layout, false);
+                    return runFile;
+                }));
+            }
+            for (Future<File> run : sorted) runs.add(run.get());
+            // Compressed blocks have no fixed size, so the output can not be split between threads
+            return compressed ? merge(runs, output) : parallelMerge(pool, runs, output);
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Parallel sort failed", e.getCause() != null ? e.getCause() : e);
+        } finally {
+            pool.shutdownNow();
+            for (File run : runs) run.delete();
+        }
+    }
+
+    /**
+     * Razdeli datoteko na kose velikosti priblizno chunkBytes, ki se koncajo za znakom za novo vrstico
+     * @return zacetki kosov (zadnji element je dolzina datoteke)
+     */
+    static long[] chunkBounds(File input, long chunkBytes) throws IOException {
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        try (FileChannel fChan = FileChannel.open(input.toPath(), StandardOpenOption.READ)) {
+            long size = fChan.size();
+            ByteBuffer window = ByteBuffer.allocate(4096);
+            long pos = chunkBytes;
+            while (pos < size) {
+                // Move the bound just after the next newline
+                long bound = -1;
+                while (bound < 0 && pos < size) {
+                    window.clear();
+                    int read = fChan.read(window, pos);
+                    if (read <= 0) break;
+                    for (int k = 0; k < read; k++) {
+                        if (window.get(k) == '\n') {
+                            bound = pos + k + 1;
+                            break;
+                        }
+                    }
+                    if (bound < 0) pos += read;
+                }
+                if (bound < 0 || bound >= size) break;
+                bounds.add(bound);
+                pos = bound + chunkBytes;
+            }
+            bounds.add(size);
+        }
+        long[] result = new long[bounds.size()];
+        for (int k = 0; k < result.length; k++) result[k] = bounds.get(k);
+        return result;
+    }
+
+    /**
+     * Zdruzi urejene datoteke v eno (k-way merge s turnirskim drevesom). Datoteke so lahko zacasne ali
+     * ze zapisane datoteke s tockami (katerekoli verzije), urejene z istim vrstnim redom.
+     * @return stevilo zapisanih tock
+     */
+    int merge(List<File> runs, File output) throws IOException {
+        List<RunReader> readers = new ArrayList<>();
+        try (PointWriter writer = new PointWriter(output, blockPoints, layout, compressed)) {
+            int bufferSize = mergeBufferSize(runs.size());
+            for (int r = 0; r < runs.size(); r++) {
+                readers.add(new RunReader(runs.get(r), r, 0, -1, bufferSize, layout));
+            }
+            mergeInto(readers, writer);
+            return writer.getPoints();
+        } finally {
+            for (RunReader reader : readers) reader.close();
+        }
+    }
+
+    /**
+     * Razdeli zdruzevanje na obmocja kljucev (eno za vsako nit). Meje obmocij so vzorcni kljuci iz
+     * datotek, vsaka nit pa zdruzi svoj del vseh datotek v svoje obmocje izhodne datoteke.
+     * @return stevilo zapisanih tock
+     */
+    private int parallelMerge(ForkJoinPool pool, List<File> runs, File output)
+            throws IOException, InterruptedException, ExecutionException {
+        int k = runs.size();
+        long[] counts = new long[k];
+        long total = 0;
+        List<long[]> samples = new ArrayList<>();
+        for (int r = 0; r < k; r++) {
+            try (FileChannel fChan = FileChannel.open(runs.get(r).toPath(), StandardOpenOption.READ)) {
+                counts[r] = readCount(fChan);
+                total += counts[r];
+                for (int s = 1; s <= SAMPLES_PER_RUN && counts[r] > 0; s++) {
+                    samples.add(readKey(fChan, counts[r] * s / (SAMPLES_PER_RUN + 1), layout));
+                }
+            }
+        }
+        samples.sort(PointSorter::compareKeys);
+
+        // Split points: parts[p][r] is the first line of run r that belongs to partition p
+        int partitions = Math.max(1, Math.min(threads, samples.size()));
+        long[][] parts = new long[partitions + 1][k];
+        for (int p = 1; p < partitions; p++) {
+            long[] splitter = samples.get(samples.size() * p / partitions);
+            for (int r = 0; r < k; r++) {
+                try (FileChannel fChan = FileChannel.open(runs.get(r).toPath(), StandardOpenOption.READ)) {
+                    parts[p][r] = lowerBound(fChan, counts[r], splitter, layout);
+                }
+            }
+        }
+        parts[partitions] = counts;
+
+        int bufferSize = mergeBufferSize(partitions * (k + 1));
+        try (FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            List<Future<PointWriter>> merged = new ArrayList<>();
+            long line = 0;
+            for (int p = 0; p < partitions; p++) {
+                final long[] from = parts[p], to = parts[p + 1];
+                final long start = line;
+                for (int r = 0; r < k; r++) line += to[r] - from[r];
+                merged.add(pool.submit(() -> {
+                    List<RunReader> readers = new ArrayList<>();
+                    try (PointWriter writer = new PointWriter(out, start, bufferSize, blockPoints, layout)) {
+                        for (int r = 0; r < k; r++) {
+                            readers.add(new RunReader(runs.get(r), r, from[r], to[r], bufferSize, layout));
+                        }
+                        mergeInto(readers, writer);
+                        return writer;
+                    } finally {
+                        for (RunReader reader : readers) reader.close();
+                    }
+                }));
+            }
+            int written = 0;
+            List<PointFile.ZoneMap> zones = new ArrayList<>();
+            for (Future<PointWriter> part : merged) {
+                written += part.get().getPoints();
+                zones.add(part.get().getZones());
+            }
+            if (written != total) throw new IOException("Merged " + written + " of " + total + " points");
+            PointWriter.finish(out, written, blockPoints, layout, zones);
+            return written;
+        }
+    }
+
+    /**
+     * Velikost bufferja posamezne datoteke pri zdruzevanju, da vsi skupaj ne presezejo pomnilnika
+     */
+    private int mergeBufferSize(int readers) {
+        long perReader = memory / Math.max(1, readers);
+        return (int) Math.max(MIN_MERGE_BUFFER, Math.min(PointWriter.BUFFER_SIZE, perReader));
+    }
+
+    /**
+     * Turnirsko drevo: v listih so trenutne tocke datotek, v notranjih vozliscih pa zmagovalci
+     * (manjsa tocka). Po izpisu zmagovalca se ponovno odigra samo pot od njegovega lista do korena.
+     */
+    private static void mergeInto(List<RunReader> readers, PointWriter writer) throws IOException {
+        int k = readers.size();
+        if (k == 0) return;
+        int leaves = Integer.highestOneBit(Math.max(1, k - 1)) << 1;
+        int[] tree = new int[2 * leaves];
+        Arrays.fill(tree, -1);
+        for (int r = 0; r < k; r++) {
+            if (readers.get(r).next()) tree[leaves + r] = r;
+        }
+        for (int node = leaves - 1; node > 0; node--) {
+            tree[node] = winner(readers, tree[2 * node], tree[2 * node + 1]);
+        }
+        while (tree[1] >= 0) {
+            int w = tree[1];
+            RunReader top = readers.get(w);
+            writer.write(top.x, top.y, top.z, top.i);
+            int node = leaves + w;
+            tree[node] = top.next() ? w : -1;
+            for (node >>= 1; node > 0; node >>= 1) {
+                tree[node] = winner(readers, tree[2 * node], tree[2 * node + 1]);
+            }
+        }
+    }
+
+    private static int winner(List<RunReader> readers, int r1, int r2) {
+        if (r1 < 0) return r2;
+        if (r2 < 0) return r1;
+        return readers.get(r1).compareTo(readers.get(r2)) <= 0 ? r1 : r2;
+    }
+
+    /**
+     * Prebere stevilo tock iz glave datoteke
+     */
+    private static long readCount(FileChannel fChan) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(PointWriter.HEADER_SIZE);
+        while (header.hasRemaining() && fChan.read(header, header.position()) > 0) ;
+        header.flip();
+        return header.getInt();
+    }
+
+    /**
+     * Prebere kljuc {a (oz. h), zgornjih 32 bitov b} tocke v podani vrstici
+     */
+    private static long[] readKey(FileChannel fChan, long line, int layout) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(PointWriter.RECORD_SIZE);
+        long offset = PointWriter.HEADER_SIZE + line * PointWriter.RECORD_SIZE;
+        while (record.hasRemaining() && fChan.read(record, offset + record.position()) > 0) ;
+        record.flip();
+        float x = record.getFloat(), y = record.getFloat(), z = record.getFloat();
+        return new long[]{primaryKey(x, y, layout), floatKey(z) & 0xFFFFFFFFL};
+    }
+
+    /**
+     * Binarno iskanje prve vrstice, katere kljuc ni manjsi od podanega
+     */
+    private static long lowerBound(FileChannel fChan, long count, long[] key, int layout) throws IOException {
+        long lo = 0, hi = count;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (compareKeys(readKey(fChan, mid, layout), key) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private static int compareKeys(long[] k1, long[] k2) {
+        int cmp = Long.compareUnsigned(k1[0], k2[0]);
+        return cmp != 0 ? cmp : Long.compare(k1[1], k2[1]);
+    }
+
+    /**
+     * Glavni del kljuca (brez predznaka): po X in Y oz. indeks na Hilbertovi krivulji
+     */
+    static long primaryKey(float x, float y, int layout) {
+        return layout == PointFile.LAYOUT_HILBERT ? HilbertCurve.index(x, y) : pack(x, y);
+    }
+
+    /**
+     * Kljuc, katerega vrstni red (brez predznaka) je enak vrstnemu redu Float.compare.
+     * Predznak -0.0 se ohrani (tocka se zapise nespremenjena), zato so tocke z -0.0 pred tistimi z 0.0, ceprav
+     * sta vrednosti enaki (stari PointComparator ju je imel za enaki in je primerjal naslednjo koordinato).
+     * Vsi NaN dobijo isti kljuc (Float.floatToIntBits) za +Infinity, PointComparator pa je NaN imel za enak
+     * vsem vrednostim in vrstni red takih tock ni bil dolocen.
+     */
+    static int floatKey(float f) {
+        int bits = Float.floatToIntBits(f);
+        return bits ^ ((bits >> 31) | 0x80000000);
+    }
+
+    /**
+     * Inverz od floatKey
+     */
+    static float keyFloat(int key) {
+        return Float.intBitsToFloat(key ^ (~(key >> 31) | 0x80000000));
+    }
+
+    static long pack(float high, float low) {
+        return ((long) floatKey(high) << 32) | (floatKey(low) & 0xFFFFFFFFL);
+    }
+
+    static long pack(float high, short low) {
+        return ((long) floatKey(high) << 32) | (low & 0xFFFF);
+    }
+
+    static float highFloat(long packed) {
+        return keyFloat((int) (packed >>> 32));
+    }
+
+    static float lowFloat(long packed) {
+        return keyFloat((int) packed);
+    }
+
+    /**
+     * Zaporedje tock, ki se uredi v pomnilniku (pakirani zapisi as[k], bs[k] in pri
+     * Hilbertovi krivulji se hs[k])
+     */
+    static class Run {
+        final boolean hilbert;
+        long[] as, bs, hs;                      // Packed points (and their Hilbert index)
+        long[] tmpAs, tmpBs, tmpHs;             // Radix sort destination
+        int size;
+
+        Run(int capacity, int layout) {
+            hilbert = layout == PointFile.LAYOUT_HILBERT;
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            as = new long[capacity];
+            bs = new long[capacity];
+            tmpAs = new long[capacity];
+            tmpBs = new long[capacity];
+            if (hilbert) {
+                hs = new long[capacity];
+                tmpHs = new long[capacity];
+            }
+        }
+
+        /**
+         * Prebere do as.length tock
+         * @return stevilo prebranih tock
+         */
+        int read(TextPoints text) throws IOException {
+            size = 0;
+            int n;
+            while (size < as.length && (n = text.next(as.length - size)) > 0) {
+                for (int k = 0; k < n; k++) add(text.xs[k], text.ys[k], text.zs[k], text.is[k]);
+            }
+            return size;
+        }
+
+        /**
+         * Prebere vse vrstice med podanima odmikoma v datoteki (from mora biti zacetek vrstice)
+         * @return stevilo prebranih tock
+         */
+        int read(File input, long from, long to) throws IOException {
+            try (TextPoints text = new TextPoints(input, from, to)) {
+                allocate((int) Math.min(Integer.MAX_VALUE - 8, text.countLines()));
+                return read(text);
+            }
+        }
+
+        /**
+         * Doda tocko v pakiranem zapisu
+         */
+        private void add(float x, float y, float z, short i) {
+            as[size] = pack(x, y);
+            bs[size] = pack(z, i);
+            if (hilbert) hs[size] = HilbertCurve.index(x, y);
+            size++;
+        }
+
+        /**
+         * LSD radix sort po (a oz. h, zgornjih 32 bitov b).
+         * Prehodi, kjer imajo vsi zapisi enako stevko, se preskocijo (npr. zgornji biti X znotraj ene tile).
+         */
+        void sort() {
+            int n = size;
+            if (n == 0) return;
+            int[] counts = new int[RADIX];
+            // Least significant first: z (upper half of b), then y and x (a) or the Hilbert index (h)
+            int[] shifts = {32, 48, 0, 16, 32, 48};
+            for (int pass = 0; pass < shifts.length; pass++) {
+                int shift = shifts[pass];
+                long[] keys = pass < 2 ? bs : hilbert ? hs : as;
+                Arrays.fill(counts, 0);
+                for (int k = 0; k < n; k++) {
+                    counts[(int) (keys[k] >>> shift) & (RADIX - 1)]++;
+                }
+                // Skip the pass if every record falls into the same bucket
+                int digit = (int) (keys[0] >>> shift) & (RADIX - 1);
+                if (counts[digit] == n) continue;
+                // Turn counts into starting positions
+                int sum = 0;
+                for (int d = 0; d < RADIX; d++) {
+                    int c = counts[d];
+                    counts[d] = sum;
+                    sum += c;
+                }
+                for (int k = 0; k < n; k++) {
+                    int pos = counts[(int) (keys[k] >>> shift) & (RADIX - 1)]++;
+                    tmpAs[pos] = as[k];
+                    tmpBs[pos] = bs[k];
+                    if (hilbert) tmpHs[pos] = hs[k];
+                }
+                long[] swap = as;
+                as = tmpAs;
+                tmpAs = swap;
+                swap = bs;
+                bs = tmpBs;
+                tmpBs = swap;
+                if (hilbert) {
+                    swap = hs;
+                    hs = tmpHs;
+                    tmpHs = swap;
+                }
+            }
+        }
+
+        /**
+         * Zapise urejeno zaporedje v datoteko
+         * @param blockPoints stevilo tock v bloku (0 za verzijo 0 brez blokov)
+         * @param layout vrstni red tock
+         * @param compressed ali se bloki stisnejo (verzija 2)
+         * @return stevilo zapisanih tock
+         */
+        int write(File file, int blockPoints, int layout, boolean compressed) throws IOException {
+            try (PointWriter writer = new PointWriter(file, blockPoints, layout, compressed)) {
+                for (int k = 0; k < size; k++) {
+                    writer.write(highFloat(as[k]), lowFloat(as[k]), highFloat(bs[k]), (short) bs[k]);
+                }
+                return writer.getPoints();
+            }
+        }
+    }
+
+    /**
+     * Zaporedno branje (dela) urejene datoteke
+     */
+    static class RunReader implements Closeable, Comparable<RunReader> {
+        private final FileChannel fChan;
+        private final ByteBuffer buffer;
+        private final PointFile pointFile;
+        private final int run;                  // Index of the run, used for a stable merge
+        private final int layout;
+        private long remaining;                 // Points left to read
+        private long a, b;                      // Key of the current point (a is h for the Hilbert layout)
+        private float[] xs, ys, zs;             // Decoded points of the current block (version 2)
+        private short[] is;
+        private int decoded, next;
+        private int block;                      // Next block to read (version 2)
+        float x, y, z;
+        short i;
+
+        /**
+         * @param file urejena datoteka s tockami (zacasna ali izhodna)
+         * @param run zaporedna stevilka datoteke (pri enakih tockah ima prednost manjsa)
+         * @param from prva vrstica, ki jo beremo
+         * @param to vrstica, pred katero se ustavimo (-1 za konec datoteke)
+         * @param bufferSize velikost bufferja v bytih
+         * @param layout vrstni red tock v datoteki
+         */
+        RunReader(File file, int run, long from, long to, int bufferSize, int layout) throws IOException {
+            // The header tells where the points start and end (a version 1 file has its index after them)
+            pointFile = PointFile.open(file, false);
+            this.fChan = pointFile.fChan;
+            this.run = run;
+            this.layout = layout;
+            this.remaining = (to < 0 ? pointFile.points : to) - from;
+            if (pointFile.blockOffsets != null) {
+                // Compressed blocks are decoded one at a time, the points before from are skipped
+                buffer = ByteBuffer.allocate(BlockCodec.maxSize(pointFile.blockPoints));
+                xs = new float[pointFile.blockPoints];
+                ys = new float[pointFile.blockPoints];
+                zs = new float[pointFile.blockPoints];
+                is = new short[pointFile.blockPoints];
+                block = (int) (from / pointFile.blockPoints);
+                next = (int) (from % pointFile.blockPoints);
+                if (remaining > 0) decodeBlock();
+                return;
+            }
+            this.buffer = ByteBuffer.allocateDirect(Math.max(1, bufferSize / PointWriter.RECORD_SIZE)
+                    * PointWriter.RECORD_SIZE);
+            fChan.position(pointFile.lineOffset(from));
+            buffer.limit(0);
+        }
+
+        /**
+         * Prebere in razpakira naslednji blok (verzija 2)
+         */
+        private void decodeBlock() throws IOException {
+            long offset = pointFile.blockOffsets[block];
+            buffer.clear();
+            buffer.limit((int) (pointFile.blockOffsets[block + 1] - offset));
+            while (buffer.hasRemaining()) {
+                if (fChan.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+            }
+            buffer.flip();
+            decoded = pointFile.decode(buffer, xs, ys, zs, is);
+            block++;
+        }
+
+        /**
+         * Premakne se na naslednjo tocko
+         * @return false, ce je datoteke (oz. obmocja) konec
+         */
+        boolean next() throws IOException {
+            if (remaining == 0) return false;
+            if (xs != null) {
+                if (next == decoded) {
+                    decodeBlock();
+                    next = 0;
+                }
+                x = xs[next];
+                y = ys[next];
+                z = zs[next];
+                i = is[next++];
+                a = primaryKey(x, y, layout);
+                b = pack(z, i);
+                remaining--;
+                return true;
+            }
+            if (buffer.remaining() < PointWriter.RECORD_SIZE) {
+                buffer.compact();
+                while (buffer.hasRemaining() && fChan.read(buffer) > 0) ;
+                buffer.flip();
+                if (buffer.remaining() < PointWriter.RECORD_SIZE) return false;
+            }
+            x = buffer.getFloat();
+            y = buffer.getFloat();
+            z = buffer.getFloat();
+            i = buffer.getShort();
+            a = primaryKey(x, y, layout);
+            b = pack(z, i);
+            remaining--;
+            return true;
+        }
+
+        @Override
+        public int compareTo(RunReader o) {
+            int cmp = Long.compareUnsigned(a, o.a);
+            if (cmp != 0) return cmp;
+            cmp = Long.compare(b >>> 32, o.b >>> 32);
+            if (cmp != 0) return cmp;
+            return Integer.compare(run, o.run);
+        }
+
+        @Override
+        public void close() throws IOException {
+            fChan.close();
+        }
+    }
+}
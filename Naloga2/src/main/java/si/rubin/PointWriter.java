@@ -0,0 +1,242 @@
+package si.rubin;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * PointWriter zapisuje tocke v binarno datoteko (@see si.rubin.PointFile).
+ * Tocke se zbirajo v direktnem bufferju stalne velikosti, ki se ob zapolnitvi
+ * izprazni v FileChannel, zato je poraba pomnilnika neodvisna od velikosti datoteke.
+ * Glava (in pri verziji 1 indeks blokov na koncu) se zapise sele ob zaprtju.
+ * Pri verziji 2 se tocke bloka zbirajo v tabelah in se ob koncu bloka stisnejo v buffer (@see si.rubin.BlockCodec).
+ * Tocke mu poda PointSorter neposredno med zdruzevanjem, urejena tekstovna datoteka in njena locena pretvorba
+ * v binarno se ne pisejo vec.
+ *
+ * Z drugim konstruktorjem lahko vec PointWriterjev hkrati pise v loceno obmocje iste datoteke,
+ * glavo pa zapise tisti, ki je datoteko odprl (@see #finish).
+ */
+public class PointWriter implements Closeable {
+    static final int RECORD_SIZE = PointFile.RECORD_SIZE;          // float|float|float|short
+    static final int HEADER_SIZE = PointFile.LEGACY_HEADER_SIZE;   // int with the number of points
+    static final int BUFFER_SIZE = 1 << 20;     // Default size of the write buffer (1MB)
+
+    private final FileChannel fChan;
+    private final ByteBuffer buffer;
+    private final boolean ownsFile;             // Whether close() writes the header and closes the channel
+    private final int blockPoints;              // Points in a block (0 = version 0 without blocks)
+    private final int layout;                   // Order of the points (@see si.rubin.PointFile)
+    private final PointFile.ZoneMap zones;      // Min/max values of the written blocks
+    private final boolean compressed;           // Blocks are packed by columns (version 2)
+    private float[] bx, by, bz;                 // Points of the current block (version 2)
+    private short[] bi;
+    private int blockSize;
+    private long[] blockOffsets;                // Where the written blocks start (version 2)
+    private int blocks;
+    private long position;                      // Where the next flush writes to
+    private long line;                          // Line of the next point inside the whole file
+    private int points;
+
+    /**
+     * Zapise datoteko verzije 0 (brez blokov), npr. za zacasne datoteke
+     */
+    public PointWriter(File file) throws IOException {
+        this(file, 0, PointFile.LAYOUT_XYZ);
+    }
+
+    /**
+     * @param file izhodna datoteka (ce obstaja, se prepise)
+     * @param blockPoints stevilo tock v bloku (0 za verzijo 0 brez blokov)
+     * @param layout vrstni red tock (PointFile.LAYOUT_XYZ ali PointFile.LAYOUT_HILBERT)
+     */
+    public PointWriter(File file, int blockPoints, int layout) throws IOException {
+        this(file, blockPoints, layout, false);
+    }
+
+    /**
+     * @param file izhodna datoteka (ce obstaja, se prepise)
+     * @param blockPoints stevilo tock v bloku (0 za verzijo 0 brez blokov)
+     * @param layout vrstni red tock (PointFile.LAYOUT_XYZ ali PointFile.LAYOUT_HILBERT)
+     * @param compressed ali se bloki stisnejo (verzija 2, potrebuje bloke)
+     */
+    public PointWriter(File file, int blockPoints, int layout, boolean compressed) throws IOException {
+        if (compressed && blockPoints <= 0) {
+            throw new IllegalArgumentException("A compressed file needs blocks");
+        }
+        fChan = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        buffer = ByteBuffer.allocateDirect(compressed ? Math.max(BUFFER_SIZE, BlockCodec.maxSize(blockPoints))
+                : BUFFER_SIZE / RECORD_SIZE * RECORD_SIZE);
+        ownsFile = true;
+        this.blockPoints = blockPoints;
+        this.layout = layout;
+        this.compressed = compressed;
+        if (compressed) {
+            bx = new float[blockPoints];
+            by = new float[blockPoints];
+            bz = new float[blockPoints];
+            bi = new short[blockPoints];
+            blockOffsets = new long[16];
+        }
+        zones = blockPoints > 0 ? new PointFile.ZoneMap(blockPoints, 0, layout) : null;
+        // Leave room for the header, it is patched in on close
+        position = headerSize(blockPoints);
+        line = 0;
+        points = 0;
+    }
+
+    /**
+     * Pise tocke od podane vrstice naprej v ze odprto datoteko (glave ne zapise)
+     * @param fChan odprta datoteka, v katero lahko hkrati pise vec PointWriterjev
+     * @param line stevilka vrstice, kjer se zacne obmocje tega PointWriterja
+     * @param bufferSize velikost bufferja v bytih (zaokrozi se na cele vrstice)
+     * @param blockPoints stevilo tock v bloku (0 za verzijo 0 brez blokov)
+     * @param layout vrstni red tock (PointFile.LAYOUT_XYZ ali PointFile.LAYOUT_HILBERT)
+     */
+    PointWriter(FileChannel fChan, long line, int bufferSize, int blockPoints, int layout) {
+        this.fChan = fChan;
+        buffer = ByteBuffer.allocateDirect(Math.max(1, bufferSize / RECORD_SIZE) * RECORD_SIZE);
+        ownsFile = false;
+        this.blockPoints = blockPoints;
+        this.layout = layout;
+        this.compressed = false;
+        zones = blockPoints > 0 ? new PointFile.ZoneMap(blockPoints, (int) (line / blockPoints), layout) : null;
+        position = headerSize(blockPoints) + line * RECORD_SIZE;
+        this.line = line;
+        points = 0;
+    }
+
+    /**
+     * Doda tocko na konec datoteke
+     */
+    public void write(float x, float y, float z, short i) throws IOException {
+        if (compressed) {
+            bx[blockSize] = x;
+            by[blockSize] = y;
+            bz[blockSize] = z;
+            bi[blockSize] = i;
+            zones.add(line, x, y, z, i);
+            line++;
+            points++;
+            if (++blockSize == blockPoints) writeBlock();
+            return;
+        }
+        if (buffer.remaining() < RECORD_SIZE) flush();
+        buffer.putFloat(x);
+        buffer.putFloat(y);
+        buffer.putFloat(z);
+        buffer.putShort(i);
+        if (zones != null) zones.add(line, x, y, z, i);
+        line++;
+        points++;
+    }
+
+    /**
+     * @return stevilo do sedaj zapisanih tock
+     */
+    public int getPoints() {
+        return points;
+    }
+
+    /**
+     * @return zemljevid blokov, ki jih je ta PointWriter zapisal (null za verzijo 0)
+     */
+    PointFile.ZoneMap getZones() {
+        return zones;
+    }
+
+    /**
+     * Stisne zbrane tocke bloka v buffer (verzija 2)
+     */
+    private void writeBlock() throws IOException {
+        if (buffer.remaining() < BlockCodec.maxSize(blockSize)) flush();
+        if (blocks == blockOffsets.length) blockOffsets = Arrays.copyOf(blockOffsets, blocks * 2);
+        blockOffsets[blocks++] = position + buffer.position();
+        BlockCodec.encode(bx, by, bz, bi, blockSize, buffer);
+        blockSize = 0;
+    }
+
+    /**
+     * Zapise vsebino bufferja v datoteko
+     */
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += fChan.write(buffer, position);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Izprazni buffer. Ce je PointWriter datoteko odprl, zapise se glavo (in indeks) ter jo zapre.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!ownsFile) {
+            flush();
+            return;
+        }
+        try {
+            if (compressed) {
+                if (blockSize > 0) writeBlock();
+                flush();
+                finishCompressed();
+                return;
+            }
+            flush();
+            finish(fChan, points, blockPoints, layout, zones == null ? null : Collections.singletonList(zones));
+        } finally {
+            fChan.close();
+        }
+    }
+
+    /**
+     * Zakljuci datoteko: pri verziji 0 zapise stevilo tock, pri verziji 1 pa za tockami
+     * zapise indeks blokov (zdruzen iz delnih zemljevidov) in glavo
+     * @param fChan datoteka, v katero so bile zapisane vse tocke
+     * @param points stevilo vseh tock
+     * @param blockPoints stevilo tock v bloku (0 za verzijo 0)
+     * @param layout vrstni red tock
+     * @param zones delni zemljevidi blokov posameznih PointWriterjev
+     */
+    static void finish(FileChannel fChan, int points, int blockPoints, int layout, List<PointFile.ZoneMap> zones)
+            throws IOException {
+        if (blockPoints <= 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(points);
+            header.flip();
+            PointFile.writeFully(fChan, header, 0);
+            return;
+        }
+        int blockCount = (int) ((points + (long) blockPoints - 1) / blockPoints);
+        PointFile.ZoneMap all = new PointFile.ZoneMap(blockPoints, 0, layout);
+        for (PointFile.ZoneMap part : zones) all.merge(part);
+        long indexOffset = PointFile.HEADER_SIZE + (long) points * RECORD_SIZE;
+        all.write(fChan, indexOffset, blockCount);
+        PointFile.writeHeader(fChan, PointFile.VERSION, points, blockPoints, blockCount, layout, indexOffset);
+    }
+
+    /**
+     * Zakljuci stisnjeno datoteko: za bloki zapise indeks blokov, njihove zacetke in glavo (verzija 2)
+     */
+    private void finishCompressed() throws IOException {
+        long indexOffset = position;
+        zones.write(fChan, indexOffset, blocks);
+        ByteBuffer offsets = ByteBuffer.allocate((blocks + 1) * Long.BYTES);
+        for (int b = 0; b < blocks; b++) offsets.putLong(blockOffsets[b]);
+        offsets.putLong(indexOffset);
+        offsets.flip();
+        PointFile.writeFully(fChan, offsets, indexOffset + PointFile.ZoneMap.size(blocks, layout));
+        PointFile.writeHeader(fChan, PointFile.COMPRESSED_VERSION, points, blockPoints, blocks, layout, indexOffset);
+    }
+
+    private static int headerSize(int blockPoints) {
+        return blockPoints > 0 ? PointFile.HEADER_SIZE : PointFile.LEGACY_HEADER_SIZE;
+    }
+}
@@ -0,0 +1,104 @@
+package si.rubin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bere kose datoteke vnaprej v loceni niti: ima stalno stevilo bufferjev (npr. M/B), ki jih nit za branje
+ * polni po vrsti, uporabnik pa jih prevzema z next(). Medtem ko se en kos filtrira, se naslednji ze bere.
+ * Buffer, ki ga vrne next(), je veljaven do naslednjega klica next().
+ */
+class PrefetchReader implements Closeable {
+    private static final Object END = new Object();
+
+    private final PointFile pointFile;
+    private final long[] chunks;                // Line intervals [chunks[2c], chunks[2c+1]) to read in this order
+    private final BlockingQueue<ByteBuffer> free;
+    private final BlockingQueue<Object> filled; // Read buffers, then END (or the IOException that stopped reading)
+    private final Thread reader;
+    private final Metrics metrics;              // Where the reads are counted (from the reading thread)
+    private ByteBuffer current;                 // The buffer the consumer holds
+    private volatile boolean closed;
+
+    /**
+     * @param pointFile datoteka s tockami (pri verziji 2 se preberejo stisnjeni bloki)
+     * @param chunks intervali vrstic, ki se preberejo (vsak naenkrat)
+     * @param buffers stevilo bufferjev (vsaj 2, da se branje in obdelava prekrivata)
+     * @param chunkLines najvecja dolzina intervala v vrsticah
+     * @param metrics meritve, v katere se zabelezi vsako branje
+     */
+    PrefetchReader(PointFile pointFile, long[] chunks, int buffers, int chunkLines, Metrics metrics) {
+        this.pointFile = pointFile;
+        this.chunks = chunks;
+        this.metrics = metrics;
+        free = new ArrayBlockingQueue<>(buffers);
+        filled = new ArrayBlockingQueue<>(buffers + 1);
+        for (int b = 0; b < buffers; b++) free.add(ByteBuffer.allocate(pointFile.bufferSize(chunkLines)));
+        reader = new Thread(this::readAll, "prefetch-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void readAll() {
+        try {
+            for (int c = 0; c < chunks.length; c += 2) {
+                ByteBuffer buffer = free.take();
+                if (closed) return;
+                long offset = pointFile.lineOffset(chunks[c]);
+                buffer.clear();
+                buffer.limit((int) (pointFile.lineOffset(chunks[c + 1]) - offset));
+                while (buffer.hasRemaining()) {
+                    if (pointFile.fChan.read(buffer, offset + buffer.position()) < 0) break;
+                }
+                metrics.read(offset, buffer.position());
+                buffer.flip();
+                filled.put(buffer);
+            }
+            filled.put(END);
+        } catch (IOException e) {
+            filled.offer(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Vrne naslednji prebran kos (prejsnji buffer se vrne niti za branje)
+     * @return buffer s tockami kosa ali null, ko so vsi kosi prebrani
+     */
+    ByteBuffer next() throws IOException {
+        if (current != null) {
+            free.add(current);
+            current = null;
+        }
+        Object next;
+        try {
+            next = filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a block", e);
+        }
+        if (next == END) {
+            filled.add(END);
+            return null;
+        }
+        if (next instanceof IOException) throw (IOException) next;
+        current = (ByteBuffer) next;
+        return current;
+    }
+
+    @Override
+    public void close() {
+        // The reader is not interrupted, that would close the (shared) FileChannel in the middle of a read
+        closed = true;
+        free.offer(ByteBuffer.allocate(0));
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package si.rubin;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Povzetek za kvantile v omejenem pomnilniku (KLL, Karnin, Lang, Liberty 2016).
+ * Vrednosti se zbirajo v kompaktorje po nivojih, vrednost na nivoju h predstavlja 2^h vrednosti.
+ * Ko je kompaktor poln, se uredi in vsaka druga vrednost (z nakljucnim zamikom) se premakne nivo visje.
+ * Kapaciteta nivoja h od H nivojev je k * (2/3)^(H-1-h), zato je vseh hranjenih vrednosti manj kot 3k
+ * (plus po 2 na nivo) ne glede na stevilo dodanih vrednosti.
+ * <p>
+ * Napaka ranga: pri k = 200 je rang vrnjenega kvantila za najvec ~1.7 % vseh vrednosti oddaljen od
+ * zahtevanega (z verjetnostjo 99 %, napaka pada priblizno kot 1/k). Najmanjsa in najvecja vrednost sta tocni.
+ * Povzetka z enakim k se lahko zdruzita (npr. iz vec niti) in imata enako napako, kot ce bi bile vse
+ * vrednosti dodane v en povzetek.
+ */
+class QuantileSketch {
+    static final int DEFAULT_K = 200;
+    private static final double C = 2. / 3;     // Capacity ratio between a level and the one above it
+    private static final long SEED = 20200401;
+
+    private final int k;
+    private float[][] levels;                   // Compactor h holds values of weight 2^h
+    private int[] sizes;
+    private int height;                         // Levels in use
+    private int retained;                       // Values held in all the levels
+    private int capacity;                       // Sum of the level capacities (compact when reached)
+    private long count;                         // How many values were added
+    private float min, max;
+    private final Random random = new Random(SEED);
+
+    QuantileSketch() {
+        this(DEFAULT_K);
+    }
+
+    QuantileSketch(int k) {
+        if (k < 8) throw new IllegalArgumentException("k has to be at least 8");
+        this.k = k;
+        levels = new float[4][];
+        sizes = new int[4];
+        min = Float.POSITIVE_INFINITY;
+        max = Float.NEGATIVE_INFINITY;
+        addLevel();
+    }
+
+    /**
+     * Doda vrednost v povzetek
+     */
+    void add(float value) {
+        if (value < min) min = value;
+        if (value > max) max = value;
+        count++;
+        append(0, value);
+        while (retained >= capacity) compress();
+    }
+
+    /**
+     * Doda vse vrednosti drugega povzetka (z enakim k)
+     */
+    void merge(QuantileSketch other) {
+        if (other.k != k) throw new IllegalArgumentException("Sketches with different k can not be merged");
+        if (other.count == 0) return;
+        if (other.min < min) min = other.min;
+        if (other.max > max) max = other.max;
+        count += other.count;
+        while (height < other.height) addLevel();
+        for (int h = 0; h < other.height; h++) {
+            for (int n = 0; n < other.sizes[h]; n++) append(h, other.levels[h][n]);
+        }
+        while (retained >= capacity) compress();
+    }
+
+    private void append(int level, float value) {
+        if (sizes[level] == levels[level].length) {
+            levels[level] = Arrays.copyOf(levels[level], Math.max(levels[level].length * 2, 2));
+        }
+        levels[level][sizes[level]++] = value;
+        retained++;
+    }
+
+    private int levelCapacity(int level) {
+        return (int) Math.ceil(k * Math.pow(C, height - 1 - level)) + 1;
+    }
+
+    private void addLevel() {
+        if (height == levels.length) {
+            levels = Arrays.copyOf(levels, height * 2);
+            sizes = Arrays.copyOf(sizes, height * 2);
+        }
+        levels[height] = new float[8];
+        height++;
+        // Adding a level on top lowers the capacity of all the levels below
+        capacity = 0;
+        for (int h = 0; h < height; h++) capacity += levelCapacity(h);
+    }
+
+    /**
+     * Zgosti najnizji poln nivo: uredi ga in polovico vrednosti premakne na naslednji nivo
+     */
+    private void compress() {
+        for (int h = 0; h < height; h++) {
+            if (sizes[h] < levelCapacity(h)) continue;
+            if (h + 1 == height) addLevel();
+            float[] level = levels[h];
+            int size = sizes[h];
+            Arrays.sort(level, 0, size);
+            // With an odd size the smallest value stays on this level
+            int from = size % 2, offset = random.nextBoolean() ? 1 : 0;
+            for (int n = from + offset; n < size; n += 2) append(h + 1, level[n]);
+            sizes[h] = from;
+            retained -= size;
+            retained += from;
+            return;
+        }
+    }
+
+    /**
+     * @param q delez vrednosti (0 = najmanjsa, 0.5 = mediana, 1 = najvecja)
+     * @return vrednost, pod katero je priblizno delez q vseh vrednosti (NaN, ce je povzetek prazen)
+     */
+    double quantile(double q) {
+        return quantiles(q)[0];
+    }
+
+    /**
+     * @return kvantili za vse podane deleze (vrednosti se uredijo le enkrat)
+     */
+    double[] quantiles(double... qs) {
+        double[] result = new double[qs.length];
+        if (count == 0) {
+            Arrays.fill(result, Double.NaN);
+            return result;
+        }
+        // All retained values with their weights, sorted by value
+        float[] values = new float[retained];
+        long[] weights = new long[retained];
+        int n = 0;
+        for (int h = 0; h < height; h++) {
+            for (int m = 0; m < sizes[h]; m++) {
+                values[n] = levels[h][m];
+                weights[n++] = 1L << h;
+            }
+        }
+        sortByValue(values, weights);
+        for (int p = 0; p < qs.length; p++) {
+            double q = qs[p];
+            if (q < 0 || q > 1) throw new IllegalArgumentException("The quantile has to be between 0 and 1");
+            if (q == 0) {
+                result[p] = min;
+            } else if (q == 1) {
+                result[p] = max;
+            } else {
+                // The first value whose cumulative weight reaches q of all the weight
+                double rank = q * count;
+                long cumulative = 0;
+                int m = 0;
+                while (m < n - 1 && (cumulative += weights[m]) < rank) m++;
+                result[p] = values[m];
+            }
+        }
+        return result;
+    }
+
+    private static void sortByValue(float[] values, long[] weights) {
+        Integer[] order = new Integer[values.length];
+        for (int n = 0; n < order.length; n++) order[n] = n;
+        Arrays.sort(order, (a, b) -> Float.compare(values[a], values[b]));
+        float[] sortedValues = new float[values.length];
+        long[] sortedWeights = new long[weights.length];
+        for (int n = 0; n < order.length; n++) {
+            sortedValues[n] = values[order[n]];
+            sortedWeights[n] = weights[order[n]];
+        }
+        System.arraycopy(sortedValues, 0, values, 0, values.length);
+        System.arraycopy(sortedWeights, 0, weights, 0, weights.length);
+    }
+
+    /**
+     * @return stevilo dodanih vrednosti
+     */
+    long count() {
+        return count;
+    }
+
+    /**
+     * @return poraba pomnilnika (v bytih) hranjenih vrednosti
+     */
+    long memory() {
+        long bytes = 0;
+        for (int h = 0; h < height; h++) bytes += levels[h].length * 4L;
+        return bytes;
+    }
+}
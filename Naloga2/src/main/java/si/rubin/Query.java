@@ -0,0 +1,73 @@
+package si.rubin;
+
+/**
+ * Poizvedba za statistiko: obmocje minX <= x < maxX, minY <= y < maxY, velikost kosa in spremenljivka (z ali i).
+ * Vrednosti tock znotraj obmocja se zbirajo v histogram poizvedbe.
+ */
+class Query {
+    final double minX, maxX, minY, maxY;
+    final int binSize;
+    final char target;
+    final Histogram histogram;
+    final RangeFilter filter;
+    long[] lines;                               // Line intervals [from, to) that have to be read (@see QueryEngine#batch)
+    final Metrics metrics = new Metrics();      // Reads and times of this query alone (@see si.rubin.Metrics)
+
+    Query(double minX, double maxX, double minY, double maxY, int binSize, char target) {
+        if (minX > maxX) throw new IllegalArgumentException("Min X bound is higher than Max X");
+        if (minY > maxY) throw new IllegalArgumentException("Min Y bound is higher than Max Y");
+        if (binSize <= 0) throw new IllegalArgumentException("The bin size has to be positive");
+        if (target != 'z' && target != 'i') throw new IllegalArgumentException("The target has to be z or i");
+        this.minX = minX;
+        this.maxX = maxX;
+        this.minY = minY;
+        this.maxY = maxY;
+        this.binSize = binSize;
+        this.target = target;
+        this.histogram = new Histogram(binSize);
+        this.filter = new RangeFilter(minX, maxX, minY, maxY);
+    }
+
+    /**
+     * Prebere poizvedbo iz vrstice oblike "minX maxX minY maxY velikost_kosa opcija"
+     */
+    static Query parse(String line) {
+        String[] parts = line.trim().split("\\s+");
+        if (parts.length != 6) throw new IllegalArgumentException("Expected: minX maxX minY maxY bin_size z|i");
+        return new Query(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]), Double.parseDouble(parts[2]),
+                Double.parseDouble(parts[3]), Integer.parseInt(parts[4]), parts[5].charAt(0));
+    }
+
+    /**
+     * @return enaka poizvedba s praznim histogramom (npr. za vsako nit posebej)
+     */
+    Query copy() {
+        Query copy = new Query(minX, maxX, minY, maxY, binSize, target);
+        if (histogram.quantiles() != null) copy.histogram.trackQuantiles();
+        return copy;
+    }
+
+    /**
+     * Ce je tocka znotraj obmocja, doda njeno vrednost v histogram.
+     * Podrazred, ki spremeni offer, mora spremeniti tudi offerAll.
+     */
+    void offer(float x, float y, float z, short i) {
+        if (x >= minX && x < maxX && y >= minY && y < maxY) {
+            histogram.add(target == 'i' ? i : z);
+        }
+    }
+
+    /**
+     * Ponudi prvih n tock iz tabel (@see si.rubin.RangeFilter). Izbrane vrednosti se zberejo na zacetek
+     * zs oz. is, zato se vsebina tabele spremenljivke prepise.
+     */
+    void offerAll(float[] xs, float[] ys, float[] zs, short[] is, int n) {
+        if (target == 'i') histogram.addAll(is, filter.select(xs, ys, is, n));
+        else histogram.addAll(zs, filter.select(xs, ys, zs, n));
+    }
+
+    @Override
+    public String toString() {
+        return minX + " " + maxX + " " + minY + " " + maxY + " " + binSize + " " + target;
+    }
+}
@@ -0,0 +1,945 @@
+package si.rubin;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Poizvedbe nad datoteko s tockami brez globalnega stanja (Statistics je le ukazna vrstica nad tem razredom).
+ * Ob odprtju se odprejo vsa ziva zaporedja podatkov (@see si.rubin.RunSet) z indeksi, poizvedbe pa se lahko
+ * izvajajo hkrati iz vec niti: datoteke se berejo s pozicijskim branjem, vsaka poizvedba ima svoje bufferje,
+ * histogram in meritve. Kako se zaporedja berejo (pomnilnik, vnaprejsnje branje, preslikava, piramida, niti),
+ * dolocajo Options.
+ * <pre>
+ * try (QueryEngine engine = new QueryEngine(new File("data.bin"), new QueryEngine.Options().memory(10))) {
+ *     QueryEngine.Result result = engine.query(new QueryEngine.Rect(minX, maxX, minY, maxY), 5, QueryEngine.Target.Z);
+ * }
+ * </pre>
+ * Zaporedja, dodana po odprtju, se vidijo sele v novem QueryEngine.
+ */
+public class QueryEngine implements Closeable {
+    private static final int SELECTED = 1024;   // Values selected at once straight from a buffer (mapped or prefetched)
+
+    private final String name;
+    private final Options options;
+    private final int linesInBlock;             // A line has been compressed to 14 bytes (3 floats + 1 short)
+    private final int blocks;                   // How many blocks fit into the memory (M/B)
+    private final List<Run> runs = new ArrayList<>();
+    private final Metrics metrics = new Metrics();  // All the queries of this engine
+    private volatile boolean closed;
+
+    /**
+     * @param dataFile datoteka s tockami (DataSort)
+     * @param blockSize velikost bloka v MB (koliko se prebere naenkrat, vsaka poizvedba ima tak buffer)
+     */
+    public QueryEngine(File dataFile, double blockSize) throws IOException {
+        this(dataFile, new Options().blockSize(blockSize));
+    }
+
+    /**
+     * @param dataFile datoteka s tockami (DataSort)
+     * @param options nacin branja (kopirajo se, kasnejse spremembe nimajo vpliva)
+     */
+    public QueryEngine(File dataFile, Options options) throws IOException {
+        name = dataFile.getPath();
+        this.options = new Options(options);
+        linesInBlock = Math.max(1, (int) Math.floor(options.blockSize / 0.000014));
+        blocks = (int) Math.floor(options.memory / options.blockSize);
+        try {
+            // Runs are opened under the manifest lock, so a compaction cannot delete them in between
+            runs.addAll(RunSet.open(dataFile, run -> new Run(run, this.options, metrics)));
+            // The missing indexes are built after the lock is released, the open files stay readable
+            if (options.buildIndex) {
+                for (Run run : runs) run.buildIndex();
+            }
+            if (options.grid && runs.get(0).grid == null) {
+                throw new IllegalArgumentException("There is no moment grid for " + name + " (run DataSort with -g)");
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                close();
+            } catch (IOException closing) {
+                e.addSuppressed(closing);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return statistika vrednosti target tock znotraj area (vrednosti v kosih velikosti binSize)
+     */
+    public Result query(Rect area, int binSize, Target target) throws IOException {
+        return query(area, binSize, target, false);
+    }
+
+    /**
+     * @param quantiles ali se vrednosti zbirajo tudi v povzetek za kvantile (@see Result#quantile, ne s piramido)
+     * @return statistika vrednosti target tock znotraj area (vrednosti v kosih velikosti binSize)
+     */
+    public Result query(Rect area, int binSize, Target target, boolean quantiles) throws IOException {
+        if (quantiles && options.grid) {
+            // The pyramid keeps the values of the covered cells counted in histograms, not in sketches
+            throw new IllegalArgumentException("The quantiles can not be taken from the moment grid (--grid)");
+        }
+        Query query = new Query(area.minX, area.maxX, area.minY, area.maxY, binSize, target.option);
+        if (quantiles) query.histogram.trackQuantiles();
+        Result result = finish(execute(query));
+        metrics.merge(query.metrics);
+        return result;
+    }
+
+    /**
+     * Vrednosti vseh zaporedij zbere v histogram poizvedbe (brez izracuna statistike)
+     * @return poizvedba (z meritvami branja in casa v query.metrics)
+     */
+    Query execute(Query query) throws IOException {
+        if (closed) throw new IllegalStateException(name + " is closed");
+        for (Run run : runs) scan(run, query);
+        return query;
+    }
+
+    /**
+     * @return intervali vrstic, ki bi jih poizvedba prebrala v vsakem zaporedju (@see #planLines)
+     */
+    long[][] plan(Query query) throws IOException {
+        long[][] lines = new long[runs.size()][];
+        for (int r = 0; r < runs.size(); r++) lines[r] = planLines(runs.get(r), query);
+        return lines;
+    }
+
+    /**
+     * Izvede vec poizvedb naenkrat. Za vsako poizvedbo se doloci, katere vrstice je treba prebrati, nato pa se
+     * unija teh vrstic prebere le enkrat in vsaka tocka ponudi vsem poizvedbam, ki pokrivajo prebrani del.
+     * Vrstice se berejo po vrsti (brez niti, preslikave, vnaprejsnjega branja in piramide).
+     * @return rezultati v vrstnem redu poizvedb
+     */
+    Batch batch(List<Query> queries) throws IOException {
+        if (closed) throw new IllegalStateException(name + " is closed");
+        Metrics total = new Metrics();
+        long separateReads = 0;
+        // Every run of the data is read once for all the queries
+        for (Run run : runs) {
+            PointFile pointFile = run.pointFile;
+            int chunkLines = chunkLines(pointFile);
+            // Plan every query and count how many reads it would need on its own
+            long start = System.nanoTime();
+            for (Query query : queries) {
+                long before = query.metrics.getReadCalls();
+                query.lines = planLines(run, query);
+                // Summed over the queries, a block that several queries need is still read once
+                countBlocks(pointFile, query.lines, total);
+                separateReads += query.metrics.getReadCalls() - before + countReads(query.lines, chunkLines);
+            }
+            total.time(Metrics.Phase.BOUND, System.nanoTime() - start);
+            start = System.nanoTime();
+            scanShared(pointFile, queries, chunkLines, total);
+            total.time(Metrics.Phase.SCAN, System.nanoTime() - start);
+        }
+        List<Result> results = new ArrayList<>();
+        for (Query query : queries) {
+            results.add(finish(query));
+            total.merge(query.metrics);
+        }
+        metrics.merge(total);
+        return new Batch(results, total, separateReads);
+    }
+
+    /**
+     * @return meritve vseh poizvedb tega objekta
+     */
+    public MetricsMBean metrics() {
+        return metrics;
+    }
+
+    /**
+     * @return stevilo tock v vseh zaporedjih
+     */
+    public long points() {
+        long points = 0;
+        for (Run run : runs) points += run.pointFile.points;
+        return points;
+    }
+
+    /**
+     * @return stevilo zivih zaporedij podatkov
+     */
+    public int runs() {
+        return runs.size();
+    }
+
+    /**
+     * @return ali je vsaj eno zaporedje preslikano v pomnilnik (stisnjena se ne preslikajo)
+     */
+    boolean mapped() {
+        for (Run run : runs) {
+            if (run.mapped != null) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Zapre datoteke (poizvedbe, ki se se izvajajo, se koncajo z napako)
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        IOException failed = null;
+        for (Run run : runs) {
+            try {
+                run.close();
+            } catch (IOException e) {
+                if (failed == null) failed = e;
+            }
+        }
+        if (failed != null) throw failed;
+    }
+
+    /**
+     * Iz histograma izracuna statistiko
+     */
+    private static Result finish(Query query) {
+        long start = System.nanoTime();
+        double[] moments = query.histogram.moments();
+        query.metrics.time(Metrics.Phase.MOMENTS, System.nanoTime() - start);
+        query.metrics.query();
+        return new Result(query, moments);
+    }
+
+    /**
+     * Vrednosti enega zaporedja doda v histogram poizvedbe. Zaporedje s piramido prebere le robne celice,
+     * preslikano se filtrira v pomnilniku, sicer se bere z vec nitmi, vnaprej (ce je v M prostor za vsaj dva
+     * bufferja) ali po en kos.
+     */
+    private void scan(Run run, Query query) throws IOException {
+        PointFile pointFile = run.pointFile;
+        int chunkLines = chunkLines(pointFile);
+        if (run.grid != null) {
+            scanGrid(run, query, chunkLines);
+            return;
+        }
+        if (run.mapped != null) {
+            scanMapped(run, query);
+            return;
+        }
+        // Every thread has its own buffer, so there are at most M/B of them
+        int threads = Math.max(1, Math.min(options.threads, blocks));
+        if (threads > 1) {
+            scanParallel(run, query, chunkLines, threads);
+            return;
+        }
+        // Compressed blocks also need a block of decoded lines (2 blocks worth of memory), a version 0 file
+        // without an index a block to search for the bounds
+        boolean compressed = pointFile.blockOffsets != null;
+        int buffers = blocks - (compressed ? 2 : 0) - (pointFile.version == 0 && run.fences == null ? 1 : 0);
+        if (options.prefetch && buffers >= 2) {
+            scanPrefetch(run, query, chunkLines, buffers);
+            return;
+        }
+        long[] chunks = planChunks(run, query, chunkLines);
+        long start = System.nanoTime();
+        scanChunks(pointFile, query, chunks, new AtomicInteger(), chunkLines);
+        query.metrics.time(Metrics.Phase.SCAN, System.nanoTime() - start);
+    }
+
+    /**
+     * Doloci vrstice, ki jih mora prebrati poizvedba (@see #planLines), in jih razdeli na kose po najvec
+     * chunkLines vrstic
+     * @return kosi [chunks[2c], chunks[2c+1]) v vrstnem redu datoteke
+     */
+    private long[] planChunks(Run run, Query query, int chunkLines) throws IOException {
+        long start = System.nanoTime();
+        long[] lines = planLines(run, query);
+        countBlocks(run.pointFile, lines, query.metrics);
+        query.metrics.time(Metrics.Phase.BOUND, System.nanoTime() - start);
+        return splitChunks(lines, chunkLines);
+    }
+
+    /**
+     * Doloci intervale vrstic [od, do), ki jih mora poizvedba prebrati: pri datotekah z bloki bloke, ki jih dopusca
+     * indeks (in Hilbertova krivulja), pri verziji 0 pa vrstice med mejama X (z redkim indeksom ali binarnim
+     * iskanjem po datoteki)
+     * @return urejeni intervali kot pari v tabeli
+     */
+    private long[] planLines(Run run, Query q) throws IOException {
+        PointFile pointFile = run.pointFile;
+        FenceIndex fences = run.fences;
+        if (pointFile.version == 0) {
+            long from, to;
+            if (fences != null) {
+                // Whole fences, the points outside the X bounds are filtered out later
+                int first = Math.max(0, fences.lastFenceBelow(q.minX));
+                int last = fences.lastFenceBelow(q.maxX);
+                if (last < first) return new long[0];
+                from = fences.fenceLine(first);
+                to = fences.fenceLine(last) + fences.fenceSize(last);
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocate(pointFile.bufferSize(linesInBlock));
+                from = findBound(pointFile, buffer, q.minX, 0, q.metrics);
+                to = findBound(pointFile, buffer, q.maxX, from, q.metrics);
+            }
+            return to > from ? new long[]{from, to} : new long[0];
+        }
+        PointFile.ZoneMap zones = pointFile.zones;
+        int firstBlock = 0, lastBlock = pointFile.blockCount;
+        if (pointFile.layout == PointFile.LAYOUT_XYZ && fences != null && fences.fencePoints == pointFile.blockPoints) {
+            // Only the blocks between the X bounds can hold points of the area
+            firstBlock = Math.max(0, fences.lastFenceBelow(q.minX));
+            lastBlock = Math.max(firstBlock, fences.lastFenceBelow(q.maxX) + 1);
+        }
+        boolean[] wanted = pointFile.layout == PointFile.LAYOUT_HILBERT
+                ? curveBlocks(zones, q.minX, q.maxX, q.minY, q.maxY) : null;
+        long[] lines = new long[16];
+        int n = 0;
+        for (int b = firstBlock; b < lastBlock; b++) {
+            if ((wanted != null && !wanted[b]) || !zones.mayContain(b, q.minX, q.maxX, q.minY, q.maxY)) continue;
+            long from = (long) b * pointFile.blockPoints;
+            if (n > 0 && lines[n - 1] == from) {
+                lines[n - 1] += pointFile.blockSize(b);
+            } else {
+                if (n == lines.length) lines = Arrays.copyOf(lines, n * 2);
+                lines[n++] = from;
+                lines[n++] = from + pointFile.blockSize(b);
+            }
+        }
+        return Arrays.copyOf(lines, n);
+    }
+
+    /**
+     * Binarno iskanje prve vrstice, kjer je X >= x, po datoteki verzije 0 brez indeksa. Vsak korak prebere
+     * buffer vrstic okoli sredine, iskanje se konca, ko je meja znotraj prebranih vrstic.
+     * @param buffer buffer za branje (doloca, koliko vrstic se prebere naenkrat)
+     * @param lo vrstica, pred katero so vsi X manjsi od x (npr. ze najdena spodnja meja)
+     */
+    private static long findBound(PointFile pointFile, ByteBuffer buffer, double x, long lo, Metrics metrics)
+            throws IOException {
+        int lines = buffer.capacity() / PointFile.RECORD_SIZE;
+        long hi = pointFile.points;             // The line is in [lo, hi]
+        while (lo < hi) {
+            long from = hi - lo <= lines ? lo : ((lo + hi) >>> 1) - lines / 2;
+            long to = Math.min(hi, from + lines);
+            int n = (int) (to - from);
+            read(pointFile, buffer, from, to, metrics);
+            if (buffer.limit() < n * PointFile.RECORD_SIZE) throw new IOException("Unexpected end of file");
+            if (buffer.getFloat(0) >= x) {
+                if (from == lo) return lo;
+                hi = from;
+            } else if (buffer.getFloat((n - 1) * PointFile.RECORD_SIZE) < x) {
+                lo = to;
+            } else {
+                int k = 1;
+                while (buffer.getFloat(k * PointFile.RECORD_SIZE) < x) k++;
+                return from + k;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Razdeli obmocje na intervale Hilbertove krivulje in oznaci bloke, ki jih ti intervali prekrivajo.
+     * Blok b vsebuje indekse od minCode[b] do minCode[b+1].
+     * @param zones indeks vseh blokov datoteke z razporeditvijo PointFile.LAYOUT_HILBERT
+     * @return za vsak blok, ali ga moramo prebrati
+     */
+    private static boolean[] curveBlocks(PointFile.ZoneMap zones, double minX, double maxX, double minY,
+                                         double maxY) {
+        long[] starts = zones.minCode;
+        int blocks = zones.blocks;
+        boolean[] wanted = new boolean[blocks];
+        long[] intervals = HilbertCurve.decompose(minX, maxX, minY, maxY, HilbertCurve.MAX_INTERVALS);
+        for (int k = 0; k < intervals.length; k += 2) {
+            // The last block that starts before (or at) each end of the interval
+            int first = Math.max(0, lastBlockStartingBefore(starts, blocks, intervals[k]));
+            int last = lastBlockStartingBefore(starts, blocks, intervals[k + 1]);
+            for (int b = first; b <= last; b++) wanted[b] = true;
+        }
+        return wanted;
+    }
+
+    /**
+     * Binarno iskanje zadnjega bloka, katerega prvi indeks ni vecji od code (-1, ce takega ni)
+     */
+    private static int lastBlockStartingBefore(long[] starts, int blocks, long code) {
+        int lo = 0, hi = blocks;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Long.compareUnsigned(starts[mid], code) <= 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo - 1;
+    }
+
+    /**
+     * Zabelezi, koliko blokov bodo intervali vrstic prebrali in koliko jih je izlocenih (pri datotekah z bloki)
+     */
+    private static void countBlocks(PointFile pointFile, long[] lines, Metrics metrics) {
+        if (pointFile.version == 0) return;
+        long scanned = 0;
+        for (int k = 0; k < lines.length; k += 2) {
+            scanned += (lines[k + 1] - lines[k] + pointFile.blockPoints - 1) / pointFile.blockPoints;
+        }
+        metrics.blocks(scanned, pointFile.blockCount - scanned);
+    }
+
+    /**
+     * Razdeli intervale vrstic na kose, ki gredo v buffer s chunkLines vrsticami
+     */
+    private static long[] splitChunks(long[] lines, int chunkLines) {
+        long[] chunks = new long[countReads(lines, chunkLines) * 2];
+        int c = 0;
+        for (int k = 0; k < lines.length; k += 2) {
+            for (long line = lines[k]; line < lines[k + 1]; line += chunkLines) {
+                chunks[c++] = line;
+                chunks[c++] = Math.min(lines[k + 1], line + chunkLines);
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * @return stevilo branj za podane intervale vrstic, ce beremo po chunkLines vrstic naenkrat
+     */
+    private static int countReads(long[] lines, int chunkLines) {
+        int reads = 0;
+        for (int k = 0; k < lines.length; k += 2) {
+            reads += (int) ((lines[k + 1] - lines[k] + chunkLines - 1) / chunkLines);
+        }
+        return reads;
+    }
+
+    /**
+     * @return koliko vrstic se prebere naenkrat: najvec B, pri verziji 1 pa cim vec celih blokov
+     * (pri verziji 2 vsaj en blok, ker se stisnjen blok ne da brati po delih)
+     */
+    private int chunkLines(PointFile pointFile) {
+        if (pointFile.blockOffsets != null) {
+            return Math.max(1, linesInBlock / pointFile.blockPoints) * pointFile.blockPoints;
+        }
+        if (pointFile.version > 0 && linesInBlock >= pointFile.blockPoints) {
+            return linesInBlock / pointFile.blockPoints * pointFile.blockPoints;
+        }
+        return linesInBlock;
+    }
+
+    /**
+     * Prebere vrstice [fromLine, toLine) v buffer (pri verziji 2 cele stisnjene bloke)
+     * @return buffer, pripravljen za PointFile.decode
+     */
+    private static ByteBuffer read(PointFile pointFile, ByteBuffer buffer, long fromLine, long toLine,
+                                   Metrics metrics) throws IOException {
+        long offset = pointFile.lineOffset(fromLine);
+        buffer.clear();
+        buffer.limit((int) (pointFile.lineOffset(toLine) - offset));
+        while (buffer.hasRemaining()) {
+            if (pointFile.fChan.read(buffer, offset + buffer.position()) < 0) break;
+        }
+        metrics.read(offset, buffer.position());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Jemlje kose [chunks[2c], chunks[2c+1]), jih prebere v svoj buffer in tocke ponudi poizvedbi
+     * @param next stevec naslednjega kosa (pri vzporednem branju skupen vsem nitim)
+     * @return poizvedba s histogramom in stevilom branj
+     */
+    private static Query scanChunks(PointFile pointFile, Query query, long[] chunks, AtomicInteger next,
+                                    int chunkLines) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(pointFile.bufferSize(chunkLines));
+        float[] xs = new float[chunkLines], ys = new float[chunkLines], zs = new float[chunkLines];
+        short[] is = new short[chunkLines];
+        for (int c = next.getAndIncrement(); c * 2 < chunks.length; c = next.getAndIncrement()) {
+            read(pointFile, buffer, chunks[2 * c], chunks[2 * c + 1], query.metrics);
+            query.offerAll(xs, ys, zs, is, pointFile.decode(buffer, xs, ys, zs, is));
+        }
+        return query;
+    }
+
+    /**
+     * Vzporedno branje: kose si niti jemljejo po vrsti, vsaka nit ima svoj buffer in svoj histogram,
+     * histogrami pa se na koncu zdruzijo (rezultat je enak kot pri zaporednem branju)
+     */
+    private void scanParallel(Run run, Query query, int chunkLines, int threads) throws IOException {
+        long[] chunks = planChunks(run, query, chunkLines);
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        AtomicInteger next = new AtomicInteger();
+        try {
+            List<Future<Query>> parts = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                parts.add(pool.submit(() -> scanChunks(run.pointFile, query.copy(), chunks, next, chunkLines)));
+            }
+            for (Future<Query> part : parts) {
+                Query done = part.get();
+                long merge = System.nanoTime();
+                query.histogram.merge(done.histogram);
+                query.metrics.time(Metrics.Phase.HISTOGRAM, System.nanoTime() - merge);
+                query.metrics.merge(done.metrics);
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Parallel scan failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scanning " + name, e);
+        } finally {
+            pool.shutdownNow();
+        }
+        query.metrics.time(Metrics.Phase.SCAN, System.nanoTime() - start);
+    }
+
+    /**
+     * Branje z vnaprejsnjim branjem: bufferje polni loceno nit (@see si.rubin.PrefetchReader),
+     * medtem ko se v tej niti filtrira ze prebrani kos
+     * @param buffers stevilo bufferjev
+     */
+    private void scanPrefetch(Run run, Query query, int chunkLines, int buffers) throws IOException {
+        PointFile pointFile = run.pointFile;
+        long[] chunks = planChunks(run, query, chunkLines);
+        long start = System.nanoTime();
+        // Compressed blocks are decoded into a block of lines, raw points are filtered straight from the buffer
+        int lines = pointFile.blockOffsets != null ? chunkLines : 0;
+        float[] xs = new float[lines], ys = new float[lines], zs = new float[lines];
+        short[] is = new short[lines];
+        float[] selectedZ = new float[SELECTED];
+        short[] selectedI = new short[SELECTED];
+        try (PrefetchReader reader = new PrefetchReader(pointFile, chunks, buffers, chunkLines, query.metrics)) {
+            for (ByteBuffer buffer = reader.next(); buffer != null; buffer = reader.next()) {
+                if (lines > 0) {
+                    query.offerAll(xs, ys, zs, is, pointFile.decode(buffer, xs, ys, zs, is));
+                    continue;
+                }
+                for (int offset = 0; offset < buffer.limit(); offset += SELECTED * PointFile.RECORD_SIZE) {
+                    int records = Math.min(SELECTED, (buffer.limit() - offset) / PointFile.RECORD_SIZE);
+                    selectFrom(buffer, offset, records, query, selectedZ, selectedI);
+                }
+            }
+        }
+        query.metrics.time(Metrics.Phase.SCAN, System.nanoTime() - start);
+    }
+
+    /**
+     * Branje preslikanega zaporedja: meje in tocke se iscejo neposredno v preslikanem pomnilniku
+     * (@see MappedScan, vsaka dostopana stran se steje kot branje)
+     */
+    private void scanMapped(Run run, Query query) throws IOException {
+        MappedScan scan = new MappedScan(run.mapped, query);
+        long start = System.nanoTime();
+        long[] lines;
+        if (run.pointFile.version == 0) {
+            long from = scan.findBound(run.fences, query.minX);
+            long to = scan.findBound(run.fences, query.maxX);
+            lines = to > from ? new long[]{from, to} : new long[0];
+        } else {
+            lines = planLines(run, query);
+            countBlocks(run.pointFile, lines, query.metrics);
+        }
+        long planned = System.nanoTime();
+        query.metrics.time(Metrics.Phase.BOUND, planned - start);
+        for (int k = 0; k < lines.length; k += 2) scan.filter(lines[k], lines[k + 1]);
+        query.metrics.time(Metrics.Phase.SCAN, System.nanoTime() - planned);
+    }
+
+    /**
+     * Branje s piramido: celice, ki so v celoti znotraj obmocja, iz povzetkov, tocke robnih celic pa iz piramide
+     * (datoteka s tockami se ne bere)
+     */
+    private void scanGrid(Run run, Query query, int chunkLines) throws IOException {
+        long start = System.nanoTime();
+        run.grid.query(query, chunkLines);
+        query.metrics.time(Metrics.Phase.SCAN, System.nanoTime() - start);
+    }
+
+    /**
+     * Prebere unijo intervalov vseh poizvedb (vsak del enkrat) in vsako tocko ponudi poizvedbam,
+     * katerih intervali pokrivajo prebrani del
+     */
+    private static void scanShared(PointFile pointFile, List<Query> queries, int chunkLines, Metrics metrics)
+            throws IOException {
+        // Union of all the line intervals
+        List<long[]> all = new ArrayList<>();
+        for (Query query : queries) {
+            for (int k = 0; k < query.lines.length; k += 2) all.add(new long[]{query.lines[k], query.lines[k + 1]});
+        }
+        all.sort((r1, r2) -> Long.compare(r1[0], r2[0]));
+        List<long[]> union = new ArrayList<>();
+        for (long[] r : all) {
+            long[] last = union.isEmpty() ? null : union.get(union.size() - 1);
+            if (last != null && r[0] <= last[1]) last[1] = Math.max(last[1], r[1]);
+            else union.add(r.clone());
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(pointFile.bufferSize(chunkLines));
+        float[] xs = new float[chunkLines], ys = new float[chunkLines], zs = new float[chunkLines];
+        short[] is = new short[chunkLines];
+        int[] cursors = new int[queries.size()];     // First interval of each query that is not behind us
+        List<Query> active = new ArrayList<>();
+        // Values of one query (zs and is are shared by all of them)
+        float[] selectedZ = new float[chunkLines];
+        short[] selectedI = new short[chunkLines];
+        for (long[] r : union) {
+            for (long line = r[0]; line < r[1]; ) {
+                long end = Math.min(r[1], line + chunkLines);
+                // Queries with an interval that overlaps [line, end)
+                active.clear();
+                for (int q = 0; q < queries.size(); q++) {
+                    long[] lines = queries.get(q).lines;
+                    while (cursors[q] < lines.length && lines[cursors[q] + 1] <= line) cursors[q] += 2;
+                    if (cursors[q] < lines.length && lines[cursors[q]] < end) active.add(queries.get(q));
+                }
+                int n = pointFile.decode(read(pointFile, buffer, line, end, metrics), xs, ys, zs, is);
+                for (Query query : active) {
+                    if (query.target == 'i') {
+                        System.arraycopy(is, 0, selectedI, 0, n);
+                        query.histogram.addAll(selectedI, query.filter.select(xs, ys, selectedI, n));
+                    } else {
+                        System.arraycopy(zs, 0, selectedZ, 0, n);
+                        query.histogram.addAll(selectedZ, query.filter.select(xs, ys, selectedZ, n));
+                    }
+                }
+                line = end;
+            }
+        }
+    }
+
+    /**
+     * Doda v histogram poizvedbe vrednosti tistih izmed records zapisov v bufferju (od odmika offset),
+     * ki so znotraj obmocja (najvec SELECTED zapisov)
+     */
+    private static void selectFrom(ByteBuffer buffer, int offset, int records, Query query, float[] selectedZ,
+                                   short[] selectedI) {
+        RangeFilter filter = query.filter;
+        if (query.target == 'i') query.histogram.addAll(selectedI, filter.select(buffer, offset, records, selectedI));
+        else query.histogram.addAll(selectedZ, filter.select(buffer, offset, records, selectedZ));
+    }
+
+    /**
+     * Nacin branja zaporedij. Privzeto se bere po en blok velikosti 1 MB, z vec pomnilnika (M) pa se bere
+     * vnaprej v M/B bufferjev oz. z najvec M/B nitmi.
+     */
+    public static final class Options {
+        double memory = 1;                      // M in MB
+        double blockSize = 1;                   // B in MB
+        boolean prefetch = true;
+        boolean buildIndex = true;
+        boolean mmap;
+        boolean grid;
+        int threads = 1;
+
+        public Options() {
+        }
+
+        private Options(Options other) {
+            memory = other.memory;
+            blockSize = other.blockSize;
+            prefetch = other.prefetch;
+            buildIndex = other.buildIndex;
+            mmap = other.mmap;
+            grid = other.grid;
+            threads = other.threads;
+        }
+
+        /**
+         * @param memory velikost pomnilnika v MB (koliko bufferjev velikosti B ima lahko poizvedba)
+         */
+        public Options memory(double memory) {
+            if (!(memory > 0)) throw new IllegalArgumentException("The memory size has to be positive");
+            this.memory = memory;
+            return this;
+        }
+
+        /**
+         * @param blockSize velikost bloka v MB (koliko se prebere naenkrat)
+         */
+        public Options blockSize(double blockSize) {
+            if (!(blockSize > 0)) throw new IllegalArgumentException("The block size has to be positive");
+            this.blockSize = blockSize;
+            return this;
+        }
+
+        /**
+         * @param prefetch ali se bere vnaprej v loceni niti, ce sta v M vsaj dva bufferja
+         * (@see si.rubin.PrefetchReader)
+         */
+        public Options prefetch(boolean prefetch) {
+            this.prefetch = prefetch;
+            return this;
+        }
+
+        /**
+         * @param buildIndex ali se zaporedju verzije 0 brez redkega indeksa ob odprtju zgradi indeks v pomnilniku
+         * (prebere se celo zaporedje, poizvedbe pa potem ne iscejo meja po datoteki)
+         */
+        public Options buildIndex(boolean buildIndex) {
+            this.buildIndex = buildIndex;
+            return this;
+        }
+
+        /**
+         * @param mmap ali se nestisnjena zaporedja preslikajo v pomnilnik in filtrirajo neposredno v njem
+         */
+        public Options mmap(boolean mmap) {
+            this.mmap = mmap;
+            return this;
+        }
+
+        /**
+         * @param grid ali se celice, ki so v celoti znotraj obmocja, vzamejo iz piramide (DataSort -g)
+         */
+        public Options grid(boolean grid) {
+            this.grid = grid;
+            return this;
+        }
+
+        /**
+         * @param threads stevilo niti za branje enega zaporedja (najvec M/B, ne s preslikavo ali piramido)
+         */
+        public Options threads(int threads) {
+            if (threads < 1) throw new IllegalArgumentException("The number of threads has to be positive");
+            this.threads = threads;
+            return this;
+        }
+    }
+
+    /**
+     * Spremenljivka, nad katero se racuna statistika
+     */
+    public enum Target {
+        Z('z'), I('i');
+
+        final char option;
+
+        Target(char option) {
+            this.option = option;
+        }
+
+        /**
+         * @return spremenljivka za opcijo z ali i (kot v argumentih Statistics)
+         */
+        public static Target of(char option) {
+            for (Target target : values()) {
+                if (target.option == Character.toLowerCase(option)) return target;
+            }
+            throw new IllegalArgumentException("The target has to be z or i");
+        }
+    }
+
+    /**
+     * Obmocje minX <= x < maxX, minY <= y < maxY
+     */
+    public static final class Rect {
+        public final double minX, maxX, minY, maxY;
+
+        public Rect(double minX, double maxX, double minY, double maxY) {
+            if (minX > maxX) throw new IllegalArgumentException("Min X bound is higher than Max X");
+            if (minY > maxY) throw new IllegalArgumentException("Min Y bound is higher than Max Y");
+            this.minX = minX;
+            this.maxX = maxX;
+            this.minY = minY;
+            this.maxY = maxY;
+        }
+
+        @Override
+        public String toString() {
+            return minX + " " + maxX + " " + minY + " " + maxY;
+        }
+    }
+
+    /**
+     * Rezultat poizvedbe: stevilo tock, stevilo kosov in momenti histograma (kot jih izpise Statistics)
+     */
+    public static final class Result {
+        public final int points;
+        public final int bins;
+        public final double average, deviation, skewness, kurtosis;
+        private final QuantileSketch quantiles;
+        final Metrics metrics;
+
+        private Result(Query query, double[] moments) {
+            points = query.histogram.size();
+            bins = query.histogram.bins();
+            average = moments[0];
+            deviation = moments[1];
+            skewness = moments[2];
+            kurtosis = moments[3];
+            quantiles = query.histogram.quantiles();
+            metrics = query.metrics;
+        }
+
+        /**
+         * @param q delez vrednosti (0.5 = mediana)
+         * @return priblizni kvantil vrednosti (@see si.rubin.QuantileSketch)
+         */
+        public double quantile(double q) {
+            return quantiles(q)[0];
+        }
+
+        /**
+         * @return priblizni kvantili za vse podane deleze (vrednosti se uredijo le enkrat)
+         */
+        public double[] quantiles(double... qs) {
+            if (quantiles == null) throw new IllegalStateException("The query did not track quantiles");
+            return quantiles.quantiles(qs);
+        }
+
+        /**
+         * @return branja in casi te poizvedbe
+         */
+        public MetricsMBean metrics() {
+            return metrics;
+        }
+
+        @Override
+        public String toString() {
+            return points + "\t" + bins + String.format("\t%.3f\t%.3f\t%.3f\t%.3f", average, deviation, skewness,
+                    kurtosis);
+        }
+    }
+
+    /**
+     * Rezultati vec poizvedb, prebranih skupaj (@see #batch)
+     */
+    static final class Batch {
+        final List<Result> results;
+        final Metrics metrics;                  // Reads of the whole batch and times of all its queries
+        final long separateReads;               // Reads the queries would need one by one
+
+        private Batch(List<Result> results, Metrics metrics, long separateReads) {
+            this.results = results;
+            this.metrics = metrics;
+            this.separateReads = separateReads;
+        }
+    }
+
+    /**
+     * Odprto zaporedje podatkov z redkim indeksom, piramido in preslikavo (zadnji dve le, ce ju izbirajo Options)
+     */
+    private static final class Run implements Closeable {
+        final PointFile pointFile;
+        FenceIndex fences;                      // null if missing and not built (version 0 is then searched)
+        final MappedPoints mapped;              // null without Options.mmap or for compressed blocks
+        final MomentGrid grid;                  // null without Options.grid or if the run has none
+
+        /**
+         * @param metrics kamor se steje branje glave piramide
+         */
+        Run(File file, Options options, Metrics metrics) throws IOException {
+            pointFile = PointFile.open(file);
+            try {
+                fences = FenceIndex.read(file, pointFile);
+                mapped = options.mmap && pointFile.blockOffsets == null ? new MappedPoints(pointFile) : null;
+                grid = options.grid ? MomentGrid.read(file, pointFile, metrics) : null;
+            } catch (IOException | RuntimeException e) {
+                pointFile.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Zgradi redki indeks v pomnilniku, ce ga verzija 0 nima
+         */
+        void buildIndex() throws IOException {
+            if (fences == null && pointFile.version == 0) {
+                fences = FenceIndex.build(pointFile, PointFile.DEFAULT_BLOCK_POINTS);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (grid != null) grid.close();
+            } finally {
+                pointFile.close();
+            }
+        }
+    }
+
+    /**
+     * Ena poizvedba nad preslikanim zaporedjem: vrednosti se izbirajo neposredno iz preslikanega pomnilnika,
+     * vsaka stran, ki se je dotaknemo, pa se steje kot eno branje (zaporedoma le enkrat)
+     */
+    private static final class MappedScan {
+        private final MappedPoints mapped;
+        private final Query query;
+        private final float[] selectedZ = new float[SELECTED];
+        private final short[] selectedI = new short[SELECTED];
+        // Pages touched so far as intervals first -> last, so that every page is counted once, also when the
+        // bound searches and the filter touch the same pages in a different order
+        private final TreeMap<Long, Long> touched = new TreeMap<>();
+
+        MappedScan(MappedPoints mapped, Query query) {
+            this.mapped = mapped;
+            this.query = query;
+        }
+
+        /**
+         * Binarno iskanje prve vrstice, kjer je X >= x (vsak korak se steje kot dostop do ene strani).
+         * Z indeksom se isce le med dvema mejama.
+         */
+        long findBound(FenceIndex fences, double x) {
+            long lo = 0, hi = mapped.lines;
+            if (fences != null) {
+                int k = fences.lastFenceBelow(x);
+                if (k < 0) return 0;
+                lo = fences.fenceLine(k);
+                hi = lo + fences.fenceSize(k);
+            }
+            while (lo < hi) {
+                long mid = (lo + hi) >>> 1;
+                touch(mid, mid + 1);
+                if (mapped.x(mid) < x) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        /**
+         * V histogram poizvedbe doda vrednosti vrstic [fromLine, toLine), ki so znotraj obmocja
+         */
+        void filter(long fromLine, long toLine) {
+            touch(fromLine, toLine);
+            long line = fromLine;
+            while (line < toLine) {
+                // Lines of a single segment
+                long segmentEnd = Math.min(toLine, (line / MappedPoints.SEGMENT_LINES + 1) * MappedPoints.SEGMENT_LINES);
+                ByteBuffer segment = mapped.segment(line);
+                for (long from = line; from < segmentEnd; from += SELECTED) {
+                    int records = (int) Math.min(SELECTED, segmentEnd - from);
+                    selectFrom(segment, MappedPoints.offset(from), records, query, selectedZ, selectedI);
+                }
+                line = segmentEnd;
+            }
+        }
+
+        /**
+         * Presteje strani, ki jih pokrivajo vrstice [fromLine, toLine) (strani, ki smo jih ze steli, se ne stejejo
+         * ponovno)
+         */
+        private void touch(long fromLine, long toLine) {
+            long first = mapped.page(fromLine);
+            long last = (mapped.pointFile.lineOffset(toLine) - 1) / MappedPoints.PAGE_SIZE;
+            if (last < first) return;
+            long fresh = last - first + 1, from = first, to = last;
+            // Join the intervals that overlap or touch [first, last] into one
+            Map.Entry<Long, Long> entry = touched.floorEntry(first);
+            if (entry == null || entry.getValue() < first - 1) entry = touched.ceilingEntry(first);
+            while (entry != null && entry.getKey() <= last + 1) {
+                fresh -= Math.max(0, Math.min(entry.getValue(), last) - Math.max(entry.getKey(), first) + 1);
+                from = Math.min(from, entry.getKey());
+                to = Math.max(to, entry.getValue());
+                touched.remove(entry.getKey());
+                entry = touched.higherEntry(entry.getKey());
+            }
+            touched.put(from, to);
+            if (fresh > 0) query.metrics.pages(fresh, MappedPoints.PAGE_SIZE);
+        }
+    }
+}
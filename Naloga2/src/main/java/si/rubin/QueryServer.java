@@ -0,0 +1,222 @@
+package si.rubin;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Streznik za poizvedbe statistike: datoteke s tockami (in njihove indekse) odpre enkrat in jih drzi
+ * odprte (@see si.rubin.QueryEngine), poizvedbe pa sprejema po vrsticah na standardnem vhodu ali na
+ * lokalnih vratih (--port).
+ * Rezultati se hranijo v LRU predpomnilniku, kljuc je (datoteka, obmocje, velikost kosa, opcija).
+ * Meritve izracunanih poizvedb (@see si.rubin.Metrics) so tudi MBean si.rubin:type=Metrics,name=QueryServer.
+ * <pre>
+ * &lt;datoteka&gt; &lt;minX&gt; &lt;maxX&gt; &lt;minY&gt; &lt;maxY&gt; &lt;velikost_kosa&gt; &lt;opcija&gt;  - poizvedba
+ * stats                                                      - zakasnitve (p50, p99) za zadetke in nove poizvedbe
+ * metrics                                                    - skupne meritve novih poizvedb kot vrstica JSON
+ * quit                                                       - konec (pri vratih zapre le povezavo)
+ * </pre>
+ */
+public class QueryServer {
+    private static final int DEFAULT_CACHE_SIZE = 1024;
+    private static final int LATENCY_SAMPLES = 1 << 16;     // Latencies of the last queries that are kept
+
+    private final Map<String, QueryEngine> files = new LinkedHashMap<>();
+    private final Map<String, String> cache;
+    private final double blockSize;
+    private final Latencies hits = new Latencies();
+    private final Latencies misses = new Latencies();
+    private final Metrics metrics = new Metrics();
+
+    /**
+     * @param blockSize velikost bloka v MB (koliko se prebere naenkrat)
+     * @param cacheSize najvecje stevilo rezultatov v predpomnilniku (0 brez predpomnilnika)
+     */
+    QueryServer(double blockSize, int cacheSize) {
+        this.blockSize = blockSize;
+        cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        Metrics.register(metrics, "QueryServer");
+    }
+
+    public static void main(String[] args) {
+        int cacheSize = DEFAULT_CACHE_SIZE;
+        int port = -1;
+        int a = 0;
+        for (; a < args.length && args[a].startsWith("--"); a++) {
+            if (args[a].equals("--cache") && a + 1 < args.length) {
+                cacheSize = Integer.parseInt(args[++a]);
+            } else if (args[a].equals("--port") && a + 1 < args.length) {
+                port = Integer.parseInt(args[++a]);
+            } else {
+                System.out.println("Unknown option: " + args[a]);
+                System.exit(1);
+            }
+        }
+        if (args.length - a < 2) {
+            printHelp();
+            System.exit(1);
+        }
+        QueryServer server = new QueryServer(Double.parseDouble(args[a]), cacheSize);
+        try {
+            for (a++; a < args.length; a++) server.open(args[a]);
+            if (port < 0) {
+                server.serve(new BufferedReader(new InputStreamReader(System.in)), new PrintWriter(System.out, true));
+            } else {
+                server.listen(port);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Odpre vsa ziva zaporedja podatkov (@see si.rubin.RunSet) in prebere njihove indekse (verzija 0 brez
+     * indeksa ga dobi v pomnilniku). Zaporedja, dodana kasneje, se vidijo sele ob ponovnem zagonu.
+     */
+    void open(String name) throws IOException {
+        QueryEngine engine = new QueryEngine(new File(name), blockSize);
+        files.put(name, engine);
+        System.err.println("Opened " + name + " (" + engine.points() + " points in " + engine.runs() + " runs)");
+    }
+
+    /**
+     * Sprejema povezave na lokalnih vratih, vsaka povezava dobi svojo nit
+     */
+    private void listen(int port) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.err.println("Listening on " + serverSocket.getLocalSocketAddress());
+            while (true) {
+                Socket socket = serverSocket.accept();
+                Thread client = new Thread(() -> {
+                    try (Socket s = socket) {
+                        serve(new BufferedReader(new InputStreamReader(s.getInputStream())),
+                                new PrintWriter(s.getOutputStream(), true));
+                    } catch (IOException e) {
+                        System.err.println("Connection failed: " + e.getMessage());
+                    }
+                });
+                client.setDaemon(true);
+                client.start();
+            }
+        }
+    }
+
+    /**
+     * Odgovarja na ukaze, dokler ne pride quit ali konec vhoda
+     */
+    void serve(BufferedReader in, PrintWriter out) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            if (line.equals("quit")) break;
+            if (line.equals("stats")) {
+                out.println("hits: " + hits + "\nmisses: " + misses);
+                continue;
+            }
+            if (line.equals("metrics")) {
+                out.println(metrics.toJson(new LinkedHashMap<>()));
+                continue;
+            }
+            out.println(answer(line));
+        }
+    }
+
+    /**
+     * Odgovor na poizvedbo (iz predpomnilnika ali izracunan)
+     */
+    String answer(String line) {
+        long start = System.nanoTime();
+        int space = line.indexOf(' ');
+        QueryEngine file = space < 0 ? null : files.get(line.substring(0, space));
+        if (file == null) return "ERROR unknown file, expected: <file> minX maxX minY maxY bin_size z|i";
+        Query query;
+        try {
+            query = Query.parse(line.substring(space + 1));
+        } catch (IllegalArgumentException e) {
+            return "ERROR " + e.getMessage();
+        }
+        String key = line.substring(0, space) + " " + query;
+        String result;
+        synchronized (cache) {
+            result = cache.get(key);
+        }
+        if (result != null) {
+            hits.add(System.nanoTime() - start);
+            return result + "\tcached";
+        }
+        QueryEngine.Result stats;
+        try {
+            stats = file.query(new QueryEngine.Rect(query.minX, query.maxX, query.minY, query.maxY), query.binSize,
+                    QueryEngine.Target.of(query.target));
+        } catch (Exception e) {
+            return "ERROR " + e.getMessage();
+        }
+        metrics.merge(stats.metrics);
+        result = query + "\t" + stats;
+        synchronized (cache) {
+            cache.put(key, result);
+        }
+        misses.add(System.nanoTime() - start);
+        return result + "\t" + stats.metrics.getReadCalls() + " reads";
+    }
+
+    void close() {
+        for (QueryEngine file : files.values()) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Izpise kratko pomoc
+     */
+    private static void printHelp() {
+        System.out.println("Sample usage:\n  QueryServer [--cache n] [--port p] <B> <obdelani_podatki>...\n");
+        System.out.println("  --cache n ... number of results kept in the LRU cache (default " + DEFAULT_CACHE_SIZE + ")");
+        System.out.println("  --port p ... listen on localhost:p instead of reading standard input");
+        System.out.println("  <B> ... block size in MB");
+        System.out.println("\n  Queries (one per line): <obdelani_podatki> <minX> <maxX> <minY> <maxY> <velikost_kosa> <opcija>");
+        System.out.println("  stats ... p50/p99 latency of cached and new queries, metrics ... reads and times as JSON, quit ... end");
+    }
+
+    /**
+     * Zadnjih LATENCY_SAMPLES zakasnitev (v nanosekundah)
+     */
+    private static class Latencies {
+        private final long[] samples = new long[LATENCY_SAMPLES];
+        private long count;
+
+        synchronized void add(long nanos) {
+            samples[(int) (count++ % LATENCY_SAMPLES)] = nanos;
+        }
+
+        @Override
+        public synchronized String toString() {
+            int n = (int) Math.min(count, LATENCY_SAMPLES);
+            if (n == 0) return "0";
+            long[] sorted = Arrays.copyOf(samples, n);
+            Arrays.sort(sorted);
+            return String.format("%d, p50 %.3f ms, p99 %.3f ms", count, percentile(sorted, 50) / 1e6,
+                    percentile(sorted, 99) / 1e6);
+        }
+
+        private static long percentile(long[] sorted, int p) {
+            return sorted[(int) Math.min(sorted.length - 1, Math.ceil(p / 100.0 * sorted.length) - 1)];
+        }
+    }
+}
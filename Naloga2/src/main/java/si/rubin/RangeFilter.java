@@ -0,0 +1,132 @@
+package si.rubin;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Filter tock po obmocju minX <= x < maxX, minY <= y < maxY nad tabelami prebranih vrstic.
+ * Vrednosti tock znotraj obmocja se zberejo na zacetek tabele brez vejitev: vsaka vrednost se zapise
+ * na naslednje prosto mesto, kazalec pa se premakne le, ce je tocka znotraj obmocja. Tako napovedovalnik
+ * skokov ne gresi pri tockah, ki so nakljucno znotraj ali izven obmocja (npr. Y v datoteki, urejeni po X).
+ * Meje so pretvorjene v float, tako da je primerjava enaka primerjavi z mejami tipa double.
+ */
+class RangeFilter {
+    final float minX, maxX, minY, maxY;
+
+    RangeFilter(double minX, double maxX, double minY, double maxY) {
+        this.minX = ceil(minX);
+        this.maxX = ceil(maxX);
+        this.minY = ceil(minY);
+        this.maxY = ceil(maxY);
+    }
+
+    /**
+     * @return najmanjsi float, ki ni manjsi od bound (za float v velja v >= bound natanko tedaj, ko v >= ceil)
+     */
+    private static float ceil(double bound) {
+        float f = (float) bound;
+        return f < bound ? Math.nextUp(f) : f;
+    }
+
+    /**
+     * Zbere vrednosti tock znotraj obmocja na zacetek tabele values (vrednosti ostalih tock se prepisejo)
+     * @param n stevilo vrstic v tabelah
+     * @return stevilo izbranih vrednosti
+     */
+    int select(float[] xs, float[] ys, float[] values, int n) {
+        int selected = 0;
+        for (int k = 0; k < n; k++) {
+            values[selected] = values[k];
+            selected += inside(xs[k], ys[k]);
+        }
+        return selected;
+    }
+
+    /**
+     * @see #select(float[], float[], float[], int)
+     */
+    int select(float[] xs, float[] ys, short[] values, int n) {
+        int selected = 0;
+        for (int k = 0; k < n; k++) {
+            values[selected] = values[k];
+            selected += inside(xs[k], ys[k]);
+        }
+        return selected;
+    }
+
+    /**
+     * Zbere cele tocke znotraj obmocja na zacetek vseh stirih tabel
+     * @return stevilo izbranih tock
+     */
+    int select(float[] xs, float[] ys, float[] zs, short[] is, int n) {
+        int selected = 0;
+        for (int k = 0; k < n; k++) {
+            float x = xs[k], y = ys[k];
+            xs[selected] = x;
+            ys[selected] = y;
+            zs[selected] = zs[k];
+            is[selected] = is[k];
+            selected += inside(x, y);
+        }
+        return selected;
+    }
+
+    /**
+     * Kot select, le da so vse tocke ze med mejama X (preverja se le Y)
+     */
+    int selectY(float[] ys, float[] values, int n) {
+        int selected = 0;
+        for (int k = 0; k < n; k++) {
+            values[selected] = values[k];
+            selected += (ys[k] >= minY) & (ys[k] < maxY) ? 1 : 0;
+        }
+        return selected;
+    }
+
+    /**
+     * @see #selectY(float[], float[], int)
+     */
+    int selectY(float[] ys, short[] values, int n) {
+        int selected = 0;
+        for (int k = 0; k < n; k++) {
+            values[selected] = values[k];
+            selected += (ys[k] >= minY) & (ys[k] < maxY) ? 1 : 0;
+        }
+        return selected;
+    }
+
+    /**
+     * Zbere visine (z) tock znotraj obmocja neposredno iz zapisov v bufferju (@see si.rubin.PointFile)
+     * @param offset odmik prvega zapisa v bufferju (pozicija bufferja se ne spremeni)
+     * @param records stevilo zapisov (najvec out.length)
+     * @return stevilo izbranih vrednosti
+     */
+    int select(ByteBuffer buffer, int offset, int records, float[] out) {
+        int selected = 0;
+        int end = offset + records * PointFile.RECORD_SIZE;
+        for (int p = offset; p < end; p += PointFile.RECORD_SIZE) {
+            out[selected] = buffer.getFloat(p + 8);
+            selected += inside(buffer.getFloat(p), buffer.getFloat(p + 4));
+        }
+        return selected;
+    }
+
+    /**
+     * Kot select za visine, le da zbere intenzitete (i)
+     */
+    int select(ByteBuffer buffer, int offset, int records, short[] out) {
+        int selected = 0;
+        int end = offset + records * PointFile.RECORD_SIZE;
+        for (int p = offset; p < end; p += PointFile.RECORD_SIZE) {
+            out[selected] = buffer.getShort(p + 12);
+            selected += inside(buffer.getFloat(p), buffer.getFloat(p + 4));
+        }
+        return selected;
+    }
+
+    /**
+     * @return 1, ce je tocka znotraj obmocja, sicer 0 (brez kratkega stika, da ni vejitev)
+     */
+    private int inside(float x, float y) {
+        return (x >= minX) & (x < maxX) & (y >= minY) & (y < maxY) ? 1 : 0;
+    }
+}
@@ -0,0 +1,359 @@
+package si.rubin;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Podatki, razdeljeni na vec urejenih datotek (zaporedij): osnovno datoteko in datoteke, ki jih doda
+ * DataSort -a. Tako se ob novih tockah uredijo le nove tocke, poizvedbe pa preberejo vsa ziva zaporedja
+ * in zdruzijo njihove histograme. Seznam zivih datotek (od najstarejse) je ob podatkih v datoteki
+ * ime + ".runs" in se vedno zamenja v celoti, zato bralec vidi bodisi star bodisi nov seznam.
+ * Brez seznama so podatki le osnovna datoteka.
+ * <pre>
+ * podatki.bin.runs:   podatki.bin
+ *                     podatki.bin.r1
+ *                     podatki.bin.r2
+ * </pre>
+ * Zdruzevanje (@see #compact) zdruzi najnovejsi zaporedji in vsako starejse, ki ni vec kot RATIO-krat
+ * vecje od ze izbranih, zato se vsaka tocka prepise le O(log n) krat. Ce zdruzi tudi najstarejse zaporedje,
+ * se rezultat preimenuje v osnovno datoteko, tako da so podatki vedno tudi pod imenom, ki ga da uporabnik.
+ * Bralci odprejo zaporedja pod deljenim zaklepom (@see #open), zdruzevanje pa stare datoteke zamenja in
+ * izbrise pod izkljucnim, zato bralec nikoli ne dobi seznama z datoteko, ki je ze izbrisana.
+ */
+class RunSet {
+    static final String SUFFIX = ".runs";
+    static final String RUN_SUFFIX = ".r";
+    static final int MAX_RUNS = 4;              // An append that leaves more live files starts a compaction
+    static final int RATIO = 2;                 // An older run is merged if it is at most this much larger
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final String COMPACT_LOCK_SUFFIX = ".compact.lock";
+
+    /**
+     * @return datoteka s seznamom zivih zaporedij za podano datoteko s tockami
+     */
+    static File manifestFile(File dataFile) {
+        return new File(dataFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * @return zive datoteke s tockami (od najstarejse), brez seznama le podana datoteka
+     */
+    static List<File> live(File dataFile) throws IOException {
+        List<File> files = new ArrayList<>();
+        File manifest = manifestFile(dataFile);
+        if (!manifest.isFile()) {
+            files.add(dataFile);
+            return files;
+        }
+        File dir = dataFile.getAbsoluteFile().getParentFile();
+        for (String name : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+            if (!name.trim().isEmpty()) files.add(new File(dir, name.trim()));
+        }
+        // A compaction stopped between renaming the merged oldest runs over the base file and writing the list
+        if (!files.isEmpty() && !files.get(0).isFile() && dataFile.isFile()) files.set(0, dataFile);
+        return files;
+    }
+
+    /**
+     * Odpre vsa ziva zaporedja. Seznam se prebere in datoteke odprejo pod deljenim zaklepom seznama, tako da jih
+     * zdruzevanje ne more vmes zamenjati ali izbrisati (odprte datoteke se berejo tudi, ko so izbrisane).
+     * @param opener odpre eno zaporedje (skupaj z indeksi, ki jih potrebuje)
+     * @return odprta zaporedja (od najstarejsega), ob napaki se ze odprta zaprejo
+     */
+    static <T extends Closeable> List<T> open(File dataFile, Opener<T> opener) throws IOException {
+        List<T> opened = new ArrayList<>();
+        try {
+            // Without a list the data is a single file, the lock file is only created once there are runs
+            if (!manifestFile(dataFile).isFile()) {
+                opened.add(opener.open(dataFile));
+                return opened;
+            }
+            synchronized (RunSet.class) {
+                FileChannel lock = lock(dataFile, true);
+                try {
+                    for (File run : live(dataFile)) opened.add(opener.open(run));
+                } finally {
+                    lock.close();
+                }
+            }
+            return opened;
+        } catch (IOException | RuntimeException e) {
+            for (T run : opened) {
+                try {
+                    run.close();
+                } catch (IOException closing) {
+                    e.addSuppressed(closing);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Uredi tocke iz tekstovne datoteke v novo zaporedje in ga doda na konec seznama
+     * @param sorter urejanje z enakim formatom in vrstnim redom kot obstojeca zaporedja
+     * @return datoteka z novim zaporedjem
+     */
+    static File append(File dataFile, File input, PointSorter sorter) throws IOException {
+        File run;
+        synchronized (RunSet.class) {
+            FileChannel lock = lock(dataFile, false);
+            try {
+                run = newRun(dataFile);
+            } finally {
+                lock.close();
+            }
+        }
+        try {
+            sorter.sort(input, run);
+            writeIndex(run);
+        } catch (IOException | RuntimeException e) {
+            delete(run);
+            throw e;
+        }
+        synchronized (RunSet.class) {
+            FileChannel lock = lock(dataFile, false);
+            try {
+                List<File> files = current(dataFile);
+                files.add(run);
+                writeManifest(dataFile, files);
+            } finally {
+                lock.close();
+            }
+        }
+        return run;
+    }
+
+    /**
+     * Zdruzi najnovejsa zaporedja v eno. Zaporedja, dodana med zdruzevanjem, ostanejo za novim.
+     * Hkrati tece najvec eno zdruzevanje, ostala se takoj koncajo.
+     * @param memory koliko bytov lahko porabimo za bufferje pri zdruzevanju
+     * @return stevilo zdruzenih zaporedij (0, ce ni bilo kaj zdruziti)
+     */
+    static int compact(File dataFile, long memory) throws IOException {
+        // Without a list the data is a single file, the lock files are only created once there are runs
+        if (!manifestFile(dataFile).isFile()) return 0;
+        try (FileChannel compactLock = FileChannel.open(new File(dataFile.getPath() + COMPACT_LOCK_SUFFIX).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock held;
+            try {
+                held = compactLock.tryLock();
+            } catch (OverlappingFileLockException e) {
+                held = null;
+            }
+            if (held == null) return 0;
+
+            List<File> files;
+            File run;
+            synchronized (RunSet.class) {
+                FileChannel lock = lock(dataFile, false);
+                try {
+                    files = current(dataFile);
+                    if (files.size() < 2) return 0;
+                    run = newRun(dataFile);
+                } finally {
+                    lock.close();
+                }
+            }
+
+            // The two newest runs, then every older one that is not much larger than the ones chosen so far
+            long[] points = new long[files.size()];
+            int blockPoints = 0, layout = PointFile.LAYOUT_XYZ;
+            boolean compressed = false;
+            for (int f = 0; f < files.size(); f++) {
+                try (PointFile pointFile = PointFile.open(files.get(f), false)) {
+                    points[f] = pointFile.points;
+                    blockPoints = pointFile.blockPoints;
+                    layout = pointFile.layout;
+                    compressed = pointFile.version == PointFile.COMPRESSED_VERSION;
+                }
+            }
+            int from = files.size() - 2;
+            long total = points[from] + points[from + 1];
+            while (from > 0 && points[from - 1] <= RATIO * total) {
+                total += points[--from];
+            }
+            List<File> merged = files.subList(from, files.size());
+
+            try {
+                PointSorter sorter = new PointSorter(memory, dataFile.getAbsoluteFile().getParentFile(), 1,
+                        blockPoints, layout, compressed);
+                sorter.merge(merged, run);
+                writeIndex(run);
+                if (from == 0) {
+                    // The oldest file had the moment grid, the new one takes its place
+                    try (PointFile first = PointFile.open(files.get(0), false);
+                         MomentGrid grid = MomentGrid.read(files.get(0), first);
+                         PointFile pointFile = PointFile.open(run)) {
+                        if (grid != null) MomentGrid.build(pointFile, grid.cellSize).write(run);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                delete(run);
+                throw e;
+            }
+
+            synchronized (RunSet.class) {
+                FileChannel lock = lock(dataFile, false);
+                try {
+                    // Only appends could have happened meanwhile, they stay after the new run
+                    List<File> now = current(dataFile);
+                    List<File> next = new ArrayList<>(now.subList(0, from));
+                    next.add(run);
+                    next.addAll(now.subList(files.size(), now.size()));
+                    writeManifest(dataFile, next);
+                    if (from == 0) {
+                        // The merged run takes the name of the base file, which is also read without the list
+                        // (DataSort -e, a full sort). If this stops before the list is written again, live()
+                        // finds the base file in place of the missing run.
+                        replace(run, dataFile);
+                        next.set(0, dataFile);
+                        writeManifest(dataFile, next);
+                    }
+                    // Queries that have the old files open keep reading them until they close them
+                    for (File file : merged) {
+                        if (!file.getAbsoluteFile().equals(dataFile.getAbsoluteFile())) delete(file);
+                    }
+                } finally {
+                    lock.close();
+                }
+            }
+            return merged.size();
+        }
+    }
+
+    /**
+     * Odstrani seznam in vsa dodana zaporedja (npr. ko se podatki ponovno uredijo v celoti).
+     * Brez seznama ne naredi nicesar (tudi datoteke za zaklep ne ustvari).
+     */
+    static void clear(File dataFile) throws IOException {
+        if (!manifestFile(dataFile).isFile()) return;
+        synchronized (RunSet.class) {
+            FileChannel lock = lock(dataFile, false);
+            try {
+                if (!manifestFile(dataFile).isFile()) return;
+                for (File file : live(dataFile)) {
+                    if (!file.getAbsoluteFile().equals(dataFile.getAbsoluteFile())) delete(file);
+                }
+                Files.delete(manifestFile(dataFile).toPath());
+            } finally {
+                lock.close();
+            }
+        }
+    }
+
+    /**
+     * @return seznam zivih datotek, brez seznama pa osnovna datoteka, ce obstaja
+     */
+    private static List<File> current(File dataFile) throws IOException {
+        List<File> files = live(dataFile);
+        if (!manifestFile(dataFile).isFile() && !dataFile.isFile()) files.clear();
+        return files;
+    }
+
+    /**
+     * Rezervira ime za novo zaporedje: ime + ".r" + (najvecja obstojeca stevilka + 1)
+     */
+    private static File newRun(File dataFile) throws IOException {
+        File dir = dataFile.getAbsoluteFile().getParentFile();
+        String prefix = dataFile.getName() + RUN_SUFFIX;
+        long last = 0;
+        String[] names = dir.list();
+        for (String name : names == null ? new String[0] : names) {
+            if (name.startsWith(prefix) && name.length() > prefix.length()
+                    && name.substring(prefix.length()).matches("[0-9]{1,18}")) {
+                last = Math.max(last, Long.parseLong(name.substring(prefix.length())));
+            }
+        }
+        File run = new File(dir, prefix + (last + 1));
+        if (!run.createNewFile()) throw new IOException("Can not create " + run);
+        return run;
+    }
+
+    /**
+     * Zapise redek indeks ob zaporedje, urejeno po X (@see si.rubin.FenceIndex)
+     */
+    private static void writeIndex(File run) throws IOException {
+        try (PointFile pointFile = PointFile.open(run)) {
+            if (pointFile.layout == PointFile.LAYOUT_XYZ) {
+                FenceIndex.build(pointFile, PointFile.DEFAULT_BLOCK_POINTS).write(run);
+            }
+        }
+    }
+
+    /**
+     * Zamenja seznam zivih datotek (zapise novega in ga preimenuje cez starega)
+     */
+    private static void writeManifest(File dataFile, List<File> files) throws IOException {
+        List<String> names = new ArrayList<>();
+        for (File file : files) names.add(file.getName());
+        File manifest = manifestFile(dataFile);
+        File tmp = new File(manifest.getPath() + ".tmp");
+        Files.write(tmp.toPath(), names, StandardCharsets.UTF_8);
+        Files.move(tmp.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Preimenuje datoteko s tockami z indeksi cez drugo (indeksi druge, ki jih prva nima, se izbrisejo)
+     */
+    private static void replace(File source, File target) throws IOException {
+        replaceIndex(FenceIndex.indexFile(source), FenceIndex.indexFile(target));
+        replaceIndex(MomentGrid.gridFile(source), MomentGrid.gridFile(target));
+        Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void replaceIndex(File source, File target) throws IOException {
+        if (source.isFile()) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            Files.deleteIfExists(target.toPath());
+        }
+    }
+
+    /**
+     * Izbrise datoteko s tockami in njene indekse
+     */
+    private static void delete(File file) throws IOException {
+        Files.deleteIfExists(FenceIndex.indexFile(file).toPath());
+        Files.deleteIfExists(MomentGrid.gridFile(file).toPath());
+        Files.deleteIfExists(file.toPath());
+    }
+
+    /**
+     * Zaklene seznam za druge procese (znotraj procesa skrbi synchronized)
+     * @param shared deljen zaklep za bralce (sicer izkljucen za spremembe)
+     * @return odprta datoteka, ki drzi zaklep, dokler je ne zapremo
+     */
+    private static FileChannel lock(File dataFile, boolean shared) throws IOException {
+        // A shared lock needs a channel that can be read
+        FileChannel fChan = FileChannel.open(new File(dataFile.getPath() + LOCK_SUFFIX).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            fChan.lock(0, Long.MAX_VALUE, shared);
+        } catch (IOException | RuntimeException e) {
+            fChan.close();
+            throw e;
+        }
+        return fChan;
+    }
+
+    /**
+     * Odpre eno zaporedje podatkov (@see #open)
+     */
+    interface Opener<T extends Closeable> {
+        T open(File run) throws IOException;
+    }
+}
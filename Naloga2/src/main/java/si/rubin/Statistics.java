@@ -1,321 +1,235 @@
 package si.rubin;
 
 import java.io.*;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
- * Racuna statistiko s pomocjo histograma
- *
- * TODO: namesto 1 bloka uporabljaj MAX_MEMORY / BLOCK_SIZE blokov
+ * Racuna statistiko s pomocjo histograma. Ce je M vsaj 2B, se v M/B bufferjev bere vnaprej
+ * (@see si.rubin.PrefetchReader), sicer se bere po en blok.
+ * Poizvedbo izvede QueryEngine (@see si.rubin.QueryEngine), tu se le preberejo argumenti in izpise rezultat.
  * @author David Rubin
  */
 public class Statistics {
-    // The program has 129 bytes + lists worth of Bytes;
-    private static String DATA_FILE;        // The file which holds our sorted data (@see si.rubin.DataSort)
-    private static int DISK_READS;          // How many times we read the file
-    private static double MAX_MEMORY;       // How much memory is available (heap?)
-    private static double BLOCK_SIZE;       // How much we can read at once
-    private static double MIN_X, MAX_X;     // X Coordinate limits
-    private static double MIN_Y, MAX_Y;     // Y Coordinate limits
-    private static float[] xs, ys, zs;      // Store coordinate values
-    private static short[] is;              // Stores reflection intensity values
-    private static ByteBuffer blockBuffer;  // A buffer for storing the block read
-    private static int BIN_SIZE;            // Size of the histogram bin
-    private static int DATA_SIZE;           // Number of rows in the file
-    private static char TARGET_VAR;         // The target variable (either Z or I, check README)
-    private static int[] BIN_COUNTS;        // The histogram (number of values in bins)
-    private static double[] BIN_VALUES;     // Values for each bin
-    private static int VALUES_SIZE;         // How many points there are in the histogram
-    private static ArrayList<Float> TARGETS; // Target values (either i or z values)
+    // The quantiles that are printed: p5, p25 (Q1), median, p75 (Q3), p95
+    private static final double[] PERCENTILES = {0.05, 0.25, 0.5, 0.75, 0.95};
 
     public static void main(String[] args) {
+        int status = run(args);
+        if (status != 0) System.exit(status);
+    }
+
+    /**
+     * Izvede poizvedbo (ali vec poizvedb z --batch) in izpise rezultat
+     * @return izhodni status: 0 ob uspehu, 1 ob napacnih argumentih ali napaki pri branju
+     */
+    static int run(String[] args) {
+        if (args.length > 0 && args[0].equals("--batch")) {
+            return runBatch(args);
+        }
         if (args.length < 9) {
             printHelp();
-            System.exit(1);
+            return 1;
         }
-        //long beforeUsedMem = Runtime.getRuntime().totalMemory()-Runtime.getRuntime().freeMemory();
-        initParams(args);
+        String dataFile = args[0];
+        // One query searches the bounds of a version 0 file without an index instead of reading the whole file
+        QueryEngine.Options options = new QueryEngine.Options().buildIndex(false);
+        QueryEngine.Rect area;
+        int binSize;
+        QueryEngine.Target target;
+        boolean json = false, quantiles = false;
         try {
-            FileInputStream fis = new FileInputStream(DATA_FILE);
-            FileChannel fChan = fis.getChannel();
-
-            // Read the number of lines (First 4 bytes inside the file)
-            ByteBuffer intBuff = ByteBuffer.allocate(4);
-            fChan.read(intBuff);
-            intBuff.flip();
-            DATA_SIZE = intBuff.getInt();
-
-            // A line from the original data has been compressed to 14 bytes (3 floats + 1 short)
-            int linesInBlock = (int) Math.floor(BLOCK_SIZE / 0.000014);
-            // V pomnilniku lahko imamo M/B blokov, torej M/B * linesInBlock vrstic:
-            int readableLines = (int) Math.floor(MAX_MEMORY / BLOCK_SIZE) * linesInBlock;
-            xs = new float[linesInBlock];
-            ys = new float[linesInBlock];
-            zs = new float[linesInBlock];
-            is = new short[linesInBlock];
-            // Allocate enough to fit a block worth of lines into the buffer
-            blockBuffer = ByteBuffer.allocate(linesInBlock * 14);
-            //System.out.println("File has " + dataSize + " lines");
-            //System.out.println("Block holds " + linesInBlock + " lines");
-
-            int loBorder = findBound(fChan, 0, DATA_SIZE, MIN_X);
-            //System.out.println("From line " + loBorder + " every X is larger than " + MIN_X);
-            int upBorder = findBound(fChan,0, DATA_SIZE, MAX_X);
-            //System.out.println("From line " + upBorder + " down every X is smaller than " + MAX_X);
-            int candidateLines = upBorder - loBorder;
+            options.memory(Double.parseDouble(args[1])).blockSize(Double.parseDouble(args[2]));
+            area = new QueryEngine.Rect(Double.parseDouble(args[3]), Double.parseDouble(args[4]),
+                    Double.parseDouble(args[5]), Double.parseDouble(args[6]));
+            binSize = Integer.parseInt(args[7]);
+            target = QueryEngine.Target.of(args[8].charAt(0));
+            for (int a = 9; a < args.length; a++) {
+                if (args[a].equals("--mmap")) {
+                    options.mmap(true);
+                } else if (args[a].equals("--grid")) {
+                    options.grid(true);
+                } else if (args[a].equals("--threads") && a + 1 < args.length) {
+                    options.threads(Integer.parseInt(args[++a]));
+                } else if (args[a].equals("--json")) {
+                    json = true;
+                } else if (args[a].equals("--quantiles")) {
+                    quantiles = true;
+                } else {
+                    System.out.println("Unknown option: " + args[a]);
+                    return 1;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return 1;
+        }
 
-            // The target values span across an interval bigger than a single block
-            int currentLine = loBorder;
-            while (candidateLines > linesInBlock) {
-                //System.out.println("Lines do not fit into one block");
-                int readBytes = readBlock(fChan, currentLine * 14 + 4);
-                findTargets(readBytes, linesInBlock);
+        try (QueryEngine engine = new QueryEngine(new File(dataFile), options)) {
+            Metrics.register(engine.metrics(), "Statistics");
+            if (options.mmap && !engine.mapped()) {
+                System.out.println("The compressed file is read into buffers (--mmap only maps raw points)");
+            }
+            QueryEngine.Result result = engine.query(area, binSize, target, quantiles);
+            Metrics metrics = result.metrics;
+            double[] quantile = quantiles ? result.quantiles(PERCENTILES) : null;
 
-                // Decrease the number of candidate lines
-                candidateLines -= linesInBlock;
-                currentLine += linesInBlock;
+            System.out.println("File: \t\t" + dataFile);
+            System.out.println("Points: \t" + result.points);
+            System.out.println("Bins: \t\t" + result.bins);
+            System.out.println(String.format("Average: \t%.3f", result.average));
+            System.out.println(String.format("Deviation: \t%.3f", result.deviation));
+            System.out.println(String.format("Skewness: \t%.3f", result.skewness));
+            System.out.println(String.format("Kurtosis: \t%.3f", result.kurtosis));
+            if (quantile != null) {
+                System.out.println(String.format("Median: \t%.3f", quantile[2]));
+                System.out.println(String.format("P5 / P95: \t%.3f / %.3f", quantile[0], quantile[4]));
+                System.out.println(String.format("IQR: \t\t%.3f (Q1 %.3f, Q3 %.3f)",
+                        quantile[3] - quantile[1], quantile[1], quantile[3]));
             }
-            // If we still have candidate lines, read those into TARGETS aswell
-            if (candidateLines > 0) {
-                //System.out.println("Lines fit into one block");
-                // Read the remaining candidateLines (should fit into one block)
-                int readBytes = readBlock(fChan, (currentLine) * 14 + 4);
-                findTargets(readBytes, candidateLines);
+            System.out.println("Disk reads: " + metrics.getReadCalls() + (engine.mapped() ? " (pages touched)" : ""));
+            System.out.println(String.format("Bytes read: \t%.2f MB", metrics.getBytesRead() / 1000000.d));
+            if (metrics.getBlocksScanned() + metrics.getBlocksPruned() > 0) {
+                System.out.println("Blocks: \t" + metrics.getBlocksScanned() + " scanned, "
+                        + metrics.getBlocksPruned() + " skipped");
             }
-
-            // Build a histogram with TARGETS and calculate the statistics
-            buildHistogram();
-            double avg, stdv, skew, kurt = .0;
-            avg = average();
-            stdv = standardDeviation(avg);
-            skew = skewness(avg);
-            kurt = kurtosis(avg);
-
-            System.out.println("File: \t\t" + DATA_FILE);
-            System.out.println("Points: \t" + VALUES_SIZE);
-            System.out.println("Bins: \t\t" + BIN_COUNTS.length);
-            System.out.println(String.format("Average: \t%.3f", avg));
-            System.out.println(String.format("Deviation: \t%.3f", stdv));
-            System.out.println(String.format("Skewness: \t%.3f", skew));
-            System.out.println(String.format("Kurtosis: \t%.3f", kurt));
-            System.out.println("Disk reads: " + DISK_READS);
-
-            int bytesUsed = 133 + linesInBlock*12 + linesInBlock*2 + linesInBlock * 14 + 4 + BIN_COUNTS.length * 4 +
-                    BIN_COUNTS.length * 8 + TARGETS.size();
-            System.out.println(String.format("Memory: \t%.2f MB", bytesUsed / 1000000.d));
-        } catch (FileNotFoundException e) {
+            if (engine.runs() > 1) System.out.println("Runs: \t\t" + engine.runs());
+            // Measured by the JVM (the heap also holds garbage that was not collected yet)
+            System.out.println(String.format("Memory: \t%.2f MB heap (peak %.2f MB), %.2f MB direct, %.2f MB mapped",
+                    metrics.getHeapUsed() / 1000000.d, metrics.getHeapPeak() / 1000000.d,
+                    metrics.getDirectBufferUsed() / 1000000.d, metrics.getMappedBufferUsed() / 1000000.d));
+            System.out.println(String.format("Time: \t\t%.3f ms bounds, %.3f ms scan, %.3f ms histogram, %.3f ms moments",
+                    metrics.getBoundMillis(), metrics.getScanMillis(), metrics.getHistogramMillis(),
+                    metrics.getMomentsMillis()));
+            if (json) {
+                Map<String, Object> fields = new LinkedHashMap<>();
+                fields.put("file", dataFile);
+                fields.put("query", area + " " + binSize + " " + target.option);
+                fields.put("points", result.points);
+                fields.put("bins", result.bins);
+                if (quantile != null) putQuantiles(fields, quantile);
+                System.out.println(metrics.toJson(fields));
+            }
+            return 0;
+        } catch (FileNotFoundException | NoSuchFileException e) {
             System.out.println("File not found.");
-        } catch (Exception e) {
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        } catch (IOException e) {
             e.printStackTrace();
         }
-        //long afterUsedMem=Runtime.getRuntime().totalMemory()-Runtime.getRuntime().freeMemory();
-        //System.out.println(String.format("Memory usage: %.2f MB", ((float)(afterUsedMem - beforeUsedMem) / 1000000)));
-    }
-
-    /**
-     * Izracuna povprecno vrednost histograma (glej enacbe.pdf)
-     * @return povprecna vrednost
-     */
-    private static double average() {
-        double sum = 0.0;
-        for (int k = 0; k < BIN_COUNTS.length; k++) {
-            sum += (double) BIN_COUNTS[k] * BIN_VALUES[k];
-        }
-        return sum / VALUES_SIZE;
-    }
-
-    /**
-     * Izracuna standardni odklon nad histogramom (glej enacbe.pdf)
-     * @param average povprecna vrednost histograma
-     * @return standardni odklon
-     */
-    private static double standardDeviation(double average) {
-        double sum = 0.0;
-        for (int k = 0; k < BIN_COUNTS.length; k++) {
-            sum += BIN_COUNTS[k] * Math.pow((BIN_VALUES[k] - average), 2);
-        }
-        return Math.sqrt(sum / VALUES_SIZE);
+        return 1;
     }
 
     /**
-     * Izracuna asimetrijo za histogram (glej enacbe.pdf)
-     * @param average povprecna vrednost
-     * @return skewness od histograma
+     * Izvede vec poizvedb nad isto datoteko s tockami (@see si.rubin.QueryEngine#batch): unija vrstic,
+     * ki jih potrebujejo, se prebere le enkrat
+     * @param args --batch <obdelani_podatki> <M> <B> <poizvedbe>
+     * @return izhodni status (@see #run)
      */
-    private static double skewness(double average) {
-        double upper = 0.0;
-        double lower = 0.0;
-        for (int k = 0; k < BIN_COUNTS.length; k++) {
-            upper += BIN_COUNTS[k] * Math.pow((BIN_VALUES[k] - average), 3);
-            lower += BIN_COUNTS[k] * Math.pow((BIN_VALUES[k] - average), 2);
-        }
-        upper /= VALUES_SIZE;
-        lower /= (VALUES_SIZE - 1);
-        return upper / Math.pow(lower, 1.5);
-    }
-
-    /**
-     * Poracuna sploscenost (glej enacbe.pdf)
-     * @param average povprecna vrednost
-     * @return kurtosis od histograma
-     */
-    private static double kurtosis(double average) {
-        double upper = .0;
-        double lower = .0;
-        for (int k = 0; k < BIN_COUNTS.length; k++) {
-            upper += BIN_COUNTS[k] * Math.pow((BIN_VALUES[k] - average), 4);
-            lower += BIN_COUNTS[k] * Math.pow((BIN_VALUES[k] - average), 2);
-        }
-        lower = Math.pow(lower, 2);
-        return VALUES_SIZE * (upper / lower) - 3;
-    }
-
-    /**
-     * Izgradi histogram iz TARGETS: BIN_COUNTS drzi koliko vrednosti je v posameznem kosu,
-     * BIN_VALUES pa vrednost za posamezen kos
-     */
-    private static void buildHistogram() {
-        // Create a new histogram
-        float maxValue = Collections.max(TARGETS);
-        float minValue = Collections.min(TARGETS);
-        int nBins = (int) Math.ceil((maxValue - minValue) / BIN_SIZE); // Number of bins
-        VALUES_SIZE = TARGETS.size();
-        BIN_COUNTS = new int[nBins];
-        BIN_VALUES = new double[nBins];
-        // Calculate the values of bins
-        for (int k = 0; k < nBins; k++) {
-            BIN_VALUES[k] = minValue + k*BIN_SIZE + BIN_SIZE/2.;
-        }
-        // Count the values into the bins
-        for (float value : TARGETS) {
-            // Which bin the value belongs to
-            int bin = (int) (value - minValue) / BIN_SIZE;
-            if (bin >= nBins) bin = nBins-1;
-            if (bin < 0) bin = 0;
-            BIN_COUNTS[bin]++;
+    private static int runBatch(String[] args) {
+        if (args.length < 5) {
+            printHelp();
+            return 1;
         }
-    }
-
-    /**
-     * Prebere vrednosti iz ByteBuffer (do vrstice bodisi bytesRead ali pa lineLimit)
-     * in preveri katere Y vrednosti spadajo v nas interval in jih shrani v TARGETS
-     * @param bytesRead koliko bytes je bilo prebranih v blockBuffer (globalen)
-     * @param lineLimit koliko vrstic lahko pregledamo (ce jih je manj kot pa pase v blok)
-     * @throws Exception ce je vmes kaksna vrstica ki ne sodi v interval za X
-     */
-    private static void findTargets(int bytesRead, int lineLimit) throws Exception {
-        populateValues(0, bytesRead);
-        for (int i = 0; i < lineLimit; i++) {
-            if (ys[i] >= MIN_Y && ys[i] < MAX_Y) {
-                if (TARGET_VAR == 'i')
-                    TARGETS.add((float) is[i]);
-                else
-                    TARGETS.add(zs[i]);
+        String dataFile = args[1];
+        boolean json = false, quantiles = false;
+        for (int a = 5; a < args.length; a++) {
+            if (args[a].equals("--json")) {
+                json = true;
+            } else if (args[a].equals("--quantiles")) {
+                quantiles = true;
+            } else {
+                System.out.println("Unknown option: " + args[a]);
+                return 1;
             }
-            if (xs[i] < MIN_X || xs[i] > MAX_X)
-                throw new Exception("Some Xs are not inside the interval");
         }
-    }
-
-    /**
-     * Prebere blok iz datoteke in shrani podatke v podane sezname
-     * @param fChan FileChannel nad datoteko
-     * @param byteOffset koliko byteov je zamaknjeno branje
-     * @return stevilo prebranih byteov
-     */
-    private static int readBlock(FileChannel fChan, long byteOffset) {
-        DISK_READS++;
-        blockBuffer.position(0);
-        int bytesRead = 0;
-        int i = 0;
+        // Also here the bounds of a version 0 file without an index are searched in the file
+        QueryEngine.Options options = new QueryEngine.Options().buildIndex(false);
+        List<Query> queries;
         try {
-            if ((bytesRead = fChan.read(blockBuffer, byteOffset)) > 0) {
-                blockBuffer.position(0);
-                populateValues(i, bytesRead);
-            }
+            options.memory(Double.parseDouble(args[2])).blockSize(Double.parseDouble(args[3]));
+            queries = readQueries(new File(args[4]));
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return 1;
         } catch (IOException e) {
-            e.printStackTrace();
+            System.out.println("Can not read the queries: " + e.getMessage());
+            return 1;
+        }
+        if (quantiles) {
+            for (Query query : queries) query.histogram.trackQuantiles();
         }
-        return bytesRead;
-    }
 
-    /**
-     * Preberi 1 blok podatkov iz datoteke
-     * @param fChan deskriptor datoteke
-     * @return stevilo prebranih byteov
-     */
-    private static int readBlock(FileChannel fChan) {
-        DISK_READS++;
-        blockBuffer.position(0);
-        int bytesRead = 0;
-        int i = 0;
-        try {
-            if ((bytesRead = fChan.read(blockBuffer)) > 0) {
-                blockBuffer.position(0);
-                populateValues(i, bytesRead);
+        try (QueryEngine engine = new QueryEngine(new File(dataFile), options)) {
+            Metrics.register(engine.metrics(), "Statistics");
+            QueryEngine.Batch batch = engine.batch(queries);
+            System.out.println("File: \t\t" + dataFile);
+            System.out.println("Queries: \t" + queries.size());
+            System.out.println("minX maxX minY maxY bin_size option\tpoints\tbins\taverage\tdeviation\tskewness\tkurtosis"
+                    + (quantiles ? "\tp5\tq1\tmedian\tq3\tp95" : ""));
+            List<Map<String, Object>> results = new ArrayList<>();
+            for (int q = 0; q < queries.size(); q++) {
+                QueryEngine.Result result = batch.results.get(q);
+                double[] quantile = quantiles ? result.quantiles(PERCENTILES) : null;
+                StringBuilder line = new StringBuilder(queries.get(q) + "\t" + result);
+                if (quantile != null) {
+                    for (double value : quantile) line.append(String.format("\t%.3f", value));
+                }
+                System.out.println(line);
+                Map<String, Object> fields = new LinkedHashMap<>();
+                fields.put("query", queries.get(q).toString());
+                fields.put("points", result.points);
+                fields.put("bins", result.bins);
+                if (quantile != null) putQuantiles(fields, quantile);
+                results.add(fields);
             }
+            long reads = batch.metrics.getReadCalls();
+            System.out.println("Disk reads: " + reads + " (" + batch.separateReads + " one by one, "
+                    + (batch.separateReads - reads) + " saved)");
+            System.out.println(String.format("Bytes read: \t%.2f MB", batch.metrics.getBytesRead() / 1000000.d));
+            if (json) {
+                Map<String, Object> fields = new LinkedHashMap<>();
+                fields.put("file", dataFile);
+                fields.put("separateReads", batch.separateReads);
+                fields.put("results", results);
+                System.out.println(batch.metrics.toJson(fields));
+            }
+            return 0;
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            System.out.println("File not found.");
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
         } catch (IOException e) {
             e.printStackTrace();
         }
-        return bytesRead;
-    }
-
-    /**
-     * Napolni globalne sezname vrednosti s podanimi iz bloka
-     * @param offset kje v seznamu pricne polniti
-     * @param bytesRead koliko byteov je prebranih v bufferju
-     */
-    private static void populateValues(int offset, int bytesRead) {
-        int linesRead = bytesRead / 14;
-        while (blockBuffer.hasRemaining() && offset < linesRead) {
-            xs[offset] = blockBuffer.getFloat();
-            ys[offset] = blockBuffer.getFloat();
-            zs[offset] = blockBuffer.getFloat();
-            is[offset] = blockBuffer.getShort();
-            offset++;
-        }
+        return 1;
     }
 
     /**
-     * Najde vrstico datoteke od katere naprej so vsi X > (ce wantMin=True, drugace <) x
-     * @param fChan datoteka, kjer so podatki
-     * @param upperBound zgornja meja vrstic ko iscemo
-     * @param lowerBound spodnja meja vrstic ko iscemo
-     * @param x vrednost katero iscemo
-     * @return stevilka vrstice v datoteki, kjer se zacne interval za statistiko
+     * Prebere poizvedbe (ena v vrstici, prazne vrstice in vrstice z # se preskocijo)
+     * @throws IllegalArgumentException ce je katera izmed poizvedb napacna
      */
-    private static int findBound(FileChannel fChan, int lowerBound, int upperBound, double x) throws Exception {
-        int middleLine = (int) (lowerBound + upperBound) / 2;
-        // Read the block in the middle -> 4 + middleLine * 14 bytes of offset
-        // (first INT for length and a row has 14 bytes)
-        int byteOffset = 4 + (middleLine * 14);
-        int bytesRead = readBlock(fChan, byteOffset);
-        int linesRead = bytesRead / 14;
-        if (bytesRead < 1) return -1;
-        // Check if x is inside the block
-        if (x > xs[0] && x < xs[linesRead - 1]) {
-            // x is inside our read block, find the first line so that
-            // every next X is >= x (including the line)
-            //System.out.println("x is inside this block (line " + lowerBound + " till " + upperBound + ")");
-            // Find the limit where every next X is bigger than our x
-            int i = 0;
-            while (x > xs[i]) i++;
-            //System.out.println("Lowest: " + xs[0] + "\nLimit: " + xs[i] + "\nLimit-1:" + xs[i-1] + "\nLimit+1: " + xs[i+1]);
-            return middleLine + i;
-        } else if (x <= xs[0]) {
-            // Search for the x in the lower half
-            //System.out.println("x is lower than the bound " + xs[0]);
-            return findBound(fChan, lowerBound, middleLine, x);
-        } else if (x >= xs[linesRead - 1]) {
-            // Search for the x in the upper half
-            //System.out.println("x is bigger than the bound: " + xs[bytesRead/14 - 1]);
-            return findBound(fChan, middleLine, upperBound, x);
+    private static List<Query> readQueries(File file) throws IOException {
+        List<Query> queries = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty() || line.trim().startsWith("#")) continue;
+                try {
+                    queries.add(Query.parse(line));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Invalid query on line " + lineNumber + ": " + e.getMessage(),
+                            e);
+                }
+            }
         }
-        // If x hasn't fallen into any of the intervals, raise an Exception
-        throw new Exception("x is neither inside or outside the given bounds!");
+        return queries;
     }
 
     /**
@@ -333,39 +247,29 @@ public class Statistics {
                 "  <minY>              - vrednost Y, ki nam bo definiral zacetek obmocja, kjer bomo iskali tocke\n" +
                 "  <minY>              - vrednost Y, ki nam bo definiral konec obmocja, kjer bomo iskali tocke\n" +
                 "  <velikost kosa>     - velikost kosa v histogramu\n" +
-                "  <opcija>            - moznost izbire uporabnika preko argumenta, ali se za izracun statistike uporabila vrednosti intenzitete (i) ali visine (z)");
-    }
-
-    /**
-     * Preveri vhodne parametre (ali so meje zgresene)
-     */
-    private static void checkParams() {
-        if (MIN_X > MAX_X) {
-            System.out.println("Min X bound is higher than Max X");
-            System.exit(1);
-        }
-        if (MIN_Y > MAX_Y) {
-            System.out.println("Min Y bound is higher than Max Y");
-            System.exit(1);
-        }
+                "  <opcija>            - moznost izbire uporabnika preko argumenta, ali se za izracun statistike uporabila vrednosti intenzitete (i) ali visine (z)\n" +
+                "\n  Dodatne moznosti:\n" +
+                "  --mmap              - datoteko preslika v pomnilnik in tocke filtrira neposredno v njem (disk reads = dostopane strani)\n" +
+                "  --grid              - statistika iz povzetkov celic piramide (DataSort -g), tocke bere le za robne celice\n" +
+                "  --threads <n>       - obmocje bere in filtrira z n nitmi (najvec M/B, vsaka ima svoj buffer in histogram; ne z --mmap)\n" +
+                "  --json              - meritve (branja, bloki, casi faz, pomnilnik) izpise se kot eno vrstico JSON\n" +
+                "                        (pri --batch s stevilom tock, kosi in kvantili vsake poizvedbe);\n" +
+                "                        med izvajanjem so tudi MBean si.rubin:type=Metrics,name=Statistics\n" +
+                "  --quantiles         - izpise se mediano, p5, p95 in IQR iz povzetka KLL (ne z --grid);\n" +
+                "                        napaka ranga je najvec ~1.7 % tock, pomnilnik je omejen (nekaj 10 kB)\n" +
+                "\n  Vec poizvedb naenkrat:\n  Statistics --batch <obdelani_podatki> <M> <B> <poizvedbe> [--json] [--quantiles]\n" +
+                "  <poizvedbe>         - datoteka s poizvedbami, v vsaki vrstici: <minX> <maxX> <minY> <maxY> <velikost_kosa> <opcija>");
     }
 
     /**
-     * Inicializira vhodne podatke
-     * @param args iz metode main (argumenti pri zagonu)
+     * Doda kvantile (PERCENTILES) med polja za JSON
      */
-    private static void initParams(String[] args) {
-        DISK_READS = 0;
-        DATA_FILE = args[0];
-        MAX_MEMORY = Double.parseDouble(args[1]);
-        BLOCK_SIZE = Double.parseDouble(args[2]);
-        MIN_X = Double.parseDouble(args[3]);
-        MAX_X = Double.parseDouble(args[4]);
-        MIN_Y = Double.parseDouble(args[5]);
-        MAX_Y = Double.parseDouble(args[6]);
-        BIN_SIZE = Integer.parseInt(args[7]);
-        TARGET_VAR = args[8].charAt(0);
-        TARGETS = new ArrayList<>();
-        checkParams();
+    private static void putQuantiles(Map<String, Object> fields, double[] quantiles) {
+        fields.put("p5", quantiles[0]);
+        fields.put("q1", quantiles[1]);
+        fields.put("median", quantiles[2]);
+        fields.put("q3", quantiles[3]);
+        fields.put("p95", quantiles[4]);
+        fields.put("iqr", quantiles[3] - quantiles[1]);
     }
 }
@@ -0,0 +1,219 @@
+package si.rubin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Izvoz datoteke s tockami (katerekoli verzije) v tekstovno datoteko z vrsticami "x y z i" ali "x,y,z,i" (CSV).
+ * Datoteka se bere po kosih celih blokov, ki se v vec nitih preberejo, razpakirajo in pretvorijo v besedilo.
+ * Vsak kos dobi svoje obmocje izhodne datoteke, takoj ko je znana njegova dolzina (kosi ostanejo v vrstnem
+ * redu tock), in se tja zapise s pozicijskim pisanjem, medtem ko se naslednji kosi se pretvarjajo.
+ * V pomnilniku je hkrati le nekaj kosov na nit, zato velikost datoteke ni omejena s kopico.
+ * <p>
+ * Vrednosti se izpisejo na dve decimalki enako kot String.format("%.2f") (zaokrozevanje navzgor pri polovici),
+ * vendar vedno z decimalno piko in brez vmesnih String objektov, tako da jih TextPoints prebere nazaj v enake
+ * tocke, kot so bile v tekstovni datoteki z dvema decimalkama.
+ * Z obmocjem se izpisejo le tocke minX <= x < maxX, minY <= y < maxY, bloki izven obmocja pa se ne preberejo.
+ */
+class TextExport {
+    static final String CSV_HEADER = "x,y,z,i\n";
+    private static final int CHUNK_POINTS = 1 << 18;            // Points formatted by one task
+    private static final int MAX_LINE_BYTES = 192;              // Longest line, also with values like -3.4e38
+    private static final double MAX_EXACT = 1L << 51;           // Below this value * 100 + 0.5 is exact
+
+    private final int threads;
+    private final boolean csv;
+    private final RangeFilter filter;                           // null exports all the points
+    private final double minX, maxX, minY, maxY;
+
+    /**
+     * @param threads stevilo niti za pretvorbo in pisanje
+     * @param csv ali se vrednosti locijo z vejico (z glavo x,y,z,i) namesto s presledkom
+     */
+    TextExport(int threads, boolean csv) {
+        this(threads, csv, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Izvoz le tock znotraj obmocja minX <= x < maxX, minY <= y < maxY
+     */
+    TextExport(int threads, boolean csv, double minX, double maxX, double minY, double maxY) {
+        if (minX > maxX) throw new IllegalArgumentException("Min X bound is higher than Max X");
+        if (minY > maxY) throw new IllegalArgumentException("Min Y bound is higher than Max Y");
+        this.threads = Math.max(1, threads);
+        this.csv = csv;
+        this.minX = minX;
+        this.maxX = maxX;
+        this.minY = minY;
+        this.maxY = maxY;
+        boolean all = minX == Double.NEGATIVE_INFINITY && maxX == Double.POSITIVE_INFINITY
+                && minY == Double.NEGATIVE_INFINITY && maxY == Double.POSITIVE_INFINITY;
+        this.filter = all ? null : new RangeFilter(minX, maxX, minY, maxY);
+    }
+
+    /**
+     * Izvozi tocke iz binarne datoteke (@see si.rubin.PointFile) v tekstovno
+     * @return stevilo izvozenih tock
+     */
+    long export(File binaryFile, File textFile) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try (PointFile pointFile = PointFile.open(binaryFile);
+             FileChannel out = FileChannel.open(textFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long offset = 0;
+            if (csv) {
+                ByteBuffer header = ByteBuffer.wrap(CSV_HEADER.getBytes(StandardCharsets.US_ASCII));
+                PointFile.writeFully(out, header, 0);
+                offset = header.limit();
+            }
+            // Whole blocks per chunk, so compressed blocks are decoded by one task
+            long chunkLines = pointFile.blockPoints > 0
+                    ? Math.max(1, CHUNK_POINTS / pointFile.blockPoints) * (long) pointFile.blockPoints : CHUNK_POINTS;
+            Deque<Future<Chunk>> formatted = new ArrayDeque<>();
+            Deque<Future<?>> written = new ArrayDeque<>();
+            long exported = 0;
+            long from = 0;
+            while (from < pointFile.points || !formatted.isEmpty()) {
+                if (from < pointFile.points && formatted.size() < 2 * threads) {
+                    final long first = from, last = Math.min(pointFile.points, from + chunkLines);
+                    formatted.add(pool.submit(() -> format(pointFile, first, last)));
+                    from = last;
+                    continue;
+                }
+                // The oldest chunk is the next one in the file, its region starts where the previous ended
+                Chunk chunk = formatted.poll().get();
+                final long at = offset;
+                offset += chunk.length;
+                exported += chunk.points;
+                if (chunk.length > 0) {
+                    written.add(pool.submit(() -> {
+                        PointFile.writeFully(out, ByteBuffer.wrap(chunk.bytes, 0, chunk.length), at);
+                        return null;
+                    }));
+                }
+                // Bound the formatted chunks that wait to be written
+                while (written.size() > 2 * threads) written.poll().get();
+            }
+            while (!written.isEmpty()) written.poll().get();
+            return exported;
+        } catch (InterruptedException | ExecutionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("Export of " + binaryFile + " failed", cause);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Prebere, razpakira, filtrira in pretvori vrstice med from in to (zacetka celih blokov ali konec datoteke)
+     */
+    private Chunk format(PointFile pointFile, long from, long to) throws IOException {
+        if (filter != null && pointFile.zones != null) {
+            // Only read the blocks between the first and the last one that may have points inside the area
+            int first = (int) (from / pointFile.blockPoints);
+            int last = (int) ((to - 1) / pointFile.blockPoints);
+            while (first <= last && !pointFile.zones.mayContain(first, minX, maxX, minY, maxY)) first++;
+            while (last >= first && !pointFile.zones.mayContain(last, minX, maxX, minY, maxY)) last--;
+            if (first > last) return new Chunk(new byte[0], 0, 0);
+            from = Math.max(from, (long) first * pointFile.blockPoints);
+            to = Math.min(to, (long) (last + 1) * pointFile.blockPoints);
+        }
+        long offset = pointFile.lineOffset(from);
+        ByteBuffer bb = PointFile.readFully(pointFile.fChan, offset, (int) (pointFile.lineOffset(to) - offset));
+        int lines = (int) (to - from);
+        float[] xs = new float[lines], ys = new float[lines], zs = new float[lines];
+        short[] is = new short[lines];
+        int n = pointFile.decode(bb, xs, ys, zs, is);
+        if (filter != null) n = filter.select(xs, ys, zs, is, n);
+
+        byte separator = (byte) (csv ? ',' : ' ');
+        byte[] bytes = new byte[Math.max(n, 1) * 32];
+        int p = 0;
+        for (int k = 0; k < n; k++) {
+            if (bytes.length - p < MAX_LINE_BYTES) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            p = putFloat(bytes, p, xs[k]);
+            bytes[p++] = separator;
+            p = putFloat(bytes, p, ys[k]);
+            bytes[p++] = separator;
+            p = putFloat(bytes, p, zs[k]);
+            bytes[p++] = separator;
+            p = putLong(bytes, p, is[k]);
+            bytes[p++] = '\n';
+        }
+        return new Chunk(bytes, p, n);
+    }
+
+    /**
+     * Zapise vrednost na dve decimalki (kot String.format("%.2f"), a vedno s piko)
+     * @return pozicija za zapisano vrednostjo
+     */
+    static int putFloat(byte[] out, int p, float value) {
+        // A float has 24 bits of mantissa and 100 has 7, so the product is exact in a double
+        double hundredths = value * 100.0;
+        if (!(Math.abs(hundredths) < MAX_EXACT)) {
+            // NaN, infinity and huge values are rare enough for String.format
+            for (byte b : String.format(Locale.ROOT, "%.2f", value).getBytes(StandardCharsets.US_ASCII)) out[p++] = b;
+            return p;
+        }
+        // The sign bit also keeps -0.00 and negative values that round to zero
+        if (Float.floatToRawIntBits(value) < 0) out[p++] = '-';
+        long rounded = (long) (Math.abs(hundredths) + 0.5);     // Half up, like Formatter
+        p = putLong(out, p, rounded / 100);
+        int cents = (int) (rounded % 100);
+        out[p++] = '.';
+        out[p++] = (byte) ('0' + cents / 10);
+        out[p++] = (byte) ('0' + cents % 10);
+        return p;
+    }
+
+    /**
+     * Zapise celo stevilo
+     * @return pozicija za zapisano vrednostjo
+     */
+    static int putLong(byte[] out, int p, long value) {
+        if (value < 0) {
+            out[p++] = '-';
+            value = -value;
+        }
+        // Digits from the lowest, then reversed in place
+        int start = p;
+        do {
+            out[p++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        for (int a = start, b = p - 1; a < b; a++, b--) {
+            byte digit = out[a];
+            out[a] = out[b];
+            out[b] = digit;
+        }
+        return p;
+    }
+
+    /**
+     * Pretvorjen kos: prvih length bytov tabele bytes za points tock
+     */
+    private static class Chunk {
+        final byte[] bytes;
+        final int length;
+        final int points;
+
+        Chunk(byte[] bytes, int length, int points) {
+            this.bytes = bytes;
+            this.length = length;
+            this.points = points;
+        }
+    }
+}
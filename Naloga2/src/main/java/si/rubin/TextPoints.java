@@ -0,0 +1,255 @@
+package si.rubin;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Branje tekstovne datoteke z vrsticami "x y z i" (vrednosti locene z enim presledkom, konec vrstice \n ali \r\n).
+ * Datoteka se preslika v pomnilnik po segmentih, ki se koncajo s celo vrstico, vrednosti pa se pretvorijo
+ * neposredno iz bytov v tabele xs, ys, zs in is, brez vmesnih String objektov.
+ * Decimalna stevila z najvec 15 stevkami se pretvorijo hitro in dajo enak float kot Float.parseFloat,
+ * ostala (eksponent, NaN, ...) pa se pretvorijo s Float.parseFloat oz. Short.parseShort.
+ * Prazne vrstice se preskocijo, vsaka druga napaka v vrstici se javi z IOException (vrstica in odmik v datoteki).
+ */
+class TextPoints implements Closeable {
+    static final int BATCH = 4096;                      // Points parsed into the columns at once
+    private static final long SEGMENT_BYTES = 1L << 30;
+    private static final int MAX_FAST_DIGITS = 15;      // Any 15 digit integer is exact in a double
+    private static final double[] POWERS = new double[23];  // Exact powers of ten in a double
+    private static final String[] FIELDS = {"x", "y", "z", "i"};
+
+    static {
+        POWERS[0] = 1;
+        for (int p = 1; p < POWERS.length; p++) POWERS[p] = POWERS[p - 1] * 10;
+    }
+
+    final float[] xs = new float[BATCH];
+    final float[] ys = new float[BATCH];
+    final float[] zs = new float[BATCH];
+    final short[] is = new short[BATCH];
+
+    private final File input;
+    private final FileChannel fChan;
+    private final long from, to;
+    private MappedByteBuffer segment;
+    private long segmentStart;                  // Offset of the segment in the file
+    private int position, limit;                // Next byte and end of the whole lines in the segment
+    private long line;                          // Lines read so far (from the start of the file if from = 0)
+
+    /**
+     * Bere celotno datoteko
+     */
+    TextPoints(File input) throws IOException {
+        this(input, 0, -1);
+    }
+
+    /**
+     * Bere vrstice med odmikoma from in to (from mora biti zacetek vrstice, to = -1 za konec datoteke)
+     */
+    TextPoints(File input, long from, long to) throws IOException {
+        this.input = input;
+        this.fChan = FileChannel.open(input.toPath(), StandardOpenOption.READ);
+        this.from = from;
+        this.to = to < 0 ? fChan.size() : to;
+        segmentStart = from;
+    }
+
+    /**
+     * Pretvori naslednje tocke v tabele xs, ys, zs in is
+     * @param max najvecje stevilo tock (najvec BATCH)
+     * @return stevilo pretvorjenih tock (0 na koncu)
+     */
+    int next(int max) throws IOException {
+        max = Math.min(max, BATCH);
+        int n = 0;
+        while (n < max) {
+            if (position == limit && !nextSegment()) break;
+            int start = position;
+            line++;
+            // Skip empty lines
+            if (get(start) == '\n') {
+                position++;
+                continue;
+            }
+            if (get(start) == '\r' && (start + 1 == limit || get(start + 1) == '\n')) {
+                position = Math.min(start + 2, limit);
+                continue;
+            }
+            xs[n] = parseFloat(start, 0);
+            ys[n] = parseFloat(start, 1);
+            zs[n] = parseFloat(start, 2);
+            is[n] = parseShort(start);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * @return zgornja meja za stevilo vrstic med from in to (stevilo znakov za novo vrstico + 1)
+     */
+    long countLines() throws IOException {
+        long lines = 1;
+        for (long start = from; start < to; start += SEGMENT_BYTES) {
+            long size = Math.min(SEGMENT_BYTES, to - start);
+            MappedByteBuffer bytes = fChan.map(FileChannel.MapMode.READ_ONLY, start, size);
+            for (int k = bytes.limit() - 1; k >= 0; k--) {
+                if (bytes.get(k) == '\n') lines++;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Preslika naslednji segment datoteke, ki se konca s celo vrstico
+     * @return false, ce je datoteka prebrana do konca
+     */
+    private boolean nextSegment() throws IOException {
+        segmentStart += limit;
+        if (segmentStart >= to) return false;
+        long size = Math.min(SEGMENT_BYTES, to - segmentStart);
+        segment = fChan.map(FileChannel.MapMode.READ_ONLY, segmentStart, size);
+        limit = (int) size;
+        position = 0;
+        if (segmentStart + size < to) {
+            // Cut the segment after its last newline, the rest is mapped with the next one
+            int end = limit;
+            while (end > 0 && segment.get(end - 1) != '\n') end--;
+            if (end == 0) throw malformed(0, "line longer than " + size + " bytes");
+            limit = end;
+        }
+        return true;
+    }
+
+    private byte get(int index) {
+        return segment.get(index);
+    }
+
+    /**
+     * Pretvori vrednost na poziciji in preveri znak za njo (presledek)
+     * @param field indeks vrednosti v vrstici (za sporocilo o napaki)
+     */
+    private float parseFloat(int lineStart, int field) throws IOException {
+        int p = position;
+        boolean negative = false;
+        if (p < limit && (get(p) == '-' || get(p) == '+')) negative = get(p++) == '-';
+        long mantissa = 0;
+        int digits = 0, scale = -1;             // Digits after the decimal point (-1 without it)
+        for (; p < limit; p++) {
+            byte b = get(p);
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (scale >= 0) scale++;
+            } else if (b == '.' && scale < 0) {
+                scale = 0;
+            } else {
+                break;
+            }
+        }
+        float value = Float.NaN;
+        if (digits > 0 && digits <= MAX_FAST_DIGITS && scale < POWERS.length && endsValue(p)) {
+            // The mantissa and the power of ten are exact, so the division is rounded once
+            value = toFloat(scale > 0 ? mantissa / POWERS[scale] : mantissa);
+        }
+        if (!Float.isNaN(value)) {
+            if (negative) value = -value;
+        } else {
+            p = valueEnd(position);
+            try {
+                value = Float.parseFloat(text(position, p));
+            } catch (NumberFormatException e) {
+                throw malformed(lineStart, "invalid " + FIELDS[field] + " value");
+            }
+        }
+        if (p == limit || get(p) != ' ') throw malformed(lineStart, "missing " + FIELDS[field + 1] + " value");
+        position = p + 1;
+        return value;
+    }
+
+    /**
+     * Zaokrozi double na float, kot ga bi Float.parseFloat iz tocne decimalne vrednosti
+     * @return NaN, ce zaokrozitev ni nujno enaka (double je tocno na sredini med dvema floatoma ali izven
+     *         obmocja normalnih floatov), takrat se vrednost pretvori s Float.parseFloat
+     */
+    private static float toFloat(double value) {
+        if (value == 0) return 0;
+        if (value < Float.MIN_NORMAL || value >= Float.MAX_VALUE) return Float.NaN;
+        // A double is rounded to the same float as the exact decimal, unless it lies on a midpoint
+        // between two floats (the low 29 bits of its mantissa are 1 followed by zeros)
+        if ((Double.doubleToRawLongBits(value) & 0x1FFFFFFFL) == 0x10000000L) return Float.NaN;
+        return (float) value;
+    }
+
+    /**
+     * Pretvori intenziteto na koncu vrstice in se premakne na naslednjo vrstico
+     */
+    private short parseShort(int lineStart) throws IOException {
+        int p = position;
+        boolean negative = false;
+        if (p < limit && (get(p) == '-' || get(p) == '+')) negative = get(p++) == '-';
+        int value = 0, digits = 0;
+        for (; p < limit && digits <= 5; p++, digits++) {
+            byte b = get(p);
+            if (b < '0' || b > '9') break;
+            value = value * 10 + (b - '0');
+        }
+        if (negative) value = -value;
+        if (digits == 0 || digits > 5 || value < Short.MIN_VALUE || value > Short.MAX_VALUE || !endsValue(p)) {
+            p = valueEnd(position);
+            try {
+                value = Short.parseShort(text(position, p));
+            } catch (NumberFormatException e) {
+                throw malformed(lineStart, "invalid i value");
+            }
+        }
+        // The line has to end here, with \n, \r\n or at the end of the input
+        if (p < limit && get(p) == '\r') p++;
+        if (p < limit) {
+            if (get(p) != '\n') throw malformed(lineStart, "extra characters after the i value");
+            p++;
+        }
+        position = p;
+        return (short) value;
+    }
+
+    private boolean endsValue(int p) {
+        return p == limit || get(p) == ' ' || get(p) == '\n' || get(p) == '\r';
+    }
+
+    /**
+     * @return pozicija za koncem vrednosti, ki se zacne na start
+     */
+    private int valueEnd(int start) {
+        int p = start;
+        while (!endsValue(p)) p++;
+        return p;
+    }
+
+    private String text(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int k = 0; k < bytes.length; k++) bytes[k] = get(start + k);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return napaka z vrstico, ki se zacne na lineStart (stevilka vrstice je znana le pri branju od zacetka)
+     */
+    private IOException malformed(int lineStart, String reason) {
+        int end = lineStart;
+        while (end < limit && end - lineStart < 80 && get(end) != '\n' && get(end) != '\r') end++;
+        String where = from == 0 ? "line " + line + " (byte " + (segmentStart + lineStart) + ")"
+                : "byte " + (segmentStart + lineStart);
+        return new IOException("Malformed point at " + where + " of " + input + ": " + reason + " in \""
+                + text(lineStart, end) + "\", expected \"x y z i\"");
+    }
+
+    @Override
+    public void close() throws IOException {
+        fChan.close();
+    }
+}
@@ -0,0 +1,112 @@
+package si.rubin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Stisnjeni bloki se morajo prebrati v natancno iste tocke, tudi ko se ne dajo zapakirati
+ */
+public class BlockCodecTest {
+    private final Random random = new Random(3);
+
+    @Test
+    public void packedBlocksRoundTrip() {
+        TestPoints block = randomBlock(4096);
+        assertTrue("The block was not packed", roundTrip(block).limit() < BlockCodec.maxSize(4096) / 2);
+        // Unsorted X gives negative deltas, as in the Hilbert layout
+        for (int k = 0; k < 100; k++) block.xs[random.nextInt(4096)] = -random.nextInt(100000) / 100f;
+        assertTrue("The block was not packed", roundTrip(block).limit() < BlockCodec.maxSize(4096));
+    }
+
+    @Test
+    public void constantColumnsRoundTrip() {
+        TestPoints block = randomBlock(100);
+        Arrays.fill(block.xs, 12.5f);
+        Arrays.fill(block.is, (short) 7);
+        roundTrip(block);
+    }
+
+    @Test
+    public void singlePointRoundTrips() {
+        roundTrip(randomBlock(1));
+    }
+
+    @Test
+    public void valuesOffTheGridAreWrittenRaw() {
+        TestPoints block = randomBlock(50);
+        block.zs[10] = 0.123f;
+        assertEquals(BlockCodec.maxSize(50), roundTrip(block).limit());
+
+        block = randomBlock(50);
+        block.ys[20] = -0.0f;
+        assertEquals(BlockCodec.maxSize(50), roundTrip(block).limit());
+    }
+
+    @Test
+    public void blocksAreDecodedOneAfterAnother() {
+        TestPoints first = randomBlock(300), second = randomBlock(17);
+        second.zs[0] = Float.NaN;
+        ByteBuffer bb = ByteBuffer.allocate(BlockCodec.maxSize(300) + BlockCodec.maxSize(17));
+        BlockCodec.encode(first.xs, first.ys, first.zs, first.is, 300, bb);
+        BlockCodec.encode(second.xs, second.ys, second.zs, second.is, 17, bb);
+        bb.flip();
+        TestPoints decoded = new TestPoints(317);
+        int n = BlockCodec.decode(bb, decoded.xs, decoded.ys, decoded.zs, decoded.is, 0);
+        n += BlockCodec.decode(bb, decoded.xs, decoded.ys, decoded.zs, decoded.is, n);
+        assertEquals(317, n);
+        assertEquals(bb.limit(), bb.position());
+        assertBlock(first, decoded, 0);
+        assertBlock(second, decoded, 300);
+    }
+
+    /**
+     * Zapise in prebere blok ter preveri tocke
+     * @return zapisan blok
+     */
+    private static ByteBuffer roundTrip(TestPoints block) {
+        int n = block.size();
+        ByteBuffer bb = ByteBuffer.allocate(BlockCodec.maxSize(n));
+        BlockCodec.encode(block.xs, block.ys, block.zs, block.is, n, bb);
+        bb.flip();
+        ByteBuffer written = bb.duplicate();
+        TestPoints decoded = new TestPoints(n);
+        assertEquals(n, BlockCodec.decode(bb, decoded.xs, decoded.ys, decoded.zs, decoded.is, 0));
+        assertEquals(bb.limit(), bb.position());
+        assertBlock(block, decoded, 0);
+        return written;
+    }
+
+    private static void assertBlock(TestPoints expected, TestPoints decoded, int offset) {
+        int n = expected.size();
+        for (int k = 0; k < n; k++) {
+            // Compared as bits, so that -0.0 and NaN have to come back unchanged
+            assertEquals(Float.floatToRawIntBits(expected.xs[k]), Float.floatToRawIntBits(decoded.xs[offset + k]));
+            assertEquals(Float.floatToRawIntBits(expected.ys[k]), Float.floatToRawIntBits(decoded.ys[offset + k]));
+            assertEquals(Float.floatToRawIntBits(expected.zs[k]), Float.floatToRawIntBits(decoded.zs[offset + k]));
+        }
+        assertArrayEquals(expected.is, Arrays.copyOfRange(decoded.is, offset, offset + n));
+    }
+
+    /**
+     * @return blok tock na 2 decimalki, urejen po X
+     */
+    private TestPoints randomBlock(int n) {
+        TestPoints block = new TestPoints(n);
+        int x = 38000000 + random.nextInt(1000000);
+        for (int k = 0; k < n; k++) {
+            x += random.nextInt(40);
+            block.xs[k] = (float) (x / 100.);
+            block.ys[k] = (float) ((3900000 + random.nextInt(200000)) / 100.);
+            block.zs[k] = (float) ((20000 + random.nextInt(5000)) / 100.);
+            block.is[k] = (short) (random.nextInt(600) - 100);
+        }
+        return block;
+    }
+}
@@ -0,0 +1,121 @@
+package si.rubin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Redki indeks: zapis in branje, zavrnitev zastarelega indeksa in meje, med katerimi je prva vrstica z X >= x
+ */
+public class FenceIndexTest {
+    private static final int POINTS = 10000;
+    private static final int FENCE_POINTS = 64;
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static File text;
+    private static File plain;
+    private static TestPoints points;
+
+    @BeforeClass
+    public static void writePoints() throws IOException {
+        text = folder.newFile("points.txt");
+        TestPoints.write(text, POINTS, 4);
+        plain = folder.newFile();
+        new PointSorter(64L << 20, folder.getRoot(), 1, 0, PointFile.LAYOUT_XYZ).sort(text, plain);
+        points = TestPoints.read(plain);
+    }
+
+    @Test
+    public void fencesBoundTheFirstLineWithX() throws IOException {
+        try (PointFile pointFile = PointFile.open(plain)) {
+            FenceIndex index = FenceIndex.build(pointFile, FENCE_POINTS);
+            assertEquals((POINTS + FENCE_POINTS - 1) / FENCE_POINTS, index.fences.length);
+            assertEquals(POINTS % FENCE_POINTS, index.fenceSize(index.fences.length - 1));
+            float[] xs = points.xs;
+            for (double x : new double[]{-1e9, xs[0], xs[0] + 0.01, xs[POINTS / 2], xs[POINTS - 1], 1e9}) {
+                assertBound(index, x);
+            }
+            for (int k = 0; k < POINTS; k += 97) assertBound(index, xs[k]);
+        }
+    }
+
+    @Test
+    public void indexIsWrittenAndReadBack() throws IOException {
+        File data = copy(plain);
+        try (PointFile pointFile = PointFile.open(data)) {
+            FenceIndex built = FenceIndex.build(pointFile, FENCE_POINTS);
+            built.write(data);
+            FenceIndex read = FenceIndex.read(data, pointFile);
+            assertNotNull(read);
+            assertEquals(built.points, read.points);
+            assertEquals(built.fencePoints, read.fencePoints);
+            assertTrue(Arrays.equals(built.fences, read.fences));
+        }
+    }
+
+    @Test
+    public void staleIndexIsIgnored() throws IOException {
+        File data = copy(plain);
+        try (PointFile pointFile = PointFile.open(data)) {
+            FenceIndex.build(pointFile, FENCE_POINTS).write(data);
+        }
+        // The data is rewritten with blocks, the old index does not belong to it anymore
+        new PointSorter(64L << 20, folder.getRoot(), 1, 500, PointFile.LAYOUT_XYZ).sort(text, data);
+        try (PointFile pointFile = PointFile.open(data)) {
+            assertNull(FenceIndex.read(data, pointFile));
+        }
+    }
+
+    @Test
+    public void blocksAreTheFences() throws IOException {
+        File data = folder.newFile();
+        new PointSorter(64L << 20, folder.getRoot(), 1, 500, PointFile.LAYOUT_XYZ).sort(text, data);
+        try (PointFile pointFile = PointFile.open(data)) {
+            FenceIndex index = FenceIndex.build(pointFile, FENCE_POINTS);
+            assertEquals(500, index.fencePoints);
+            assertTrue(Arrays.equals(Arrays.copyOf(pointFile.zones.minX, pointFile.blockCount), index.fences));
+            for (int k = 0; k < POINTS; k += 101) assertBound(index, points.xs[k]);
+        }
+    }
+
+    @Test
+    public void hilbertLayoutHasNoIndex() throws IOException {
+        File data = folder.newFile();
+        new PointSorter(64L << 20, folder.getRoot(), 1, 500, PointFile.LAYOUT_HILBERT).sort(text, data);
+        try (PointFile pointFile = PointFile.open(data)) {
+            FenceIndex.build(pointFile, FENCE_POINTS).write(data);
+            assertNull(FenceIndex.read(data, pointFile));
+        }
+    }
+
+    /**
+     * Vse vrstice pred mejo lastFenceBelow(x) imajo X < x, vrstice od naslednje meje naprej pa X >= x
+     */
+    private static void assertBound(FenceIndex index, double x) {
+        int k = index.lastFenceBelow(x);
+        long from = k < 0 ? 0 : index.fenceLine(k);
+        long to = k < 0 ? 0 : from + index.fenceSize(k);
+        for (long line = 0; line < from; line++) assertTrue(points.xs[(int) line] < x);
+        for (long line = to; line < POINTS; line++) assertTrue(points.xs[(int) line] >= x);
+    }
+
+    private static File copy(File file) throws IOException {
+        File copy = folder.newFile();
+        Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return copy;
+    }
+}
@@ -0,0 +1,244 @@
+package si.rubin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Histogram v enem prehodu mora dati iste kose kot stetje posameznih vrednosti in iste momente kot izracun
+ * iz vseh vrednosti, tudi ce se zdruzi iz vec delov, pri tem pa ne sme hraniti vrednosti
+ */
+public class HistogramTest {
+    private static final int VALUES = 50000;
+    private static final double DELTA = 1e-9;
+
+    private final Random random = new Random(5);
+
+    @Test
+    public void matchesTheValues() {
+        float[] values = heights(VALUES);
+        for (int binSize : new int[]{1, 3, 10}) {
+            Histogram histogram = new Histogram(binSize);
+            for (float value : values) histogram.add(value);
+            assertEquals(VALUES, histogram.size());
+            assertEquals(bins(values, binSize), histogram.bins());
+            assertClose(reference(values), histogram.moments());
+            assertCounts(values, histogram, binSize);
+        }
+    }
+
+    @Test
+    public void mergeMatchesOneHistogram() {
+        float[] values = heights(VALUES);
+        Histogram whole = new Histogram(2);
+        for (float value : values) whole.add(value);
+        // Parts with different ranges, merged so that the table of bins has to grow on both sides
+        Histogram merged = new Histogram(2);
+        double[][] ranges = {{250, 270}, {230, 250}, {270, Double.POSITIVE_INFINITY}, {Double.NEGATIVE_INFINITY, 230}};
+        for (double[] range : ranges) {
+            Histogram part = new Histogram(2);
+            for (float value : values) {
+                if (value >= range[0] && value < range[1]) part.add(value);
+            }
+            merged.merge(part);
+        }
+        assertSame(whole, merged);
+        assertCounts(values, merged, 2);
+    }
+
+    @Test
+    public void smallerBinsMergeIntoLargerOnes() {
+        float[] values = heights(VALUES);
+        Histogram units = new Histogram(1), tens = new Histogram(10);
+        for (float value : values) units.add(value);
+        tens.merge(units);
+        assertEquals(10, tens.binSize());
+        assertCounts(values, tens, 10);
+        assertClose(reference(values), tens.moments());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void largerBinsAreNotSplit() {
+        Histogram tens = new Histogram(10);
+        tens.add(1);
+        new Histogram(3).merge(tens);
+    }
+
+    @Test
+    public void addAllMatchesAddingEachValue() {
+        float[] values = heights(VALUES);
+        values[100] = -0.5f;                    // Below zero, the bin is rounded down
+        values[200] = 1e9f;                     // The batch does not fit into one table of bins
+        short[] intensities = new short[VALUES];
+        for (int k = 0; k < VALUES; k++) intensities[k] = (short) (random.nextGaussian() * 500);
+        Histogram one = new Histogram(2), all = new Histogram(2);
+        Histogram oneI = new Histogram(10), allI = new Histogram(10);
+        for (int k = 0; k < VALUES; k++) {
+            one.add(values[k]);
+            oneI.add(intensities[k]);
+        }
+        for (int from = 0; from < VALUES; from += 1000) {
+            all.addAll(Arrays.copyOfRange(values, from, from + 1000), 1000);
+            allI.addAll(Arrays.copyOfRange(intensities, from, from + 1000), 1000);
+        }
+        all.addAll(values, 0);
+        assertSame(one, all);
+        assertSame(oneI, allI);
+        float[] asFloats = new float[VALUES];
+        for (int k = 0; k < VALUES; k++) asFloats[k] = intensities[k];
+        assertCounts(asFloats, allI, 10);
+    }
+
+    @Test
+    public void readGivesBackTheWrittenHistogram() {
+        float[] values = heights(VALUES);
+        Histogram written = new Histogram(1);
+        for (float value : values) written.add(value);
+        ByteBuffer bb = ByteBuffer.allocate(written.bytes() + 3);
+        bb.position(3);
+        written.write(bb);
+        assertEquals(bb.capacity(), bb.position());
+        bb.position(3);
+        Histogram read = Histogram.read(bb);
+        assertSame(written, read);
+        assertCounts(values, read, 1);
+        // Also after a merge, as in the pyramid of the grid
+        Histogram merged = new Histogram(5);
+        merged.merge(read);
+        assertCounts(values, merged, 5);
+        assertClose(reference(values), merged.moments());
+    }
+
+    @Test
+    public void valuesFarApartAreKept() {
+        float[] values = heights(1000);
+        values[10] = 1e9f;                      // Too far from the rest for one table of bins
+        values[20] = -1e9f;
+        Histogram histogram = new Histogram(1);
+        for (float value : values) histogram.add(value);
+        assertEquals(values.length, histogram.size());
+        assertEquals(bins(values, 1), histogram.bins());
+        assertClose(reference(values), histogram.moments());
+    }
+
+    @Test
+    public void memoryDoesNotGrowWithTheValues() {
+        Histogram histogram = new Histogram(1);
+        // Around all the heights, so that no more bins are needed
+        histogram.add(100);
+        histogram.add(400);
+        histogram.addAll(heights(VALUES), VALUES);
+        long memory = histogram.memory();
+        for (int k = 0; k < 20; k++) histogram.addAll(heights(VALUES), VALUES);
+        assertEquals(2 + 21 * VALUES, histogram.size());
+        assertEquals(memory, histogram.memory());
+        // At most twice the 301 bins, not the values
+        assertTrue(memory <= 2 * 301 * 4);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mergeDoesNotLoseQuantileValues() {
+        Histogram tracked = new Histogram(1), untracked = new Histogram(1);
+        tracked.trackQuantiles();
+        untracked.add(1);
+        tracked.merge(untracked);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mergeDoesNotGiveQuantilesToTrackedValues() {
+        Histogram tracked = new Histogram(1), untracked = new Histogram(1);
+        tracked.trackQuantiles();
+        tracked.add(1);
+        untracked.add(2);
+        untracked.merge(tracked);
+    }
+
+    @Test
+    public void emptyHistogramsMergeWithQuantiles() {
+        Histogram tracked = new Histogram(1), untracked = new Histogram(1);
+        tracked.trackQuantiles();
+        tracked.add(1);
+        tracked.merge(new Histogram(1));
+        untracked.merge(tracked);
+        assertNotNull(untracked.quantiles());
+        assertEquals(1, untracked.quantiles().quantiles(0.5)[0], 0);
+    }
+
+    /**
+     * Primerja stevilo vrednosti, kose in momente dveh histogramov (vsote se lahko razlikujejo le v zaokrozevanju)
+     */
+    private static void assertSame(Histogram expected, Histogram actual) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.bins(), actual.bins());
+        assertClose(expected.moments(), actual.moments());
+    }
+
+    private static void assertClose(double[] expected, double[] actual) {
+        for (int k = 0; k < expected.length; k++) {
+            assertEquals(expected[k], actual[k], Math.max(1, Math.abs(expected[k])) * DELTA);
+        }
+    }
+
+    /**
+     * Preveri, da so v vsakem kosu natanko vrednosti v z floor(v / binSize) tega kosa
+     */
+    private static void assertCounts(float[] values, Histogram histogram, int binSize) {
+        long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+        for (float value : values) {
+            first = Math.min(first, (long) Math.floor(value / binSize));
+            last = Math.max(last, (long) Math.floor(value / binSize));
+        }
+        int[] expected = new int[(int) (last - first + 3)];
+        for (float value : values) expected[(int) ((long) Math.floor(value / binSize) - first + 1)]++;
+        int[] actual = new int[expected.length];
+        for (int k = 0; k < actual.length; k++) actual[k] = histogram.count(first - 1 + k);
+        assertArrayEquals(expected, actual);
+    }
+
+    /**
+     * @return stevilo kosov, kot ga izracuna Statistics
+     */
+    private static int bins(float[] values, int binSize) {
+        float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+        for (float value : values) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        return Math.max(1, (int) Math.ceil((max - min) / binSize));
+    }
+
+    /**
+     * Momenti, izracunani v dveh prehodih iz vseh vrednosti
+     */
+    private static double[] reference(float[] values) {
+        double n = values.length, sum = 0;
+        for (float value : values) sum += value;
+        double average = sum / n, m2 = 0, m3 = 0, m4 = 0;
+        for (float value : values) {
+            double d = value - average;
+            m2 += d * d;
+            m3 += d * d * d;
+            m4 += d * d * d * d;
+        }
+        return new double[]{average, Math.sqrt(m2 / n), (m3 / n) / Math.pow(m2 / (n - 1), 1.5),
+                n * (m4 / (m2 * m2)) - 3};
+    }
+
+    /**
+     * @return visine na 2 decimalki
+     */
+    private float[] heights(int n) {
+        float[] values = new float[n];
+        for (int k = 0; k < n; k++) {
+            values[k] = (float) (Math.round((250 + random.nextGaussian() * 20) * 100) / 100.);
+        }
+        return values;
+    }
+}
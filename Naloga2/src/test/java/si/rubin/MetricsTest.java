@@ -0,0 +1,114 @@
+package si.rubin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+/**
+ * Stevci branja, zdruzevanje meritev, izpis JSON in dostop preko JMX
+ */
+public class MetricsTest {
+
+    @Test
+    public void countsReadsAndSeeks() {
+        Metrics metrics = new Metrics();
+        metrics.read(0, 100);
+        metrics.read(200, 50);
+        metrics.read(100, 20);
+        assertEquals(3, metrics.getReadCalls());
+        assertEquals(170, metrics.getBytesRead());
+        // 100 forward to 200, then 150 back from 250 to 100
+        assertEquals(250, metrics.getSeekDistance());
+        metrics.pages(3, 4096);
+        assertEquals(6, metrics.getReadCalls());
+        assertEquals(170 + 3 * 4096, metrics.getBytesRead());
+        metrics.reset();
+        assertEquals(0, metrics.getReadCalls());
+        // After a reset the first read has no seek again
+        metrics.read(1000, 10);
+        assertEquals(0, metrics.getSeekDistance());
+    }
+
+    @Test
+    public void mergesCounters() {
+        Metrics total = new Metrics(), part = new Metrics();
+        total.read(0, 10);
+        total.blocks(2, 5);
+        total.time(Metrics.Phase.SCAN, 1000);
+        part.read(50, 10);
+        part.read(70, 10);
+        part.blocks(1, 1);
+        part.time(Metrics.Phase.SCAN, 500);
+        part.query();
+        total.merge(part);
+        assertEquals(3, total.getReadCalls());
+        assertEquals(30, total.getBytesRead());
+        assertEquals(10, total.getSeekDistance());
+        assertEquals(3, total.getBlocksScanned());
+        assertEquals(6, total.getBlocksPruned());
+        assertEquals(1, total.getQueries());
+        assertEquals(1500, total.nanos(Metrics.Phase.SCAN));
+    }
+
+    @Test
+    public void printsOneLineOfJson() {
+        Metrics metrics = new Metrics();
+        metrics.read(0, 14);
+        metrics.time(Metrics.Phase.BOUND, 1234567);
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("file", "a \"b\"\\c\n");
+        fields.put("points", 7);
+        String json = metrics.toJson(fields);
+        assertTrue(json, json.startsWith("{\"file\":\"a \\\"b\\\"\\\\c\\u000a\",\"points\":7,\"readCalls\":1,"
+                + "\"bytesRead\":14,\"seekDistance\":0,\"blocksScanned\":0,\"blocksPruned\":0,\"boundMillis\":1.235,"));
+        // Only the phases that were timed, and no queries before the first one
+        assertFalse(json, json.contains("scanMillis"));
+        assertFalse(json, json.contains("queries"));
+        assertTrue(json, json.matches("\\{[^\\n{}]*\"mappedBufferUsed\":[0-9]+}"));
+    }
+
+    @Test
+    public void printsNestedResults() {
+        Map<String, Object> first = new LinkedHashMap<>(), empty = new LinkedHashMap<>();
+        first.put("points", 3);
+        first.put("median", 2.5);
+        empty.put("points", 0);
+        empty.put("median", Double.NaN);
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("results", Arrays.asList(first, empty));
+        String json = new Metrics().toJson(fields);
+        // The median of an empty area is not a JSON number
+        assertTrue(json, json.startsWith("{\"results\":[{\"points\":3,\"median\":2.5},{\"points\":0,\"median\":null}],"
+                + "\"readCalls\":0,"));
+    }
+
+    @Test
+    public void isVisibleOverJmx() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("si.rubin:type=Metrics,name=MetricsTest");
+        Metrics first = new Metrics(), second = new Metrics();
+        Metrics.register(first, "MetricsTest");
+        first.read(0, 100);
+        assertEquals(1L, server.getAttribute(name, "ReadCalls"));
+        assertEquals(100L, server.getAttribute(name, "BytesRead"));
+        // The same name replaces the earlier metrics
+        Metrics.register(second, "MetricsTest");
+        assertEquals(0L, server.getAttribute(name, "ReadCalls"));
+        second.read(0, 5);
+        server.invoke(name, "reset", new Object[0], new String[0]);
+        assertEquals(0, second.getReadCalls());
+        assertTrue(((String) server.getAttribute(name, "Summary")).startsWith("{\"readCalls\":0,"));
+        server.unregisterMBean(name);
+    }
+}
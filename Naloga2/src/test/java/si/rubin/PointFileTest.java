@@ -0,0 +1,139 @@
+package si.rubin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Zapis in branje datotek s tockami: bloki verzij 1 in 2 morajo imeti iste tocke kot verzija 0, zemljevidi blokov
+ * pa morajo pokriti vse tocke svojega bloka
+ */
+public class PointFileTest {
+    private static final int POINTS = 10000;
+    private static final int BLOCK_POINTS = 300;        // The last block is not full
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static File text;
+    private static TestPoints plain;
+
+    @BeforeClass
+    public static void writeVersion0() throws IOException {
+        text = folder.newFile("points.txt");
+        TestPoints.write(text, POINTS, 2);
+        File file = folder.newFile();
+        new PointSorter(64L << 20, folder.getRoot(), 1, 0, PointFile.LAYOUT_XYZ).sort(text, file);
+        try (PointFile pointFile = PointFile.open(file)) {
+            assertEquals(0, pointFile.version);
+            assertEquals(POINTS, pointFile.points);
+            assertNull(pointFile.zones);
+        }
+        plain = TestPoints.read(file);
+    }
+
+    @Test
+    public void blocksHoldTheSamePoints() throws IOException {
+        File file = sort(PointFile.LAYOUT_XYZ, false);
+        try (PointFile pointFile = PointFile.open(file)) {
+            assertEquals(PointFile.VERSION, pointFile.version);
+            assertEquals(BLOCK_POINTS, pointFile.blockPoints);
+            assertEquals((POINTS + BLOCK_POINTS - 1) / BLOCK_POINTS, pointFile.blockCount);
+        }
+        assertSame(plain, TestPoints.read(file));
+        assertZones(file);
+    }
+
+    @Test
+    public void hilbertLayoutHoldsTheSamePoints() throws IOException {
+        File file = sort(PointFile.LAYOUT_HILBERT, false);
+        assertSame(sortedByXyz(plain), sortedByXyz(TestPoints.read(file)));
+        assertZones(file);
+    }
+
+    @Test
+    public void compressedBlocksHoldTheSamePoints() throws IOException {
+        File file = sort(PointFile.LAYOUT_XYZ, true);
+        try (PointFile pointFile = PointFile.open(file)) {
+            assertEquals(PointFile.COMPRESSED_VERSION, pointFile.version);
+            assertEquals(pointFile.blockCount + 1, pointFile.blockOffsets.length);
+            assertTrue(file.length() < POINTS * PointFile.RECORD_SIZE);
+        }
+        assertSame(plain, TestPoints.read(file));
+        assertZones(file);
+
+        file = sort(PointFile.LAYOUT_HILBERT, true);
+        assertSame(TestPoints.read(sort(PointFile.LAYOUT_HILBERT, false)), TestPoints.read(file));
+        assertZones(file);
+    }
+
+    static File sort(int layout, boolean compressed) throws IOException {
+        File file = folder.newFile();
+        new PointSorter(64L << 20, folder.getRoot(), 1, BLOCK_POINTS, layout, compressed).sort(text, file);
+        return file;
+    }
+
+    /**
+     * Preveri, da je vsaka tocka znotraj meja svojega bloka in da so meje dosezene
+     */
+    static void assertZones(File file) throws IOException {
+        TestPoints points = TestPoints.read(file);
+        try (PointFile pointFile = PointFile.open(file)) {
+            PointFile.ZoneMap zones = pointFile.zones;
+            assertEquals(pointFile.blockCount, zones.blocks);
+            PointFile.ZoneMap expected = new PointFile.ZoneMap(pointFile.blockPoints, 0, pointFile.layout);
+            for (int k = 0; k < points.size(); k++) {
+                expected.add(k, points.xs[k], points.ys[k], points.zs[k], points.is[k]);
+            }
+            for (int b = 0; b < zones.blocks; b++) {
+                assertEquals(expected.minX[b], zones.minX[b], 0);
+                assertEquals(expected.maxX[b], zones.maxX[b], 0);
+                assertEquals(expected.minY[b], zones.minY[b], 0);
+                assertEquals(expected.maxY[b], zones.maxY[b], 0);
+                assertEquals(expected.minZ[b], zones.minZ[b], 0);
+                assertEquals(expected.maxZ[b], zones.maxZ[b], 0);
+                assertEquals(expected.minI[b], zones.minI[b]);
+                assertEquals(expected.maxI[b], zones.maxI[b]);
+                if (pointFile.layout == PointFile.LAYOUT_HILBERT) assertEquals(expected.minCode[b], zones.minCode[b]);
+            }
+        }
+    }
+
+    static void assertSame(TestPoints expected, TestPoints actual) {
+        assertTrue(Arrays.equals(expected.xs, actual.xs));
+        assertTrue(Arrays.equals(expected.ys, actual.ys));
+        assertTrue(Arrays.equals(expected.zs, actual.zs));
+        assertArrayEquals(expected.is, actual.is);
+    }
+
+    /**
+     * @return tocke v vrstnem redu verzije 0 (za primerjavo razporeditev)
+     */
+    private static TestPoints sortedByXyz(TestPoints points) {
+        long[][] keys = new long[points.size()][];
+        for (int k = 0; k < keys.length; k++) {
+            keys[k] = new long[]{PointSorter.pack(points.xs[k], points.ys[k]),
+                    PointSorter.pack(points.zs[k], points.is[k])};
+        }
+        Arrays.sort(keys, (a, b) -> a[0] != b[0] ? Long.compareUnsigned(a[0], b[0])
+                : Long.compareUnsigned(a[1], b[1]));
+        TestPoints sorted = new TestPoints(keys.length);
+        for (int k = 0; k < keys.length; k++) {
+            sorted.xs[k] = PointSorter.highFloat(keys[k][0]);
+            sorted.ys[k] = PointSorter.lowFloat(keys[k][0]);
+            sorted.zs[k] = PointSorter.highFloat(keys[k][1]);
+            sorted.is[k] = (short) keys[k][1];
+        }
+        return sorted;
+    }
+}
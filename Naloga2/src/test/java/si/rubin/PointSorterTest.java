@@ -0,0 +1,97 @@
+package si.rubin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Urejanje tock (radix sort in zdruzevanje zaporedij) v primerjavi z urejanjem s Float.compare
+ */
+public class PointSorterTest {
+    private static final int POINTS = 20000;
+    private static final long SMALL_MEMORY = 1024 * PointSorter.RECORD_BYTES;     // Runs of 1024 points
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static File text;
+    private static TestPoints sorted;
+
+    @BeforeClass
+    public static void writeInput() throws IOException {
+        text = folder.newFile("points.txt");
+        TestPoints input = TestPoints.write(text, POINTS, 1);
+        // Reference order: x, y, z and the intensity (unsigned, as in the packed key)
+        Integer[] order = new Integer[POINTS];
+        for (int k = 0; k < POINTS; k++) order[k] = k;
+        Comparator<Integer> byX = (a, b) -> Float.compare(input.xs[a], input.xs[b]);
+        Arrays.sort(order, byX.thenComparing((a, b) -> Float.compare(input.ys[a], input.ys[b]))
+                .thenComparing((a, b) -> Float.compare(input.zs[a], input.zs[b]))
+                .thenComparingInt(k -> input.is[k] & 0xFFFF));
+        sorted = new TestPoints(POINTS);
+        for (int k = 0; k < POINTS; k++) {
+            sorted.xs[k] = input.xs[order[k]];
+            sorted.ys[k] = input.ys[order[k]];
+            sorted.zs[k] = input.zs[order[k]];
+            sorted.is[k] = input.is[order[k]];
+        }
+    }
+
+    @Test
+    public void sortsInMemory() throws IOException {
+        assertSorted(new PointSorter(256L << 20, folder.getRoot(), 1, 0, PointFile.LAYOUT_XYZ));
+    }
+
+    @Test
+    public void mergesRuns() throws IOException {
+        assertSorted(new PointSorter(SMALL_MEMORY, folder.getRoot(), 1, 0, PointFile.LAYOUT_XYZ));
+    }
+
+    @Test
+    public void parallelSortMatchesSequential() throws IOException {
+        File sequential = folder.newFile();
+        File parallel = folder.newFile();
+        new PointSorter(SMALL_MEMORY, folder.getRoot(), 1, PointFile.DEFAULT_BLOCK_POINTS, PointFile.LAYOUT_XYZ)
+                .sort(text, sequential);
+        new PointSorter(SMALL_MEMORY * 4, folder.getRoot(), 4, PointFile.DEFAULT_BLOCK_POINTS, PointFile.LAYOUT_XYZ)
+                .sort(text, parallel);
+        assertArrayEquals(Files.readAllBytes(sequential.toPath()), Files.readAllBytes(parallel.toPath()));
+    }
+
+    @Test
+    public void floatKeyKeepsTheOrderOfFloatCompare() {
+        float[] values = {Float.NEGATIVE_INFINITY, -Float.MAX_VALUE, -1.5f, -Float.MIN_VALUE, -0.0f, 0.0f,
+                Float.MIN_VALUE, 1, Float.MAX_VALUE, Float.POSITIVE_INFINITY, Float.NaN};
+        for (int a = 0; a < values.length; a++) {
+            assertEquals(Float.floatToIntBits(values[a]),
+                    Float.floatToIntBits(PointSorter.keyFloat(PointSorter.floatKey(values[a]))));
+            for (int b = 0; b < values.length; b++) {
+                int expected = Integer.signum(Float.compare(values[a], values[b]));
+                int actual = Integer.signum(Integer.compareUnsigned(PointSorter.floatKey(values[a]),
+                        PointSorter.floatKey(values[b])));
+                assertEquals(values[a] + " vs " + values[b], expected, actual);
+            }
+        }
+    }
+
+    private void assertSorted(PointSorter sorter) throws IOException {
+        File output = folder.newFile();
+        assertEquals(POINTS, sorter.sort(text, output));
+        TestPoints points = TestPoints.read(output);
+        assertTrue(Arrays.equals(sorted.xs, points.xs));
+        assertTrue(Arrays.equals(sorted.ys, points.ys));
+        assertTrue(Arrays.equals(sorted.zs, points.zs));
+        assertArrayEquals(sorted.is, points.is);
+    }
+}
@@ -0,0 +1,102 @@
+package si.rubin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Branje vnaprej mora vrniti enake byte kot branje datoteke po vrsti, kose pa v vrstnem redu nacrta
+ */
+public class PrefetchReaderTest {
+    private static final int POINTS = 1000;
+    private static final int BLOCK_POINTS = 100;
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static File text;
+
+    @BeforeClass
+    public static void writePoints() throws IOException {
+        text = folder.newFile("points.txt");
+        TestPoints.write(text, POINTS, 11);
+    }
+
+    @Test
+    public void readsTheChunksInOrder() throws IOException {
+        for (boolean compressed : new boolean[]{false, true}) {
+            File file = sort(BLOCK_POINTS, compressed);
+            byte[] data = Files.readAllBytes(file.toPath());
+            TestPoints points = TestPoints.read(file);
+            // Whole blocks, so that the compressed file can be read too
+            long[] chunks = {0, 100, 300, 500, 900, 1000};
+            Metrics metrics = new Metrics();
+            try (PointFile pointFile = PointFile.open(file);
+                 PrefetchReader reader = new PrefetchReader(pointFile, chunks, 2, 200, metrics)) {
+                long bytes = 0, seek = 0;
+                for (int c = 0; c < chunks.length; c += 2) {
+                    ByteBuffer buffer = reader.next();
+                    int from = (int) pointFile.lineOffset(chunks[c]), to = (int) pointFile.lineOffset(chunks[c + 1]);
+                    assertArrayEquals("chunk " + c / 2, Arrays.copyOfRange(data, from, to),
+                            Arrays.copyOfRange(buffer.array(), buffer.position(), buffer.limit()));
+                    bytes += to - from;
+                    if (c > 0) seek += from - pointFile.lineOffset(chunks[c - 1]);
+                    TestPoints read = new TestPoints(200);
+                    int n = pointFile.decode(buffer, read.xs, read.ys, read.zs, read.is);
+                    assertEquals(chunks[c + 1] - chunks[c], n);
+                    for (int k = 0; k < n; k++) assertEquals(points.xs[(int) chunks[c] + k], read.xs[k], 0);
+                }
+                assertNull(reader.next());
+                assertNull(reader.next());
+                assertEquals(chunks.length / 2, metrics.getReadCalls());
+                assertEquals(bytes, metrics.getBytesRead());
+                assertEquals(seek, metrics.getSeekDistance());
+            }
+        }
+    }
+
+    @Test
+    public void stopsAtTheEndOfTheFile() throws IOException {
+        // Version 0 has nothing after the points
+        try (PointFile pointFile = PointFile.open(sort(0, false));
+             PrefetchReader reader = new PrefetchReader(pointFile, new long[]{995, 1005}, 2, 10, new Metrics())) {
+            ByteBuffer buffer = reader.next();
+            assertEquals(5 * PointFile.RECORD_SIZE, buffer.remaining());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void closeStopsTheReader() throws IOException {
+        long[] chunks = new long[200];
+        for (int c = 0; c < chunks.length; c += 2) {
+            chunks[c] = c * 5;
+            chunks[c + 1] = c * 5 + 10;
+        }
+        try (PointFile pointFile = PointFile.open(sort(BLOCK_POINTS, false))) {
+            PrefetchReader reader = new PrefetchReader(pointFile, chunks, 2, 10, new Metrics());
+            reader.next();
+            reader.close();
+            // The channel is still open for the other readers of the file
+            assertTrue(pointFile.fChan.isOpen());
+        }
+    }
+
+    private static File sort(int blockPoints, boolean compressed) throws IOException {
+        File file = folder.newFile();
+        new PointSorter(64L << 20, folder.getRoot(), 1, blockPoints, PointFile.LAYOUT_XYZ, compressed).sort(text, file);
+        return file;
+    }
+}
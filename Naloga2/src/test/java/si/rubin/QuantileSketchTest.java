@@ -0,0 +1,119 @@
+package si.rubin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Napaka ranga kvantilov (najvec ~1.7 % vseh vrednosti pri k = 200), tudi po zdruzevanju povzetkov
+ */
+public class QuantileSketchTest {
+    private static final int VALUES = 200000;
+    private static final double MAX_RANK_ERROR = 0.017;
+
+    private final Random random = new Random(6);
+
+    @Test
+    public void rankErrorIsBounded() {
+        float[] values = values(VALUES);
+        QuantileSketch sketch = new QuantileSketch();
+        for (float value : values) sketch.add(value);
+        assertEquals(VALUES, sketch.count());
+        assertRankError(values, sketch);
+    }
+
+    @Test
+    public void mergedSketchHasTheSameBound() {
+        float[] values = values(VALUES);
+        QuantileSketch merged = new QuantileSketch();
+        // Parts of different sizes, as the threads of a parallel scan
+        int from = 0;
+        for (int part = 1; from < VALUES; part++) {
+            int to = Math.min(VALUES, from + part * 5000);
+            QuantileSketch sketch = new QuantileSketch();
+            for (int k = from; k < to; k++) sketch.add(values[k]);
+            merged.merge(sketch);
+            from = to;
+        }
+        merged.merge(new QuantileSketch());
+        assertEquals(VALUES, merged.count());
+        assertRankError(values, merged);
+    }
+
+    @Test
+    public void memoryDoesNotGrowWithTheValues() {
+        QuantileSketch small = new QuantileSketch(), large = new QuantileSketch();
+        for (float value : values(VALUES / 10)) small.add(value);
+        for (float value : values(VALUES * 5)) large.add(value);
+        assertTrue(large.memory() + " bytes", large.memory() < 2 * small.memory());
+    }
+
+    @Test
+    public void extremesAreExact() {
+        float[] values = values(VALUES);
+        QuantileSketch sketch = new QuantileSketch();
+        for (float value : values) sketch.add(value);
+        Arrays.sort(values);
+        double[] quantiles = sketch.quantiles(0, 1);
+        assertEquals(values[0], quantiles[0], 0);
+        assertEquals(values[VALUES - 1], quantiles[1], 0);
+        assertTrue(Double.isNaN(new QuantileSketch().quantile(0.5)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void differentKCanNotBeMerged() {
+        new QuantileSketch(100).merge(new QuantileSketch(200));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void quantileOutsideZeroToOneIsRejected() {
+        QuantileSketch sketch = new QuantileSketch();
+        sketch.add(1);
+        sketch.quantile(1.5);
+    }
+
+    /**
+     * Rang vrnjenega kvantila mora biti najvec MAX_RANK_ERROR vseh vrednosti od q * n
+     */
+    private static void assertRankError(float[] values, QuantileSketch sketch) {
+        float[] sorted = values.clone();
+        Arrays.sort(sorted);
+        double[] qs = new double[99];
+        for (int p = 0; p < qs.length; p++) qs[p] = (p + 1) / 100.;
+        double[] quantiles = sketch.quantiles(qs);
+        for (int p = 0; p < qs.length; p++) {
+            float value = (float) quantiles[p];
+            // Ranks of the values equal to the quantile
+            int below = lowerBound(sorted, value), upTo = lowerBound(sorted, Math.nextUp(value));
+            double rank = qs[p] * sorted.length;
+            double error = rank < below ? below - rank : rank > upTo ? rank - upTo : 0;
+            assertTrue("q = " + qs[p] + " is off by " + error + " values", error <= MAX_RANK_ERROR * sorted.length);
+        }
+    }
+
+    private static int lowerBound(float[] sorted, float value) {
+        int lo = 0, hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < value) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @return visine z vec vrhovi in ponovitvami (na 2 decimalki)
+     */
+    private float[] values(int n) {
+        float[] values = new float[n];
+        for (int k = 0; k < n; k++) {
+            double value = random.nextBoolean() ? 230 + random.nextGaussian() * 5 : 200 + random.nextDouble() * 100;
+            values[k] = (float) (Math.round(value * 100) / 100.);
+        }
+        return values;
+    }
+}
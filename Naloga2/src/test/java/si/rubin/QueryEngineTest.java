@@ -0,0 +1,306 @@
+package si.rubin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Vsi formati datotek in nacini branja morajo dati enako statistiko kot preprosto branje verzije 0
+ * (brez indeksa, predpomnjenja in niti), tudi ob hkratnih poizvedbah iz vec niti, in enako, kot jo izpise Statistics
+ */
+public class QueryEngineTest {
+    private static final int POINTS = 30000;
+    private static final double SMALL_BLOCK = 0.002;    // ~140 lines per read
+    private static final double SMALL_MEMORY = 0.02;    // 10 blocks
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static File text;
+    private static File plainFile;
+    private static QueryEngine plain;
+    private static List<Query> queries;
+
+    @BeforeClass
+    public static void writePoints() throws IOException {
+        text = folder.newFile("points.txt");
+        TestPoints.write(text, POINTS, 7);
+        plainFile = sort(0, PointFile.LAYOUT_XYZ, false);
+        plain = new QueryEngine(plainFile, new QueryEngine.Options().buildIndex(false).prefetch(false));
+        queries = new ArrayList<>();
+        Random random = new Random(8);
+        for (int k = 0; k < 40; k++) {
+            double minX = 990 + random.nextInt(140), minY = -210 + random.nextInt(410);
+            queries.add(new Query(minX, minX + random.nextInt(60), minY, minY + random.nextInt(200),
+                    1 + random.nextInt(5), random.nextInt(4) == 0 ? 'i' : 'z'));
+        }
+        queries.add(new Query(-1e9, 1e9, -1e9, 1e9, 1, 'z'));       // All the points
+        queries.add(new Query(1050, 1050.25, -1e9, 1e9, 1, 'i'));   // Duplicates of one X
+        queries.add(new Query(2000, 3000, 0, 10, 1, 'z'));           // None
+    }
+
+    @AfterClass
+    public static void closeEngine() throws IOException {
+        plain.close();
+    }
+
+    @Test
+    public void matchesStatistics() throws IOException {
+        File blocks = sort(500, PointFile.LAYOUT_XYZ, false);
+        try (QueryEngine engine = new QueryEngine(blocks, SMALL_BLOCK)) {
+            for (Query query : queries) {
+                QueryEngine.Result result = query(engine, query);
+                // Statistics can not describe an empty area
+                if (result.points == 0) continue;
+                String expected = StatisticsTest.statistics(StatisticsTest.run(blocks, query.toString().split(" ")));
+                assertEquals(query.toString(), expected, result.points + " " + result.bins + " "
+                        + String.format("%.3f %.3f %.3f %.3f", result.average, result.deviation, result.skewness,
+                        result.kurtosis));
+            }
+        }
+    }
+
+    @Test
+    public void version0MatchesWithAnIndex() throws IOException {
+        File file = sort(0, PointFile.LAYOUT_XYZ, false);
+        assertSameStatistics(file, new QueryEngine.Options().prefetch(false));
+        try (PointFile pointFile = PointFile.open(file)) {
+            FenceIndex.build(pointFile, 256).write(file);
+        }
+        assertSameStatistics(file, new QueryEngine.Options().buildIndex(false));
+    }
+
+    @Test
+    public void blocksMatch() throws IOException {
+        for (int layout : new int[]{PointFile.LAYOUT_XYZ, PointFile.LAYOUT_HILBERT}) {
+            for (boolean compressed : new boolean[]{false, true}) {
+                File file = sort(500, layout, compressed);
+                assertSameStatistics(file, new QueryEngine.Options());
+                assertSameStatistics(file, small());
+            }
+        }
+    }
+
+    @Test
+    public void readingModesMatch() throws IOException {
+        for (File file : new File[]{sort(0, PointFile.LAYOUT_XYZ, false), sort(500, PointFile.LAYOUT_XYZ, true)}) {
+            assertSameStatistics(file, small().prefetch(true));
+            assertSameStatistics(file, small().prefetch(false));
+            assertSameStatistics(file, small().threads(4));
+            assertSameStatistics(file, new QueryEngine.Options().mmap(true));
+        }
+    }
+
+    @Test
+    public void mappedPagesAreCountedOnce() throws IOException {
+        File v0 = sort(0, PointFile.LAYOUT_XYZ, false), v1 = sort(500, PointFile.LAYOUT_XYZ, false);
+        TestPoints points = TestPoints.read(v0);
+        QueryEngine.Options mapped = new QueryEngine.Options().mmap(true).buildIndex(false);
+        try (QueryEngine engine0 = new QueryEngine(v0, mapped); QueryEngine engine1 = new QueryEngine(v1, mapped);
+             PointFile pointFile0 = PointFile.open(v0); PointFile pointFile1 = PointFile.open(v1)) {
+            // The whole area: the bound searches only touch pages that the filter reads too
+            Query all = queries.get(queries.size() - 3);
+            long pages0 = query(engine0, all).metrics.getReadCalls();
+            assertEquals(pages(pointFile0, 0, POINTS), pages0);
+            assertEquals(pages(pointFile1, 0, POINTS), query(engine1, all).metrics.getReadCalls());
+            // The same data, only the header of version 1 moves it
+            assertTrue(Math.abs(pages0 - query(engine1, all).metrics.getReadCalls()) <= 1);
+            for (Query query : queries) {
+                TreeSet<Long> touched = new TreeSet<>();
+                long from = bound(points, pointFile0, query.minX, touched);
+                long to = bound(points, pointFile0, query.maxX, touched);
+                if (to > from) addPages(pointFile0, from, to, touched);
+                assertEquals(query.toString(), touched.size(), query(engine0, query).metrics.getReadCalls());
+            }
+        }
+    }
+
+    /**
+     * Binarno iskanje prve vrstice z X >= x, kot ga naredi preslikano branje verzije 0
+     * @param touched strani, ki se jih iskanje dotakne
+     */
+    private static long bound(TestPoints points, PointFile pointFile, double x, TreeSet<Long> touched) {
+        long lo = 0, hi = points.size();
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            addPages(pointFile, mid, mid + 1, touched);
+            if (points.xs[(int) mid] < x) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private static void addPages(PointFile pointFile, long fromLine, long toLine, TreeSet<Long> touched) {
+        long first = pointFile.lineOffset(fromLine) / MappedPoints.PAGE_SIZE;
+        long last = (pointFile.lineOffset(toLine) - 1) / MappedPoints.PAGE_SIZE;
+        for (long page = first; page <= last; page++) touched.add(page);
+    }
+
+    private static long pages(PointFile pointFile, long fromLine, long toLine) {
+        return (pointFile.lineOffset(toLine) - 1) / MappedPoints.PAGE_SIZE
+                - pointFile.lineOffset(fromLine) / MappedPoints.PAGE_SIZE + 1;
+    }
+
+    @Test
+    public void gridMatches() throws IOException {
+        File file = sort(500, PointFile.LAYOUT_XYZ, false);
+        try (PointFile pointFile = PointFile.open(file)) {
+            MomentGrid.build(pointFile, 2.5).write(file);
+        }
+        assertSameStatistics(file, new QueryEngine.Options().grid(true));
+    }
+
+    @Test
+    public void gridReadsAreCounted() throws IOException {
+        File file = sort(500, PointFile.LAYOUT_XYZ, false);
+        try (PointFile pointFile = PointFile.open(file)) {
+            MomentGrid.build(pointFile, 2.5).write(file);
+        }
+        // Small buffers split the reads of the tables, summaries and points
+        assertSameStatistics(file, small().grid(true));
+        try (QueryEngine scan = new QueryEngine(file, new QueryEngine.Options());
+             QueryEngine grid = new QueryEngine(file, new QueryEngine.Options().grid(true))) {
+            for (Query query : queries) {
+                QueryEngine.Result result = query(grid, query);
+                if (result.points > 0) assertTrue(query.toString(), result.metrics.getReadCalls() > 0);
+            }
+            // All the points: the summaries instead of the data
+            Query all = queries.get(queries.size() - 3);
+            Metrics scanned = query(scan, all).metrics, summed = query(grid, all).metrics;
+            assertTrue(summed.getReadCalls() > 0);
+            assertTrue(summed.getBytesRead() * 4 < scanned.getBytesRead());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void gridIsRequired() throws IOException {
+        new QueryEngine(sort(500, PointFile.LAYOUT_XYZ, false), new QueryEngine.Options().grid(true)).close();
+    }
+
+    @Test
+    public void batchMatchesSingleQueries() throws IOException {
+        for (File file : new File[]{sort(0, PointFile.LAYOUT_XYZ, false), sort(500, PointFile.LAYOUT_HILBERT, true)}) {
+            try (QueryEngine engine = new QueryEngine(file, small())) {
+                List<Query> copies = new ArrayList<>();
+                for (Query query : queries) copies.add(query.copy());
+                QueryEngine.Batch batch = engine.batch(copies);
+                assertTrue(batch.metrics.getReadCalls() <= batch.separateReads);
+                for (int k = 0; k < queries.size(); k++) {
+                    assertSame(query(plain, queries.get(k)), batch.results.get(k), "batch " + queries.get(k));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void concurrentQueriesMatch() throws Exception {
+        List<QueryEngine.Result> expected = new ArrayList<>();
+        for (Query query : queries) expected.add(query(plain, query));
+        try (QueryEngine engine = new QueryEngine(sort(500, PointFile.LAYOUT_HILBERT, true), SMALL_BLOCK)) {
+            ExecutorService pool = Executors.newFixedThreadPool(8);
+            try {
+                List<Future<QueryEngine.Result>> results = new ArrayList<>();
+                for (int round = 0; round < 5; round++) {
+                    for (Query query : queries) results.add(pool.submit(() -> query(engine, query)));
+                }
+                for (int k = 0; k < results.size(); k++) {
+                    Query query = queries.get(k % queries.size());
+                    assertSame(expected.get(k % queries.size()), results.get(k).get(), query.toString());
+                }
+            } finally {
+                pool.shutdown();
+            }
+            assertEquals(5 * queries.size(), engine.metrics().getQueries());
+        }
+    }
+
+    @Test
+    public void quantilesAreOrdered() throws IOException {
+        for (Query query : queries) {
+            QueryEngine.Result result = plain.query(new QueryEngine.Rect(query.minX, query.maxX, query.minY, query.maxY),
+                    query.binSize, QueryEngine.Target.of(query.target), true);
+            assertSame(query(plain, query), result, query.toString());
+            double min = result.quantile(0), median = result.quantile(0.5), max = result.quantile(1);
+            if (result.points == 0) {
+                assertTrue(query.toString(), Double.isNaN(median));
+            } else {
+                assertTrue(query.toString(), min <= median && median <= max);
+            }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closedEngineRejectsQueries() throws IOException {
+        QueryEngine engine = new QueryEngine(plainFile, SMALL_BLOCK);
+        engine.close();
+        query(engine, queries.get(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rectangleIsChecked() {
+        new QueryEngine.Rect(2, 1, 0, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void targetIsChecked() {
+        QueryEngine.Target.of('x');
+    }
+
+    /**
+     * @return malo pomnilnika in majhni bloki, da se datoteka bere v vec kosih
+     */
+    private static QueryEngine.Options small() {
+        return new QueryEngine.Options().memory(SMALL_MEMORY).blockSize(SMALL_BLOCK);
+    }
+
+    static File sort(int blockPoints, int layout, boolean compressed) throws IOException {
+        File file = folder.newFile();
+        new PointSorter(64L << 20, folder.getRoot(), 1, blockPoints, layout, compressed).sort(text, file);
+        return file;
+    }
+
+    /**
+     * Primerja vse poizvedbe nad datoteko z branjem verzije 0
+     */
+    private static void assertSameStatistics(File file, QueryEngine.Options options) throws IOException {
+        try (QueryEngine engine = new QueryEngine(file, options)) {
+            for (Query query : queries) assertSame(query(plain, query), query(engine, query), query.toString());
+        }
+    }
+
+    static QueryEngine.Result query(QueryEngine engine, Query query) throws IOException {
+        return engine.query(new QueryEngine.Rect(query.minX, query.maxX, query.minY, query.maxY), query.binSize,
+                QueryEngine.Target.of(query.target));
+    }
+
+    /**
+     * Stevilo tock in kosov mora biti enako, momenti pa do zaokrozevanja (vsote potenc se sestejejo v drugem vrstnem redu)
+     */
+    static void assertSame(QueryEngine.Result expected, QueryEngine.Result actual, String message) {
+        assertEquals(message, expected.points, actual.points);
+        assertEquals(message, expected.bins, actual.bins);
+        assertClose(message, expected.average, actual.average);
+        assertClose(message, expected.deviation, actual.deviation);
+        assertClose(message, expected.skewness, actual.skewness);
+        assertClose(message, expected.kurtosis, actual.kurtosis);
+    }
+
+    private static void assertClose(String message, double expected, double actual) {
+        assertEquals(message, expected, actual, Math.max(1, Math.abs(expected)) * 1e-9);
+    }
+}
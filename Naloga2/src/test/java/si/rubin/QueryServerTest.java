@@ -0,0 +1,133 @@
+package si.rubin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Odgovori streznika morajo biti enaki izpisu programa Statistics, predpomnilnik pa zavrze najdlje neuporabljen
+ * rezultat
+ */
+public class QueryServerTest {
+    private static final int POINTS = 20000;
+    private static final String[] QUERIES = {
+            "1000.0 1125.0 -200.0 200.0 1 z",
+            "1010.0 1030.0 -50.0 60.0 2 i",
+            "1050.0 1050.25 -1.0E9 1.0E9 1 i",
+            "1100.0 1160.0 0.0 150.0 3 z",
+    };
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static File plain;
+    private static File blocks;
+    private static File hilbert;
+    private static QueryServer server;
+
+    @BeforeClass
+    public static void writePoints() throws IOException {
+        File text = folder.newFile("points.txt");
+        TestPoints.write(text, POINTS, 12);
+        plain = sort(text, 0, PointFile.LAYOUT_XYZ);
+        blocks = sort(text, 500, PointFile.LAYOUT_XYZ);
+        hilbert = sort(text, 500, PointFile.LAYOUT_HILBERT);
+        server = new QueryServer(0.002, 0);
+        // A version 0 file without a sparse index gets one in memory
+        server.open(plain.getPath());
+        server.open(blocks.getPath());
+        server.open(hilbert.getPath());
+    }
+
+    @AfterClass
+    public static void closeServer() {
+        server.close();
+    }
+
+    @Test
+    public void answersMatchStatistics() {
+        for (File file : new File[]{plain, blocks, hilbert}) {
+            for (String query : QUERIES) {
+                String[] columns = server.answer(file.getPath() + " " + query).split("\t");
+                assertEquals(query, columns[0]);
+                assertEquals(file + " " + query, StatisticsTest.statistics(StatisticsTest.run(blocks, query.split(" "))),
+                        String.join(" ", Arrays.copyOfRange(columns, 1, 7)));
+            }
+        }
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsed() throws IOException {
+        QueryServer cached = new QueryServer(0.002, 2);
+        try {
+            cached.open(blocks.getPath());
+            String a = blocks.getPath() + " " + QUERIES[0], b = blocks.getPath() + " " + QUERIES[1],
+                    c = blocks.getPath() + " " + QUERIES[2];
+            assertFalse(isCached(cached.answer(a)));
+            assertFalse(isCached(cached.answer(b)));
+            String hit = cached.answer(a);
+            assertTrue(isCached(hit));
+            assertEquals(server.answer(a).replaceAll("\t[^\t]*reads$", ""), hit.replaceAll("\tcached$", ""));
+            // c replaces b, which was used before a
+            assertFalse(isCached(cached.answer(c)));
+            assertTrue(isCached(cached.answer(a)));
+            assertTrue(isCached(cached.answer(c)));
+            assertFalse(isCached(cached.answer(b)));
+            // The same rectangle written differently is the same key
+            assertTrue(isCached(cached.answer(blocks.getPath() + "  1050 1050.25 -1e9 1e9 1 i")));
+        } finally {
+            cached.close();
+        }
+    }
+
+    @Test
+    public void withoutCacheEveryQueryIsRead() {
+        String line = blocks.getPath() + " " + QUERIES[0];
+        assertFalse(isCached(server.answer(line)));
+        assertFalse(isCached(server.answer(line)));
+    }
+
+    @Test
+    public void reportsErrors() {
+        assertTrue(server.answer("missing.bin " + QUERIES[0]).startsWith("ERROR unknown file"));
+        assertTrue(server.answer(blocks.getPath() + " 1 2 3").startsWith("ERROR Expected"));
+        assertTrue(server.answer(blocks.getPath() + " 2 1 0 1 1 z").startsWith("ERROR Min X"));
+    }
+
+    @Test
+    public void servesLines() throws IOException {
+        StringWriter written = new StringWriter();
+        String input = blocks.getPath() + " " + QUERIES[0] + "\n\nstats\nmetrics\nquit\n" + blocks.getPath() + " " + QUERIES[1];
+        server.serve(new BufferedReader(new StringReader(input)), new PrintWriter(written, true));
+        String[] lines = written.toString().split("\n");
+        assertEquals(4, lines.length);
+        assertTrue(lines[0], lines[0].startsWith(QUERIES[0] + "\t"));
+        assertTrue(lines[1], lines[1].startsWith("hits: "));
+        assertTrue(lines[2], lines[2].startsWith("misses: "));
+        assertTrue(lines[3], lines[3].startsWith("{\"readCalls\":"));
+    }
+
+    private static boolean isCached(String answer) {
+        return answer.endsWith("\tcached");
+    }
+
+    private static File sort(File text, int blockPoints, int layout) throws IOException {
+        File file = folder.newFile();
+        new PointSorter(64L << 20, folder.getRoot(), 1, blockPoints, layout).sort(text, file);
+        return file;
+    }
+}
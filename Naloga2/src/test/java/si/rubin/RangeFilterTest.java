@@ -0,0 +1,119 @@
+package si.rubin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Filter brez vejitev mora izbrati iste vrednosti v istem vrstnem redu kot primerjava vsake tocke
+ * z mejami tipa double
+ */
+public class RangeFilterTest {
+    private static final int POINTS = 5000;
+    // Bounds that are not floats, and points right at and next to them
+    private static final double MIN_X = 1050.1, MAX_X = 1080.3, MIN_Y = -20.7, MAX_Y = 40.05;
+
+    private final Random random = new Random(13);
+    private final float[] xs = new float[POINTS], ys = new float[POINTS], zs = new float[POINTS];
+    private final short[] is = new short[POINTS];
+
+    public RangeFilterTest() {
+        for (int k = 0; k < POINTS; k++) {
+            xs[k] = near(MIN_X, MAX_X);
+            ys[k] = near(MIN_Y, MAX_Y);
+            zs[k] = k;
+            is[k] = (short) k;
+        }
+    }
+
+    @Test
+    public void selectMatchesTheComparison() {
+        RangeFilter filter = new RangeFilter(MIN_X, MAX_X, MIN_Y, MAX_Y);
+        float[] z = zs.clone();
+        short[] i = is.clone();
+        assertSelected(reference(true), z, filter.select(xs, ys, z, POINTS));
+        assertSelected(reference(true), i, filter.select(xs, ys, i, POINTS));
+    }
+
+    @Test
+    public void selectYChecksOnlyY() {
+        RangeFilter filter = new RangeFilter(MIN_X, MAX_X, MIN_Y, MAX_Y);
+        float[] z = zs.clone();
+        short[] i = is.clone();
+        assertSelected(reference(false), z, filter.selectY(ys, z, POINTS));
+        assertSelected(reference(false), i, filter.selectY(ys, i, POINTS));
+    }
+
+    @Test
+    public void selectFromTheBufferMatches() {
+        int offset = 3 * PointFile.RECORD_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(offset + POINTS * PointFile.RECORD_SIZE);
+        buffer.position(offset);
+        for (int k = 0; k < POINTS; k++) buffer.putFloat(xs[k]).putFloat(ys[k]).putFloat(zs[k]).putShort(is[k]);
+        buffer.position(7);
+        RangeFilter filter = new RangeFilter(MIN_X, MAX_X, MIN_Y, MAX_Y);
+        float[] z = new float[POINTS];
+        short[] i = new short[POINTS];
+        assertSelected(reference(true), z, filter.select(buffer, offset, POINTS, z));
+        assertSelected(reference(true), i, filter.select(buffer, offset, POINTS, i));
+        // The position of the buffer is not moved
+        assertEquals(7, buffer.position());
+        // Only the given records are read
+        assertEquals(0, filter.select(buffer, offset, 0, z));
+    }
+
+    @Test
+    public void emptyAreaSelectsNothing() {
+        RangeFilter filter = new RangeFilter(MIN_X, MIN_X, MIN_Y, MAX_Y);
+        assertEquals(0, filter.select(xs, ys, zs.clone(), POINTS));
+    }
+
+    /**
+     * Preveri, da je na zacetku tabele natanko pricakovano zaporedje indeksov tock
+     */
+    private static void assertSelected(int[] expected, float[] values, int selected) {
+        assertEquals(expected.length, selected);
+        int[] actual = new int[selected];
+        for (int k = 0; k < selected; k++) actual[k] = (int) values[k];
+        assertArrayEquals(expected, actual);
+    }
+
+    private static void assertSelected(int[] expected, short[] values, int selected) {
+        assertEquals(expected.length, selected);
+        int[] actual = new int[selected];
+        for (int k = 0; k < selected; k++) actual[k] = values[k];
+        assertArrayEquals(expected, actual);
+    }
+
+    /**
+     * @return indeksi tock znotraj obmocja, tako kot jih izbere primerjava float z double
+     */
+    private int[] reference(boolean checkX) {
+        int[] selected = new int[POINTS];
+        int n = 0;
+        for (int k = 0; k < POINTS; k++) {
+            boolean inX = xs[k] >= MIN_X && xs[k] < MAX_X;
+            if ((!checkX || inX) && ys[k] >= MIN_Y && ys[k] < MAX_Y) selected[n++] = k;
+        }
+        return Arrays.copyOf(selected, n);
+    }
+
+    /**
+     * @return nakljucna vrednost okrog obmocja, pogosto tik ob eni izmed mej
+     */
+    private float near(double min, double max) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return Math.nextUp((float) min) - random.nextInt(3) * Math.ulp((float) min);
+            case 1:
+                return Math.nextUp((float) max) - random.nextInt(3) * Math.ulp((float) max);
+            default:
+                return (float) (min - 5 + random.nextDouble() * (max - min + 10));
+        }
+    }
+}
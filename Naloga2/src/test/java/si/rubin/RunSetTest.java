@@ -0,0 +1,164 @@
+package si.rubin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Dodana zaporedja in zdruzevanje: seznam zivih datotek, osnovna datoteka in statistika, enaka kot pri
+ * datoteki, urejeni iz vseh tock naenkrat
+ */
+public class RunSetTest {
+    private static final int BLOCK_POINTS = 500;
+    private static final List<Query> QUERIES = Arrays.asList(new Query(-1e9, 1e9, -1e9, 1e9, 1, 'z'),
+            new Query(1020, 1070, -100, 50, 2, 'z'), new Query(1100, 1110.5, 0, 200, 1, 'i'));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File data;
+    private final List<File> parts = new ArrayList<>();
+
+    @Before
+    public void writeParts() throws IOException {
+        data = new File(folder.getRoot(), "data.bin");
+        for (int part = 0; part < 4; part++) {
+            File text = folder.newFile("part" + part + ".txt");
+            TestPoints.write(text, part == 0 ? 12000 : 2000, 10 + part);
+            parts.add(text);
+        }
+    }
+
+    @Test
+    public void dataWithoutRunsIsOneFile() throws IOException {
+        sorter().sort(parts.get(0), data);
+        assertEquals(Collections.singletonList(data), RunSet.live(data));
+        List<PointFile> opened = RunSet.open(data, PointFile::open);
+        for (PointFile pointFile : opened) pointFile.close();
+        assertEquals(1, opened.size());
+        assertEquals(0, RunSet.compact(data, 1 << 20));
+        RunSet.clear(data);
+        // Nothing is written next to data that was never appended to
+        assertEquals(Collections.singletonList("data.bin"), names());
+    }
+
+    @Test
+    public void appendedRunsAreQueried() throws IOException {
+        sorter().sort(parts.get(0), data);
+        File first = RunSet.append(data, parts.get(1), sorter());
+        File second = RunSet.append(data, parts.get(2), sorter());
+        assertEquals(Arrays.asList(data, first, second), RunSet.live(data));
+        assertTrue(FenceIndex.indexFile(second).isFile());
+        try (QueryEngine engine = new QueryEngine(data, new QueryEngine.Options())) {
+            assertEquals(3, engine.runs());
+            assertSameStatistics(engine, parts.subList(0, 3));
+        }
+    }
+
+    @Test
+    public void compactionKeepsTheLargeBaseFile() throws IOException {
+        sorter().sort(parts.get(0), data);
+        RunSet.append(data, parts.get(1), sorter());
+        RunSet.append(data, parts.get(2), sorter());
+        // The two appended runs are merged, the base file is more than RATIO times larger
+        assertEquals(2, RunSet.compact(data, 1 << 20));
+        List<File> live = RunSet.live(data);
+        assertEquals(2, live.size());
+        assertEquals(data, live.get(0));
+        try (PointFile base = PointFile.open(data)) {
+            assertEquals(12000, base.points);
+        }
+        try (QueryEngine engine = new QueryEngine(data, new QueryEngine.Options())) {
+            assertEquals(2, engine.runs());
+            assertSameStatistics(engine, parts.subList(0, 3));
+        }
+    }
+
+    @Test
+    public void compactionOfAllRunsReplacesTheBaseFile() throws IOException {
+        sorter().sort(parts.get(1), data);
+        try (PointFile pointFile = PointFile.open(data)) {
+            MomentGrid.build(pointFile, 2.5).write(data);
+        }
+        for (int part = 2; part < 4; part++) RunSet.append(data, parts.get(part), sorter());
+        RunSet.append(data, parts.get(0), sorter());
+        QueryEngine before = new QueryEngine(data, new QueryEngine.Options());
+        try {
+            // Runs of 2000, 2000, 2000 and 12000 points: no older run is RATIO times larger, so all are merged
+            assertEquals(4, RunSet.compact(data, 1 << 20));
+            assertEquals(Collections.singletonList(data), RunSet.live(data));
+            // The merged run files are gone, a query that had them open still reads them
+            for (String name : names()) assertFalse(name, name.matches("data\\.bin\\.r[0-9]+"));
+            assertSameStatistics(before, Arrays.asList(parts.get(1), parts.get(2), parts.get(3), parts.get(0)));
+        } finally {
+            before.close();
+        }
+        // The base file got the moment grid of the old one
+        assertTrue(MomentGrid.gridFile(data).isFile());
+        try (QueryEngine engine = new QueryEngine(data, new QueryEngine.Options().grid(true))) {
+            assertEquals(1, engine.runs());
+            assertSameStatistics(engine, parts);
+        }
+    }
+
+    @Test
+    public void clearRemovesTheRuns() throws IOException {
+        sorter().sort(parts.get(0), data);
+        RunSet.append(data, parts.get(1), sorter());
+        RunSet.clear(data);
+        assertEquals(Collections.singletonList(data), RunSet.live(data));
+        for (String name : names()) assertFalse(name, name.startsWith("data.bin.r"));
+        try (QueryEngine engine = new QueryEngine(data, new QueryEngine.Options())) {
+            assertSameStatistics(engine, parts.subList(0, 1));
+        }
+    }
+
+    private static PointSorter sorter() {
+        return new PointSorter(64L << 20, null, 1, BLOCK_POINTS, PointFile.LAYOUT_XYZ);
+    }
+
+    /**
+     * @return imena datotek s podatki (brez vhodnih tekstovnih datotek)
+     */
+    private List<String> names() {
+        List<String> names = new ArrayList<>();
+        for (String name : folder.getRoot().list()) {
+            if (name.startsWith("data.bin")) names.add(name);
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Primerja poizvedbe z datoteko, urejeno iz vseh podanih delov naenkrat
+     */
+    private void assertSameStatistics(QueryEngine engine, List<File> texts) throws IOException {
+        File all = folder.newFile();
+        try (OutputStream out = Files.newOutputStream(all.toPath())) {
+            for (File text : texts) Files.copy(text.toPath(), out);
+        }
+        File sorted = folder.newFile();
+        sorter().sort(all, sorted);
+        try (QueryEngine expected = new QueryEngine(sorted, new QueryEngine.Options())) {
+            assertEquals(expected.points(), engine.points());
+            for (Query query : QUERIES) {
+                QueryEngineTest.assertSame(QueryEngineTest.query(expected, query), QueryEngineTest.query(engine, query),
+                        "query " + QUERIES.indexOf(query));
+            }
+        }
+    }
+}
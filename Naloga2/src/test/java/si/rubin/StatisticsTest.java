@@ -0,0 +1,370 @@
+package si.rubin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Nacini branja programa Statistics morajo izpisati enako statistiko kot branje blokov verzije 1
+ * (binarno iskanje meja po datoteki verzije 0 pri nekaterih mejah in velikostih bloka ne najde prave vrstice)
+ */
+public class StatisticsTest {
+    private static final int POINTS = 30000;
+    private static final String SMALL_MEMORY = "0.02";  // 10 blocks
+    private static final String SMALL_BLOCK = "0.002";  // ~140 lines per read
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static File text;
+    private static File plain;
+    private static File blocks;
+    private static TestPoints points;
+    private static List<String[]> queries;
+
+    @BeforeClass
+    public static void writePoints() throws IOException {
+        text = folder.newFile("points.txt");
+        points = TestPoints.write(text, POINTS, 7);
+        plain = sort(0, PointFile.LAYOUT_XYZ);
+        blocks = sort(500, PointFile.LAYOUT_XYZ);
+        queries = new ArrayList<>();
+        Random random = new Random(8);
+        for (int k = 0; k < 20; k++) {
+            double minX = 1000 + random.nextInt(120), minY = -200 + random.nextInt(390);
+            // Every query has points, the statistics of an empty area are not defined
+            queries.add(query(minX, minX + 5 + random.nextInt(60), minY, minY + 5 + random.nextInt(200),
+                    1 + random.nextInt(5), random.nextInt(4) == 0 ? 'i' : 'z'));
+        }
+        queries.add(query(-1e9, 1e9, -1e9, 1e9, 1, 'z'));       // All the points
+        queries.add(query(1050, 1050.25, -1e9, 1e9, 1, 'i'));   // Duplicates of one X
+    }
+
+    @Test
+    public void mmapMatchesTheScan() throws IOException {
+        assertSameStatistics(plain, "--mmap");
+        assertSameStatistics(blocks, "--mmap");
+        assertSameStatistics(sort(500, PointFile.LAYOUT_HILBERT), "--mmap");
+    }
+
+    @Test
+    public void fenceIndexMatchesTheScan() throws IOException {
+        for (File file : new File[]{indexed(sort(0, PointFile.LAYOUT_XYZ)), indexed(sort(500, PointFile.LAYOUT_XYZ))}) {
+            assertSameStatistics(file);
+            assertSameStatistics(file, "--mmap");
+        }
+    }
+
+    @Test
+    public void compressedMatchesTheScan() throws IOException {
+        for (File file : new File[]{sort(500, PointFile.LAYOUT_XYZ, true), sort(500, PointFile.LAYOUT_HILBERT, true)}) {
+            assertSameStatistics(file);
+            // Compressed blocks can not be filtered in place, --mmap falls back to reading them
+            assertSameStatistics(file, "--mmap");
+            assertSameStatistics(file, "--threads", "3");
+        }
+    }
+
+    @Test
+    public void batchMatchesSingleQueries() throws IOException {
+        File queryFile = folder.newFile();
+        try (PrintWriter out = new PrintWriter(queryFile, StandardCharsets.US_ASCII.name())) {
+            out.println("# minX maxX minY maxY bin_size option");
+            for (String[] query : queries) out.println(String.join(" ", query));
+        }
+        for (File file : new File[]{indexed(sort(0, PointFile.LAYOUT_XYZ)), blocks, sort(500, PointFile.LAYOUT_HILBERT)}) {
+            String[] lines = run("--batch", file.getPath(), SMALL_MEMORY, SMALL_BLOCK, queryFile.getPath()).split("\n");
+            // File, number of queries and the header come before the rows
+            int row = 3;
+            for (String[] query : queries) {
+                String[] columns = lines[row++].split("\t");
+                assertEquals(String.join(" ", query), columns[0]);
+                assertEquals(Arrays.toString(query), statistics(run(blocks, query)),
+                        String.join(" ", Arrays.copyOfRange(columns, 1, 7)));
+            }
+            Matcher reads = Pattern.compile("Disk reads: (\\d+) \\((\\d+) one by one").matcher(lines[row]);
+            assertTrue(lines[row], reads.find());
+            assertTrue(lines[row], Integer.parseInt(reads.group(1)) <= Integer.parseInt(reads.group(2)));
+        }
+    }
+
+    @Test
+    public void jsonMatchesTheOutput() {
+        for (String[] query : queries) {
+            String output = run(blocks, query, "--json");
+            String json = output.substring(output.lastIndexOf("\n{") + 1).trim();
+            String[] values = statistics(output).split(" ");
+            assertTrue(json, json.startsWith("{\"file\":\"" + blocks.getPath() + "\",\"query\":\""
+                    + String.join(" ", query) + "\",\"points\":"
+                    + values[0] + ",\"bins\":" + values[1] + ",\"readCalls\":"));
+            Matcher reads = Pattern.compile("Disk reads: (\\d+)").matcher(output);
+            assertTrue(reads.find());
+            assertTrue(json, json.contains("\"readCalls\":" + reads.group(1) + ","));
+        }
+    }
+
+    @Test
+    public void quantilesAreWithinTheRankError() throws IOException {
+        File hilbert = sort(500, PointFile.LAYOUT_HILBERT);
+        for (String[] query : queries) {
+            for (File file : new File[]{blocks, hilbert}) {
+                String output = run(file, query, "--quantiles", "--threads", "3");
+                // The other statistics do not change
+                assertEquals(statistics(run(blocks, query)), statistics(output));
+                Matcher median = Pattern.compile("Median: \t(\\S+)").matcher(output);
+                Matcher tails = Pattern.compile("P5 / P95: \t(\\S+) / (\\S+)").matcher(output);
+                Matcher iqr = Pattern.compile("IQR: \t\t\\S+ \\(Q1 (\\S+), Q3 ([^)]+)\\)").matcher(output);
+                assertTrue(output, median.find() && tails.find() && iqr.find());
+                assertQuantiles(query, tails.group(1), iqr.group(1), median.group(1), iqr.group(2), tails.group(2));
+            }
+        }
+
+        File queryFile = folder.newFile();
+        try (PrintWriter out = new PrintWriter(queryFile, StandardCharsets.US_ASCII.name())) {
+            for (String[] query : queries) out.println(String.join(" ", query));
+        }
+        String[] lines = run("--batch", hilbert.getPath(), SMALL_MEMORY, SMALL_BLOCK, queryFile.getPath(), "--quantiles")
+                .split("\n");
+        assertTrue(lines[2], lines[2].endsWith("\tp5\tq1\tmedian\tq3\tp95"));
+        for (int k = 0; k < queries.size(); k++) {
+            String[] columns = lines[3 + k].split("\t");
+            assertEquals(12, columns.length);
+            assertQuantiles(queries.get(k), Arrays.copyOfRange(columns, 7, 12));
+        }
+
+        // The JSON of the batch has the same quantiles for every query
+        String output = run("--batch", hilbert.getPath(), SMALL_MEMORY, SMALL_BLOCK, queryFile.getPath(), "--quantiles",
+                "--json");
+        String json = output.substring(output.lastIndexOf("\n{") + 1).trim();
+        Matcher results = Pattern.compile("\\{\"query\":\"([^\"]*)\",\"points\":(\\d+),\"bins\":\\d+,\"p5\":(\\S+?),"
+                + "\"q1\":(\\S+?),\"median\":(\\S+?),\"q3\":(\\S+?),\"p95\":(\\S+?),\"iqr\":\\S+?}").matcher(json);
+        for (String[] query : queries) {
+            assertTrue(json, results.find());
+            assertEquals(String.join(" ", query), results.group(1));
+            assertEquals(String.valueOf(values(query).length), results.group(2));
+            assertQuantiles(query, results.group(3), results.group(4), results.group(5), results.group(6),
+                    results.group(7));
+        }
+        assertFalse(json, results.find());
+    }
+
+    @Test
+    public void threadsMatchTheScan() throws IOException {
+        for (File file : new File[]{indexed(sort(0, PointFile.LAYOUT_XYZ)), blocks, sort(500, PointFile.LAYOUT_HILBERT)}) {
+            assertSameStatistics(file, "--threads", "3");
+            assertSameStatistics(file, "--threads", "4");
+        }
+    }
+
+    @Test
+    public void prefetchMatchesOneBlock() throws IOException {
+        for (File file : new File[]{indexed(sort(0, PointFile.LAYOUT_XYZ)), blocks, sort(500, PointFile.LAYOUT_HILBERT)}) {
+            for (String[] query : queries) {
+                // With M = B there is one buffer and nothing is read ahead
+                List<String> args = new ArrayList<>(Arrays.asList(file.getPath(), SMALL_BLOCK, SMALL_BLOCK));
+                args.addAll(Arrays.asList(query));
+                assertEquals(Arrays.toString(query), statistics(run(args.toArray(new String[0]))),
+                        statistics(run(file, query)));
+            }
+        }
+    }
+
+    @Test
+    public void gridMatchesTheScan() throws IOException {
+        File[] files = {indexed(sort(0, PointFile.LAYOUT_XYZ)), blocks, sort(500, PointFile.LAYOUT_HILBERT)};
+        for (File file : files) {
+            try (PointFile pointFile = PointFile.open(file)) {
+                MomentGrid.build(pointFile, 2.5).write(file);
+            }
+            for (String[] query : queries) {
+                assertEquals(file + " " + Arrays.toString(query), statistics(run(blocks, query)),
+                        statistics(run(file, query, "--grid")));
+            }
+        }
+    }
+
+    @Test
+    public void errorsExitWithAStatus() throws IOException {
+        String[] query = queries.get(0);
+        File missing = new File(folder.getRoot(), "missing.bin");
+        File queryFile = folder.newFile();
+        try (PrintWriter out = new PrintWriter(queryFile, StandardCharsets.US_ASCII.name())) {
+            out.println(String.join(" ", query));
+        }
+        File badQueries = folder.newFile();
+        try (PrintWriter out = new PrintWriter(badQueries, StandardCharsets.US_ASCII.name())) {
+            out.println("1 2 3");
+        }
+        List<String[]> failing = new ArrayList<>();
+        failing.add(new String[]{blocks.getPath(), SMALL_MEMORY});                              // Too few arguments
+        failing.add(concat(blocks.getPath(), "x", SMALL_BLOCK, query));                         // Not a number
+        failing.add(concat(blocks.getPath(), SMALL_MEMORY, SMALL_BLOCK, query, "--fast"));      // Unknown option
+        failing.add(concat(missing.getPath(), SMALL_MEMORY, SMALL_BLOCK, query));               // No data
+        File noGrid = sort(500, PointFile.LAYOUT_XYZ);
+        failing.add(concat(noGrid.getPath(), SMALL_MEMORY, SMALL_BLOCK, query, "--grid"));      // No grid
+        failing.add(new String[]{"--batch", blocks.getPath(), SMALL_MEMORY});
+        failing.add(new String[]{"--batch", blocks.getPath(), SMALL_MEMORY, SMALL_BLOCK, queryFile.getPath(), "--x"});
+        failing.add(new String[]{"--batch", blocks.getPath(), SMALL_MEMORY, SMALL_BLOCK, missing.getPath()});
+        failing.add(new String[]{"--batch", blocks.getPath(), SMALL_MEMORY, SMALL_BLOCK, badQueries.getPath()});
+        failing.add(new String[]{"--batch", missing.getPath(), SMALL_MEMORY, SMALL_BLOCK, queryFile.getPath()});
+        for (String[] args : failing) {
+            ByteArrayOutputStream printed = new ByteArrayOutputStream();
+            assertEquals(Arrays.toString(args), 1, status(printed, args));
+            assertTrue(Arrays.toString(args), printed.size() > 0);
+        }
+        assertEquals(0, status(new ByteArrayOutputStream(), concat(blocks.getPath(), SMALL_MEMORY, SMALL_BLOCK, query)));
+        assertEquals(0, status(new ByteArrayOutputStream(),
+                "--batch", blocks.getPath(), SMALL_MEMORY, SMALL_BLOCK, queryFile.getPath()));
+    }
+
+    /**
+     * @return argumenti ene poizvedbe
+     */
+    private static String[] concat(String file, String memory, String block, String[] query, String... options) {
+        List<String> args = new ArrayList<>(Arrays.asList(file, memory, block));
+        args.addAll(Arrays.asList(query));
+        args.addAll(Arrays.asList(options));
+        return args.toArray(new String[0]);
+    }
+
+    /**
+     * Preveri, da ima vsak izpisan kvantil (p5, Q1, mediana, Q3, p95) rang vrednosti poizvedbe v meji napake
+     * povzetka KLL (1.7 % stevila vrednosti)
+     */
+    private static void assertQuantiles(String[] query, String... printed) {
+        double[] values = values(query);
+        Arrays.sort(values);
+        double[] ranks = {0.05, 0.25, 0.5, 0.75, 0.95};
+        for (int q = 0; q < ranks.length; q++) {
+            // The values have 2 decimals, the printed quantile 3
+            double value = Double.parseDouble(printed[q]);
+            int below = 0, notAbove = 0;
+            for (double v : values) {
+                if (v < value - 5e-4) below++;
+                if (v <= value + 5e-4) notAbove++;
+            }
+            double error = 0.017 * values.length + 1;
+            assertTrue(Arrays.toString(query) + " p" + ranks[q] + " = " + value,
+                    below <= ranks[q] * values.length + error && notAbove >= ranks[q] * values.length - error);
+        }
+    }
+
+    /**
+     * @return vrednosti (z ali i) tock znotraj obmocja poizvedbe
+     */
+    private static double[] values(String[] query) {
+        double minX = Double.parseDouble(query[0]), maxX = Double.parseDouble(query[1]);
+        double minY = Double.parseDouble(query[2]), maxY = Double.parseDouble(query[3]);
+        List<Double> values = new ArrayList<>();
+        for (int k = 0; k < points.size(); k++) {
+            if (points.xs[k] >= minX && points.xs[k] < maxX && points.ys[k] >= minY && points.ys[k] < maxY) {
+                values.add(query[5].equals("i") ? (double) points.is[k] : (double) points.zs[k]);
+            }
+        }
+        double[] array = new double[values.size()];
+        for (int k = 0; k < array.length; k++) array[k] = values.get(k);
+        return array;
+    }
+
+    private static File sort(int blockPoints, int layout) throws IOException {
+        return sort(blockPoints, layout, false);
+    }
+
+    private static File sort(int blockPoints, int layout, boolean compressed) throws IOException {
+        File file = folder.newFile();
+        new PointSorter(64L << 20, folder.getRoot(), 1, blockPoints, layout, compressed).sort(text, file);
+        return file;
+    }
+
+    /**
+     * Zapise redki indeks poleg datoteke
+     */
+    private static File indexed(File file) throws IOException {
+        try (PointFile pointFile = PointFile.open(file)) {
+            FenceIndex.build(pointFile, 256).write(file);
+        }
+        return file;
+    }
+
+    private static String[] query(double minX, double maxX, double minY, double maxY, int binSize, char target) {
+        return new String[]{String.valueOf(minX), String.valueOf(maxX), String.valueOf(minY), String.valueOf(maxY),
+                String.valueOf(binSize), String.valueOf(target)};
+    }
+
+    /**
+     * Primerja izpis vseh poizvedb nad datoteko (z dodatnimi moznostmi) z branjem blokov verzije 1
+     */
+    private static void assertSameStatistics(File file, String... options) {
+        for (String[] query : queries) {
+            String expected = statistics(run(blocks, query));
+            assertEquals(expected, 6, expected.split(" ").length);
+            assertEquals(Arrays.toString(query), expected, statistics(run(file, query, options)));
+        }
+    }
+
+    /**
+     * Pozene poizvedbo z majhnim pomnilnikom in bloki
+     * @return vse, kar je program izpisal
+     */
+    static String run(File file, String[] query, String... options) {
+        return run(concat(file.getPath(), SMALL_MEMORY, SMALL_BLOCK, query, options));
+    }
+
+    /**
+     * Pozene Statistics z danimi argumenti, ki mora uspeti
+     * @return vse, kar je program izpisal
+     */
+    static String run(String... args) {
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        int status = status(printed, args);
+        String output = new String(printed.toByteArray(), StandardCharsets.UTF_8);
+        assertEquals(output, 0, status);
+        return output;
+    }
+
+    /**
+     * Pozene Statistics z danimi argumenti in izpis zapise v printed
+     * @return izhodni status programa
+     */
+    private static int status(ByteArrayOutputStream printed, String... args) {
+        PrintStream out = System.out;
+        try {
+            System.setOut(new PrintStream(printed, true));
+            return Statistics.run(args);
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    /**
+     * @return stevilo tock, stevilo kosov, povprecje, odklon, asimetrija in sploscenost iz izpisa (brez meritev
+     * branja), locene s presledkom
+     */
+    static String statistics(String output) {
+        List<String> values = new ArrayList<>();
+        for (String line : output.split("\n")) {
+            if (line.matches("(Points|Bins|Average|Deviation|Skewness|Kurtosis):.*")) {
+                values.add(line.substring(line.indexOf(':') + 1).trim());
+            }
+        }
+        return String.join(" ", values);
+    }
+}
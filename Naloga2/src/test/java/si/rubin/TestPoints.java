@@ -0,0 +1,64 @@
+package si.rubin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Nakljucne tocke za teste: tekstovna datoteka v obliki vhodnih podatkov in branje vseh tock binarne datoteke
+ */
+class TestPoints {
+    final float[] xs, ys, zs;
+    final short[] is;
+
+    TestPoints(int n) {
+        xs = new float[n];
+        ys = new float[n];
+        zs = new float[n];
+        is = new short[n];
+    }
+
+    int size() {
+        return xs.length;
+    }
+
+    /**
+     * Zapise n nakljucnih tock na 2 decimalki (X ima veliko ponovitev, da so tudi enake tocke)
+     * @return zapisane tocke, kot jih prebere Float.parseFloat
+     */
+    static TestPoints write(File text, int n, long seed) throws IOException {
+        Random random = new Random(seed);
+        TestPoints points = new TestPoints(n);
+        try (PrintWriter out = new PrintWriter(text, StandardCharsets.US_ASCII.name())) {
+            for (int k = 0; k < n; k++) {
+                String line = String.format(Locale.ROOT, "%.2f %.2f %.2f %d", 1000 + random.nextInt(500) / 4.,
+                        -200 + random.nextInt(40000) / 100., 250 + random.nextGaussian() * 15, random.nextInt(256));
+                out.print(line + "\n");
+                String[] parts = line.split(" ");
+                points.xs[k] = Float.parseFloat(parts[0]);
+                points.ys[k] = Float.parseFloat(parts[1]);
+                points.zs[k] = Float.parseFloat(parts[2]);
+                points.is[k] = Short.parseShort(parts[3]);
+            }
+        }
+        return points;
+    }
+
+    /**
+     * Prebere vse tocke datoteke (katerekoli verzije) v vrstnem redu zapisa
+     */
+    static TestPoints read(File file) throws IOException {
+        try (PointFile pointFile = PointFile.open(file)) {
+            TestPoints points = new TestPoints(pointFile.points);
+            long from = pointFile.lineOffset(0), to = pointFile.lineOffset(pointFile.points);
+            ByteBuffer buffer = PointFile.readFully(pointFile.fChan, from, (int) (to - from));
+            int n = pointFile.decode(buffer, points.xs, points.ys, points.zs, points.is);
+            if (n != pointFile.points) throw new IOException("Read " + n + " of " + pointFile.points + " points");
+            return points;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package si.rubin;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Izvoz mora dati enako besedilo kot String.format("%.2f %.2f %.2f %d") za vsako tocko v vrstnem redu datoteke,
+ * pri vseh formatih in stevilu niti
+ */
+public class TextExportTest {
+    private static final int POINTS = 300000;     // More than one chunk
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static File text;
+
+    @BeforeClass
+    public static void writePoints() throws IOException {
+        text = folder.newFile("points.txt");
+        TestPoints.write(text, POINTS, 22);
+    }
+
+    @Test
+    public void matchesStringFormat() throws IOException {
+        File[] files = {sort(0, PointFile.LAYOUT_XYZ, false), sort(1000, PointFile.LAYOUT_XYZ, false),
+                sort(1000, PointFile.LAYOUT_XYZ, true), sort(1000, PointFile.LAYOUT_HILBERT, true)};
+        for (File file : files) {
+            String expected = reference(file, false, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+                    Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+            for (int threads : new int[]{1, 3}) {
+                File out = folder.newFile();
+                assertEquals(POINTS, new TextExport(threads, false).export(file, out));
+                assertEquals(file + " " + threads, expected, read(out));
+            }
+        }
+    }
+
+    @Test
+    public void csvHasAHeader() throws IOException {
+        File file = sort(1000, PointFile.LAYOUT_XYZ, true);
+        File out = folder.newFile();
+        new TextExport(2, true).export(file, out);
+        assertEquals(reference(file, true, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY), read(out));
+    }
+
+    @Test
+    public void rectangleMatchesTheFilter() throws IOException {
+        double[][] areas = {{1050.1, 1080.3, -20.7, 40.05}, {1200, 1201, -1e9, 1e9}, {0, 1, 0, 1}};
+        for (File file : new File[]{sort(0, PointFile.LAYOUT_XYZ, false), sort(1000, PointFile.LAYOUT_XYZ, true),
+                sort(1000, PointFile.LAYOUT_HILBERT, false)}) {
+            for (double[] a : areas) {
+                File out = folder.newFile();
+                long exported = new TextExport(2, false, a[0], a[1], a[2], a[3]).export(file, out);
+                String expected = reference(file, false, a[0], a[1], a[2], a[3]);
+                assertEquals(file + " " + a[0], expected, read(out));
+                assertEquals(expected.isEmpty() ? 0 : expected.split("\n").length, exported);
+            }
+        }
+    }
+
+    @Test
+    public void putFloatMatchesStringFormat() {
+        Random random = new Random(23);
+        byte[] out = new byte[64];
+        float[] special = {0f, -0f, -0.004f, 0.005f, 0.015f, 1.125f, -2.675f, Float.NaN, Float.POSITIVE_INFINITY,
+                Float.NEGATIVE_INFINITY, Float.MAX_VALUE, -Float.MAX_VALUE, Float.MIN_VALUE, 1e14f, 3e15f};
+        for (float value : special) assertFormatted(out, value);
+        for (int k = 0; k < 300000; k++) {
+            float value = k % 2 == 0 ? (float) ((random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(12)))
+                    : Float.intBitsToFloat(random.nextInt());
+            assertFormatted(out, value);
+        }
+        for (long value : new long[]{0, 7, -32768, Long.MAX_VALUE}) {
+            assertEquals(Long.toString(value), new String(out, 0, TextExport.putLong(out, 0, value),
+                    StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static void assertFormatted(byte[] out, float value) {
+        int end = TextExport.putFloat(out, 0, value);
+        assertEquals(Float.toString(value), String.format(Locale.ROOT, "%.2f", value),
+                new String(out, 0, end, StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @return besedilo, ki ga da String.format za tocke datoteke znotraj obmocja
+     */
+    private static String reference(File file, boolean csv, double minX, double maxX, double minY, double maxY)
+            throws IOException {
+        TestPoints points = TestPoints.read(file);
+        StringBuilder expected = new StringBuilder(csv ? TextExport.CSV_HEADER : "");
+        String format = csv ? "%.2f,%.2f,%.2f,%d\n" : "%.2f %.2f %.2f %d\n";
+        for (int k = 0; k < points.size(); k++) {
+            float x = points.xs[k], y = points.ys[k];
+            if (x >= minX && x < maxX && y >= minY && y < maxY) {
+                expected.append(String.format(Locale.ROOT, format, x, y, points.zs[k], points.is[k]));
+            }
+        }
+        return expected.toString();
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII);
+    }
+
+    private static File sort(int blockPoints, int layout, boolean compressed) throws IOException {
+        File file = folder.newFile();
+        new PointSorter(64L << 20, folder.getRoot(), 1, blockPoints, layout, compressed).sort(text, file);
+        return file;
+    }
+}
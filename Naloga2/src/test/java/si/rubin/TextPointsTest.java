@@ -0,0 +1,129 @@
+package si.rubin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Pretvorba iz bytov mora dati natanko enake vrednosti kot Float.parseFloat in Short.parseShort,
+ * napacne vrstice pa javiti z vrstico in vrednostjo
+ */
+public class TextPointsTest {
+    private static final int LINES = 30000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(21);
+
+    @Test
+    public void matchesParseFloat() throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (int k = 0; k < LINES; k++) lines.add(value() + " " + value() + " " + value() + " " + intensity());
+        // Values the fast path can not decide
+        lines.add("1e3 -2.5E-2 NaN -32768");
+        lines.add("0.000000000000000000000000000000000000000001 -0.00 123456789012345678 32767");
+        lines.add("16777217 0.1000000000000000055511151231257827 3.4028235e38 +7");
+        StringBuilder text = new StringBuilder();
+        for (int k = 0; k < lines.size(); k++) {
+            text.append(lines.get(k)).append(k % 3 == 0 ? "\r\n" : "\n");
+            if (k % 1000 == 0) text.append("\n");       // Empty lines are skipped
+        }
+        File file = write(text.toString());
+        try (TextPoints points = new TextPoints(file)) {
+            int line = 0;
+            for (int n = points.next(TextPoints.BATCH); n > 0; n = points.next(TextPoints.BATCH)) {
+                for (int k = 0; k < n; k++, line++) {
+                    String[] parts = lines.get(line).split(" ");
+                    String message = lines.get(line);
+                    assertSameFloat(message, Float.parseFloat(parts[0]), points.xs[k]);
+                    assertSameFloat(message, Float.parseFloat(parts[1]), points.ys[k]);
+                    assertSameFloat(message, Float.parseFloat(parts[2]), points.zs[k]);
+                    assertEquals(message, Short.parseShort(parts[3]), points.is[k]);
+                }
+            }
+            assertEquals(lines.size(), line);
+            assertTrue(points.countLines() >= lines.size());
+        }
+    }
+
+    @Test
+    public void readsAPartOfTheFile() throws IOException {
+        String first = "1.5 2.5 3.5 4\n", second = "5.25 6.25 7.25 8\n", third = "9 10 11 12";
+        File file = write(first + second + third);
+        try (TextPoints points = new TextPoints(file, first.length(), first.length() + second.length())) {
+            assertEquals(1, points.next(10));
+            assertEquals(5.25f, points.xs[0], 0);
+            assertEquals(8, points.is[0]);
+            assertEquals(0, points.next(10));
+        }
+        // The last line has no newline
+        try (TextPoints points = new TextPoints(file, first.length() + second.length(), -1)) {
+            assertEquals(1, points.next(10));
+            assertEquals(12, points.is[0]);
+        }
+    }
+
+    @Test
+    public void reportsMalformedLines() throws IOException {
+        assertMalformed("1 2 3\n", "line 2", "missing i value");
+        assertMalformed("1 2 3 4 5\n", "line 2", "extra characters after the i value");
+        assertMalformed("1  2 3 4\n", "line 2", "invalid y value");
+        assertMalformed("1 2 x3 4\n", "line 2", "invalid z value");
+        assertMalformed("1 2 3 40000\n", "line 2", "invalid i value");
+        assertMalformed("1 2 3 4.5\n", "line 2", "invalid i value");
+    }
+
+    /**
+     * Prebere datoteko z eno pravilno vrstico, ki ji sledi napacna, in preveri sporocilo napake
+     */
+    private void assertMalformed(String line, String where, String reason) throws IOException {
+        File file = write("0.5 1.5 2.5 3\n" + line);
+        try (TextPoints points = new TextPoints(file)) {
+            points.next(TextPoints.BATCH);
+            fail("no error for " + line);
+        } catch (IOException e) {
+            String message = e.getMessage();
+            assertTrue(message, message.contains(where));
+            assertTrue(message, message.contains(reason));
+            assertTrue(message, message.contains("\"" + line.trim() + "\""));
+        }
+    }
+
+    private File write(String text) throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    private static void assertSameFloat(String message, float expected, float actual) {
+        assertEquals(message, Float.floatToRawIntBits(expected), Float.floatToRawIntBits(actual));
+    }
+
+    /**
+     * @return nakljucno decimalno stevilo z 0 do 9 decimalkami (tudi s predznakom in vodilnimi niclami)
+     */
+    private String value() {
+        int decimals = random.nextInt(10);
+        double value = (random.nextDouble() - 0.3) * Math.pow(10, random.nextInt(8));
+        String text = String.format(Locale.ROOT, "%." + decimals + "f", value);
+        return random.nextInt(20) == 0 ? text.replace("-", "").replaceFirst("^", "00") : text;
+    }
+
+    private String intensity() {
+        return Integer.toString(random.nextInt(65536) - 32768);
+    }
+}
@@ -0,0 +1,100 @@
+package si.rubin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Datoteke za meritve: generirane tocke in iz njih urejene datoteke v vseh formatih. Hranijo se v mapi
+ * aamp.bench.dir (privzeto zacasna mapa) in se ustvarijo le, ce se ne obstajajo, saj so pri istem
+ * semenu vedno enake.
+ * <pre>
+ * v0      - verzija 0 (brez blokov) z redkim indeksom
+ * v1      - bloki po X z indeksom blokov
+ * v2      - stisnjeni bloki (DataSort -z)
+ * hilbert - bloki po Hilbertovi krivulji
+ * </pre>
+ */
+class BenchmarkData {
+    static final long SEED = 20200401;
+    static final long SORT_MEMORY = 256L << 20;
+    private static final String EVICT_COMMAND = "aamp.bench.evict";
+
+    /**
+     * @return mapa z datotekami za meritve
+     */
+    static File dir() {
+        File dir = new File(System.getProperty("aamp.bench.dir",
+                new File(System.getProperty("java.io.tmpdir"), "aamp-bench").getPath()));
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IllegalStateException("Can not create " + dir);
+        return dir;
+    }
+
+    /**
+     * @return tekstovna datoteka s points generiranimi tockami
+     */
+    static synchronized File text(PointGenerator.Distribution distribution, long points) throws IOException {
+        File file = new File(dir(), "points-" + distribution.name().toLowerCase() + "-" + points + ".txt");
+        if (!file.isFile()) {
+            File tmp = new File(file.getPath() + ".tmp");
+            PointGenerator.write(tmp, distribution, points, SEED);
+            if (!tmp.renameTo(file)) throw new IOException("Can not rename " + tmp);
+        }
+        return file;
+    }
+
+    /**
+     * @return urejena datoteka v podanem formatu (z redkim indeksom, kadar je urejena po X)
+     */
+    static synchronized File sorted(PointGenerator.Distribution distribution, long points, String format)
+            throws IOException {
+        File text = text(distribution, points);
+        File file = new File(dir(), text.getName().replace(".txt", "-" + format + ".bin"));
+        if (!file.isFile() || !FenceIndex.indexFile(file).isFile() && !format.equals("hilbert")) {
+            int layout = layout(format);
+            PointSorter sorter = new PointSorter(SORT_MEMORY, dir(), 1, blockPoints(format), layout,
+                    format.equals("v2"));
+            sorter.sort(text, file);
+            if (layout == PointFile.LAYOUT_XYZ) {
+                try (PointFile pointFile = PointFile.open(file)) {
+                    FenceIndex.build(pointFile, PointFile.DEFAULT_BLOCK_POINTS).write(file);
+                }
+            }
+        }
+        return file;
+    }
+
+    static int layout(String format) {
+        return format.equals("hilbert") ? PointFile.LAYOUT_HILBERT : PointFile.LAYOUT_XYZ;
+    }
+
+    static int blockPoints(String format) {
+        return format.equals("v0") ? 0 : PointFile.DEFAULT_BLOCK_POINTS;
+    }
+
+    /**
+     * Odstrani strani datoteke iz predpomnilnika strani, da jih naslednje branje prebere z diska.
+     * Privzeto z GNU dd (posix_fadvise DONTNEED, brez pravic root), ukaz se lahko zamenja z
+     * -Daamp.bench.evict="ukaz {}", kjer se {} zamenja s potjo datoteke.
+     */
+    static void evict(File file) throws IOException, InterruptedException {
+        String command = System.getProperty(EVICT_COMMAND,
+                "dd if=/dev/null of={} oflag=nocache conv=notrunc,fdatasync count=0");
+        String[] args = command.trim().split("\\s+");
+        for (int k = 0; k < args.length; k++) args[k] = args[k].replace("{}", file.getAbsolutePath());
+        Process process = new ProcessBuilder(args).redirectErrorStream(true).start();
+        // The output only matters if the command fails
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        try (InputStream in = process.getInputStream()) {
+            for (int n; (n = in.read(buffer)) > 0; ) output.write(buffer, 0, n);
+        }
+        if (!process.waitFor(30, TimeUnit.SECONDS) || process.exitValue() != 0) {
+            process.destroy();
+            throw new IllegalStateException("Could not drop " + file + " from the page cache with: " + command
+                    + " (set -D" + EVICT_COMMAND + ")\n" + output);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package si.rubin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Zagon meritev (java -jar target/benchmarks.jar [moznosti JMH]). Brez -prof se doda profiler gc,
+ * da se ob prepustnosti in percentilih zakasnitev izpise se hitrost alokacij.
+ */
+public class Benchmarks {
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        if (!options.contains("-prof") && !options.contains("-l") && !options.contains("-h")) {
+            options.add("-prof");
+            options.add("gc");
+        }
+        org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,59 @@
+package si.rubin;
+
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Primerjava dveh tock: stari DataSort.PointComparator nad vrsticami (vsakic razclenita obe vrstici)
+ * in pakirani kljuci, po katerih ureja PointSorter
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ComparatorBenchmark {
+    private static final int POINTS = 1 << 16;
+
+    @Param({"UNIFORM", "CLUSTERED", "STRIPS"})
+    public PointGenerator.Distribution distribution;
+
+    private String[] lines;
+    private long[] as, bs;
+    private final Comparator<String> comparator = new DataSort.PointComparator();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        lines = PointGenerator.lines(distribution, POINTS, BenchmarkData.SEED);
+        as = new long[POINTS];
+        bs = new long[POINTS];
+        for (int k = 0; k < POINTS; k++) {
+            String[] parts = lines[k].split(" ");
+            as[k] = PointSorter.pack(Float.parseFloat(parts[0]), Float.parseFloat(parts[1]));
+            bs[k] = PointSorter.pack(Float.parseFloat(parts[2]), Short.parseShort(parts[3]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POINTS - 1)
+    public int pointComparator() {
+        int sum = 0;
+        for (int k = 1; k < POINTS; k++) sum += comparator.compare(lines[k - 1], lines[k]);
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POINTS - 1)
+    public int packedKeys() {
+        int sum = 0;
+        for (int k = 1; k < POINTS; k++) {
+            // The order of PointSorter: x and y, then z
+            int cmp = Long.compareUnsigned(as[k - 1], as[k]);
+            sum += cmp != 0 ? cmp : Long.compare(bs[k - 1] >>> 32, bs[k] >>> 32);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,125 @@
+package si.rubin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Delo poizvedbe nad ze prebranimi tockami: filtriranje tock bloka po obmocju po eno tocko (findTargets)
+ * in brez vejitev po kosih (selectTargets, @see si.rubin.RangeFilter) ter gradnja histograma s statistiko
+ * (buildHistogram). Tocke so vse, ki jih poizvedba prebere iz datoteke verzije 1 (tudi tiste izven obmocja,
+ * ki jih filter zavrze).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterBenchmark {
+    private static final int CHUNK = PointFile.DEFAULT_BLOCK_POINTS;
+
+    @Param({"1000000"})
+    public int size;
+
+    @Param({"UNIFORM", "CLUSTERED", "STRIPS"})
+    public PointGenerator.Distribution distribution;
+
+    @Param({"50", "200"})
+    public double side;
+
+    @Param({"z", "i"})
+    public char target;
+
+    @Param({"1", "10"})
+    public int binSize;
+
+    private float[] xs, ys, zs;
+    private short[] is;
+    private int points;
+    private float[] values;                     // Target values of the points inside the area
+    private float[] chunkXs, chunkYs, chunkZs;  // A chunk as it is decoded (offerAll overwrites zs or is)
+    private short[] chunkIs;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        File dataFile = BenchmarkData.sorted(distribution, size, "v1");
+        xs = new float[1024];
+        ys = new float[1024];
+        zs = new float[1024];
+        is = new short[1024];
+        Query area = QueryBenchmark.query(side, target);
+        // Every point the scan reads, before it is filtered
+        Query collect = new Query(area.minX, area.maxX, area.minY, area.maxY, 1, target) {
+            @Override
+            void offer(float x, float y, float z, short i) {
+                if (points == xs.length) grow();
+                xs[points] = x;
+                ys[points] = y;
+                zs[points] = z;
+                is[points++] = i;
+            }
+
+            @Override
+            void offerAll(float[] xs, float[] ys, float[] zs, short[] is, int n) {
+                for (int k = 0; k < n; k++) offer(xs[k], ys[k], zs[k], is[k]);
+            }
+        };
+        try (QueryEngine engine = new QueryEngine(dataFile, 1)) {
+            engine.execute(collect);
+        }
+        values = new float[points];
+        int n = 0;
+        for (int k = 0; k < points; k++) {
+            if (xs[k] >= area.minX && xs[k] < area.maxX && ys[k] >= area.minY && ys[k] < area.maxY) {
+                values[n++] = target == 'i' ? is[k] : zs[k];
+            }
+        }
+        values = Arrays.copyOf(values, n);
+        chunkXs = new float[CHUNK];
+        chunkYs = new float[CHUNK];
+        chunkZs = new float[CHUNK];
+        chunkIs = new short[CHUNK];
+    }
+
+    private void grow() {
+        xs = Arrays.copyOf(xs, xs.length * 2);
+        ys = Arrays.copyOf(ys, ys.length * 2);
+        zs = Arrays.copyOf(zs, zs.length * 2);
+        is = Arrays.copyOf(is, is.length * 2);
+    }
+
+    @Benchmark
+    public Histogram findTargets() {
+        Query query = QueryBenchmark.query(side, target);
+        for (int k = 0; k < points; k++) query.offer(xs[k], ys[k], zs[k], is[k]);
+        return query.histogram;
+    }
+
+    /**
+     * Kot findTargets, le da se tocke ponudijo po kosih (s kopiranjem, kot pri razpakiranju bloka)
+     */
+    @Benchmark
+    public Histogram selectTargets() {
+        Query query = QueryBenchmark.query(side, target);
+        for (int from = 0; from < points; from += CHUNK) {
+            int n = Math.min(CHUNK, points - from);
+            System.arraycopy(xs, from, chunkXs, 0, n);
+            System.arraycopy(ys, from, chunkYs, 0, n);
+            System.arraycopy(zs, from, chunkZs, 0, n);
+            System.arraycopy(is, from, chunkIs, 0, n);
+            query.offerAll(chunkXs, chunkYs, chunkZs, chunkIs, n);
+        }
+        return query.histogram;
+    }
+
+    @Benchmark
+    public double[] buildHistogram() {
+        Histogram histogram = new Histogram(binSize);
+        for (float value : values) histogram.add(value);
+        return histogram.moments();
+    }
+}
@@ -0,0 +1,158 @@
+package si.rubin;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Sinteticni LiDAR podatki za meritve: tocke na obmocju 1 km x 1 km (kot en izsek podatkov Korte)
+ * z visino terena, vegetacijo in intenziteto, zapisane kot vrstice "x y z i" na 2 decimalki.
+ * <pre>
+ * UNIFORM   - tocke enakomerno po obmocju, v nakljucnem vrstnem redu
+ * CLUSTERED - vecina tock v krosnjah dreves (gruce okoli nakljucnih sredisc), ostalo tla
+ * STRIPS    - vrstni red snemanja: pasovi preleta po Y, znotraj pasu skenirne vrstice po X
+ * </pre>
+ * Pri istem semenu so tocke vedno enake.
+ */
+public class PointGenerator {
+    static final double MIN_X = 394000;
+    static final double MIN_Y = 39000;
+    static final double SIDE = 1000;
+    private static final double STRIP_WIDTH = 50;          // Width of a flight strip (m)
+    private static final double CROWN_RADIUS = 4;          // Mean radius of a tree crown (m)
+    private static final double CROWN_SHARE = 0.7;         // Points that fall into crowns (CLUSTERED)
+    private static final int POINTS_PER_CROWN = 400;
+
+    public enum Distribution { UNIFORM, CLUSTERED, STRIPS }
+
+    private final Distribution distribution;
+    private final long points;
+    private final Random random;
+    private final double[] crownX, crownY, crownHeight;
+    private final long stripPoints, linePoints;
+    private long next;
+
+    PointGenerator(Distribution distribution, long points, long seed) {
+        this.distribution = distribution;
+        this.points = points;
+        this.random = new Random(seed);
+        int crowns = (int) Math.max(1, points / POINTS_PER_CROWN);
+        crownX = new double[crowns];
+        crownY = new double[crowns];
+        crownHeight = new double[crowns];
+        for (int c = 0; c < crowns; c++) {
+            crownX[c] = random.nextDouble() * SIDE;
+            crownY[c] = random.nextDouble() * SIDE;
+            crownHeight[c] = 5 + random.nextDouble() * 25;
+        }
+        // Scan lines as far apart as the points on them
+        long strips = (long) (SIDE / STRIP_WIDTH);
+        stripPoints = Math.max(1, (points + strips - 1) / strips);
+        linePoints = Math.max(1, (long) Math.sqrt(stripPoints * STRIP_WIDTH / SIDE));
+    }
+
+    /**
+     * Zapise points tock v tekstovno datoteko
+     */
+    static void write(File file, Distribution distribution, long points, long seed) throws IOException {
+        PointGenerator generator = new PointGenerator(distribution, points, seed);
+        StringBuilder line = new StringBuilder(48);
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file), 1 << 20)) {
+            while (generator.hasNext()) {
+                line.setLength(0);
+                generator.nextLine(line);
+                writer.append(line).append('\n');
+            }
+        }
+    }
+
+    /**
+     * @return points vrstic "x y z i" (za meritve v pomnilniku)
+     */
+    static String[] lines(Distribution distribution, int points, long seed) {
+        PointGenerator generator = new PointGenerator(distribution, points, seed);
+        String[] lines = new String[points];
+        StringBuilder line = new StringBuilder(48);
+        for (int k = 0; k < points; k++) {
+            line.setLength(0);
+            generator.nextLine(line);
+            lines[k] = line.toString();
+        }
+        return lines;
+    }
+
+    boolean hasNext() {
+        return next < points;
+    }
+
+    /**
+     * Doda naslednjo tocko kot vrstico "x y z i" (brez konca vrstice)
+     */
+    void nextLine(StringBuilder out) {
+        double x, y, height = 0;
+        switch (distribution) {
+            case CLUSTERED:
+                if (random.nextDouble() < CROWN_SHARE) {
+                    int c = random.nextInt(crownX.length);
+                    double r = Math.abs(random.nextGaussian()) * CROWN_RADIUS;
+                    double angle = random.nextDouble() * 2 * Math.PI;
+                    x = crownX[c] + r * Math.cos(angle);
+                    y = crownY[c] + r * Math.sin(angle);
+                    // Highest in the middle of the crown
+                    height = crownHeight[c] * Math.max(0, 1 - r / (3 * CROWN_RADIUS));
+                } else {
+                    x = random.nextDouble() * SIDE;
+                    y = random.nextDouble() * SIDE;
+                }
+                break;
+            case STRIPS:
+                long strip = next / stripPoints, inStrip = next % stripPoints;
+                long line = inStrip / linePoints, onLine = inStrip % linePoints;
+                long lines = (stripPoints + linePoints - 1) / linePoints;
+                // The mirror sweeps back and forth across the strip
+                double across = (onLine + random.nextDouble()) / linePoints;
+                if (line % 2 == 1) across = 1 - across;
+                x = (line + random.nextDouble() * 0.1) * SIDE / lines;
+                y = strip * STRIP_WIDTH + across * STRIP_WIDTH;
+                if (random.nextDouble() < CROWN_SHARE / 2) height = random.nextDouble() * 20;
+                break;
+            default:
+                x = random.nextDouble() * SIDE;
+                y = random.nextDouble() * SIDE;
+                if (random.nextDouble() < CROWN_SHARE / 2) height = random.nextDouble() * 20;
+        }
+        x = Math.min(SIDE - 0.01, Math.max(0, x));
+        y = Math.min(SIDE - 0.01, Math.max(0, y));
+        double z = terrain(x, y) + height + random.nextGaussian() * 0.05;
+        // Ground reflects more than leaves
+        int i = height > 0 ? random.nextInt(40) : 30 + random.nextInt(60);
+        next++;
+
+        appendCents(out, MIN_X + x);
+        out.append(' ');
+        appendCents(out, MIN_Y + y);
+        out.append(' ');
+        appendCents(out, z);
+        out.append(' ').append(i);
+    }
+
+    /**
+     * Visina terena na mestu (x, y) znotraj obmocja
+     */
+    private static double terrain(double x, double y) {
+        return 230 + 12 * Math.sin(x / 97) + 9 * Math.cos(y / 143) + 0.02 * x;
+    }
+
+    /**
+     * Doda pozitivno vrednost na 2 decimalki (hitreje od String.format)
+     */
+    private static void appendCents(StringBuilder out, double value) {
+        long cents = Math.round(value * 100);
+        long fraction = cents % 100;
+        out.append(cents / 100).append('.');
+        if (fraction < 10) out.append('0');
+        out.append(fraction);
+    }
+}
@@ -0,0 +1,83 @@
+package si.rubin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Poizvedba Statistics nad urejeno datoteko: iskanje vrstic, ki jih je treba prebrati (findBound, pri
+ * verziji 0 z redkim indeksom, pri blokih z indeksom blokov), in celotna poizvedba z branjem, filtriranjem
+ * in statistiko. Celotna poizvedba se meri s podatki v predpomnilniku strani (warm) in brez njih (cold).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryBenchmark {
+    @Param({"1000000"})
+    public int size;
+
+    @Param({"UNIFORM", "CLUSTERED", "STRIPS"})
+    public PointGenerator.Distribution distribution;
+
+    @Param({"v0", "v1", "v2", "hilbert"})
+    public String format;
+
+    @Param({"50", "200"})
+    public double side;                         // Side of the queried square (m)
+
+    @Param({"1"})
+    public double blockSize;                    // B in MB
+
+    File dataFile;
+    private QueryEngine engine;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dataFile = BenchmarkData.sorted(distribution, size, format);
+        engine = new QueryEngine(dataFile, blockSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        engine.close();
+    }
+
+    /**
+     * @return poizvedba za kvadrat s stranico side na sredini podatkov
+     */
+    static Query query(double side, char target) {
+        double minX = PointGenerator.MIN_X + (PointGenerator.SIDE - side) / 2;
+        double minY = PointGenerator.MIN_Y + (PointGenerator.SIDE - side) / 2;
+        return new Query(minX, minX + side, minY, minY + side, 1, target);
+    }
+
+    @Benchmark
+    public long[][] findBound() throws Exception {
+        return engine.plan(query(side, 'z'));
+    }
+
+    @Benchmark
+    public double[] query(PageCache cache) throws Exception {
+        Query query = engine.execute(query(side, 'z'));
+        return query.histogram.moments();
+    }
+
+    /**
+     * Stanje predpomnilnika strani pred vsako poizvedbo (@see BenchmarkData#evict)
+     */
+    @State(Scope.Thread)
+    public static class PageCache {
+        @Param({"warm", "cold"})
+        public String cache;
+
+        @Setup(Level.Invocation)
+        public void drop(QueryBenchmark benchmark) throws IOException, InterruptedException {
+            if (cache.equals("cold")) BenchmarkData.evict(benchmark.dataFile);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package si.rubin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Faze DataSort: branje in razclenjevanje vrstic (parse, za primerjavo parseStrings po vrsticah kot String),
+ * urejanje v pomnilniku (sort), pretvorba urejenih tock v binarno datoteko (convert) ter celotno urejanje
+ * datoteke (sortFile)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class SortBenchmark {
+    @Param({"100000", "1000000"})
+    public int size;
+
+    @Param({"UNIFORM", "CLUSTERED", "STRIPS"})
+    public PointGenerator.Distribution distribution;
+
+    @Param({"xyz", "hilbert"})
+    public String layout;
+
+    private File text;
+    private PointSorter.Run parsed;             // Points as read from the text, not sorted
+    private PointSorter.Run sorted;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        text = BenchmarkData.text(distribution, size);
+        parsed = read();
+        sorted = read();
+        sorted.sort();
+    }
+
+    private PointSorter.Run read() throws IOException {
+        PointSorter.Run run = new PointSorter.Run(size, BenchmarkData.layout(layout));
+        try (TextPoints points = new TextPoints(text)) {
+            run.read(points);
+        }
+        return run;
+    }
+
+    @Benchmark
+    public int parse() throws IOException {
+        return read().size;
+    }
+
+    /**
+     * Branje vrstic z BufferedReader in pretvorba s Float.parseFloat, kot pred TextPoints
+     */
+    @Benchmark
+    public long parseStrings() throws IOException {
+        long packed = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(text), 1 << 20)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                int s1 = line.indexOf(' ');
+                int s2 = line.indexOf(' ', s1 + 1);
+                int s3 = line.indexOf(' ', s2 + 1);
+                float x = Float.parseFloat(line.substring(0, s1));
+                float y = Float.parseFloat(line.substring(s1 + 1, s2));
+                packed ^= PointSorter.pack(x, y) + PointSorter.pack(Float.parseFloat(line.substring(s2 + 1, s3)),
+                        Short.parseShort(line.substring(s3 + 1)));
+            }
+        }
+        return packed;
+    }
+
+    @Benchmark
+    public long sort(Unsorted unsorted) {
+        unsorted.run.sort();
+        return unsorted.run.as[0];
+    }
+
+    @Benchmark
+    public int convert(Output output) throws IOException {
+        return sorted.write(output.file, BenchmarkData.blockPoints(output.format), BenchmarkData.layout(layout),
+                output.format.equals("v2"));
+    }
+
+    @Benchmark
+    public int sortFile(Output output, Workers workers) throws IOException {
+        PointSorter sorter = new PointSorter(BenchmarkData.SORT_MEMORY, BenchmarkData.dir(), workers.threads,
+                BenchmarkData.blockPoints(output.format), BenchmarkData.layout(layout), output.format.equals("v2"));
+        return sorter.sort(text, output.file);
+    }
+
+    /**
+     * Neurejena kopija tock za vsako urejanje posebej
+     */
+    @State(Scope.Thread)
+    public static class Unsorted {
+        PointSorter.Run run;
+
+        @Setup(Level.Invocation)
+        public void copy(SortBenchmark benchmark) {
+            PointSorter.Run parsed = benchmark.parsed;
+            if (run == null) run = new PointSorter.Run(parsed.size, BenchmarkData.layout(benchmark.layout));
+            System.arraycopy(parsed.as, 0, run.as, 0, parsed.size);
+            System.arraycopy(parsed.bs, 0, run.bs, 0, parsed.size);
+            if (parsed.hilbert) System.arraycopy(parsed.hs, 0, run.hs, 0, parsed.size);
+            run.size = parsed.size;
+        }
+    }
+
+    /**
+     * Izhodna datoteka in njen format (bloki ali stisnjeni bloki, verzija 0 ne podpira Hilbertove krivulje)
+     */
+    @State(Scope.Thread)
+    public static class Output {
+        @Param({"v1", "v2"})
+        public String format;
+
+        File file;
+
+        @Setup(Level.Trial)
+        public void create() throws IOException {
+            file = File.createTempFile("sortbench", ".bin", BenchmarkData.dir());
+            file.deleteOnExit();
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() {
+            file.delete();
+        }
+    }
+
+    /**
+     * Stevilo niti pri urejanju celotne datoteke
+     */
+    @State(Scope.Benchmark)
+    public static class Workers {
+        @Param({"1", "4"})
+        public int threads;
+    }
+}
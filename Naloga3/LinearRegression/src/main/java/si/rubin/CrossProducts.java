@@ -0,0 +1,104 @@
+package si.rubin;
+
+/**
+ * Sufficient statistics for OLS, accumulated one row at a time: the number of rows, the column means and
+ * the centered cross products of the Xs and Y. Memory is O(p^2) regardless of the number of rows.
+ *
+ * The means and cross products are updated with running-mean centering (Welford), so the values are never
+ * summed as raw squares and large offsets in the data do not cancel out:
+ *  n = n + 1
+ *  d = z - mean
+ *  mean = mean + d / n
+ *  C = C + d * (z - mean)'
+ * where z = (X1 ... Xp, Y). C then holds the centered X'X (top left p x p) and X'y (last column).
+ */
+class CrossProducts {
+    private final int p;                // Number of Xs
+    private long n;                     // Number of rows
+    private final double[] mean;        // Means of X1 ... Xp and Y
+    private final double[][] comoment;  // Upper triangle of the centered cross products of (X1 ... Xp, Y)
+    private final double[] delta;       // Difference to the old mean of the current row
+
+    /**
+     * @param p number of Xs in a row
+     */
+    CrossProducts(int p) {
+        this.p = p;
+        mean = new double[p + 1];
+        comoment = new double[p + 1][p + 1];
+        delta = new double[p + 1];
+    }
+
+    /**
+     * Adds a row to the statistics
+     * @param x values X1 ... Xp of the row
+     * @param y target value of the row
+     */
+    void add(double[] x, double y) {
+        n++;
+        for (int j = 0; j <= p; j++) {
+            double value = j < p ? x[j] : y;
+            delta[j] = value - mean[j];
+            mean[j] += delta[j] / n;
+        }
+        // Row i only needs the upper triangle, (z - new mean) is the old delta scaled by (n - 1) / n
+        double scale = (n - 1) / (double) n;
+        for (int i = 0; i <= p; i++) {
+            double di = delta[i] * scale;
+            double[] row = comoment[i];
+            for (int j = i; j <= p; j++) {
+                row[j] += di * delta[j];
+            }
+        }
+    }
+
+    /**
+     * @return number of rows
+     */
+    long count() {
+        return n;
+    }
+
+    /**
+     * @return number of Xs in a row
+     */
+    int size() {
+        return p;
+    }
+
+    /**
+     * @return X'X of the centered Xs (p x p)
+     */
+    double[][] xTx() {
+        double[][] result = new double[p][p];
+        for (int i = 0; i < p; i++) {
+            for (int j = i; j < p; j++) {
+                result[i][j] = comoment[i][j];
+                result[j][i] = comoment[i][j];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return X'y of the centered Xs and Y (p x 1)
+     */
+    double[] xTy() {
+        double[] result = new double[p];
+        for (int i = 0; i < p; i++) {
+            result[i] = comoment[i][p];
+        }
+        return result;
+    }
+
+    /**
+     * @return sums of the columns X1 ... Xp and Y
+     */
+    double[] columnSums() {
+        double[] sums = new double[p + 1];
+        for (int j = 0; j <= p; j++) {
+            sums[j] = mean[j] * n;
+        }
+        return sums;
+    }
+}
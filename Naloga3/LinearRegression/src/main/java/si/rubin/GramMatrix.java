@@ -0,0 +1,122 @@
+package si.rubin;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * X'X and X'y of the rows of X, without forming the transpose.
+ * With more threads the rows are split in halves on a fork-join pool until a part has at most ROWS_PER_TASK rows.
+ * Every part adds the outer products of its rows in row-major order (one row of X at a time, upper triangle only)
+ * into its own partial X'X and X'y, and the partial sums are added pairwise on the way back (tree reduction).
+ * The result only differs from the sequential one in the order of the additions.
+ */
+class GramMatrix {
+    static final int ROWS_PER_TASK = 8192;
+
+    final double[][] xTx;   // p x p
+    final double[] xTy;     // p x 1
+
+    private GramMatrix(int p) {
+        xTx = new double[p][p];
+        xTy = new double[p];
+    }
+
+    /**
+     * @param X input variables (n x p)
+     * @param y target variable (n x 1)
+     * @param threads number of threads (1 computes it sequentially)
+     * @return X'X and X'y
+     */
+    static GramMatrix compute(double[][] X, double[] y, int threads) {
+        GramMatrix gram;
+        if (threads <= 1 || X.length <= ROWS_PER_TASK) {
+            gram = new GramMatrix(X[0].length);
+            gram.add(X, y, 0, X.length);
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                gram = pool.invoke(new Part(X, y, 0, X.length));
+            } finally {
+                pool.shutdown();
+            }
+        }
+        gram.mirror();
+        return gram;
+    }
+
+    /**
+     * Adds the rows from - to-1 to the upper triangle of X'X and to X'y
+     */
+    private void add(double[][] X, double[] y, int from, int to) {
+        int p = xTy.length;
+        for (int r = from; r < to; r++) {
+            double[] row = X[r];
+            for (int i = 0; i < p; i++) {
+                double xi = row[i];
+                double[] sums = xTx[i];
+                for (int j = i; j < p; j++) {
+                    sums[j] += xi * row[j];
+                }
+                xTy[i] += xi * y[r];
+            }
+        }
+    }
+
+    /**
+     * Adds the upper triangle of X'X and X'y of another part
+     */
+    private void add(GramMatrix other) {
+        int p = xTy.length;
+        for (int i = 0; i < p; i++) {
+            for (int j = i; j < p; j++) {
+                xTx[i][j] += other.xTx[i][j];
+            }
+            xTy[i] += other.xTy[i];
+        }
+    }
+
+    /**
+     * Copies the upper triangle of X'X into the lower one
+     */
+    private void mirror() {
+        for (int i = 0; i < xTx.length; i++) {
+            for (int j = 0; j < i; j++) {
+                xTx[i][j] = xTx[j][i];
+            }
+        }
+    }
+
+    /**
+     * Rows from - to-1, split in halves while there are more than ROWS_PER_TASK
+     */
+    private static class Part extends RecursiveTask<GramMatrix> {
+        private static final long serialVersionUID = 1L;
+
+        private final double[][] X;
+        private final double[] y;
+        private final int from, to;
+
+        Part(double[][] X, double[] y, int from, int to) {
+            this.X = X;
+            this.y = y;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected GramMatrix compute() {
+            if (to - from <= ROWS_PER_TASK) {
+                GramMatrix gram = new GramMatrix(X[0].length);
+                gram.add(X, y, from, to);
+                return gram;
+            }
+            int middle = (from + to) >>> 1;
+            Part left = new Part(X, y, from, middle);
+            left.fork();
+            GramMatrix right = new Part(X, y, middle, to).compute();
+            GramMatrix gram = left.join();
+            gram.add(right);
+            return gram;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package si.rubin;
+
+/**
+ * Solves the normal equations X'X b = X'y without forming an inverse.
+ * The columns are first scaled so that the diagonal of X'X is 1 (this alone removes most of the bad conditioning
+ * of polynomial fits, where X1^k grows much faster than X1). The scaled X'X is factored with Cholesky (X'X = LL')
+ * and b is found with a forward and a backward substitution.
+ * If X'X is not positive definite or its condition number is above MAX_CHOLESKY_CONDITION, Householder QR is used
+ * instead: on X itself when the rows are in memory (the condition number of R is the square root of the one of X'X),
+ * otherwise on X'X. QR works in place on the rows and only allocates p-sized arrays.
+ *
+ * The condition number is the 2-norm one of the scaled X'X, from the singular values of L or R (one-sided Jacobi).
+ */
+class LeastSquares {
+    static final double MAX_CHOLESKY_CONDITION = 1e10;  // Loses up to ~10 of the 16 digits of a double
+    private static final double EPSILON = 1e-15;
+
+    enum Method {
+        CHOLESKY("Cholesky"), QR("Householder QR");
+
+        final String name;
+
+        Method(String name) {
+            this.name = name;
+        }
+    }
+
+    final double[] coefficients;
+    final double condition;             // Condition number of the scaled X'X
+    final Method method;
+
+    private LeastSquares(double[] coefficients, double condition, Method method) {
+        this.coefficients = coefficients;
+        this.condition = condition;
+        this.method = method;
+    }
+
+    /**
+     * @param xTx X'X (p x p)
+     * @param xTy X'y (p x 1)
+     * @param X rows of X for the QR fallback (n x p) or null to fall back to QR of X'X, X is overwritten by QR
+     * @param y target variable for the QR fallback (n x 1) or null, overwritten by QR
+     * @return coefficients b, the condition number and the method that was used
+     */
+    static LeastSquares solve(double[][] xTx, double[] xTy, double[][] X, double[] y) {
+        int p = xTy.length;
+        // Scale the columns: b = S * z, where (S X'X S) z = S X'y and S = diag(1 / sqrt(X'X_jj))
+        double[] scale = new double[p];
+        for (int j = 0; j < p; j++) {
+            scale[j] = xTx[j][j] > 0 ? 1 / Math.sqrt(xTx[j][j]) : 1;
+        }
+        double[][] A = new double[p][p];
+        double[] rhs = new double[p];
+        for (int i = 0; i < p; i++) {
+            for (int j = 0; j < p; j++) {
+                A[i][j] = xTx[i][j] * scale[i] * scale[j];
+            }
+            rhs[i] = xTy[i] * scale[i];
+        }
+
+        double[][] L = cholesky(A);
+        if (L != null) {
+            double condition = square(condition(L));
+            if (condition <= MAX_CHOLESKY_CONDITION) {
+                // L w = S X'y, L' z = w
+                double[] z = backSubstitution(L, forwardSubstitution(L, rhs), true);
+                return new LeastSquares(unscale(z, scale), condition, Method.CHOLESKY);
+            }
+        }
+
+        double condition;
+        double[] z;
+        if (X != null) {
+            // QR of X S: R is the Cholesky factor of S X'X S without ever squaring the condition number
+            for (double[] row : X) {
+                for (int j = 0; j < p; j++) {
+                    row[j] *= scale[j];
+                }
+            }
+            double[][] R = householder(X, y);
+            condition = square(condition(R));
+            z = backSubstitution(R, y, false);
+        } else {
+            double[][] R = householder(A, rhs);
+            condition = condition(R);
+            z = backSubstitution(R, rhs, false);
+        }
+        return new LeastSquares(unscale(z, scale), condition, Method.QR);
+    }
+
+    /**
+     * @return lower triangular L with A = LL' or null if A is not positive definite
+     */
+    private static double[][] cholesky(double[][] A) {
+        int p = A.length;
+        double[][] L = new double[p][p];
+        for (int j = 0; j < p; j++) {
+            double d = A[j][j];
+            for (int k = 0; k < j; k++) {
+                d -= L[j][k] * L[j][k];
+            }
+            if (!(d > EPSILON * A[j][j])) return null;
+            L[j][j] = Math.sqrt(d);
+            for (int i = j + 1; i < p; i++) {
+                double sum = A[i][j];
+                for (int k = 0; k < j; k++) {
+                    sum -= L[i][k] * L[j][k];
+                }
+                L[i][j] = sum / L[j][j];
+            }
+        }
+        return L;
+    }
+
+    /**
+     * Householder QR of the rows of A (m x p, m >= p) in place, the same reflections are applied to b.
+     * For every column k the reflection is computed from rows k ... m-1, then one pass over the rows sums
+     * v'A for all the remaining columns and a second pass updates them, so the rows are read in order.
+     * @return R (p x p), Q'b is in the first p values of b
+     */
+    private static double[][] householder(double[][] A, double[] b) {
+        int m = A.length;
+        int p = A[0].length;
+        double[][] R = new double[p][p];
+        double[] dots = new double[p];
+        for (int k = 0; k < p; k++) {
+            double norm = 0;
+            for (int i = k; i < m; i++) {
+                norm += A[i][k] * A[i][k];
+            }
+            norm = Math.sqrt(norm);
+            if (norm == 0) throw new ArithmeticException("X'X is singular (column " + (k + 1) + " is dependent)");
+            // Reflect onto -sign(A_kk) * norm, so v_k = A_kk - alpha does not cancel
+            double alpha = A[k][k] > 0 ? -norm : norm;
+            A[k][k] -= alpha;                       // Column k below the diagonal is now v
+            double vTv = 0, dotB = 0;
+            for (int j = k + 1; j < p; j++) {
+                dots[j] = 0;
+            }
+            for (int i = k; i < m; i++) {
+                double[] row = A[i];
+                double v = row[k];
+                vTv += v * v;
+                for (int j = k + 1; j < p; j++) {
+                    dots[j] += v * row[j];
+                }
+                dotB += v * b[i];
+            }
+            for (int i = k; i < m; i++) {
+                double[] row = A[i];
+                double f = 2 * row[k] / vTv;
+                for (int j = k + 1; j < p; j++) {
+                    row[j] -= f * dots[j];
+                }
+                b[i] -= f * dotB;
+            }
+            R[k][k] = alpha;
+            for (int j = k + 1; j < p; j++) {
+                R[k][j] = A[k][j];
+            }
+        }
+        return R;
+    }
+
+    /**
+     * Solves L x = b for a lower triangular L
+     */
+    private static double[] forwardSubstitution(double[][] L, double[] b) {
+        double[] x = new double[L.length];
+        for (int i = 0; i < L.length; i++) {
+            double sum = b[i];
+            for (int k = 0; k < i; k++) {
+                sum -= L[i][k] * x[k];
+            }
+            x[i] = sum / L[i][i];
+        }
+        return x;
+    }
+
+    /**
+     * Solves U x = b for an upper triangular U (the first p values of b are used)
+     * @param transposed if the upper triangular matrix is given as its transpose (L' of the lower triangular L)
+     */
+    private static double[] backSubstitution(double[][] U, double[] b, boolean transposed) {
+        int p = U.length;
+        double[] x = new double[p];
+        for (int i = p - 1; i >= 0; i--) {
+            double sum = b[i];
+            for (int k = i + 1; k < p; k++) {
+                sum -= (transposed ? U[k][i] : U[i][k]) * x[k];
+            }
+            x[i] = sum / U[i][i];
+        }
+        return x;
+    }
+
+    /**
+     * @return 2-norm condition number of a square matrix (largest / smallest singular value)
+     */
+    static double condition(double[][] M) {
+        int p = M.length;
+        double[][] U = new double[p][];
+        for (int i = 0; i < p; i++) {
+            U[i] = M[i].clone();
+        }
+        // One-sided Jacobi: rotate pairs of columns until they are orthogonal, the column norms are then
+        // the singular values
+        boolean rotated = true;
+        for (int sweep = 0; rotated && sweep < 60; sweep++) {
+            rotated = false;
+            for (int i = 0; i < p - 1; i++) {
+                for (int j = i + 1; j < p; j++) {
+                    double alpha = 0, beta = 0, gamma = 0;
+                    for (double[] row : U) {
+                        alpha += row[i] * row[i];
+                        beta += row[j] * row[j];
+                        gamma += row[i] * row[j];
+                    }
+                    if (Math.abs(gamma) <= EPSILON * Math.sqrt(alpha * beta)) continue;
+                    rotated = true;
+                    double zeta = (beta - alpha) / (2 * gamma);
+                    double t = Math.signum(zeta) / (Math.abs(zeta) + Math.sqrt(1 + zeta * zeta));
+                    if (zeta == 0) t = 1;
+                    double c = 1 / Math.sqrt(1 + t * t);
+                    double s = c * t;
+                    for (double[] row : U) {
+                        double ui = row[i];
+                        row[i] = c * ui - s * row[j];
+                        row[j] = s * ui + c * row[j];
+                    }
+                }
+            }
+        }
+        double max = 0, min = Double.POSITIVE_INFINITY;
+        for (int j = 0; j < p; j++) {
+            double norm = 0;
+            for (double[] row : U) {
+                norm += row[j] * row[j];
+            }
+            norm = Math.sqrt(norm);
+            max = Math.max(max, norm);
+            min = Math.min(min, norm);
+        }
+        return min == 0 ? Double.POSITIVE_INFINITY : max / min;
+    }
+
+    private static double[] unscale(double[] z, double[] scale) {
+        double[] b = new double[z.length];
+        for (int j = 0; j < z.length; j++) {
+            b[j] = z[j] * scale[j];
+        }
+        return b;
+    }
+
+    private static double square(double value) {
+        return value * value;
+    }
+}
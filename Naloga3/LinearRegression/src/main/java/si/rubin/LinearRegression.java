@@ -1,5 +1,6 @@
 package si.rubin;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
@@ -7,18 +8,19 @@ import java.util.List;
 import java.util.regex.Pattern;
 import java.util.stream.DoubleStream;
 
-import org.apache.commons.math3.linear.MatrixUtils;
-
 /**
  * LinearRegression on Space separated values. The points can compose a polynomial, linear or multilinear function.
  * Based on a parameter the given file is treated as one of the previous options and coefficients are calculated.
  *
  * Sample usage:
- *  ./LinearRegression <file> <type> [degree]
+ *  ./LinearRegression <file> <type> [degree] [--stream] [--threads n]
  *  file ...    path to a file which holds the points (lines with: X Y or X1 X2 ... XN Y)
  *  type ...    [li|po|ml] the type of the function the points are describing (check PointPlot/points_plot.py)
  *              (li=linear, po=polynomial, ml=multilinear)
  *  degree ...  polynomial degree to fit the data. Required if type equals polynomial
+ *  --stream .. read the file once and keep only X'X, X'y, the column sums and n in memory (see CrossProducts),
+ *              for files that do not fit into memory
+ *  --threads . number of threads for X'X and X'y (default: number of processors, see GramMatrix)
  *
  * @author David Rubin
  * Uporabljeno pri predmetu Algoritmi in analiza masovnih podatkov, FERI 2019
@@ -28,6 +30,7 @@ public class LinearRegression {
     private static final Pattern SPACE_PATTERN = Pattern.compile(" ");
     private static double[][] X_VALUES;     // The X values (in case of multilinear/poly more Xs are given)
     private static double[] Y_VALUES;       // The Y values
+    private static int THREADS = Runtime.getRuntime().availableProcessors();    // Threads for X'X and X'y
 
     public static void main(String[] args) {
         // Get the parameters
@@ -45,23 +48,52 @@ public class LinearRegression {
             }
             degree = Integer.parseInt(args[2]);
         }
+        boolean stream = false;
+        for (int a = functionType.equals("po") ? 3 : 2; a < args.length; a++) {
+            if (args[a].equals("--stream")) {
+                stream = true;
+            } else if (args[a].equals("--threads") && a + 1 < args.length) {
+                THREADS = Integer.parseInt(args[++a]);
+            } else {
+                System.out.println("Unknown option: " + args[a]);
+                System.exit(1);
+            }
+        }
 
-        // Read the data into X_VALUES and Y_VALUES
-        readFile(fileName, functionType, degree);
-        // Center the data (deduct the average)
-        centerData();
-        // Calculate the coefficients b1 - bN
-        double[] b1N = calculateCoefficients(X_VALUES, Y_VALUES);
-        // Reload the original data
-        readFile(fileName, functionType, degree);
-        // Calculate the coefficient b0 with the original data
-        double[] b = calculateCoefficientB0(X_VALUES, Y_VALUES, b1N);
+        double[] b;
+        LeastSquares solution;
+        if (stream) {
+            // One pass over the file, the rows are only kept as sufficient statistics
+            try {
+                CrossProducts statistics = streamFile(fileName, functionType, degree);
+                // Without the rows QR can only fall back to X'X
+                solution = LeastSquares.solve(statistics.xTx(), statistics.xTy(), null, null);
+                b = calculateCoefficientB0(statistics, solution.coefficients);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+                return;
+            }
+        } else {
+            // Read the data into X_VALUES and Y_VALUES
+            readFile(fileName, functionType, degree);
+            // Center the data (deduct the average)
+            centerData();
+            // Calculate the coefficients b1 - bN
+            solution = calculateCoefficients(X_VALUES, Y_VALUES);
+            // Reload the original data (QR may have overwritten the centered data)
+            readFile(fileName, functionType, degree);
+            // Calculate the coefficient b0 with the original data
+            b = calculateCoefficientB0(X_VALUES, Y_VALUES, solution.coefficients);
+        }
 
         // Print out the resulting coefficients
         System.out.println("Coefficients:");
         for (int i = 0; i < b.length; i++) {
             System.out.println(String.format(" b%d: %.3f", i, b[i]));
         }
+        System.out.println(String.format("Condition number of scaled X'X: %.3e (%s)", solution.condition,
+                solution.method.name));
     }
 
     /**
@@ -123,18 +155,93 @@ public class LinearRegression {
     }
 
     /**
-     * Calculates b via OLS
-     * b = (X' * X)^-1 * X' * y
-     * @param X input variables
-     * @param y target variable
-     * @return coefficients b
+     * StreamFile reads the points given in fileName once and adds every row to the sufficient statistics,
+     * no row is kept in memory
+     * @param fileName the filename of the data
+     * @param functionType linear, polynomial or multilinear
+     * @param degree polynomial degree if functionType == "po"
+     * @return statistics of all the rows
      */
-    private static double[] calculateCoefficients(double[][] X, double[] y) {
-        double[][] transposeX = transpose(X);
-        double[][] xTx =  matMul(transposeX, X);
-        double[][] inverted = MatrixUtils.inverse(MatrixUtils.createRealMatrix(xTx)).getData();
-        double[][] res = matMul(inverted, transposeX);
-        return matMul(res, y);
+    private static CrossProducts streamFile(String fileName, String functionType, int degree) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(new File(fileName).toPath())) {
+            String header = reader.readLine();
+            if (header == null) throw new IOException(fileName + " is empty");
+            // Number of Xs in a row (the last value is Y)
+            int xSize = header.split(" ").length - 1;
+            double[] values = new double[xSize + 1];
+            double[] x = new double[degree > 1 ? degree : xSize];
+            CrossProducts statistics = new CrossProducts(x.length);
+            String line;
+            int lineNumber = 1;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty()) continue;
+                parseValues(line, values, fileName, lineNumber);
+                System.arraycopy(values, 0, x, 0, xSize);
+                // Xi = X1^i for a polynomial, same as polynomialPreprocess
+                if (functionType.equals("po")) {
+                    for (int i = 1; i < degree; i++) {
+                        x[i] = Math.pow(x[0], i + 1);
+                    }
+                }
+                statistics.add(x, values[xSize]);
+            }
+            return statistics;
+        }
+    }
+
+    /**
+     * Parses the space separated values of a line
+     * @param values array for the values, the line has to have exactly as many
+     */
+    private static void parseValues(String line, double[] values, String fileName, int lineNumber)
+            throws IOException {
+        int start = 0;
+        for (int i = 0; i < values.length; i++) {
+            int end = line.indexOf(' ', start);
+            if (end < 0) end = line.length();
+            if ((i == values.length - 1) != (end == line.length())) {
+                throw new IOException(fileName + ":" + lineNumber + " should have " + values.length + " values");
+            }
+            try {
+                values[i] = Double.parseDouble(line.substring(start, end));
+            } catch (NumberFormatException e) {
+                throw new IOException(fileName + ":" + lineNumber + " has an invalid value", e);
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Adds the b0 coefficient from the sufficient statistics of the rows
+     * b0 = avg(y - X * b1N) = (sum(y) - sum(bj * sum(Xj))) / n
+     * @param statistics the column sums and n
+     * @param b1N coefficients b1 - bN
+     * @return coefficients b0 - bN
+     */
+    private static double[] calculateCoefficientB0(CrossProducts statistics, double[] b1N) {
+        double[] sums = statistics.columnSums();
+        double b0 = sums[sums.length - 1];
+        for (int j = 0; j < b1N.length; j++) {
+            b0 -= b1N[j] * sums[j];
+        }
+        double[] bs = new double[b1N.length + 1];
+        bs[0] = b0 / statistics.count();
+        System.arraycopy(b1N, 0, bs, 1, b1N.length);
+        return bs;
+    }
+
+    /**
+     * Calculates b via OLS, the solution of X'X b = X'y
+     * X'X and X'y are summed over the rows in parallel (see GramMatrix) and solved with Cholesky,
+     * or with QR of X if X'X is ill-conditioned (see LeastSquares)
+     * @param X input variables, overwritten if QR is used
+     * @param y target variable, overwritten if QR is used
+     * @return coefficients b, with the condition number of X'X
+     */
+    private static LeastSquares calculateCoefficients(double[][] X, double[] y) {
+        GramMatrix gram = GramMatrix.compute(X, y, THREADS);
+        return LeastSquares.solve(gram.xTx, gram.xTy, X, y);
     }
 
     /**
@@ -213,60 +320,4 @@ public class LinearRegression {
             }
         }
     }
-
-    /**
-     * The simplest matrix multiplication
-     * @param A matrix with size n x m
-     * @param B matrix with size m x p
-     * @return AB matrix with size n x p
-     */
-    private static double[][] matMul(double[][] A, double[][] B) {
-        // Result has A rows and B columns
-        int n = A.length;
-        int m = B.length;
-        int p = B[0].length;
-        double[][] result = new double[n][p];
-
-        for (int i = 0; i < n; i++) {
-            for (int j = 0; j < p; j++) {
-                for (int k = 0; k < m; k++) {
-                    result[i][j] += A[i][k] * B[k][j];
-                }
-            }
-        }
-        return result;
-    }
-
-    /**
-     * Multiplies the matrix A with vector b
-     * @param A matrix with size m x n
-     * @param b vector with size n x 1
-     * @return product Ab with size m x 1
-     */
-    private static double[] matMul(double[][] A, double[] b) {
-        double[] result = new double[A.length];
-        for (int i = 0; i < A.length; i++) {
-            for (int j = 0; j < A[0].length; j++) {
-                result[i] += A[i][j] * b[j];
-            }
-        }
-        return result;
-    }
-
-    /**
-     * Transposes the given matrix
-     * @param A 2D matrix
-     * @return A'
-     */
-    private static double[][] transpose(double [][] A) {
-        int newRows = A[0].length;
-        int newCols = A.length;
-        double[][] result = new double[newRows][newCols];
-        for (int i = 0; i < newRows; i++) {
-            for (int j = 0; j < newCols; j++) {
-                result[i][j] = A[j][i];
-            }
-        }
-        return result;
-    }
 }
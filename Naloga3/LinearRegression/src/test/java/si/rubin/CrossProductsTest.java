@@ -0,0 +1,87 @@
+package si.rubin;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * The running sums have to match the two-pass centered cross products, also when the values have a large
+ * offset that would cancel out in raw sums of squares.
+ */
+public class CrossProductsTest {
+    private static final int ROWS = 20000;
+    private static final int P = 3;
+
+    @Test
+    public void matchesTwoPassSums() {
+        assertTwoPass(rows(0, 1), 1e-12);
+    }
+
+    @Test
+    public void largeOffsetsDoNotCancel() {
+        // Raw sums of squares of 1e8 + noise lose all the digits of the noise in a double, the values themselves
+        // are only stored to ~1e-8 of the noise
+        assertTwoPass(rows(1e8, 1), 1e-7);
+    }
+
+    /**
+     * Compares the statistics of the rows to two passes (means first, then the centered sums)
+     */
+    private static void assertTwoPass(double[][] rows, double tolerance) {
+        CrossProducts statistics = new CrossProducts(P);
+        for (double[] row : rows) statistics.add(row, row[P]);
+        assertEquals(ROWS, statistics.count());
+        assertEquals(P, statistics.size());
+
+        double[] mean = new double[P + 1], magnitude = new double[P + 1];
+        for (double[] row : rows) {
+            for (int j = 0; j <= P; j++) {
+                mean[j] += row[j];
+                magnitude[j] += Math.abs(row[j]);
+            }
+        }
+        double[] sums = statistics.columnSums();
+        for (int j = 0; j <= P; j++) {
+            assertEquals(mean[j], sums[j], magnitude[j] * 1e-12);
+            mean[j] /= ROWS;
+        }
+        double[][] C = new double[P + 1][P + 1];
+        for (double[] row : rows) {
+            for (int i = 0; i <= P; i++) {
+                for (int j = 0; j <= P; j++) C[i][j] += (row[i] - mean[i]) * (row[j] - mean[j]);
+            }
+        }
+        double[][] xTx = statistics.xTx();
+        double[] xTy = statistics.xTy();
+        for (int i = 0; i < P; i++) {
+            for (int j = 0; j < P; j++) {
+                assertEquals(C[i][j], xTx[i][j], scale(C, i, j) * tolerance);
+            }
+            assertEquals(C[i][P], xTy[i], scale(C, i, P) * tolerance);
+        }
+    }
+
+    /**
+     * @return size of a cross product relative to the variances (so that the tolerance is relative)
+     */
+    private static double scale(double[][] C, int i, int j) {
+        return Math.sqrt(C[i][i] * C[j][j]);
+    }
+
+    /**
+     * @return rows (X1, X2, X3, Y) with correlated columns around the offset
+     */
+    private static double[][] rows(double offset, long seed) {
+        Random random = new Random(seed);
+        double[][] rows = new double[ROWS][P + 1];
+        for (double[] row : rows) {
+            row[0] = offset + random.nextGaussian();
+            row[1] = offset + 0.5 * (row[0] - offset) + random.nextGaussian();
+            row[2] = offset + 10 * random.nextDouble();
+            row[3] = 2 + 3 * (row[0] - offset) - (row[1] - offset) + 0.1 * random.nextGaussian();
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,54 @@
+package si.rubin;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * The fork-join sums have to match the sequential ones up to the order of the additions.
+ */
+public class GramMatrixTest {
+    private static final int P = 5;
+
+    @Test
+    public void parallelMatchesSequential() {
+        // Enough rows for several levels of splitting, and a row count that does not split evenly
+        int rows = GramMatrix.ROWS_PER_TASK * 7 + 123;
+        double[][] X = new double[rows][P];
+        double[] y = new double[rows];
+        Random random = new Random(9);
+        for (int r = 0; r < rows; r++) {
+            for (int j = 0; j < P; j++) X[r][j] = random.nextGaussian() * (j + 1);
+            y[r] = random.nextGaussian();
+        }
+        GramMatrix sequential = GramMatrix.compute(X, y, 1);
+        GramMatrix parallel = GramMatrix.compute(X, y, 4);
+        for (int i = 0; i < P; i++) {
+            for (int j = 0; j < P; j++) {
+                double sum = 0;
+                for (int r = 0; r < rows; r++) sum += X[r][i] * X[r][j];
+                double tolerance = Math.sqrt(sequential.xTx[i][i] * sequential.xTx[j][j]) * 1e-12;
+                assertEquals(sum, sequential.xTx[i][j], tolerance);
+                assertEquals(sequential.xTx[i][j], parallel.xTx[i][j], tolerance);
+                // Only the upper triangle is summed, the lower one is a copy
+                assertEquals(parallel.xTx[j][i], parallel.xTx[i][j], 0);
+            }
+            assertEquals(sequential.xTy[i], parallel.xTy[i], Math.sqrt(sequential.xTx[i][i] * rows) * 1e-12);
+        }
+    }
+
+    @Test
+    public void fewRowsAreSummedSequentially() {
+        double[][] X = {{1, 2}, {3, 4}, {5, 6}};
+        double[] y = {1, 0, -1};
+        GramMatrix gram = GramMatrix.compute(X, y, 8);
+        assertEquals(35, gram.xTx[0][0], 0);
+        assertEquals(44, gram.xTx[0][1], 0);
+        assertEquals(44, gram.xTx[1][0], 0);
+        assertEquals(56, gram.xTx[1][1], 0);
+        assertEquals(-4, gram.xTy[0], 0);
+        assertEquals(-4, gram.xTy[1], 0);
+    }
+}
@@ -0,0 +1,90 @@
+package si.rubin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Coefficients of exact data have to be found with Cholesky when X'X is well conditioned and with
+ * Householder QR (of X or of X'X) when it is not.
+ */
+public class LeastSquaresTest {
+    private final Random random = new Random(10);
+
+    @Test
+    public void wellConditionedUsesCholesky() {
+        double[] b = {2, -3, 0.5};
+        double[][] X = new double[1000][b.length];
+        for (double[] row : X) {
+            for (int j = 0; j < b.length; j++) row[j] = random.nextGaussian() * Math.pow(100, j);
+        }
+        LeastSquares solution = solve(X, b, true);
+        assertEquals(LeastSquares.Method.CHOLESKY, solution.method);
+        assertTrue(solution.condition < 10);
+        assertCoefficients(b, solution.coefficients, 1e-10);
+    }
+
+    @Test
+    public void polynomialFallsBackToQrOfX() {
+        // Degree 8 is the first one above MAX_CHOLESKY_CONDITION after the scaling
+        double[] b = {1, -0.5, 0.25, -0.125, 0.0625, -0.03125, 0.015625, -0.0078125};
+        LeastSquares solution = solve(polynomial(b.length), b, true);
+        assertEquals(LeastSquares.Method.QR, solution.method);
+        assertTrue(solution.condition > LeastSquares.MAX_CHOLESKY_CONDITION);
+        assertCoefficients(b, solution.coefficients, 1e-7);
+    }
+
+    @Test
+    public void withoutRowsFallsBackToQrOfXtX() {
+        double[] b = {1, -0.5, 0.25, -0.125, 0.0625, -0.03125, 0.015625, -0.0078125};
+        double[][] X = polynomial(b.length);
+        LeastSquares solution = solve(X, b, false);
+        assertEquals(LeastSquares.Method.QR, solution.method);
+        assertEquals(solve(X, b, true).condition, solution.condition, solution.condition * 1e-3);
+        assertCoefficients(b, solution.coefficients, 1e-2);
+    }
+
+    @Test
+    public void conditionIsTheRatioOfSingularValues() {
+        assertEquals(100, LeastSquares.condition(new double[][]{{0, 10, 0}, {1, 0, 0}, {0, 0, 0.1}}), 1e-9);
+        double c = Math.cos(0.3), s = Math.sin(0.3);
+        assertEquals(1, LeastSquares.condition(new double[][]{{c, -s}, {s, c}}), 1e-12);
+        assertEquals(Double.POSITIVE_INFINITY, LeastSquares.condition(new double[][]{{1, 2}, {2, 4}}), 0);
+    }
+
+    /**
+     * Solves X b = y for y = X b, the rows are given to the QR fallback if rows is set
+     */
+    private static LeastSquares solve(double[][] X, double[] b, boolean rows) {
+        double[] y = new double[X.length];
+        for (int r = 0; r < X.length; r++) {
+            for (int j = 0; j < b.length; j++) y[r] += X[r][j] * b[j];
+        }
+        GramMatrix gram = GramMatrix.compute(X, y, 1);
+        double[][] copy = new double[X.length][];
+        for (int r = 0; r < X.length; r++) copy[r] = X[r].clone();
+        return LeastSquares.solve(gram.xTx, gram.xTy, rows ? copy : null, rows ? y : null);
+    }
+
+    /**
+     * @return rows x, x^2, ... x^degree for x in [0, 10], as LinearRegression fits a polynomial
+     */
+    private double[][] polynomial(int degree) {
+        double[][] X = new double[2000][degree];
+        for (double[] row : X) {
+            double x = random.nextDouble() * 10;
+            for (int j = 0; j < degree; j++) row[j] = Math.pow(x, j + 1);
+        }
+        return X;
+    }
+
+    private static void assertCoefficients(double[] expected, double[] actual, double tolerance) {
+        assertEquals(expected.length, actual.length);
+        for (int j = 0; j < expected.length; j++) {
+            assertEquals("b" + (j + 1), expected[j], actual[j], Math.abs(expected[j]) * tolerance);
+        }
+    }
+}